@@ -0,0 +1,225 @@
+import bench.ChatBridge;
+import java.lang.reflect.Field;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.SecretKey;
+
+/**
+ * Implementação de {@link ChatBridge} no pacote padrão, onde estão as classes do chat.
+ * Os servidores são exercitados pelos mesmos métodos usados em produção; só o
+ * transporte é trocado por destinos em memória que contam e descartam os bytes.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ChatBridgeImpl implements ChatBridge {
+    private static final int FIRST_PORT = 20000;
+
+    private SinkConnection[] tcpUsers = new SinkConnection[0];
+    private SinkSocket udpSocket;
+    private InetSocketAddress[] udpUsers = new InetSocketAddress[0];
+    private DatagramPacket udpPacket;
+    private long tcpBytes;
+
+    /**
+     * Conexão TCP em memória: esvazia a fila de saída assim que algo é enfileirado.
+     */
+    private class SinkConnection extends ChatServerTCP.Connection {
+        @Override
+        void onQueued() {
+            ByteBuffer frame;
+            while ((frame = outbound.poll()) != null) tcpBytes += frame.remaining();
+        }
+
+        @Override
+        void disconnect() {
+            outbound.close();
+        }
+    }
+
+    /**
+     * Socket UDP em memória: conta os bytes enviados sem tocar na rede.
+     */
+    private static class SinkSocket extends DatagramSocket {
+        long bytes;
+
+        SinkSocket() throws SocketException {
+            super((SocketAddress) null);
+        }
+
+        @Override
+        public void send(DatagramPacket packet) {
+            bytes += packet.getLength();
+        }
+    }
+
+    @Override
+    public KeyPair generateKeyPair() throws Exception {
+        return RSAUtils.generateKeyPair();
+    }
+
+    @Override
+    public KeyPair generateKeyPair(String suite) throws Exception {
+        return RSAUtils.generateKeyPair(RSAUtils.Suite.valueOf(suite));
+    }
+
+    @Override
+    public String keyToString(PublicKey key) {
+        return RSAUtils.keyToString(key);
+    }
+
+    @Override
+    public PublicKey stringToPublicKey(String key) throws Exception {
+        return RSAUtils.stringToPublicKey(key);
+    }
+
+    @Override
+    public byte[] encrypt(String message, PublicKey key) throws Exception {
+        return RSAUtils.encrypt(message, key);
+    }
+
+    @Override
+    public String decrypt(byte[] encrypted, PrivateKey key) throws Exception {
+        return RSAUtils.decrypt(encrypted, key);
+    }
+
+    @Override
+    public byte[] sign(String message, PrivateKey key) throws Exception {
+        return RSAUtils.sign(message, key);
+    }
+
+    @Override
+    public boolean verify(String message, byte[] signature, PublicKey key) throws Exception {
+        return RSAUtils.verify(message, signature, key);
+    }
+
+    @Override
+    public SecretKey generateSessionKey() throws Exception {
+        return RSAUtils.generateSessionKey();
+    }
+
+    @Override
+    public byte[] encryptAES(String message, SecretKey key, byte[] aad) throws Exception {
+        return RSAUtils.encryptAES(message, key, aad);
+    }
+
+    @Override
+    public String decryptAES(byte[] data, SecretKey key, byte[] aad) throws Exception {
+        return RSAUtils.decryptAES(data, key, aad);
+    }
+
+    @Override
+    public byte[] wrapKey(SecretKey key, PublicKey publicKey) throws Exception {
+        return RSAUtils.wrapKey(key, publicKey);
+    }
+
+    @Override
+    public String sealGroup(String from, List<String> recipients, List<PublicKey> keys, String message, PrivateKey key) throws Exception {
+        return GroupSeal.seal(from, recipients, keys, message, key);
+    }
+
+    @Override
+    public ByteBuffer encodeFrame(byte opcode, int sender, int recipient, String text) {
+        return WireFrame.encode(opcode, sender, recipient, text);
+    }
+
+    @Override
+    public Object parseFrame(byte[] data, int length) throws Exception {
+        return WireFrame.parse(data, 0, length);
+    }
+
+    @Override
+    public byte opcode(String name) {
+        switch (name) {
+            case "BROADCAST":
+                return WireFrame.BROADCAST;
+            case "PRIVADO":
+                return WireFrame.PRIVATE;
+            case "ENCRYPTED":
+                return WireFrame.SECURE;
+            default:
+                return WireFrame.TEXT;
+        }
+    }
+
+    @Override
+    public int[] startTcp(int users, String publicKey) throws Exception {
+        tcpUsers = new SinkConnection[users];
+        int[] ids = new int[users];
+        for (int i = 0; i < users; i++) {
+            SinkConnection conn = new SinkConnection();
+            conn.address = InetAddress.getLoopbackAddress();
+            ChatServerTCP.register(conn, "REGISTRO:u" + i + ":" + publicKey);
+            tcpUsers[i] = conn;
+            ids[i] = conn.id;
+        }
+        return ids;
+    }
+
+    @Override
+    public void tcpLine(int user, String line) throws Exception {
+        ChatServerTCP.handleMessage(tcpUsers[user], line);
+    }
+
+    @Override
+    public void tcpFrame(int user, byte[] frame, int length) throws Exception {
+        ChatServerTCP.handleFrame(tcpUsers[user], WireFrame.parse(frame, 0, length));
+    }
+
+    @Override
+    public void stopTcp() throws Exception {
+        for (SinkConnection conn : tcpUsers) {
+            conn.disconnect();
+            ChatServerTCP.unregister(conn);
+        }
+        tcpUsers = new SinkConnection[0];
+    }
+
+    @Override
+    public int[] startUdp(int users, String publicKey) throws Exception {
+        udpSocket = new SinkSocket();
+        udpUsers = new InetSocketAddress[users];
+        udpPacket = new DatagramPacket(new byte[0], 0);
+        for (int i = 0; i < users; i++) {
+            udpUsers[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), FIRST_PORT + i);
+            byte[] reg = ("REGISTRO:u" + i + ":" + publicKey).getBytes();
+            udpPacket(i, reg, reg.length);
+        }
+
+        // Os ids do UDP só são informados a clientes binários; aqui basta lê-los do servidor
+        Field field = ChatServerUDP.class.getDeclaredField("ids");
+        field.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        Map<String, Integer> assigned = (Map<String, Integer>) field.get(null);
+        int[] ids = new int[users];
+        for (int i = 0; i < users; i++) ids[i] = assigned.get("u" + i);
+        return ids;
+    }
+
+    @Override
+    public void udpPacket(int user, byte[] data, int length) throws Exception {
+        udpPacket.setData(data, 0, length);
+        udpPacket.setSocketAddress(udpUsers[user]);
+        ChatServerUDP.handlePacket(udpSocket, udpPacket, ChatMetrics.start());
+    }
+
+    @Override
+    public void stopUdp() throws Exception {
+        for (int i = 0; i < udpUsers.length; i++) {
+            byte[] bye = ("SAIR:u" + i).getBytes();
+            udpPacket(i, bye, bye.length);
+        }
+        udpUsers = new InetSocketAddress[0];
+        udpSocket.close();
+    }
+
+    @Override
+    public long sinkBytes() {
+        return tcpBytes + (udpSocket != null ? udpSocket.bytes : 0);
+    }
+}
@@ -0,0 +1,47 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cifragem e decifragem AES-GCM do modo híbrido ({@code RSAUtils.encryptAES}/{@code decryptAES}), por tamanho.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=OFF")
+public class AesBenchmark {
+    @Param({"16", "256", "4096"})
+    int size;
+
+    private ChatBridge chat;
+    private SecretKey key;
+    private byte[] aad;
+    private String message;
+    private byte[] encrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        chat = ChatBridge.load();
+        key = chat.generateSessionKey();
+        aad = "ana>bob".getBytes();
+        message = "x".repeat(size);
+        encrypted = chat.encryptAES(message, key, aad);
+    }
+
+    @Benchmark
+    public byte[] encryptAES() throws Exception {
+        return chat.encryptAES(message, key, aad);
+    }
+
+    @Benchmark
+    public String decryptAES() throws Exception {
+        return chat.decryptAES(encrypted, key, aad);
+    }
+}
@@ -0,0 +1,120 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.List;
+import javax.crypto.SecretKey;
+
+/**
+ * Acesso dos benchmarks ao código do chat. As classes do chat estão no pacote
+ * padrão, que não pode ser importado de um pacote nomeado, e o JMH não aceita
+ * benchmarks no pacote padrão; por isso os benchmarks falam com esta interface,
+ * implementada por {@code ChatBridgeImpl} (no pacote padrão) e carregada por nome.
+ *
+ * <p>Os servidores guardam o estado em campos estáticos, então só existe um
+ * servidor TCP e um UDP por JVM (o JMH usa uma JVM por benchmark).
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public interface ChatBridge {
+
+    /**
+     * @return A implementação do pacote padrão.
+     */
+    static ChatBridge load() {
+        try {
+            return (ChatBridge) Class.forName("ChatBridgeImpl").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("ChatBridgeImpl nao encontrado", e);
+        }
+    }
+
+    // RSAUtils
+
+    KeyPair generateKeyPair() throws Exception;
+
+    /**
+     * @param suite O nome de um {@code RSAUtils.Suite} ("RSA" ou "EC25519").
+     */
+    KeyPair generateKeyPair(String suite) throws Exception;
+
+    String keyToString(PublicKey key);
+
+    PublicKey stringToPublicKey(String key) throws Exception;
+
+    byte[] encrypt(String message, PublicKey key) throws Exception;
+
+    String decrypt(byte[] encrypted, PrivateKey key) throws Exception;
+
+    byte[] sign(String message, PrivateKey key) throws Exception;
+
+    boolean verify(String message, byte[] signature, PublicKey key) throws Exception;
+
+    SecretKey generateSessionKey() throws Exception;
+
+    byte[] encryptAES(String message, SecretKey key, byte[] aad) throws Exception;
+
+    String decryptAES(byte[] data, SecretKey key, byte[] aad) throws Exception;
+
+    byte[] wrapKey(SecretKey key, PublicKey publicKey) throws Exception;
+
+    // GroupSeal
+
+    String sealGroup(String from, List<String> recipients, List<PublicKey> keys, String message, PrivateKey key) throws Exception;
+
+    // WireFrame
+
+    ByteBuffer encodeFrame(byte opcode, int sender, int recipient, String text);
+
+    /**
+     * @return O frame decodificado (como Object, pois WireFrame está no pacote padrão).
+     */
+    Object parseFrame(byte[] data, int length) throws Exception;
+
+    byte opcode(String name);
+
+    // Servidor TCP, com conexões em memória que descartam o que recebem
+
+    /**
+     * Registra {@code users} conexões ("u0", "u1", ...) no servidor TCP.
+     *
+     * @return Os ids atribuídos, na ordem dos usuários.
+     */
+    int[] startTcp(int users, String publicKey) throws Exception;
+
+    /**
+     * Entrega uma linha ao servidor TCP como se viesse do usuário {@code user}.
+     */
+    void tcpLine(int user, String line) throws Exception;
+
+    /**
+     * Decodifica e entrega um frame binário ao servidor TCP como se viesse do usuário {@code user}.
+     */
+    void tcpFrame(int user, byte[] frame, int length) throws Exception;
+
+    void stopTcp() throws Exception;
+
+    // Servidor UDP, com um socket em memória que descarta os envios
+
+    /**
+     * Registra {@code users} clientes ("u0", "u1", ...) no servidor UDP.
+     *
+     * @return Os ids atribuídos, na ordem dos usuários.
+     */
+    int[] startUdp(int users, String publicKey) throws Exception;
+
+    /**
+     * Entrega um datagrama ao servidor UDP como se viesse do usuário {@code user}.
+     */
+    void udpPacket(int user, byte[] data, int length) throws Exception;
+
+    void stopUdp() throws Exception;
+
+    /**
+     * @return Total de bytes entregues às conexões e ao socket em memória (evita que o trabalho seja descartado).
+     */
+    long sinkBytes();
+}
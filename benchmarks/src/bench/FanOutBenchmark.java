@@ -0,0 +1,58 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Broadcast de uma mensagem para N usuários conectados em memória, nos dois servidores.
+ * Com {@code -prof gc}, a métrica {@code gc.alloc.rate.norm} mostra quantos bytes são
+ * alocados por broadcast, o que permite conferir que o custo não cresce por destinatário.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=OFF")
+public class FanOutBenchmark {
+    @Param({"10", "100", "1000"})
+    int users;
+
+    @Param({"16", "256", "4096"})
+    int size;
+
+    private ChatBridge chat;
+    private String tcpLine;
+    private byte[] udpText;
+
+    @Setup
+    public void setup() throws Exception {
+        chat = ChatBridge.load();
+        String key = chat.keyToString(chat.generateKeyPair().getPublic());
+        chat.startTcp(users, key);
+        chat.startUdp(users, key);
+        tcpLine = "x".repeat(size);
+        udpText = ("BROADCAST:u0:" + tcpLine).getBytes();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        chat.stopTcp();
+        chat.stopUdp();
+    }
+
+    @Benchmark
+    public long tcpBroadcast() throws Exception {
+        chat.tcpLine(0, tcpLine);
+        return chat.sinkBytes();
+    }
+
+    @Benchmark
+    public long udpBroadcast() throws Exception {
+        chat.udpPacket(0, udpText, udpText.length);
+        return chat.sinkBytes();
+    }
+}
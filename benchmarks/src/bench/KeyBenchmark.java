@@ -0,0 +1,51 @@
+package bench;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Geração de chaves de identidade e conversão de chaves públicas para texto e de volta
+ * ({@code RSAUtils.keyToString}/{@code stringToPublicKey}, usadas em cada registro e REQKEY),
+ * para cada conjunto de chaves.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=OFF")
+public class KeyBenchmark {
+    @Param({"RSA", "EC25519"})
+    String suite;
+
+    private ChatBridge chat;
+    private PublicKey publicKey;
+    private String encoded;
+
+    @Setup
+    public void setup() throws Exception {
+        chat = ChatBridge.load();
+        publicKey = chat.generateKeyPair(suite).getPublic();
+        encoded = chat.keyToString(publicKey);
+    }
+
+    @Benchmark
+    public KeyPair generateKeyPair() throws Exception {
+        return chat.generateKeyPair(suite);
+    }
+
+    @Benchmark
+    public String keyToString() {
+        return chat.keyToString(publicKey);
+    }
+
+    @Benchmark
+    public PublicKey stringToPublicKey() throws Exception {
+        return chat.stringToPublicKey(encoded);
+    }
+}
@@ -0,0 +1,113 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Tratamento de um comando pelos dois servidores, nos protocolos de texto e binário,
+ * com só dois usuários conectados (u0 envia, u1 recebe), para que o custo seja o de
+ * interpretar e despachar o comando e não o do fan-out. {@code frameParse} mede só
+ * a decodificação de um {@code WireFrame}. O REQKEY binário é um frame TEXT, que o
+ * servidor UDP ignora.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=OFF")
+public class ParseBenchmark {
+    @Param({"BROADCAST", "PRIVADO", "REQKEY", "ENCRYPTED"})
+    String command;
+
+    @Param({"16", "256", "1024"})
+    int size;
+
+    private ChatBridge chat;
+    private String tcpLine;
+    private byte[] udpText;
+    private byte[] tcpFrame;
+    private byte[] udpFrame;
+
+    @Setup
+    public void setup() throws Exception {
+        chat = ChatBridge.load();
+        String key = chat.keyToString(chat.generateKeyPair().getPublic());
+        int[] tcpIds = chat.startTcp(2, key);
+        int[] udpIds = chat.startUdp(2, key);
+
+        String text = "x".repeat(size);
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 7);
+        String payload = Base64.getEncoder().encodeToString(bytes);
+        switch (command) {
+            case "BROADCAST":
+                tcpLine = text;
+                udpText = ("BROADCAST:u0:" + text).getBytes();
+                break;
+            case "PRIVADO":
+                tcpLine = "@u1 " + text;
+                udpText = ("PRIVADO:u0:u1:" + text).getBytes();
+                break;
+            case "REQKEY":
+                tcpLine = "REQKEY:u1";
+                udpText = "REQKEY:u1".getBytes();
+                text = tcpLine;
+                break;
+            default:
+                tcpLine = "ENCRYPTED:u1:" + payload;
+                udpText = ("PRIVADO:u0:u1:SECURE:" + payload + ":" + payload).getBytes();
+                break;
+        }
+        byte opcode = chat.opcode(command);
+        tcpFrame = toArray(chat.encodeFrame(opcode, tcpIds[0], tcpIds[1], text));
+        udpFrame = toArray(chat.encodeFrame(opcode, udpIds[0], udpIds[1], text));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        chat.stopTcp();
+        chat.stopUdp();
+    }
+
+    private static byte[] toArray(ByteBuffer frame) {
+        byte[] data = new byte[frame.remaining()];
+        frame.duplicate().get(data);
+        return data;
+    }
+
+    @Benchmark
+    public long tcpText() throws Exception {
+        chat.tcpLine(0, tcpLine);
+        return chat.sinkBytes();
+    }
+
+    @Benchmark
+    public long tcpBinary() throws Exception {
+        chat.tcpFrame(0, tcpFrame, tcpFrame.length);
+        return chat.sinkBytes();
+    }
+
+    @Benchmark
+    public long udpText() throws Exception {
+        chat.udpPacket(0, udpText, udpText.length);
+        return chat.sinkBytes();
+    }
+
+    @Benchmark
+    public long udpBinary() throws Exception {
+        chat.udpPacket(0, udpFrame, udpFrame.length);
+        return chat.sinkBytes();
+    }
+
+    @Benchmark
+    public Object frameParse() throws Exception {
+        return chat.parseFrame(tcpFrame, tcpFrame.length);
+    }
+}
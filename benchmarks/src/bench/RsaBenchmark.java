@@ -0,0 +1,62 @@
+package bench;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cifragem, decifragem, assinatura e verificação de uma mensagem, por tamanho e
+ * conjunto de chaves (245 bytes é o máximo que cabe em um bloco RSA-2048 com PKCS#1;
+ * o EC25519 não tem limite).
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=OFF")
+public class RsaBenchmark {
+    @Param({"16", "128", "245"})
+    int size;
+
+    @Param({"RSA", "EC25519"})
+    String suite;
+
+    private ChatBridge chat;
+    private KeyPair keys;
+    private String message;
+    private byte[] encrypted;
+    private byte[] signature;
+
+    @Setup
+    public void setup() throws Exception {
+        chat = ChatBridge.load();
+        keys = chat.generateKeyPair(suite);
+        message = "x".repeat(size);
+        encrypted = chat.encrypt(message, keys.getPublic());
+        signature = chat.sign(message, keys.getPrivate());
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return chat.encrypt(message, keys.getPublic());
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        return chat.decrypt(encrypted, keys.getPrivate());
+    }
+
+    @Benchmark
+    public byte[] sign() throws Exception {
+        return chat.sign(message, keys.getPrivate());
+    }
+
+    @Benchmark
+    public boolean verify() throws Exception {
+        return chat.verify(message, signature, keys.getPublic());
+    }
+}
@@ -1,19 +1,89 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.security.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Cliente de chat TCP que se conecta a um servidor, envia e recebe mensagens.
  * Suporta comunicação de texto simples, mensagens criptografadas e comandos.
- * Gerencia a geração de chaves RSA e o cache de chaves públicas de outros usuários.
+ * Gerencia as chaves do usuário (guardadas em {@link ClientKeyStore}, RSA ou EC25519
+ * conforme {@code -Dchat.suite}) e o cache de chaves públicas de outros usuários.
+ * Com {@code -Dchat.crypto=session}, as mensagens seguras usam o modo híbrido
+ * RSA + AES-GCM de {@link SessionKeys} (sem limite de tamanho) para os destinatários
+ * cuja chave veio com {@code :AES}; para os demais (clientes antigos), cada mensagem
+ * é cifrada com RSA. Mensagens recebidas em qualquer um dos dois formatos são aceitas.
+ * Com {@code -Dchat.protocol=binary}, negocia o protocolo binário de {@link WireFrame}.
+ * As mensagens recebidas passam por {@link ReceivePipeline}, que decifra as seguras
+ * em paralelo mantendo a ordem de cada remetente.
+ * Chaves públicas desconhecidas são pedidas ao servidor sem bloquear a digitação:
+ * as mensagens seguras ficam na fila do destinatário e saem, em ordem, quando a
+ * chave chega ({@code -Dchat.keyTimeoutMs} limita a espera, 5000 por padrão).
+ * {@code @a,b,c SECURE texto} envia uma mensagem segura de grupo ({@link GroupSeal}),
+ * cifrada uma vez para todos; {@code @a,b,c texto} envia uma privada simples a cada um.
  *
  * @author [Seu Nome]
  * @version 1.0
  */
 public class ChatClientTCP {
+    private static final boolean BINARY = System.getProperty("chat.protocol", "text").equalsIgnoreCase("binary");
+    private static final boolean SESSION_MODE = System.getProperty("chat.crypto", "rsa").equalsIgnoreCase("session");
+    private static final int KEY_TIMEOUT_MS = Integer.getInteger("chat.keyTimeoutMs", 5000);
+
+    private static Map<String, PublicKey> keyCache = new ConcurrentHashMap<>();
+    // Usuários cujo cliente anunciou AES: só eles recebem mensagens do modo de sessão
+    private static final Set<String> sessionPeers = ConcurrentHashMap.newKeySet();
+    // Pedidos de chave em andamento (REQKEY), com as mensagens seguras à espera de cada um
+    private static final Map<String, PendingKey> pendingKeys = new ConcurrentHashMap<>();
+    // Último envio de grupo, para que as mensagens de grupo saiam na ordem digitada
+    private static CompletableFuture<Void> lastGroup = CompletableFuture.completedFuture(null);
+    private static String username;
+    private static PrivateKey clientPrivateKey;
+    private static SessionKeys sessions;
+    private static final ReceivePipeline pipeline = new ReceivePipeline(System.out::println);
+    private static OutputStream out;
+    private static boolean binary;
+    private static int myId;
+    // ids dos usuários, conhecidos pelos frames USER (apenas no protocolo binário)
+    private static Map<String, Integer> userIds = new ConcurrentHashMap<>();
+    private static Map<Integer, String> userNames = new ConcurrentHashMap<>();
+
+    /**
+     * Um pedido de chave pública em andamento. O futuro é completado pela thread de
+     * recebimento (PUBKEYRESP ou PUBKEYRESPERR) ou falha pelo tempo limite; as
+     * mensagens da fila são enviadas ou descartadas sob o monitor do pedido. As
+     * privadas simples para o mesmo destinatário também esperam na fila, para não
+     * passarem à frente das seguras.
+     */
+    private static class PendingKey {
+        final CompletableFuture<PublicKey> future = new CompletableFuture<>();
+        final List<Queued> queued = new ArrayList<>();
+        boolean done;
+    }
+
+    /**
+     * Uma mensagem privada à espera de um pedido de chave.
+     */
+    private static class Queued {
+        final String text;
+        final boolean secure;
+
+        Queued(String text, boolean secure) {
+            this.text = text;
+            this.secure = secure;
+        }
+    }
+
     /**
      * Ponto de entrada principal do cliente. Gerencia a conexão, a troca de chaves,
      * o loop de envio e a thread de recebimento.
@@ -22,55 +92,71 @@ public class ChatClientTCP {
      * @throws Exception Se ocorrer um erro durante a conexão ou I/O.
      */
     public static void main(String[] args) throws Exception {
-        Socket socket = new Socket("localhost", 50000);
+        Socket socket = new Socket("localhost", Integer.getInteger("chat.tcp.port", 50000));
 
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        InputStream rawIn = new BufferedInputStream(socket.getInputStream());
         BufferedReader keyboard = new BufferedReader(new InputStreamReader(System.in));
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        out = new BufferedOutputStream(socket.getOutputStream());
 
-        KeyPair clientKeyPair = RSAUtils.generateKeyPair();
-        PublicKey clientPublicKey = clientKeyPair.getPublic();
-        PrivateKey clientPrivateKey = clientKeyPair.getPrivate();
+        System.out.print("Digite seu nome de usuario: ");
+        username = keyboard.readLine();
 
-        Map<String, PublicKey> keyCache = new HashMap<>();
+        // Carrega a identidade salva do usuário (ou cria e salva uma nova)
+        KeyPair clientKeyPair = ClientKeyStore.loadOrCreate(username);
+        PublicKey clientPublicKey = clientKeyPair.getPublic();
+        clientPrivateKey = clientKeyPair.getPrivate();
+        sessions = new SessionKeys(username, clientPrivateKey);
+        // SIG: este cliente recebe a assinatura das mensagens RSA em texto (ENCRYPTED:de:cifrado:assinatura)
+        // EC: este cliente lê chaves EC25519 (o servidor não as manda a quem não anuncia)
+        // AES: este cliente abre mensagens do modo de sessão, em qualquer modo
+        sendLine("REGISTRO:" + username + ":" + RSAUtils.keyToString(clientPublicKey) + (BINARY ? ":BIN,SIG,EC,AES" : ":SIG,EC,AES"));
 
-        System.out.print("Digite seu nome de usuario: ");
-        String username = keyboard.readLine();
-        out.println("REGISTRO:" + username + ":" + RSAUtils.keyToString(clientPublicKey));
+        if (BINARY) {
+            // A confirmação ainda vem como texto; depois dela, só frames
+            String reply = WireFrame.readLine(rawIn);
+            if (reply != null && reply.startsWith("BIN_OK:")) {
+                myId = Integer.parseInt(reply.substring(7).trim());
+                binary = true;
+            } else if (reply != null) {
+                handleServerLine(reply);
+            }
+        }
 
         // Thread para receber mensagens do servidor.
         new Thread(() -> {
-            String serverMsg;
             try {
-                while ((serverMsg = in.readLine()) != null) {
-                    if (serverMsg.startsWith("PUBKEYRESP:")) {
-                        String[] parts = serverMsg.split(":", 3);
-                        String user = parts[1];
-                        PublicKey pubKey = RSAUtils.stringToPublicKey(parts[2]);
-                        keyCache.put(user, pubKey);
-                        // System.out.println("[INFO] Chave pública de " + user + " recebida.");
-                    } else if (serverMsg.startsWith("ENCRYPTED:")) {
-                        String[] parts = serverMsg.split(":", 3);
-                        String fromUser = parts[1];
-                        byte[] encrypted = Base64.getDecoder().decode(parts[2]);
-                        String decrypted = RSAUtils.decrypt(encrypted, clientPrivateKey);
-                        System.out.println("[Privado-SECURE] " + fromUser + ": " + decrypted);
-                    } else {
-                        System.out.println(serverMsg);
+                if (binary) {
+                    DataInputStream in = new DataInputStream(rawIn);
+                    WireFrame frame;
+                    while ((frame = WireFrame.read(in)) != null) {
+                        handleFrame(frame);
+                    }
+                } else {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(rawIn));
+                    String serverMsg;
+                    while ((serverMsg = in.readLine()) != null) {
+                        handleServerLine(serverMsg);
                     }
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            failPendingKeys(new IOException("conexao encerrada"));
         }).start();
 
         // Loop de envio
         String userInput;
         while ((userInput = keyboard.readLine()) != null) {
             if (userInput.equalsIgnoreCase("!list")) {
-                out.println("!list");
+                sendLine("!list");
+            } else if (userInput.equalsIgnoreCase("!stats")) {
+                sendLine("!stats");
+            } else if (userInput.startsWith("!join ") || userInput.equalsIgnoreCase("!leave")
+                    || userInput.equalsIgnoreCase("!rooms")) {
+                // Comandos de sala vão como linha (frame TEXT no protocolo binário), não como mensagem
+                sendLine(userInput);
             } else if (userInput.equalsIgnoreCase("!exit")) {
-                out.println("!exit");
+                sendLine("!exit");
                 break;
             } else if (userInput.startsWith("@")) {
                 String[] parts = userInput.split(" ", 3);
@@ -78,27 +164,362 @@ public class ChatClientTCP {
                 boolean secure = parts.length >= 3 && parts[1].equalsIgnoreCase("SECURE");
                 String message = secure ? parts[2] : userInput.substring(userInput.indexOf(" ") + 1);
 
-                if (secure) {
-                    PublicKey targetKey = keyCache.get(targetUser);
-                    if (targetKey == null) {
-                        // System.out.println("[INFO] Solicitando chave pública de " + targetUser + "...");
-                        out.println("REQKEY:" + targetUser);
-                        // Aguarda a chave ser recebida na thread de recebimento
-                        while (!keyCache.containsKey(targetUser)) {
-                            Thread.sleep(50);
+                if (targetUser.contains(",")) {
+                    List<String> targets = groupOf(targetUser);
+                    if (secure) {
+                        sendGroup(targets, message);
+                    } else {
+                        for (String target : targets) {
+                            if (!queueBehindKey(target, new Queued(message, false))) sendPrivate(target, message);
                         }
-                        targetKey = keyCache.get(targetUser);
                     }
-                    byte[] encrypted = RSAUtils.encrypt(message, targetKey);
-                    out.println("ENCRYPTED:" + targetUser + ":" + Base64.getEncoder().encodeToString(encrypted));
-                } else {
-                    out.println(userInput);
+                } else if (secure) {
+                    try {
+                        sendSecure(targetUser, message);
+                    } catch (GeneralSecurityException e) {
+                        // Por exemplo, texto longo demais para RSA a um destinatário sem AES
+                        System.out.println("[ERRO] Nao foi possivel cifrar para " + targetUser + ": " + e.getMessage());
+                    }
+                } else if (!queueBehindKey(targetUser, new Queued(message, false))) {
+                    sendPrivate(targetUser, message);
                 }
+            } else if (binary) {
+                sendFrame(WireFrame.encode(WireFrame.BROADCAST, myId, 0, userInput));
             } else {
-                out.println(userInput);
+                sendLine(userInput);
             }
         }
 
         socket.close();
     }
-}
\ No newline at end of file
+
+    /**
+     * Envia uma mensagem segura. Se a chave do destinatário ainda não é conhecida,
+     * a mensagem entra na fila do pedido de chave (que é aberto, se preciso) e o
+     * método volta imediatamente.
+     *
+     * @param target O destinatário.
+     * @param message O texto da mensagem.
+     * @throws Exception Se ocorrer um erro de criptografia ou de I/O.
+     */
+    private static void sendSecure(String target, String message) throws Exception {
+        Queued entry = new Queued(message, true);
+        while (true) {
+            if (queueBehindKey(target, entry)) return;
+
+            PublicKey key = keyCache.get(target);
+            if (key != null) {
+                sealAndSend(target, key, message);
+                return;
+            }
+
+            PendingKey created = new PendingKey();
+            created.queued.add(entry);
+            if (pendingKeys.putIfAbsent(target, created) == null) {
+                created.future.orTimeout(KEY_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                        .whenComplete((k, error) -> resolve(target, created, k, error));
+                sendLine("REQKEY:" + target);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param list Os destinatários de {@code @a,b,c}.
+     * @return Os destinatários, sem repetições, vazios nem o próprio usuário.
+     */
+    private static List<String> groupOf(String list) {
+        Set<String> targets = new LinkedHashSet<>(Arrays.asList(list.split(",")));
+        targets.remove("");
+        targets.remove(username);
+        return new ArrayList<>(targets);
+    }
+
+    /**
+     * Envia uma mensagem segura de grupo, cifrada uma única vez ({@link GroupSeal}).
+     * As chaves que faltam são pedidas ao servidor; a mensagem sai quando todas chegam
+     * (e depois da mensagem de grupo anterior), sem bloquear a digitação, ou é
+     * descartada se alguma não chegar.
+     *
+     * @param targets Os destinatários.
+     * @param message O texto da mensagem.
+     * @throws IOException Se ocorrer um erro de I/O ao pedir as chaves.
+     */
+    private static void sendGroup(List<String> targets, String message) throws IOException {
+        if (targets.isEmpty()) return;
+        List<CompletableFuture<PublicKey>> keys = new ArrayList<>();
+        for (String target : targets) keys.add(keyFuture(target));
+        CompletableFuture<Void> keysReady = CompletableFuture.allOf(keys.toArray(new CompletableFuture<?>[0]));
+        lastGroup = CompletableFuture.allOf(lastGroup, keysReady).handle((done, error) -> {
+            if (error != null) {
+                System.out.println("[ERRO] Mensagem de grupo descartada: chave publica indisponivel.");
+                return null;
+            }
+            try {
+                List<PublicKey> resolved = new ArrayList<>();
+                for (CompletableFuture<PublicKey> key : keys) resolved.add(key.join());
+                sendLine(GroupSeal.seal(username, targets, resolved, message, clientPrivateKey));
+            } catch (Exception e) {
+                System.out.println("[ERRO] Falha ao enviar mensagem de grupo: " + e.getMessage());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * A chave pública de um usuário: a do cache, ou a do pedido de chave em andamento
+     * (aberto, se preciso). Se as chaves já são conhecidas, o futuro já vem completo.
+     *
+     * @param user O usuário.
+     * @return O futuro da chave, que falha se o servidor não a conhecer ou não responder a tempo.
+     * @throws IOException Se ocorrer um erro de I/O ao pedir a chave.
+     */
+    private static CompletableFuture<PublicKey> keyFuture(String user) throws IOException {
+        PublicKey key = keyCache.get(user);
+        if (key != null) return CompletableFuture.completedFuture(key);
+        PendingKey created = new PendingKey();
+        PendingKey pending = pendingKeys.putIfAbsent(user, created);
+        if (pending != null) return pending.future;
+        created.future.orTimeout(KEY_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((k, error) -> resolve(user, created, k, error));
+        sendLine("REQKEY:" + user);
+        return created.future;
+    }
+
+    /**
+     * Coloca uma mensagem na fila do pedido de chave em andamento para o destinatário, se houver.
+     *
+     * @return true se a mensagem entrou na fila; false se não há pedido em andamento.
+     */
+    private static boolean queueBehindKey(String target, Queued entry) {
+        while (true) {
+            PendingKey pending = pendingKeys.get(target);
+            if (pending == null) return false;
+            synchronized (pending) {
+                if (!pending.done) {
+                    pending.queued.add(entry);
+                    return true;
+                }
+            }
+            // o pedido acabou de terminar e já saiu da tabela; confere de novo
+        }
+    }
+
+    /**
+     * Termina um pedido de chave: envia as mensagens da fila, na ordem em que foram
+     * digitadas, ou descarta as seguras se o pedido falhou. Roda na thread que completou o futuro.
+     */
+    private static void resolve(String target, PendingKey pending, PublicKey key, Throwable error) {
+        synchronized (pending) {
+            try {
+                if (error != null) {
+                    String reason = error instanceof TimeoutException
+                            ? "sem resposta em " + KEY_TIMEOUT_MS + " ms" : error.getMessage();
+                    long dropped = pending.queued.stream().filter(q -> q.secure).count();
+                    System.out.println("[ERRO] Chave publica de " + target + " indisponivel (" + reason + "); "
+                            + dropped + " mensagem(ns) segura(s) descartada(s).");
+                }
+                for (Queued q : pending.queued) {
+                    if (!q.secure) sendPrivate(target, q.text);
+                    else if (error == null) sealAndSend(target, key, q.text);
+                }
+            } catch (Exception e) {
+                System.out.println("[ERRO] Falha ao enviar para " + target + ": " + e.getMessage());
+            } finally {
+                pending.queued.clear();
+                pending.done = true;
+                pendingKeys.remove(target, pending);
+            }
+        }
+    }
+
+    /**
+     * Falha todos os pedidos de chave em andamento (por exemplo, quando a conexão cai).
+     */
+    private static void failPendingKeys(Exception cause) {
+        for (PendingKey pending : pendingKeys.values()) pending.future.completeExceptionally(cause);
+    }
+
+    /**
+     * Envia uma mensagem privada em texto simples no formato negociado.
+     *
+     * @param target O destinatário.
+     * @param message O texto da mensagem.
+     * @throws IOException Se ocorrer um erro de I/O.
+     */
+    private static void sendPrivate(String target, String message) throws IOException {
+        Integer targetId = binary ? userIds.get(target) : null;
+        if (targetId != null) {
+            sendFrame(WireFrame.encode(WireFrame.PRIVATE, myId, targetId, message));
+        } else {
+            sendLine("@" + target + " " + message);
+        }
+    }
+
+    /**
+     * Cifra uma mensagem para o destinatário e a envia no formato negociado.
+     *
+     * @param target O destinatário.
+     * @param key A chave pública do destinatário.
+     * @param message O texto da mensagem.
+     * @throws Exception Se ocorrer um erro de criptografia ou de I/O.
+     */
+    private static void sealAndSend(String target, PublicKey key, String message) throws Exception {
+        Integer targetId = binary ? userIds.get(target) : null;
+        if (SESSION_MODE && sessionPeers.contains(target)) {
+            String sealed = sessions.seal(target, key, message);
+            if (targetId != null) {
+                sendFrame(WireFrame.encode(WireFrame.SECURE_SESSION, myId, targetId, sealed));
+            } else {
+                sendLine("ENCRYPTED:" + target + ":" + sealed);
+            }
+        } else {
+            byte[] encrypted = RSAUtils.encrypt(message, key);
+            // Assinada como no cliente UDP, que só aceita mensagens seguras assinadas
+            byte[] signature = RSAUtils.sign(message, clientPrivateKey);
+            if (targetId != null) {
+                sendFrame(WireFrame.encode(WireFrame.SECURE, myId, targetId, signature, encrypted));
+            } else {
+                sendLine("ENCRYPTED:" + target + ":" + Base64.getEncoder().encodeToString(encrypted)
+                        + ":" + Base64.getEncoder().encodeToString(signature));
+            }
+        }
+    }
+
+    /**
+     * Trata uma linha de texto do servidor (no protocolo binário, o payload de um frame TEXT).
+     *
+     * @param serverMsg A linha recebida.
+     * @throws Exception Se ocorrer um erro de criptografia.
+     */
+    private static void handleServerLine(String serverMsg) throws Exception {
+        if (serverMsg.startsWith("PUBKEYRESP:")) {
+            String[] parts = serverMsg.split(":", 3);
+            String user = parts[1];
+            // chave[:AES]
+            PublicKey pubKey = RSAUtils.stringToPublicKey(KeyDirectory.keyOf(parts[2]));
+            if (KeyDirectory.sessionCapable(parts[2])) sessionPeers.add(user);
+            else sessionPeers.remove(user);
+            keyCache.put(user, pubKey);
+            PendingKey pending = pendingKeys.get(user);
+            if (pending != null) pending.future.complete(pubKey);
+        } else if (serverMsg.startsWith("PUBKEYRESPERR:")) {
+            String user = serverMsg.substring(14);
+            PendingKey pending = pendingKeys.get(user);
+            if (pending != null) pending.future.completeExceptionally(new IOException("usuario " + user + " nao encontrado"));
+        } else if (serverMsg.startsWith("ENCRYPTED:")) {
+            String[] parts = serverMsg.split(":", 3);
+            String fromUser = parts[1];
+            if (SessionKeys.isSessionPayload(parts[2])) {
+                openSession(fromUser, parts[2]);
+                return;
+            }
+            // cifrado[:assinatura]
+            String[] fields = parts[2].split(":", 2);
+            openSecure(fromUser, fields.length > 1 ? Base64.getDecoder().decode(fields[1]) : new byte[0],
+                    Base64.getDecoder().decode(fields[0]));
+        } else if (serverMsg.startsWith(GroupSeal.PREFIX)) {
+            String fromUser = GroupSeal.senderOf(serverMsg);
+            // Sem a chave do remetente, a mensagem espera por ela na fila dele, sem ocupar uma thread
+            CompletableFuture<PublicKey> senderKey = keyFuture(fromUser);
+            pipeline.secure(fromUser, senderKey, () -> GroupSeal.open(username, clientPrivateKey,
+                    senderKey.join(), serverMsg));
+        } else {
+            pipeline.plain(ReceivePipeline.senderOf(serverMsg), serverMsg);
+        }
+    }
+
+    /**
+     * Agenda a abertura de uma mensagem segura do modo RSA. Uma mensagem assinada só é
+     * exibida se a assinatura conferir com a chave do remetente (pedida ao servidor, se
+     * ainda não é conhecida); uma sem assinatura, de um cliente antigo, é exibida como antes.
+     *
+     * @param from O remetente.
+     * @param signature A assinatura do texto original (vazia se não veio).
+     * @param encrypted O texto cifrado.
+     * @throws Exception Se ocorrer um erro de I/O ao pedir a chave.
+     */
+    private static void openSecure(String from, byte[] signature, byte[] encrypted) throws Exception {
+        if (signature.length == 0) {
+            pipeline.secure(from, () -> "[Privado-SECURE] " + from + ": " + RSAUtils.decrypt(encrypted, clientPrivateKey));
+            return;
+        }
+        CompletableFuture<PublicKey> senderKey = keyFuture(from);
+        pipeline.secure(from, senderKey, () -> {
+            String decrypted = RSAUtils.decrypt(encrypted, clientPrivateKey);
+            if (!RSAUtils.verify(decrypted, signature, senderKey.join())) return "[ERRO] Assinatura invalida de " + from;
+            return "[Privado-SECURE] " + from + ": " + decrypted;
+        });
+    }
+
+    /**
+     * Agenda a abertura de uma mensagem do modo de sessão. A assinatura da chave de
+     * sessão é sempre verificada: se a chave do remetente ainda não é conhecida, ela é
+     * pedida ao servidor e a mensagem espera por ela (ou é descartada, se não chegar).
+     *
+     * @param from O remetente.
+     * @param payload O payload {@code AES:...}.
+     * @throws Exception Se ocorrer um erro de I/O ao pedir a chave.
+     */
+    private static void openSession(String from, String payload) throws Exception {
+        CompletableFuture<PublicKey> senderKey = keyFuture(from);
+        pipeline.secure(from, senderKey, () -> "[Privado-SECURE] " + from + ": "
+                + sessions.open(from, senderKey.join(), payload));
+    }
+
+    /**
+     * Trata um frame do protocolo binário.
+     *
+     * @param frame O frame recebido.
+     * @throws Exception Se ocorrer um erro de criptografia.
+     */
+    private static void handleFrame(WireFrame frame) throws Exception {
+        String from = userNames.getOrDefault(frame.sender, "#" + frame.sender);
+        switch (frame.opcode) {
+            case WireFrame.TEXT:
+                handleServerLine(frame.text());
+                break;
+            case WireFrame.BROADCAST:
+                pipeline.plain(from, "[Todos] " + from + ": " + frame.text());
+                break;
+            case WireFrame.PRIVATE:
+                pipeline.plain(from, "[Privado] " + from + ": " + frame.text());
+                break;
+            case WireFrame.SECURE:
+                openSecure(from, frame.signature, frame.payload);
+                break;
+            case WireFrame.SECURE_SESSION:
+                openSession(from, frame.text());
+                break;
+            case WireFrame.USER:
+                if (frame.payload.length == 0) {
+                    String name = userNames.remove(frame.sender);
+                    if (name != null) userIds.remove(name);
+                } else {
+                    userNames.put(frame.sender, frame.text());
+                    userIds.put(frame.text(), frame.sender);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void sendLine(String line) throws IOException {
+        if (binary) {
+            sendFrame(WireFrame.encode(WireFrame.TEXT, myId, 0, line));
+            return;
+        }
+        synchronized (out) {
+            out.write((line + System.lineSeparator()).getBytes());
+            out.flush();
+        }
+    }
+
+    private static void sendFrame(ByteBuffer frame) throws IOException {
+        synchronized (out) {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            out.flush();
+        }
+    }
+}
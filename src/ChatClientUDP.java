@@ -1,4 +1,5 @@
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -12,19 +13,49 @@ public class ChatClientUDP {
     private static Map<String, PublicKey> publicKeyCache = new ConcurrentHashMap<>();
     private static KeyPair keyPair;
     private static PrivateKey myPrivate;
+    private static SessionKeys sessions;
+    // Com -Dchat.crypto=session, as mensagens seguras usam RSA + AES-GCM (SessionKeys) para
+    // quem anunciou AES (a chave vem com :AES); os demais recebem mensagens RSA
+    private static final Set<String> sessionPeers = ConcurrentHashMap.newKeySet();
+    private static final boolean SESSION_MODE = System.getProperty("chat.crypto", "rsa").equalsIgnoreCase("session");
+
+    // Sincronização incremental do diretório de chaves (ver KeyDirectory)
+    private static volatile long keysVersion = 0;
+    private static String syncRange;
+    private static Set<Integer> syncPages = new HashSet<>();
+    private static Set<String> syncUsers = new HashSet<>();
+
+    // Com -Dchat.protocol=binary, pede o protocolo binário (WireFrame); só é usado depois do BIN_OK
+    private static final boolean BINARY = System.getProperty("chat.protocol", "text").equalsIgnoreCase("binary");
+    private static volatile boolean binary;
+    private static volatile int myId;
+    private static Map<String, Integer> userIds = new ConcurrentHashMap<>();
+    private static Map<Integer, String> userNames = new ConcurrentHashMap<>();
+
+    // Com -Dchat.reliable=true, tudo o que é enviado ao servidor usa a camada confiável (ReliableUdp)
+    private static final boolean RELIABLE = Boolean.getBoolean("chat.reliable");
+    private static ReliableUdp reliable = RELIABLE ? new ReliableUdp() : null;
+    // Mensagens maiores que um fragmento são divididas e remontadas (ver UdpFragmenter)
+    private static UdpFragmenter fragments = new UdpFragmenter();
+    // Decifra e verifica as mensagens seguras em paralelo, na ordem de cada remetente (ver ReceivePipeline)
+    private static final ReceivePipeline pipeline = new ReceivePipeline(System.out::println);
+    // Intervalo dos PING que mantêm a sessão viva no servidor (ele expira clientes calados)
+    private static final int HEARTBEAT_MS = Integer.getInteger("chat.udp.heartbeatMs", 15000);
 
     public static void main(String[] args) throws Exception {
         DatagramSocket socket = new DatagramSocket();
         Scanner scanner = new Scanner(System.in);
 
-        keyPair = RSAUtils.generateKeyPair();
-        PublicKey myPublic = keyPair.getPublic();
-        myPrivate = keyPair.getPrivate();
-
         System.out.print("Digite seu nome de usuario: ");
         String username = scanner.nextLine();
 
-        send(socket, "REGISTRO:" + username + ":" + RSAUtils.keyToString(myPublic));
+        // Identidade salva em ClientKeyStore (RSA ou EC25519, conforme -Dchat.suite)
+        keyPair = ClientKeyStore.loadOrCreate(username);
+        PublicKey myPublic = keyPair.getPublic();
+        myPrivate = keyPair.getPrivate();
+        sessions = new SessionKeys(username, myPrivate);
+
+        register(socket, username, myPublic);
 
         // Thread de recepção
         new Thread(() -> {
@@ -33,50 +64,57 @@ public class ChatClientUDP {
                 try {
                     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                     socket.receive(packet);
+                    if (reliable != null) {
+                        packet = reliable.unwrap(socket, packet);
+                        if (packet == null) continue;
+                    }
+                    packet = fragments.reassemble(packet);
+                    if (packet == null) continue;
+                    if (WireFrame.isFrame(packet.getData(), packet.getLength())) {
+                        handleFrame(WireFrame.parse(packet.getData(), 0, packet.getLength()));
+                        continue;
+                    }
                     String msg = new String(packet.getData(), 0, packet.getLength());
 
-                    if (msg.startsWith("LISTA_KEYS:")) {
+                    if (msg.startsWith("EXPIRADO:")) {
+                        // O servidor expirou a sessão (ou o endereço mudou, por exemplo, por NAT)
+                        System.out.println("[INFO] Sessao expirada no servidor; registrando novamente.");
+                        register(socket, username, myPublic);
+                    } else if (msg.startsWith("BIN_OK:")) {
+                        myId = Integer.parseInt(msg.substring(7).trim());
+                        binary = true;
+                    } else if (msg.startsWith(KeyDirectory.HEADER)) {
+                        applyKeyPage(socket, msg);
+                    } else if (msg.startsWith("LISTA_KEYS:")) {
                         String[] lines = msg.split("\n");
                         for (String line : lines) {
                             if (line.trim().isEmpty() || line.startsWith("LISTA_KEYS")) continue;
                             String[] kv = line.split(":", 2);
-                            String user = kv[0];
-                            PublicKey key = RSAUtils.stringToPublicKey(kv[1]);
-                            publicKeyCache.put(user, key);
+                            cacheKey(kv[0], kv[1]);
                         }
                         // System.out.println("[INFO] Lista inicial de chaves recebida.");
                     } else if (msg.startsWith("NEWKEY:")) {
                         String[] parts = msg.split(":", 3);
-                        String user = parts[1];
-                        PublicKey key = RSAUtils.stringToPublicKey(parts[2]);
-                        publicKeyCache.put(user, key);
+                        cacheKey(parts[1], parts[2]);
                         // System.out.println("[INFO] Nova chave recebida de " + user);
                     } else if (msg.startsWith("PRIVADO:") || msg.startsWith("ENCRYPTED:")) {
                         String[] parts = msg.split(":", 6);
                         String from = parts[1];
                         boolean secure = parts[3].equalsIgnoreCase("SECURE");
 
-                        if (secure) {
-                            byte[] signature = Base64.getDecoder().decode(parts[4]);
-                            byte[] encrypted = Base64.getDecoder().decode(parts[5]);
-                            PublicKey senderKey = publicKeyCache.get(from);
-
-                            if (senderKey != null) {
-                                String decrypted = RSAUtils.decrypt(encrypted, myPrivate);
-                                boolean valid = RSAUtils.verify(decrypted, signature, senderKey);
-                                if (valid)
-                                    System.out.println("[Privado-SECURE] " + from + ": " + decrypted);
-                                else
-                                    System.out.println("[ERRO] Assinatura invalida de " + from);
-                            } else {
-                                System.out.println("[ERRO] Chave publica de " + from + " nao encontrada.");
-                            }
+                        if (secure && SessionKeys.isSessionPayload(parts[4] + ":")) {
+                            pipeline.secure(from, () -> showSession(from, parts[4] + ":" + parts[5]));
+                        } else if (secure) {
+                            pipeline.secure(from, () -> showSecure(from, Base64.getDecoder().decode(parts[4]), Base64.getDecoder().decode(parts[5])));
                         } else {
                             String text = parts[3];
-                            System.out.println("[Privado] " + from + ": " + text);
+                            pipeline.plain(from, "[Privado] " + from + ": " + text);
                         }
+                    } else if (msg.startsWith(GroupSeal.PREFIX)) {
+                        String from = GroupSeal.senderOf(msg);
+                        pipeline.secure(from, () -> showGroup(username, from, msg));
                     } else {
-                        System.out.println(msg);
+                        pipeline.plain(ReceivePipeline.senderOf(msg), msg);
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -85,12 +123,34 @@ public class ChatClientUDP {
             }
         }).start();
 
+        // Heartbeat: mantém a sessão viva mesmo quando o usuário não digita nada
+        Thread heartbeat = new Thread(() -> {
+            while (!socket.isClosed()) {
+                try {
+                    Thread.sleep(HEARTBEAT_MS);
+                    send(socket, "PING:");
+                } catch (Exception e) {
+                    return;
+                }
+            }
+        }, "chat-heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+
         // Loop de envio
         while (true) {
             String input = scanner.nextLine();
 
             if (input.equalsIgnoreCase("!list")) {
                 send(socket, "LISTAR_USUARIOS:");
+            } else if (input.equalsIgnoreCase("!stats")) {
+                send(socket, "STATS:");
+            } else if (input.startsWith("!join ")) {
+                send(socket, "ENTRAR_SALA:" + input.substring(6).trim());
+            } else if (input.equalsIgnoreCase("!leave")) {
+                send(socket, "SAIR_SALA:");
+            } else if (input.equalsIgnoreCase("!rooms")) {
+                send(socket, "LISTAR_SALAS:");
             } else if (input.equalsIgnoreCase("!exit")) {
                 send(socket, "SAIR:" + username);
                 Thread.sleep(200);
@@ -101,34 +161,285 @@ public class ChatClientUDP {
                 String target = parts[0].substring(1);
                 boolean secure = parts.length >= 3 && parts[1].equalsIgnoreCase("SECURE");
                 String msgText = secure ? parts[2] : input.substring(input.indexOf(" ") + 1);
+                Integer targetId = binary ? userIds.get(target) : null;
 
-                if (secure) {
+                if (target.contains(",")) {
+                    // @a,b,c: segura vai cifrada uma vez para o grupo; simples, uma privada a cada um
+                    Set<String> group = new LinkedHashSet<>(Arrays.asList(target.split(",")));
+                    group.remove("");
+                    group.remove(username);
+                    if (secure) {
+                        sendGroup(socket, username, new ArrayList<>(group), msgText);
+                    } else {
+                        for (String member : group) send(socket, "PRIVADO:" + username + ":" + member + ":" + msgText);
+                    }
+                } else if (secure) {
                     PublicKey destKey = publicKeyCache.get(target);
                     if (destKey == null) {
                         System.out.println("[ERRO] Nao tenho a chave publica de " + target);
+                        send(socket, "SYNC_KEYS:" + keysVersion);
+                        continue;
+                    }
+
+                    if (SESSION_MODE && sessionPeers.contains(target)) {
+                        String sealed = sessions.seal(target, destKey, msgText);
+                        if (targetId != null) {
+                            sendFrame(socket, WireFrame.encode(WireFrame.SECURE_SESSION, myId, targetId, sealed));
+                        } else {
+                            send(socket, "PRIVADO:" + username + ":" + target + ":SECURE:" + sealed);
+                        }
                         continue;
                     }
 
-                    byte[] encrypted = RSAUtils.encrypt(msgText, destKey);
+                    byte[] encrypted;
+                    try {
+                        encrypted = RSAUtils.encrypt(msgText, destKey);
+                    } catch (GeneralSecurityException e) {
+                        // Por exemplo, texto longo demais para RSA a um destinatário sem AES
+                        System.out.println("[ERRO] Nao foi possivel cifrar para " + target + ": " + e.getMessage());
+                        continue;
+                    }
                     byte[] signature = RSAUtils.sign(msgText, keyPair.getPrivate());
+                    if (targetId != null) {
+                        sendFrame(socket, WireFrame.encode(WireFrame.SECURE, myId, targetId, signature, encrypted));
+                        continue;
+                    }
 
                     String packet = "PRIVADO:" + username + ":" + target + ":SECURE:" +
                             Base64.getEncoder().encodeToString(signature) + ":" +
                             Base64.getEncoder().encodeToString(encrypted);
                     send(socket, packet);
+                } else if (targetId != null) {
+                    sendFrame(socket, WireFrame.encode(WireFrame.PRIVATE, myId, targetId, msgText));
                 } else {
                     send(socket, "PRIVADO:" + username + ":" + target + ":" + msgText);
                 }
+            } else if (binary) {
+                sendFrame(socket, WireFrame.encode(WireFrame.BROADCAST, myId, 0, input));
             } else {
                 send(socket, "BROADCAST:" + username + ":" + input);
             }
         }
     }
 
+    /**
+     * Guarda a chave de um usuário e se ele aceita o modo de sessão.
+     *
+     * @param user O usuário.
+     * @param published A chave, seguida de {@code :AES} se o cliente dele anunciou AES.
+     * @throws Exception Se a chave for inválida.
+     */
+    private static void cacheKey(String user, String published) throws Exception {
+        PublicKey key = RSAUtils.stringToPublicKey(KeyDirectory.keyOf(published));
+        if (KeyDirectory.sessionCapable(published)) sessionPeers.add(user);
+        else sessionPeers.remove(user);
+        publicKeyCache.put(user, key);
+    }
+
+    /**
+     * Aplica uma página do diretório de chaves ({@code KEYS:de:ate:pagina:paginas}).
+     * A versão local só avança quando todas as páginas de uma sincronização chegaram;
+     * se houver uma lacuna (alguma alteração perdida), pede as diferenças ao servidor.
+     * Executado apenas pela thread de recepção.
+     *
+     * @param socket O socket do cliente.
+     * @param msg A página recebida.
+     * @throws Exception Se uma chave for inválida ou ocorrer erro de I/O.
+     */
+    private static void applyKeyPage(DatagramSocket socket, String msg) throws Exception {
+        String[] lines = msg.split("\n");
+        String[] header = lines[0].split(":");
+        long from = Long.parseLong(header[1]);
+        long to = Long.parseLong(header[2]);
+        int page = Integer.parseInt(header[3]);
+        int pages = Integer.parseInt(header[4]);
+
+        // As linhas trazem o estado atual de cada usuário, então aplicá-las é sempre seguro
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.startsWith("+")) {
+                String[] kv = line.substring(1).split(":", 2);
+                cacheKey(kv[0], kv[1]);
+                syncUsers.add(kv[0]);
+            } else if (line.startsWith("-")) {
+                publicKeyCache.remove(line.substring(1));
+                sessionPeers.remove(line.substring(1));
+            }
+        }
+
+        if (from != 0 && from != keysVersion) {
+            if (from > keysVersion && syncRange == null) send(socket, "SYNC_KEYS:" + keysVersion);
+            return;
+        }
+
+        String range = from + ":" + to;
+        if (!range.equals(syncRange)) {
+            syncRange = range;
+            syncPages.clear();
+        }
+        syncPages.add(page);
+        if (syncPages.size() == pages) {
+            // Diretório completo: descarta quem não está mais registrado
+            if (from == 0) {
+                publicKeyCache.keySet().retainAll(syncUsers);
+                sessionPeers.retainAll(syncUsers);
+            }
+            keysVersion = to;
+            syncRange = null;
+            syncUsers.clear();
+        }
+    }
+
+    /**
+     * Trata um frame do protocolo binário. Executado apenas pela thread de recepção.
+     *
+     * @param frame O frame recebido (null se o datagrama estiver truncado).
+     * @throws Exception Se ocorrer um erro de criptografia.
+     */
+    private static void handleFrame(WireFrame frame) throws Exception {
+        if (frame == null) return;
+        String from = userNames.getOrDefault(frame.sender, "#" + frame.sender);
+        switch (frame.opcode) {
+            case WireFrame.TEXT:
+                System.out.println(frame.text());
+                break;
+            case WireFrame.BROADCAST:
+                pipeline.plain(from, "[Todos] " + from + ": " + frame.text());
+                break;
+            case WireFrame.PRIVATE:
+                pipeline.plain(from, "[Privado] " + from + ": " + frame.text());
+                break;
+            case WireFrame.SECURE:
+                pipeline.secure(from, () -> showSecure(from, frame.signature, frame.payload));
+                break;
+            case WireFrame.SECURE_SESSION:
+                pipeline.secure(from, () -> showSession(from, frame.text()));
+                break;
+            case WireFrame.USER:
+                if (frame.payload.length == 0) {
+                    String name = userNames.remove(frame.sender);
+                    if (name != null) userIds.remove(name);
+                } else {
+                    userNames.put(frame.sender, frame.text());
+                    userIds.put(frame.text(), frame.sender);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Decifra uma mensagem segura no modo RSA, verificando a assinatura. Roda numa
+     * thread de {@link ReceivePipeline}.
+     *
+     * @param from O remetente.
+     * @param signature A assinatura do texto original.
+     * @param encrypted O texto cifrado.
+     * @return A linha a exibir (a mensagem ou o erro).
+     * @throws Exception Se ocorrer um erro de criptografia.
+     */
+    private static String showSecure(String from, byte[] signature, byte[] encrypted) throws Exception {
+        PublicKey senderKey = publicKeyCache.get(from);
+        if (senderKey == null) return "[ERRO] Chave publica de " + from + " nao encontrada.";
+        String decrypted = RSAUtils.decrypt(encrypted, myPrivate);
+        if (RSAUtils.verify(decrypted, signature, senderKey))
+            return "[Privado-SECURE] " + from + ": " + decrypted;
+        else
+            return "[ERRO] Assinatura invalida de " + from;
+    }
+
+    /**
+     * Decifra uma mensagem segura no modo de sessão ({@code AES:...}). Roda numa
+     * thread de {@link ReceivePipeline}.
+     *
+     * @param from O remetente.
+     * @param payload O payload de {@link SessionKeys}.
+     * @return A linha a exibir (a mensagem ou o erro).
+     * @throws Exception Se ocorrer um erro de criptografia.
+     */
+    private static String showSession(String from, String payload) throws Exception {
+        PublicKey senderKey = publicKeyCache.get(from);
+        if (senderKey == null) return "[ERRO] Chave publica de " + from + " nao encontrada.";
+        try {
+            return "[Privado-SECURE] " + from + ": " + sessions.open(from, senderKey, payload);
+        } catch (GeneralSecurityException e) {
+            return "[ERRO] Assinatura invalida de " + from;
+        }
+    }
+
+    /**
+     * Envia uma mensagem segura de grupo, cifrada uma única vez ({@link GroupSeal}).
+     * Todas as chaves precisam estar no diretório local; se faltar alguma, a mensagem
+     * não é enviada e o diretório é sincronizado de novo.
+     *
+     * @param socket O socket do cliente.
+     * @param username O usuário local.
+     * @param group Os destinatários.
+     * @param msgText O texto da mensagem.
+     * @throws Exception Se ocorrer um erro de criptografia ou de I/O.
+     */
+    private static void sendGroup(DatagramSocket socket, String username, List<String> group, String msgText) throws Exception {
+        if (group.isEmpty()) return;
+        List<PublicKey> keys = new ArrayList<>();
+        for (String member : group) {
+            PublicKey key = publicKeyCache.get(member);
+            if (key == null) {
+                System.out.println("[ERRO] Nao tenho a chave publica de " + member);
+                send(socket, "SYNC_KEYS:" + keysVersion);
+                return;
+            }
+            keys.add(key);
+        }
+        send(socket, GroupSeal.seal(username, group, keys, msgText, myPrivate));
+    }
+
+    /**
+     * Verifica e decifra uma mensagem segura de grupo. Roda numa thread de {@link ReceivePipeline}.
+     *
+     * @param me O usuário local.
+     * @param from O remetente.
+     * @param msg A linha {@code GRUPO:...} recebida.
+     * @return A linha a exibir (a mensagem ou o erro).
+     * @throws Exception Se ocorrer um erro de criptografia.
+     */
+    private static String showGroup(String me, String from, String msg) throws Exception {
+        PublicKey senderKey = publicKeyCache.get(from);
+        if (senderKey == null) return "[ERRO] Chave publica de " + from + " nao encontrada.";
+        try {
+            return GroupSeal.open(me, myPrivate, senderKey, msg);
+        } catch (GeneralSecurityException e) {
+            return "[ERRO] Assinatura invalida de " + from;
+        }
+    }
+
+    private static void register(DatagramSocket socket, String username, PublicKey myPublic) throws Exception {
+        send(socket, "REGISTRO:" + username + ":" + RSAUtils.keyToString(myPublic) + ":SYNC=" + keysVersion + ",FRAG,HB,EC,AES" + (BINARY ? ",BIN" : ""));
+    }
+
+    private static void sendFrame(DatagramSocket socket, ByteBuffer frame) throws Exception {
+        transmit(socket, frame.array(), frame.limit());
+    }
+
     private static void send(DatagramSocket socket, String msg) throws Exception {
-        InetAddress addr = InetAddress.getByName(SERVER_IP);
         byte[] data = msg.getBytes();
-        DatagramPacket packet = new DatagramPacket(data, data.length, addr, SERVER_PORT);
-        socket.send(packet);
+        transmit(socket, data, data.length);
+    }
+
+    private static void transmit(DatagramSocket socket, byte[] data, int length) throws Exception {
+        if (UdpFragmenter.needsSplit(length)) {
+            for (byte[] fragment : fragments.split(data, 0, length)) sendDatagram(socket, fragment, fragment.length);
+        } else {
+            sendDatagram(socket, data, length);
+        }
+    }
+
+    private static void sendDatagram(DatagramSocket socket, byte[] data, int length) throws Exception {
+        InetSocketAddress server = new InetSocketAddress(SERVER_IP, SERVER_PORT);
+        if (reliable != null) {
+            reliable.send(socket, data, 0, length, server);
+        } else {
+            socket.send(new DatagramPacket(data, length, server));
+        }
     }
 }
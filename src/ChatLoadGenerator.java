@@ -0,0 +1,722 @@
+import java.io.IOException;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import com.sun.management.GcInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Gerador de carga sem interface para os servidores TCP e UDP. Simula N usuários
+ * que se registram com chaves RSA reais e trocam, a uma taxa alvo, uma mistura de
+ * mensagens para todos, privadas, privadas seguras e seguras de grupo, usando o mesmo protocolo de
+ * texto dos clientes. Mostra a vazão, a latência de ponta a ponta (p50/p99/p99.9)
+ * e a perda de mensagens, por intervalo e no final.
+ *
+ * <p>Uso: {@code java ChatLoadGenerator <tcp|udp> [usuarios] [msgs/s] [segundos] [mistura]},
+ * onde a mistura é {@code todos:privado:seguro[:grupo]} em pesos (por exemplo,
+ * {@code java ChatLoadGenerator udp 100 500 60 70:20:10}, ou {@code 0:0:0:1} só com
+ * mensagens de grupo, cifradas uma vez por {@link GroupSeal}). Com {@code segundos = 0}
+ * roda até ser interrompido (Ctrl+C), o que é útil no modo soak.
+ *
+ * <p>Cada mensagem leva o instante em que deveria ter sido enviada; o receptor
+ * mede a latência a partir dele, depois de decifrar as mensagens seguras. Assim,
+ * se o gerador atrasar, o atraso aparece na latência em vez de sumir (a carga é
+ * de laço aberto). A perda compara as entregas esperadas (N-1 por mensagem para
+ * todos, 1 por privada, o tamanho do grupo por mensagem de grupo) com as recebidas
+ * até o fim do tempo de escoamento.
+ *
+ * <p>Propriedades do sistema:
+ * <ul>
+ *   <li>{@code load.host} e {@code load.port}: o servidor (padrão: 127.0.0.1 e a porta do transporte).
+ *       {@code load.port} aceita uma lista ({@code 50000,50010}) para um cluster de servidores TCP;
+ *       os usuários são distribuídos entre as portas em rodízio.</li>
+ *   <li>{@code load.size}: tamanho das mensagens em bytes (64). No modo RSA com chaves RSA as seguras ficam em até 245.</li>
+ *   <li>{@code load.keys}: quantos pares de chaves gerar e distribuir entre os usuários (4).</li>
+ *   <li>{@code load.groupSize}: destinatários de cada mensagem de grupo (4, limitado a N-1).</li>
+ *   <li>{@code load.prefix}: prefixo dos nomes de usuário ("lg").</li>
+ *   <li>{@code load.report}: intervalo dos relatórios em segundos (5).</li>
+ *   <li>{@code load.drain}: tempo máximo de espera pelas últimas entregas, em segundos (3).</li>
+ *   <li>{@code load.maxLoss}: perda aceitável; acima dela o código de saída é 1 (0.01).</li>
+ *   <li>{@code load.soak}: acompanha heap e threads a cada relatório e mostra a tendência no final.</li>
+ *   <li>{@code load.jmx}: {@code host:porta} do JMX remoto do servidor, para acompanhar também o servidor
+ *       (no final, mostra também a memória residente e as threads de plataforma dele).</li>
+ *   <li>{@code load.idle}: conexões ociosas abertas antes dos usuários ativos (0). Elas só
+ *       se registram e leem o que chega, para medir o custo de manter muitas conexões
+ *       paradas e o efeito delas na latência do broadcast.</li>
+ *   <li>{@code load.idleRoom}: sala em que as conexões ociosas entram; sem ela, ficam na
+ *       sala padrão e recebem todas as mensagens para todos.</li>
+ *   <li>{@code chat.crypto}: {@code rsa} ou {@code session}, como nos clientes.</li>
+ *   <li>{@code chat.suite}: {@code rsa} ou {@code ec25519}, o conjunto das chaves dos usuários simulados.</li>
+ * </ul>
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ChatLoadGenerator {
+    private static final String HOST = System.getProperty("load.host", "127.0.0.1");
+    private static final int SIZE = Integer.getInteger("load.size", 64);
+    private static final int KEYS = Integer.getInteger("load.keys", 4);
+    private static final int GROUP_SIZE = Integer.getInteger("load.groupSize", 4);
+    private static final String PREFIX = System.getProperty("load.prefix", "lg");
+    private static final int REPORT_SECONDS = Integer.getInteger("load.report", 5);
+    private static final int DRAIN_SECONDS = Integer.getInteger("load.drain", 3);
+    private static final double MAX_LOSS = Double.parseDouble(System.getProperty("load.maxLoss", "0.01"));
+    private static final boolean SOAK = Boolean.getBoolean("load.soak");
+    private static final String JMX = System.getProperty("load.jmx");
+    private static final boolean SESSION_MODE = System.getProperty("chat.crypto", "rsa").equalsIgnoreCase("session");
+    private static final int IDLE = Integer.getInteger("load.idle", 0);
+    private static final String IDLE_ROOM = System.getProperty("load.idleRoom");
+
+    /** Maior texto que cabe num bloco RSA de 2048 bits com PKCS#1. */
+    private static final int RSA_MAX = 245;
+    private static final String MARK = "LG|";
+    private static final String JOINED = " entrou no chat.";
+
+    /**
+     * Tipos de mensagem gerados.
+     */
+    enum Kind { TODOS, PRIVADO, SEGURO, GRUPO }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    /**
+     * Um usuário simulado: canal com o servidor, chaves e o que falta de uma linha TCP.
+     */
+    private static class User {
+        final int index;
+        final String name;
+        final KeyPair keys;
+        final SessionKeys sessions;
+        final CountDownLatch joined = new CountDownLatch(1);
+        // Conexão ociosa: não envia nada, e o que recebe não entra nas contas
+        final boolean idle;
+        ByteChannel channel;
+        byte[] pending = new byte[256];
+        int pendingLength;
+
+        User(int index, KeyPair keys) {
+            this(index, PREFIX + index, keys, false);
+        }
+
+        User(int index, String name, KeyPair keys, boolean idle) {
+            this.index = index;
+            this.name = name;
+            this.keys = keys;
+            this.sessions = new SessionKeys(name, keys.getPrivate());
+            this.idle = idle;
+        }
+    }
+
+    private static boolean udp;
+    private static InetSocketAddress[] servers;
+    private static User[] users;
+    private static User[] idleUsers = new User[0];
+    private static volatile boolean running = true;
+    private static volatile boolean leaving;
+    private static volatile long keysVersion;
+
+    private static final AtomicLongArray sent = new AtomicLongArray(KINDS.length);
+    private static final AtomicLongArray expected = new AtomicLongArray(KINDS.length);
+    private static final AtomicLongArray received = new AtomicLongArray(KINDS.length);
+    private static final LatencyHistogram[] latency = new LatencyHistogram[KINDS.length];
+    private static volatile LatencyHistogram intervalLatency = new LatencyHistogram();
+    private static final AtomicLong errors = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        udp = args.length > 0 && args[0].equalsIgnoreCase("udp");
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 200;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int[] mix = parseMix(args.length > 4 ? args[4] : "70:20:10");
+        String[] ports = System.getProperty("load.port", udp ? "50001" : "50000").split(",");
+        servers = new InetSocketAddress[ports.length];
+        for (int i = 0; i < ports.length; i++) servers[i] = new InetSocketAddress(HOST, Integer.parseInt(ports[i].trim()));
+        for (int i = 0; i < latency.length; i++) latency[i] = new LatencyHistogram();
+
+        System.out.printf("Gerando %d par(es) de chaves para %d usuarios...%n", Math.min(KEYS, count), count);
+        KeyPair[] pool = new KeyPair[Math.max(1, Math.min(KEYS, count))];
+        for (int i = 0; i < pool.length; i++) pool[i] = RSAUtils.generateKeyPair(RSAUtils.Suite.configured());
+
+        Selector selector = Selector.open();
+        Thread reader = new Thread(() -> readLoop(selector), "load-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        if (IDLE > 0) registerIdle(pool[0], selector);
+
+        users = new User[count];
+        long registerStart = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            users[i] = new User(i, pool[i % pool.length]);
+            register(users[i], selector);
+        }
+        System.out.printf("%d usuarios registrados em %s via %s em %d ms%n", count, Arrays.toString(servers), udp ? "udp" : "tcp",
+                (System.nanoTime() - registerStart) / 1_000_000);
+
+        MBeanServerConnection remote = JMX != null ? connectJmx(JMX) : null;
+        Trend local = SOAK ? new Trend() : null;
+        Trend remoteTrend = SOAK && remote != null ? new Trend() : null;
+
+        Thread mainThread = Thread.currentThread();
+        Thread hook = new Thread(() -> {
+            running = false;
+            try {
+                mainThread.join(TimeUnit.SECONDS.toMillis(DRAIN_SECONDS + 5));
+            } catch (InterruptedException ignored) {
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        // Os relatórios (e as consultas JMX) rodam em outra thread para não atrasar os envios
+        long start = System.nanoTime();
+        long reportNanos = TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+        long[] last = new long[2];
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "load-report");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> report(System.nanoTime() - start, reportNanos, last, remote, local, remoteTrend),
+                reportNanos, reportNanos, TimeUnit.NANOSECONDS);
+
+        // Laço aberto: cada mensagem tem um horário marcado, independente das respostas
+        Random random = new Random();
+        long period = (long) (1e9 / rate);
+        long deadline = seconds > 0 ? start + TimeUnit.SECONDS.toNanos(seconds) : Long.MAX_VALUE;
+        long next = start;
+        long maxLag = 0;
+        while (running && next < deadline) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            maxLag = Math.max(maxLag, now - next);
+            try {
+                sendOne(random, pick(random, mix), next);
+            } catch (IOException e) {
+                System.out.println("Erro ao enviar: " + e.getMessage());
+                errors.incrementAndGet();
+            }
+            next += period;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Espera as entregas que ainda estão a caminho
+        long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        while (System.nanoTime() < drainUntil && total(received) < total(expected)) Thread.sleep(20);
+        reporter.shutdownNow();
+        reporter.awaitTermination(5, TimeUnit.SECONDS);
+        // O estado do servidor é lido antes das saídas, com todas as conexões ainda abertas
+        String serverState = remote != null ? serverState(remote) : null;
+        leaving = true;
+        for (User user : users) leave(user);
+        for (User user : idleUsers) leave(user);
+
+        boolean ok = summary(count, rate, elapsed, mix, maxLag, serverState, local, remoteTrend);
+        if (running) {
+            Runtime.getRuntime().removeShutdownHook(hook);
+            System.exit(ok ? 0 : 1);
+        }
+    }
+
+    /**
+     * Conecta e registra um usuário, esperando o aviso de que ele entrou no chat.
+     * No UDP o registro é repetido algumas vezes, já que o datagrama pode se perder.
+     *
+     * @param user O usuário.
+     * @param selector O seletor da thread de leitura.
+     * @throws Exception Se o servidor não confirmar o registro.
+     */
+    private static void register(User user, Selector selector) throws Exception {
+        connect(user, selector);
+        for (int attempt = 0; attempt < (udp ? 3 : 1); attempt++) {
+            sendRegistration(user);
+            if (user.joined.await(5, TimeUnit.SECONDS)) return;
+        }
+        throw new IOException("O servidor nao confirmou o registro de " + user.name);
+    }
+
+    /**
+     * Abre as conexões ociosas. Os registros são enviados em sequência, sem esperar
+     * cada confirmação, e só depois as confirmações são aguardadas (no UDP, um
+     * registro sem resposta é repetido uma vez).
+     *
+     * @param keys O par de chaves compartilhado pelas conexões ociosas.
+     * @param selector O seletor da thread de leitura.
+     * @throws Exception Se o servidor não confirmar algum registro.
+     */
+    private static void registerIdle(KeyPair keys, Selector selector) throws Exception {
+        System.out.printf("Abrindo %d conexoes ociosas%s...%n", IDLE, IDLE_ROOM != null ? " na sala " + IDLE_ROOM : "");
+        long start = System.nanoTime();
+        idleUsers = new User[IDLE];
+        for (int i = 0; i < IDLE; i++) {
+            idleUsers[i] = new User(i, PREFIX + "ocioso" + i, keys, true);
+            connect(idleUsers[i], selector);
+            sendRegistration(idleUsers[i]);
+        }
+        for (User user : idleUsers) {
+            if (!user.joined.await(30, TimeUnit.SECONDS)) {
+                if (udp) sendRegistration(user);
+                if (!udp || !user.joined.await(5, TimeUnit.SECONDS)) {
+                    throw new IOException("O servidor nao confirmou o registro de " + user.name);
+                }
+            }
+            if (IDLE_ROOM != null) write(user, udp ? "ENTRAR_SALA:" + IDLE_ROOM : "!join " + IDLE_ROOM);
+        }
+        System.out.printf("%d conexoes ociosas registradas em %d ms%n", IDLE, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Abre o canal de um usuário e o entrega ao seletor da thread de leitura.
+     */
+    private static void connect(User user, Selector selector) throws IOException {
+        InetSocketAddress server = servers[user.index % servers.length];
+        SelectableChannel channel;
+        if (udp) {
+            DatagramChannel dc = DatagramChannel.open().bind(new InetSocketAddress(server.getAddress(), 0));
+            dc.connect(server);
+            user.channel = dc;
+            channel = dc;
+        } else {
+            SocketChannel sc = SocketChannel.open(server);
+            sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            user.channel = sc;
+            channel = sc;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, user);
+        selector.wakeup();
+    }
+
+    private static void sendRegistration(User user) throws IOException {
+        // A versão das chaves já conhecida evita que cada novo usuário baixe a lista inteira
+        String key = RSAUtils.keyToString(user.keys.getPublic());
+        write(user, "REGISTRO:" + user.name + ":" + key + (udp ? ":SYNC=" + keysVersion + ",EC,AES" : ":EC,AES"));
+    }
+
+    /**
+     * Envia uma mensagem de um usuário sorteado.
+     *
+     * @param random O gerador de números aleatórios do laço de envio.
+     * @param kind O tipo da mensagem.
+     * @param scheduled O instante em que a mensagem deveria sair (System.nanoTime).
+     * @throws Exception Se ocorrer um erro de I/O ou de criptografia.
+     */
+    private static void sendOne(Random random, Kind kind, long scheduled) throws Exception {
+        User from = users[random.nextInt(users.length)];
+        User to = from;
+        if (users.length > 1) {
+            int other = random.nextInt(users.length - 1);
+            to = users[other >= from.index ? other + 1 : other];
+        }
+        PublicKey toKey = to.keys.getPublic();
+        boolean rsaBlock = kind == Kind.SEGURO && !SESSION_MODE && RSAUtils.suiteOf(toKey) == RSAUtils.Suite.RSA;
+        String text = payload(kind, scheduled, rsaBlock ? Math.min(SIZE, RSA_MAX) : SIZE);
+
+        String line;
+        int deliveries = kind == Kind.TODOS ? users.length - 1 : 1;
+        switch (kind) {
+            case TODOS:
+                line = udp ? "BROADCAST:" + from.name + ":" + text : text;
+                break;
+            case PRIVADO:
+                line = udp ? "PRIVADO:" + from.name + ":" + to.name + ":" + text : "@" + to.name + " " + text;
+                break;
+            default:
+                String secure;
+                if (SESSION_MODE) {
+                    secure = from.sessions.seal(to.name, toKey, text);
+                } else if (udp) {
+                    secure = Base64.getEncoder().encodeToString(RSAUtils.sign(text, from.keys.getPrivate())) + ":" +
+                            Base64.getEncoder().encodeToString(RSAUtils.encrypt(text, toKey));
+                } else {
+                    secure = Base64.getEncoder().encodeToString(RSAUtils.encrypt(text, toKey)) + ":" +
+                            Base64.getEncoder().encodeToString(RSAUtils.sign(text, from.keys.getPrivate()));
+                }
+                line = udp ? "PRIVADO:" + from.name + ":" + to.name + ":SECURE:" + secure
+                        : "ENCRYPTED:" + to.name + ":" + secure;
+                break;
+            case GRUPO:
+                List<String> group = new ArrayList<>();
+                List<PublicKey> keys = new ArrayList<>();
+                for (User member : groupOf(random, from)) {
+                    group.add(member.name);
+                    keys.add(member.keys.getPublic());
+                }
+                // Mesmo formato nos dois transportes; o UDP identifica o remetente pela sessão
+                line = GroupSeal.seal(from.name, group, keys, text, from.keys.getPrivate());
+                deliveries = group.size();
+                break;
+        }
+
+        sent.incrementAndGet(kind.ordinal());
+        expected.addAndGet(kind.ordinal(), deliveries);
+        write(from, line);
+    }
+
+    /**
+     * Sorteia {@code load.groupSize} destinatários distintos, sem o remetente.
+     */
+    private static List<User> groupOf(Random random, User from) {
+        int size = Math.min(GROUP_SIZE, users.length - 1);
+        Set<User> group = new LinkedHashSet<>();
+        while (group.size() < size) {
+            User member = users[random.nextInt(users.length)];
+            if (member != from) group.add(member);
+        }
+        return new ArrayList<>(group);
+    }
+
+    /**
+     * Monta o texto de uma mensagem: marca, tipo, instante de envio e enchimento até o tamanho pedido.
+     */
+    private static String payload(Kind kind, long scheduled, int size) {
+        StringBuilder sb = new StringBuilder(size);
+        sb.append(MARK).append(kind.name().charAt(0)).append('|').append(scheduled).append('|');
+        while (sb.length() < size) sb.append('x');
+        return sb.toString();
+    }
+
+    /**
+     * Escreve uma linha (TCP) ou um datagrama (UDP). Os canais não bloqueiam, então
+     * espera um pouco sempre que o buffer do socket estiver cheio.
+     */
+    private static void write(User user, String message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((udp ? message : message + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            if (user.channel.write(buffer) == 0) LockSupport.parkNanos(50_000);
+        }
+    }
+
+    /**
+     * Tira o usuário do servidor e fecha o canal.
+     */
+    private static void leave(User user) {
+        if (user.channel == null) return;
+        try {
+            write(user, udp ? "SAIR:" + user.name : "!exit");
+            user.channel.close();
+        } catch (IOException ignored) {
+            // o servidor pode já ter fechado a conexão
+        }
+    }
+
+    /**
+     * Laço da thread de leitura: um seletor para os canais de todos os usuários.
+     */
+    private static void readLoop(Selector selector) {
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.out.println("Erro no seletor: " + e.getMessage());
+                return;
+            }
+            for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                SelectionKey key = it.next();
+                it.remove();
+                User user = (User) key.attachment();
+                try {
+                    if (udp) readDatagrams(user, buffer);
+                    else readLines(user, key, buffer);
+                } catch (IOException e) {
+                    key.cancel();
+                    if (!leaving) System.out.println("Conexao de " + user.name + " encerrada: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void readDatagrams(User user, ByteBuffer buffer) throws IOException {
+        DatagramChannel channel = (DatagramChannel) user.channel;
+        while (true) {
+            buffer.clear();
+            if (channel.receive(buffer) == null) return;
+            handle(user, new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void readLines(User user, SelectionKey key, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int n = user.channel.read(buffer);
+        if (n < 0) {
+            key.cancel();
+            if (!leaving) System.out.println("Conexao de " + user.name + " encerrada pelo servidor.");
+            return;
+        }
+        byte[] data = buffer.array();
+        for (int i = 0; i < n; i++) {
+            byte b = data[i];
+            if (b == '\n') {
+                handle(user, new String(user.pending, 0, user.pendingLength, StandardCharsets.UTF_8));
+                user.pendingLength = 0;
+            } else {
+                if (user.pendingLength == user.pending.length) user.pending = Arrays.copyOf(user.pending, user.pending.length * 2);
+                user.pending[user.pendingLength++] = b;
+            }
+        }
+    }
+
+    /**
+     * Trata uma mensagem recebida por um usuário: confirmações de registro, versões
+     * de chaves e as mensagens geradas, cuja latência é registrada.
+     */
+    private static void handle(User user, String msg) {
+        if (user.idle) {
+            if (msg.equals(user.name + JOINED)) user.joined.countDown();
+            return;
+        }
+        try {
+            if (msg.startsWith("ENCRYPTED:")) {
+                // TCP: ENCRYPTED:remetente:cifrado:assinatura ou ENCRYPTED:remetente:AES:...
+                String[] parts = msg.split(":", 3);
+                if (SessionKeys.isSessionPayload(parts[2])) {
+                    msg = user.sessions.open(parts[1], publicKeyOf(parts[1]), parts[2]);
+                } else {
+                    String[] signed = parts[2].split(":", 2);
+                    msg = RSAUtils.decrypt(Base64.getDecoder().decode(signed[0]), user.keys.getPrivate());
+                    if (!RSAUtils.verify(msg, Base64.getDecoder().decode(signed[1]), publicKeyOf(parts[1]))) {
+                        errors.incrementAndGet();
+                        return;
+                    }
+                }
+            } else if (msg.startsWith("PRIVADO:")) {
+                // UDP: PRIVADO:de:para:SECURE:assinatura:cifrado ou PRIVADO:de:para:SECURE:AES:...
+                String[] parts = msg.split(":", 6);
+                if (SessionKeys.isSessionPayload(parts[4] + ":")) {
+                    msg = user.sessions.open(parts[1], publicKeyOf(parts[1]), parts[4] + ":" + parts[5]);
+                } else {
+                    msg = RSAUtils.decrypt(Base64.getDecoder().decode(parts[5]), user.keys.getPrivate());
+                    if (!RSAUtils.verify(msg, Base64.getDecoder().decode(parts[4]), publicKeyOf(parts[1]))) {
+                        errors.incrementAndGet();
+                        return;
+                    }
+                }
+            } else if (msg.startsWith(GroupSeal.PREFIX)) {
+                String sender = GroupSeal.senderOf(msg);
+                msg = GroupSeal.open(user.name, user.keys.getPrivate(), publicKeyOf(sender), msg);
+            } else if (msg.startsWith(KeyDirectory.HEADER)) {
+                // KEYS:de:para:pagina:paginas
+                long version = Long.parseLong(msg.substring(0, msg.indexOf('\n')).split(":")[2]);
+                if (version > keysVersion) keysVersion = version;
+                return;
+            } else if (msg.endsWith(JOINED)) {
+                if (msg.equals(user.name + JOINED)) user.joined.countDown();
+                return;
+            }
+
+            int at = msg.indexOf(MARK);
+            if (at < 0) return;
+            long now = System.nanoTime();
+            int kind = "TPSG".indexOf(msg.charAt(at + MARK.length()));
+            int from = at + MARK.length() + 2;
+            long scheduled = Long.parseLong(msg, from, msg.indexOf('|', from), 10);
+            latency[kind].record(now - scheduled);
+            intervalLatency.record(now - scheduled);
+            received.incrementAndGet(kind);
+        } catch (Exception e) {
+            // mensagem truncada, assinatura ou autenticação inválida
+            errors.incrementAndGet();
+        }
+    }
+
+    private static PublicKey publicKeyOf(String name) {
+        return users[Integer.parseInt(name.substring(PREFIX.length()))].keys.getPublic();
+    }
+
+    /**
+     * Mostra uma linha com a vazão e a latência do último intervalo e, no modo soak,
+     * o heap e as threads do gerador e do servidor.
+     *
+     * @param last Os totais de enviadas e entregues no relatório anterior (atualizado aqui).
+     */
+    private static void report(long elapsed, long interval, long[] last, MBeanServerConnection remote,
+                               Trend local, Trend remoteTrend) {
+        LatencyHistogram h = intervalLatency;
+        intervalLatency = new LatencyHistogram();
+        long sentNow = total(sent), receivedNow = total(received);
+        double secs = interval / 1e9;
+        StringBuilder sb = new StringBuilder(String.format(
+                "[%5ds] envio %.0f/s, entregas %.0f/s, p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, pendentes %d",
+                TimeUnit.NANOSECONDS.toSeconds(elapsed), (sentNow - last[0]) / secs, (receivedNow - last[1]) / secs,
+                h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.percentile(99.9) / 1e6,
+                total(expected) - receivedNow));
+        last[0] = sentNow;
+        last[1] = receivedNow;
+
+        if (local != null) {
+            sb.append(" | gerador: ").append(local.sample(null));
+            if (remoteTrend != null) {
+                try {
+                    sb.append(" | servidor: ").append(remoteTrend.sample(remote));
+                    ObjectName metrics = new ObjectName("chat:type=Metrics,server=" + (udp ? "udp" : "tcp"));
+                    sb.append(", fila ").append(remote.getAttribute(metrics, "QueueDepth"));
+                    sb.append(String.format(", RSS %.1f MB",
+                            ((Number) remote.getAttribute(metrics, "ResidentBytes")).longValue() / 1048576.0));
+                } catch (Exception e) {
+                    sb.append(" (JMX indisponivel: ").append(e.getMessage()).append(')');
+                }
+            }
+        }
+        System.out.println(sb);
+    }
+
+    /**
+     * Mostra o resultado final por tipo de mensagem.
+     *
+     * @return true se a perda ficou dentro do limite e não houve erros.
+     */
+    private static boolean summary(int count, double rate, long elapsed, int[] mix, long maxLag,
+                                   String serverState, Trend local, Trend remoteTrend) {
+        double secs = elapsed / 1e9;
+        if (IDLE > 0) System.out.printf("%n%d conexoes ociosas%s", IDLE, IDLE_ROOM != null ? " na sala " + IDLE_ROOM : "");
+        System.out.printf("%n%s, %d usuarios, %.0f msgs/s alvo, %.0f s, mistura %d:%d:%d:%d, cripto %s%n",
+                udp ? "udp" : "tcp", count, rate, secs, mix[0], mix[1], mix[2], mix[3], (SESSION_MODE ? "session" : "rsa") + "/" + RSAUtils.Suite.configured().name().toLowerCase());
+        System.out.printf("%-8s %9s %10s %10s %8s %9s %9s %9s %9s%n",
+                "tipo", "enviadas", "esperadas", "entregues", "perda", "p50(ms)", "p99(ms)", "p99.9(ms)", "max(ms)");
+        for (Kind kind : KINDS) {
+            int k = kind.ordinal();
+            LatencyHistogram h = latency[k];
+            System.out.printf("%-8s %9d %10d %10d %7.2f%% %9.2f %9.2f %9.2f %9.2f%n", kind, sent.get(k),
+                    expected.get(k), received.get(k), 100 * loss(expected.get(k), received.get(k)),
+                    h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.percentile(99.9) / 1e6, h.max() / 1e6);
+        }
+        double loss = loss(total(expected), total(received));
+        System.out.printf("vazao: %.0f msgs/s enviadas, %.0f entregas/s; perda %.2f%%; erros %d; maior atraso do gerador %.1f ms%n",
+                total(sent) / secs, total(received) / secs, 100 * loss, errors.get(), maxLag / 1e6);
+        if (local != null) System.out.println("tendencia do gerador: " + local);
+        if (remoteTrend != null) System.out.println("tendencia do servidor: " + remoteTrend);
+        if (serverState != null) System.out.println("servidor: " + serverState);
+        return loss <= MAX_LOSS && errors.get() == 0;
+    }
+
+    /**
+     * Heap e threads de uma JVM ao longo do teste: primeiro, último e maior valor.
+     * O heap considerado é o que sobrou depois da coleta mais recente, que só cresce
+     * de forma contínua se houver vazamento.
+     */
+    private static class Trend {
+        long firstHeap = -1, lastHeap, maxHeap;
+        int firstThreads = -1, lastThreads, maxThreads;
+
+        /**
+         * Lê o heap e as threads da JVM local ({@code connection} null) ou remota.
+         *
+         * @return O texto da amostra.
+         */
+        String sample(MBeanServerConnection connection) {
+            try {
+                MemoryMXBean memory = connection == null ? ManagementFactory.getMemoryMXBean()
+                        : ManagementFactory.getPlatformMXBean(connection, MemoryMXBean.class);
+                ThreadMXBean threads = connection == null ? ManagementFactory.getThreadMXBean()
+                        : ManagementFactory.getPlatformMXBean(connection, ThreadMXBean.class);
+                List<MemoryPoolMXBean> pools = connection == null ? ManagementFactory.getMemoryPoolMXBeans()
+                        : ManagementFactory.getPlatformMXBeans(connection, MemoryPoolMXBean.class);
+                List<com.sun.management.GarbageCollectorMXBean> collectors = connection == null
+                        ? ManagementFactory.getPlatformMXBeans(com.sun.management.GarbageCollectorMXBean.class)
+                        : ManagementFactory.getPlatformMXBeans(connection, com.sun.management.GarbageCollectorMXBean.class);
+
+                Set<String> heapPools = new HashSet<>();
+                for (MemoryPoolMXBean pool : pools) {
+                    if (pool.getType() == MemoryType.HEAP) heapPools.add(pool.getName());
+                }
+                long used = memory.getHeapMemoryUsage().getUsed();
+                // Sem nenhuma coleta ainda, o melhor que se tem é o uso atual
+                long afterGc = used;
+                long lastEnd = -1;
+                for (com.sun.management.GarbageCollectorMXBean gc : collectors) {
+                    GcInfo info = gc.getLastGcInfo();
+                    if (info == null || info.getEndTime() < lastEnd) continue;
+                    lastEnd = info.getEndTime();
+                    afterGc = 0;
+                    for (Map.Entry<String, MemoryUsage> pool : info.getMemoryUsageAfterGc().entrySet()) {
+                        if (heapPools.contains(pool.getKey())) afterGc += pool.getValue().getUsed();
+                    }
+                }
+                int count = threads.getThreadCount();
+
+                if (firstHeap < 0) {
+                    firstHeap = afterGc;
+                    firstThreads = count;
+                }
+                lastHeap = afterGc;
+                lastThreads = count;
+                maxHeap = Math.max(maxHeap, afterGc);
+                maxThreads = Math.max(maxThreads, count);
+                return String.format("heap %.1f MB (apos GC %.1f MB), %d threads", used / 1048576.0, afterGc / 1048576.0, count);
+            } catch (IOException e) {
+                return "indisponivel (" + e.getMessage() + ")";
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (firstHeap < 0) return "sem amostras";
+            return String.format("heap apos GC %.1f -> %.1f MB (max %.1f), threads %d -> %d (max %d)",
+                    firstHeap / 1048576.0, lastHeap / 1048576.0, maxHeap / 1048576.0, firstThreads, lastThreads, maxThreads);
+        }
+    }
+
+    /**
+     * @return A memória residente e as threads de plataforma do servidor, lidas por JMX.
+     */
+    private static String serverState(MBeanServerConnection remote) {
+        try {
+            ObjectName metrics = new ObjectName("chat:type=Metrics,server=" + (udp ? "udp" : "tcp"));
+            return String.format("memoria residente %.1f MB, %s threads de plataforma",
+                    ((Number) remote.getAttribute(metrics, "ResidentBytes")).longValue() / 1048576.0,
+                    remote.getAttribute(metrics, "PlatformThreads"));
+        } catch (Exception e) {
+            return "JMX indisponivel (" + e.getMessage() + ")";
+        }
+    }
+
+    private static MBeanServerConnection connectJmx(String address) throws IOException {
+        JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + address + "/jmxrmi");
+        return JMXConnectorFactory.connect(url).getMBeanServerConnection();
+    }
+
+    private static int[] parseMix(String mix) {
+        String[] parts = mix.split(":");
+        int[] weights = new int[KINDS.length];
+        for (int i = 0; i < weights.length && i < parts.length; i++) weights[i] = Integer.parseInt(parts[i].trim());
+        if (Arrays.stream(weights).sum() <= 0) throw new IllegalArgumentException("Mistura invalida: " + mix);
+        return weights;
+    }
+
+    private static Kind pick(Random random, int[] mix) {
+        int r = random.nextInt(Arrays.stream(mix).sum());
+        for (int i = 0; i < mix.length; i++) {
+            if (r < mix[i]) return KINDS[i];
+            r -= mix[i];
+        }
+        return Kind.TODOS;
+    }
+
+    private static long total(AtomicLongArray counters) {
+        long sum = 0;
+        for (int i = 0; i < counters.length(); i++) sum += counters.get(i);
+        return sum;
+    }
+
+    private static double loss(long expected, long received) {
+        return expected == 0 ? 0 : Math.max(0, (double) (expected - received) / expected);
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log assíncrono dos servidores. Quem entrega mensagens apenas publica o registro
+ * em um buffer circular sem locks; uma thread de fundo ({@code chat-log}) formata
+ * e escreve na saída padrão. Se a saída for lenta e o buffer encher, o registro é
+ * descartado e contado, em vez de bloquear a entrega das mensagens.
+ *
+ * <p>Configuração por propriedades do sistema:
+ * <ul>
+ *   <li>{@code chat.log.level}: {@code DEBUG}, {@code INFO} (padrão), {@code WARN}, {@code ERROR} ou {@code OFF}.</li>
+ *   <li>{@code chat.log.bodies}: {@code false} troca o texto das mensagens de chat pelo seu tamanho.</li>
+ *   <li>{@code chat.log.rate}: máximo de registros por segundo (padrão 10000; 0 desliga o limite).
+ *       Erros nunca são limitados.</li>
+ *   <li>{@code chat.log.buffer}: capacidade do buffer, arredondada para potência de 2 (padrão 8192).</li>
+ * </ul>
+ * As mensagens usam {@code {}} como marcador dos argumentos, que só são
+ * convertidos em texto na thread de fundo.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ChatLog {
+
+    /**
+     * Níveis de log, do mais detalhado ao mais grave.
+     */
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    static final Level LEVEL = Level.valueOf(System.getProperty("chat.log.level", "INFO").toUpperCase());
+    static final boolean BODIES = Boolean.parseBoolean(System.getProperty("chat.log.bodies", "true"));
+    private static final int RATE = Integer.getInteger("chat.log.rate", 10000);
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.log.buffer", 8192) * 2 - 1));
+    private static final long MAX_PARK_NANOS = 10_000_000;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    // Contadores globais
+    static final AtomicLong totalDropped = new AtomicLong();     // buffer cheio
+    static final AtomicLong totalSuppressed = new AtomicLong();  // acima do limite de taxa
+
+    /**
+     * Registro publicado no buffer.
+     */
+    private static class Record {
+        final long time = System.currentTimeMillis();
+        final Level level;
+        final String format;
+        final Object[] args;
+
+        Record(Level level, String format, Object[] args) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+        }
+    }
+
+    // Buffer circular com vários produtores e um consumidor: o produtor reserva a
+    // posição com CAS em tail e depois preenche; o consumidor espera a posição
+    // ficar preenchida, esvazia e só então avança head.
+    private static final AtomicReferenceArray<Record> ring = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head;
+
+    // Janela de um segundo do limite de taxa
+    private static final AtomicLong window = new AtomicLong();
+    private static final AtomicInteger inWindow = new AtomicInteger();
+
+    private static final PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    private static volatile boolean running = true;
+    private static final Thread writer = new Thread(ChatLog::writeLoop, "chat-log");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        // Escreve o que ainda estiver no buffer quando o servidor terminar
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            running = false;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+    }
+
+    /**
+     * @param level O nível.
+     * @return true se registros desse nível são escritos.
+     */
+    static boolean enabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    static void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    static void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    /**
+     * Registra um erro. Se o último argumento for uma exceção, o stack trace é escrito em seguida.
+     */
+    static void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    /**
+     * Texto de uma mensagem de chat, como deve aparecer no log.
+     *
+     * @param text O texto da mensagem.
+     * @return O próprio texto, ou apenas o seu tamanho se {@code chat.log.bodies=false}.
+     */
+    static String body(String text) {
+        return BODIES ? text : "<" + text.length() + " caracteres>";
+    }
+
+    /**
+     * Publica um registro sem bloquear.
+     *
+     * @return false se o registro foi filtrado, limitado ou descartado.
+     */
+    static boolean log(Level level, String format, Object... args) {
+        if (!enabled(level)) return false;
+        if (level != Level.ERROR && !allow()) {
+            totalSuppressed.incrementAndGet();
+            return false;
+        }
+        Record record = new Record(level, format, args);
+        long t;
+        do {
+            t = tail.get();
+            if (t - head >= CAPACITY) {
+                totalDropped.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        ring.set((int) t & (CAPACITY - 1), record);
+        return true;
+    }
+
+    private static boolean allow() {
+        if (RATE <= 0) return true;
+        long second = System.nanoTime() / 1_000_000_000L;
+        long current = window.get();
+        if (current != second && window.compareAndSet(current, second)) inWindow.set(0);
+        return inWindow.incrementAndGet() <= RATE;
+    }
+
+    /**
+     * Laço da thread de fundo: consome o buffer em ordem, esvazia a saída quando
+     * não há mais nada a escrever e dorme cada vez mais enquanto o buffer estiver vazio.
+     */
+    private static void writeLoop() {
+        long park = 0, lastReport = 0;
+        while (true) {
+            int slot = (int) head & (CAPACITY - 1);
+            Record record = ring.get(slot);
+            if (record == null) {
+                if (head == tail.get() && !running) break;
+                out.flush();
+                park = Math.min(MAX_PARK_NANOS, Math.max(1_000_000, park * 2));
+                LockSupport.parkNanos(park);
+            } else {
+                ring.set(slot, null);
+                head = head + 1;
+                park = 0;
+                write(record.time, record.level, record.format, record.args);
+            }
+
+            // Avisa, no máximo uma vez por segundo, quantos registros se perderam
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= 1000) {
+                reportLosses(now);
+                lastReport = now;
+            }
+        }
+        reportLosses(System.currentTimeMillis());
+        out.flush();
+    }
+
+    private static long reportedDropped, reportedSuppressed;
+
+    private static void reportLosses(long now) {
+        long dropped = totalDropped.get(), suppressed = totalSuppressed.get();
+        if (dropped == reportedDropped && suppressed == reportedSuppressed) return;
+        write(now, Level.WARN, "Log: {} registros descartados (buffer cheio), {} acima do limite de taxa",
+                new Object[] { dropped - reportedDropped, suppressed - reportedSuppressed });
+        reportedDropped = dropped;
+        reportedSuppressed = suppressed;
+    }
+
+    private static void write(long time, Level level, String format, Object[] args) {
+        StringBuilder sb = new StringBuilder(32 + format.length());
+        sb.append(TIME.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault())))
+                .append(' ').append(level).append(' ');
+        int arg = 0;
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c == '{' && i + 1 < format.length() && format.charAt(i + 1) == '}' && arg < args.length) {
+                sb.append(args[arg++]);
+                i++;
+            } else {
+                sb.append(c);
+            }
+        }
+        out.println(sb);
+        if (args.length > 0 && args[args.length - 1] instanceof Throwable) {
+            ((Throwable) args[args.length - 1]).printStackTrace(out);
+        }
+    }
+}
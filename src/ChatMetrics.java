@@ -0,0 +1,242 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.management.ObjectName;
+
+/**
+ * Métricas de um servidor: mensagens e latência por tipo, bytes recebidos e
+ * enviados, usuários conectados e profundidade das filas, além dos contadores
+ * próprios de cada servidor registrados com {@link #counter(String, LongSupplier)}.
+ *
+ * <p>A latência vai do momento em que a mensagem é lida do socket até o fim do
+ * seu tratamento, isto é, depois do último envio (ou enfileiramento, no TCP) do
+ * fan-out. O registro é feito com contadores atômicos e {@link LatencyHistogram},
+ * sem alocação nem locks. Com {@code -Dchat.metrics=false} nada é registrado.
+ *
+ * <p>As métricas ficam disponíveis por JMX ({@code chat:type=Metrics,server=...})
+ * e pelo comando de administração de cada servidor ({@code !stats} no TCP,
+ * {@code STATS:} no UDP), aceito apenas de endereços locais, a menos que
+ * {@code -Dchat.admin.remote=true}.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ChatMetrics implements ChatMetricsMBean {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.metrics", "true"));
+    private static final boolean ADMIN_REMOTE = Boolean.getBoolean("chat.admin.remote");
+
+    /**
+     * Tipos de mensagem medidos.
+     */
+    enum Type { REGISTRO, BROADCAST, PRIVADO, ENCRYPTED, REQKEY }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final String server;
+    private final LatencyHistogram[] latency = new LatencyHistogram[TYPES.length];
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final IntSupplier users;
+    private final String queueLabel;
+    private final LongSupplier queueDepth;
+    private final Map<String, LongSupplier> counters = new LinkedHashMap<>();
+
+    /**
+     * @param server O nome do servidor ("tcp" ou "udp").
+     * @param users Fornece o número de usuários conectados.
+     * @param queueLabel Descrição da fila medida, para o snapshot.
+     * @param queueDepth Fornece a profundidade atual das filas.
+     */
+    ChatMetrics(String server, IntSupplier users, String queueLabel, LongSupplier queueDepth) {
+        this.server = server;
+        this.users = users;
+        this.queueLabel = queueLabel;
+        this.queueDepth = queueDepth;
+        for (int i = 0; i < latency.length; i++) latency[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Acrescenta um contador próprio do servidor. Deve ser chamado antes de o servidor
+     * começar a atender (o mapa não é protegido para escritas concorrentes).
+     *
+     * @param name O nome do contador, exibido no snapshot e usado em {@link #counter(String)}.
+     * @param value Fornece o valor atual.
+     * @return Este objeto, para encadear chamadas.
+     */
+    ChatMetrics counter(String name, LongSupplier value) {
+        counters.put(name, value);
+        return this;
+    }
+
+    /**
+     * Registra o MBean no servidor JMX da plataforma. Uma falha só é registrada no log.
+     */
+    void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("chat:type=Metrics,server=" + server));
+        } catch (Exception e) {
+            ChatLog.warn("Nao foi possivel registrar as metricas no JMX: {}", e);
+        }
+    }
+
+    /**
+     * @return O instante de recebimento a passar para {@link #record}.
+     */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Conta uma mensagem tratada e registra a sua latência.
+     *
+     * @param type O tipo da mensagem (null é ignorado).
+     * @param startNanos O instante de recebimento, de {@link #start()}.
+     */
+    void record(Type type, long startNanos) {
+        if (!ENABLED || type == null) return;
+        latency[type.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    void bytesIn(long bytes) {
+        if (ENABLED) bytesIn.add(bytes);
+    }
+
+    void bytesOut(long bytes) {
+        if (ENABLED) bytesOut.add(bytes);
+    }
+
+    /**
+     * @param opcode O opcode de um frame binário.
+     * @return O tipo medido correspondente, ou null (TEXT é medido como linha de texto).
+     */
+    static Type ofOpcode(byte opcode) {
+        switch (opcode) {
+            case WireFrame.BROADCAST:
+                return Type.BROADCAST;
+            case WireFrame.PRIVATE:
+                return Type.PRIVADO;
+            case WireFrame.SECURE:
+            case WireFrame.SECURE_SESSION:
+                return Type.ENCRYPTED;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param address O endereço de quem enviou o comando.
+     * @return true se o endereço pode usar o comando de administração.
+     */
+    static boolean adminAllowed(InetAddress address) {
+        return ADMIN_REMOTE || (address != null && address.isLoopbackAddress());
+    }
+
+    @Override
+    public String getSnapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Metricas do servidor ").append(server).append(ENABLED ? "" : " (desativadas)").append('\n');
+        sb.append("usuarios conectados: ").append(getConnectedUsers()).append('\n');
+        sb.append(queueLabel).append(": ").append(getQueueDepth()).append('\n');
+        sb.append("bytes recebidos: ").append(getBytesIn()).append(", enviados: ").append(getBytesOut()).append('\n');
+        for (Map.Entry<String, LongSupplier> counter : counters.entrySet()) {
+            sb.append(counter.getKey()).append(": ").append(counter.getValue().getAsLong()).append('\n');
+        }
+        sb.append("memoria residente (KB): ").append(getResidentBytes() / 1024)
+                .append(", threads de plataforma: ").append(getPlatformThreads()).append('\n');
+        sb.append(String.format("%-10s %10s %10s %10s %10s %10s %10s %10s%n",
+                "tipo", "total", "media(us)", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)"));
+        for (Type type : TYPES) {
+            LatencyHistogram h = latency[type.ordinal()];
+            sb.append(String.format("%-10s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", type, h.count(),
+                    h.mean() / 1e3, h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3,
+                    h.percentile(99.9) / 1e3, h.max() / 1e3));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public double latencyMicros(String type, double percentile) {
+        return latency[Type.valueOf(type.toUpperCase()).ordinal()].percentile(percentile) / 1e3;
+    }
+
+    @Override
+    public String[] getCounterNames() {
+        return counters.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long counter(String name) {
+        LongSupplier value = counters.get(name);
+        return value == null ? -1 : value.getAsLong();
+    }
+
+    @Override
+    public long getRegistro() {
+        return latency[Type.REGISTRO.ordinal()].count();
+    }
+
+    @Override
+    public long getBroadcast() {
+        return latency[Type.BROADCAST.ordinal()].count();
+    }
+
+    @Override
+    public long getPrivado() {
+        return latency[Type.PRIVADO.ordinal()].count();
+    }
+
+    @Override
+    public long getEncrypted() {
+        return latency[Type.ENCRYPTED.ordinal()].count();
+    }
+
+    @Override
+    public long getReqkey() {
+        return latency[Type.REQKEY.ordinal()].count();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public int getConnectedUsers() {
+        return users.getAsInt();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.getAsLong();
+    }
+
+    /**
+     * Lê o RSS de {@code /proc/self/statm} (segundo campo, em páginas de 4 KB).
+     */
+    @Override
+    public long getResidentBytes() {
+        try {
+            String[] fields = new String(Files.readAllBytes(Paths.get("/proc/self/statm"))).trim().split(" ");
+            return Long.parseLong(fields[1]) * 4096;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int getPlatformThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Interface JMX de {@link ChatMetrics} (registrada como {@code chat:type=Metrics,server=tcp|udp}).
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public interface ChatMetricsMBean {
+    long getRegistro();
+
+    long getBroadcast();
+
+    long getPrivado();
+
+    long getEncrypted();
+
+    long getReqkey();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    int getConnectedUsers();
+
+    long getQueueDepth();
+
+    /**
+     * @return A memória residente do processo (RSS), em bytes, ou -1 fora do Linux.
+     */
+    long getResidentBytes();
+
+    /**
+     * @return Quantas threads de plataforma estão vivas (threads virtuais não entram na conta).
+     *         No modo {@code thread} do servidor TCP, cada cliente tem duas: o leitor e o escritor.
+     */
+    int getPlatformThreads();
+
+    /**
+     * @return O mesmo texto devolvido pelo comando de administração.
+     */
+    String getSnapshot();
+
+    /**
+     * @return Os nomes dos contadores próprios deste servidor (descartes, desconexões etc.).
+     */
+    String[] getCounterNames();
+
+    /**
+     * @param name O nome de um contador, como em {@link #getCounterNames()}.
+     * @return O valor atual do contador, ou -1 se o servidor não o tiver.
+     */
+    long counter(String name);
+
+    /**
+     * @param type O tipo de mensagem (REGISTRO, BROADCAST, PRIVADO, ENCRYPTED ou REQKEY).
+     * @param percentile O percentil, de 0 a 100.
+     * @return A latência do percentil, em microssegundos.
+     */
+    double latencyMicros(String type, double percentile);
+}
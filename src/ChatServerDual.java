@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Servidor que atende TCP e UDP no mesmo processo, de modo que usuários dos dois
+ * transportes conversam entre si: mensagens de sala, privadas e seguras, avisos de
+ * entrada e saída, chaves públicas e {@code !list}/{@code LISTAR_USUARIOS:}.
+ *
+ * <p>Não há um registro único: cada transporte continua com o seu (conexões, endereços,
+ * ids binários, sessões), e este servidor é só a ponte entre eles, com um
+ * {@link ConcurrentHashMap} de cada usuário para o {@link ChatTransport} em que ele
+ * está, consultado sem lock quando o destinatário não está no transporte do
+ * remetente. Nesse caso a mensagem passa ao outro como {@link OfflineStore.Message},
+ * e ele a entrega no formato do seu cliente. O armazenamento offline também é um só
+ * (subdiretório {@code dual}), então uma mensagem guardada é entregue em qualquer dos
+ * dois transportes em que o destinatário se registrar.
+ *
+ * <p>A ponte foi preferida a um registro único porque o que cada transporte guarda por
+ * usuário é diferente (conexão e fila de saída no TCP; sessão, expiração e diretório
+ * versionado de chaves no UDP). Com a ponte, o roteamento dentro de um transporte fica
+ * como era, e só as mensagens que cruzam de um para o outro pagam a consulta ao mapa.
+ *
+ * <p>Uso: {@code java ChatServerDual [thread|nio|virtual] [single|multi]}, com as
+ * portas de sempre (TCP {@code chat.tcp.port}, padrão 50000; UDP 50001) e as mesmas
+ * propriedades dos dois servidores. O cluster ({@link ClusterLink}) não é usado aqui.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ChatServerDual {
+    // usuário -> transporte em que ele está conectado (o último em que se registrou)
+    private static final Map<String, ChatTransport> owners = new ConcurrentHashMap<>();
+    private static final List<ChatTransport> transports = new CopyOnWriteArrayList<>();
+
+    /**
+     * Ponto de entrada do servidor combinado.
+     *
+     * @param args Argumentos da linha de comando: [modo TCP] [modo UDP].
+     * @throws Exception Se ocorrer um erro ao iniciar os servidores.
+     */
+    public static void main(String[] args) throws Exception {
+        String tcpMode = args.length > 0 ? args[0] : "thread";
+        String udpMode = args.length > 1 ? args[1] : "single";
+        ChatServerTCP.metrics.registerMBean();
+        ChatServerUDP.metrics.registerMBean();
+
+        OfflineStore offline = OfflineStore.open("dual", message -> deliver(null, message));
+        transports.add(ChatServerTCP.bridge(offline));
+        transports.add(ChatServerUDP.bridge(offline));
+
+        if (udpMode.equalsIgnoreCase("multi")) {
+            ChatServerUDP.listen(new String[] { udpMode });
+        } else {
+            Thread udp = new Thread(() -> {
+                try {
+                    ChatServerUDP.listen(new String[] { udpMode });
+                } catch (Exception e) {
+                    ChatLog.error("Servidor UDP encerrado", e);
+                }
+            }, "chat-udp");
+            udp.start();
+        }
+        ChatServerTCP.listen(new String[] { tcpMode });
+    }
+
+    /**
+     * Um usuário se registrou em {@code transport}: o registro passa a apontar para ele,
+     * e o outro transporte recebe a chave.
+     */
+    static void joined(ChatTransport transport, String user, String key) {
+        owners.put(user, transport);
+        for (ChatTransport other : transports) {
+            if (other != transport) other.userJoined(user, key);
+        }
+    }
+
+    /**
+     * Um usuário saiu de {@code transport}. Se ele ainda está conectado ao outro (registrou-se
+     * nos dois), a ponte passa a apontar para lá; senão, o outro transporte é avisado.
+     */
+    static void left(ChatTransport transport, String user) {
+        if (!owners.remove(user, transport)) return;
+        for (ChatTransport other : transports) {
+            if (other != transport && other.connected(user)) {
+                owners.putIfAbsent(user, other);
+                return;
+            }
+        }
+        for (ChatTransport other : transports) {
+            if (other != transport) other.userLeft(user);
+        }
+    }
+
+    /**
+     * Entrega uma mensagem a um usuário de outro transporte.
+     *
+     * @param transport O transporte do remetente (null para qualquer um, como no replay offline).
+     * @return false se o destinatário não está conectado a outro transporte.
+     */
+    static boolean deliver(ChatTransport transport, OfflineStore.Message message) {
+        ChatTransport owner = owners.get(message.to);
+        return owner != null && owner != transport && owner.deliver(message);
+    }
+
+    /**
+     * Repassa uma mensagem de sala (ou um aviso) aos outros transportes.
+     *
+     * @param room A sala, ou "" para um aviso a todos.
+     * @param from O remetente, ou "" para um aviso do servidor.
+     */
+    static void broadcast(ChatTransport transport, String room, String from, String text) {
+        for (ChatTransport other : transports) {
+            if (other != transport) other.broadcast(room, from, text);
+        }
+    }
+
+    /**
+     * @return Os usuários conectados aos outros transportes.
+     */
+    static List<String> usersElsewhere(ChatTransport transport) {
+        List<String> users = new ArrayList<>();
+        for (ChatTransport other : transports) {
+            if (other != transport) users.addAll(other.localUsers());
+        }
+        return users;
+    }
+}
@@ -1,178 +1,997 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Servidor de chat TCP que aceita conexões de múltiplos clientes,
  * gerencia a lista de usuários e encaminha mensagens.
  * Suporta mensagens de texto simples e mensagens criptografadas
  * com RSA, além de comandos de chat como listar usuários e sair.
+ * Clientes que negociam {@code BIN} no registro passam a usar o protocolo
+ * binário de {@link WireFrame}; os demais continuam no protocolo de linhas.
+ * As mensagens sem destinatário vão só para a sala do remetente ({@link RoomIndex});
+ * {@code !join sala}, {@code !leave} e {@code !rooms} trocam de sala e listam as salas.
+ * Mensagens privadas (inclusive as cifradas) para usuários offline ficam no
+ * {@link OfflineStore} e são entregues quando o destinatário se registra de novo.
+ * Com {@code -Dchat.cluster.nodes}, vários servidores formam um cluster ({@link ClusterLink}):
+ * mensagens privadas, REQKEY, mensagens de sala e avisos alcançam os usuários dos outros nós.
+ * No {@link ChatServerDual}, o mesmo vale para os usuários do servidor UDP no mesmo processo.
+ * Mensagens seguras de grupo ({@link GroupSeal}) são repassadas sem decifrar: o mesmo
+ * texto cifrado para todos, com a chave protegida de cada destinatário.
  *
  * @author [Seu Nome]
  * @version 1.0
  */
 public class ChatServerTCP {
-    private static final int PORT = 50000;
-    private static Map<String, Socket> clients = new HashMap<>();
-    private static Map<String, PublicKey> clientPublicKeys = new HashMap<>();
+    private static final int PORT = Integer.getInteger("chat.tcp.port", 50000);
+    // Registro sem monitor: leituras e broadcasts percorrem os mapas sem lock, e só
+    // entrada e saída de usuários passam por registryLock, que não prende a thread
+    // portadora de uma thread virtual como um bloco synchronized prenderia.
+    private static final Map<String, Connection> clients = new ConcurrentHashMap<>();
+    private static final Map<Integer, Connection> clientsById = new ConcurrentHashMap<>();
+    private static final Map<String, PublicKey> clientPublicKeys = new ConcurrentHashMap<>();
+    // Donos de chave (locais ou do outro transporte) que aceitam o modo de sessão (KeyDirectory.AES_CAPABILITY)
+    private static final Set<String> sessionCapable = ConcurrentHashMap.newKeySet();
+    private static final ReentrantLock registryLock = new ReentrantLock();
+    private static int nextId = 1;
+    // Cria as threads de cada cliente (leitor e escritor): de plataforma, ou virtuais no modo virtual
+    private static ThreadFactory handlerThreads = Thread::new;
+    // Sala de cada conexão e membros de cada sala, fora do registryLock
+    private static final RoomIndex<Connection> rooms = new RoomIndex<>();
+    // Mensagens para usuários offline (null se desligado)
+    private static OfflineStore offline;
+    // Os outros servidores do cluster (null sem cluster)
+    private static ClusterLink cluster;
+    // O que os outros nós e o outro transporte pedem a este servidor
+    private static final LocalRouting routing = new LocalRouting();
+    // Este servidor no ChatServerDual (null se ele roda sozinho)
+    private static ChatTransport transport;
+    // Ids apresentados aos clientes binários para remetentes que não estão conectados a este
+    // servidor, nos dois sentidos: as respostas a esses ids são roteadas pelo nome
+    private static final Map<String, Integer> remoteIds = new ConcurrentHashMap<>();
+    private static final Map<Integer, String> remoteNames = new ConcurrentHashMap<>();
+    static final ChatMetrics metrics = new ChatMetrics("tcp", ChatServerTCP::connectedUsers,
+            "fila de saida (bytes)", OutboundQueue.totalQueuedBytes::get)
+            .counter("mensagens descartadas (consumidor lento)", OutboundQueue.totalDropped::get)
+            .counter("desconexoes (consumidor lento)", OutboundQueue.totalDisconnects::get);
 
     /**
-     * Ponto de entrada principal do servidor. Inicia o ServerSocket
-     * e entra em um loop infinito para aceitar novas conexões de clientes.
-     * Para cada cliente, uma nova thread ClientHandler é iniciada.
+     * Trata um frame do protocolo binário.
+     */
+    interface FrameHandler {
+        /**
+         * @param conn A conexão que enviou o frame.
+         * @param frame O frame recebido.
+         * @return false se o cliente pediu para sair, true caso contrário.
+         * @throws Exception Se ocorrer um erro ao processar o frame.
+         */
+        boolean handle(Connection conn, WireFrame frame) throws Exception;
+    }
+
+    // Tabela de despacho do protocolo binário, indexada pelo opcode
+    private static final FrameHandler[] FRAME_HANDLERS = new FrameHandler[256];
+    static {
+        FRAME_HANDLERS[WireFrame.TEXT] = (conn, f) -> handleMessage(conn, f.text());
+        FRAME_HANDLERS[WireFrame.BROADCAST] = (conn, f) -> {
+            broadcastChat(conn, f.text());
+            return true;
+        };
+        FRAME_HANDLERS[WireFrame.PRIVATE] = (conn, f) -> {
+            Connection target = connectionById(f.recipient);
+            if (target != null) privateMessage(conn, target, f.text());
+            else replyToRemote(conn, f);
+            return true;
+        };
+        FRAME_HANDLERS[WireFrame.SECURE] = (conn, f) -> {
+            Connection target = connectionById(f.recipient);
+            if (target != null) deliverSecure(conn, target, null, f);
+            else replyToRemote(conn, f);
+            return true;
+        };
+        FRAME_HANDLERS[WireFrame.SECURE_SESSION] = FRAME_HANDLERS[WireFrame.SECURE];
+    }
+
+    /**
+     * Ponto de entrada principal do servidor. O primeiro argumento escolhe o modo
+     * de execução: {@code thread} (padrão) cria uma thread ClientHandler por cliente;
+     * {@code nio} usa um pequeno conjunto fixo de event loops não bloqueantes
+     * (o segundo argumento, opcional, define quantos); {@code virtual} mantém o
+     * ClientHandler bloqueante do modo {@code thread}, mas roda o leitor e o escritor
+     * de cada cliente em threads virtuais (Java 21+; em versões anteriores, cai para
+     * threads de plataforma).
      *
-     * @param args Argumentos da linha de comando (não utilizados).
+     * @param args Argumentos da linha de comando: [thread|nio|virtual] [numero de event loops].
      * @throws IOException Se ocorrer um erro de I/O ao iniciar o servidor.
      */
     public static void main(String[] args) throws IOException {
+        metrics.registerMBean();
+        cluster = ClusterLink.configured(routing);
+        // Cada nó guarda as mensagens dos usuários de que é dono
+        offline = OfflineStore.open(cluster != null ? "tcp-node" + cluster.self() : "tcp",
+                message -> deliverStored(message) || cluster != null && cluster.deliverRemote(message));
+        if (cluster != null) cluster.start();
+        listen(args);
+    }
+
+    /**
+     * Liga este servidor ao {@link ChatServerDual}, antes de {@link #listen}.
+     *
+     * @param store O armazenamento offline compartilhado pelos dois transportes (null se desligado).
+     * @return Este servidor, como transporte.
+     */
+    static ChatTransport bridge(OfflineStore store) {
+        offline = store;
+        transport = routing;
+        return transport;
+    }
+
+    /**
+     * Aceita conexões no modo escolhido (ver {@link #main}). Não retorna.
+     *
+     * @param args [thread|nio|virtual] [numero de event loops].
+     * @throws IOException Se ocorrer um erro de I/O ao iniciar o servidor.
+     */
+    static void listen(String[] args) throws IOException {
+        String mode = args.length > 0 ? args[0] : "thread";
+        if (mode.equalsIgnoreCase("nio")) {
+            int loops = args.length > 1 ? Integer.parseInt(args[1])
+                    : Math.min(4, Runtime.getRuntime().availableProcessors());
+            ChatServerTCPNio.start(PORT, loops);
+            return;
+        }
+
+        if (mode.equalsIgnoreCase("virtual")) {
+            ThreadFactory virtual = virtualThreadFactory();
+            if (virtual != null) {
+                handlerThreads = virtual;
+            } else {
+                ChatLog.warn("Threads virtuais exigem Java 21+; usando threads de plataforma");
+            }
+        }
+
         ServerSocket serverSocket = new ServerSocket(PORT);
-        System.out.println("Servidor TCP escutando na porta " + PORT);
+        ChatLog.info("Servidor TCP escutando na porta {} (modo {})", PORT, mode);
 
         while (true) {
             Socket socket = serverSocket.accept();
-            new Thread(new ClientHandler(socket)).start();
+            handlerThreads.newThread(new ClientHandler(socket)).start();
         }
     }
 
     /**
-     * Classe interna que lida com a comunicação individual de cada cliente em uma thread separada.
-     * Responsável por ler as mensagens, processar comandos e encaminhar mensagens.
+     * Obtém {@code Thread.ofVirtual().name("chat-vt-", 0).factory()} por reflexão,
+     * para que o servidor continue compilando com {@code --release 17}.
+     *
+     * @return A fábrica de threads virtuais, ou null se a JVM não as suporta.
      */
-    static class ClientHandler implements Runnable {
-        private Socket socket;
-        private String username;
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "chat-vt-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Representa um cliente conectado, independente do modo de I/O usado para atendê-lo.
+     * O roteamento de mensagens só conhece esta abstração: ele apenas enfileira na
+     * {@link OutboundQueue} da conexão, e o escritor de cada modo a esvazia.
+     */
+    abstract static class Connection {
+        static final Charset CHARSET = Charset.defaultCharset();
+        static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+        // Quantos bytes da fila de saída são juntados em uma única escrita no socket
+        static final int COALESCE_BYTES = Integer.getInteger("chat.tcp.coalesceBytes", 64 * 1024);
+
+        final OutboundQueue outbound = new OutboundQueue();
+        String username;
+        int id;
+        // true depois que o cliente negociou o protocolo binário (WireFrame)
+        boolean binary;
+        // true se o cliente anunciou SIG: recebe a assinatura das mensagens RSA em texto
+        // ({@code cifrado:assinatura}); clientes antigos recebem só o cifrado
+        boolean signatures;
+        // true se o cliente anunciou EC: sabe ler chaves EC25519 (ver KeyDirectory.EC_CAPABILITY)
+        boolean ecKeys;
+        // true se o cliente anunciou AES: abre mensagens do modo de sessão e entende o sufixo :AES
+        boolean sessionKeys;
+        // endereço do cliente (o comando de administração só é aceito de endereços locais)
+        InetAddress address;
 
         /**
-         * Construtor para o ClientHandler.
+         * Codifica uma linha de texto (com a quebra de linha) em um frame pronto para envio.
+         * O frame nunca é modificado depois de criado, por isso pode ser compartilhado
+         * entre todos os destinatários de um broadcast: cada escritor lê o conteúdo
+         * sem alterar a posição do buffer original.
          *
-         * @param socket O socket da conexão com o cliente.
+         * @param message A mensagem (sem quebra de linha).
+         * @return O frame codificado.
          */
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+        static ByteBuffer encode(String message) {
+            byte[] body = message.getBytes(CHARSET);
+            ByteBuffer buf = ByteBuffer.allocate(body.length + LINE_SEPARATOR.length);
+            buf.put(body).put(LINE_SEPARATOR).flip();
+            return buf;
         }
 
         /**
-         * Lógica principal da thread do cliente. Gerencia o registro, a troca de chaves,
-         * o processamento de mensagens e a desconexão.
+         * Enfileira uma linha de texto para o cliente (em um frame TEXT, se ele usa o protocolo binário).
+         *
+         * @param message A mensagem a ser enviada (sem quebra de linha).
          */
-        public void run() {
+        void send(String message) {
+            send(binary ? WireFrame.encode(WireFrame.TEXT, 0, 0, message) : encode(message));
+        }
+
+        /**
+         * Enfileira um frame já codificado. Nunca bloqueia nem copia o frame; se o
+         * cliente for lento demais e a política for DISCONNECT, a conexão é encerrada.
+         *
+         * @param frame O frame criado por {@link #encode(String)}.
+         */
+        void send(ByteBuffer frame) {
+            if (frame == null) return;
+            if (outbound.offer(frame)) {
+                onQueued();
+            } else {
+                ChatLog.warn("Desconectando consumidor lento: {}", username);
+                disconnect();
+            }
+        }
+
+        /**
+         * Chamado depois que uma mensagem foi enfileirada, para acordar o escritor se necessário.
+         */
+        abstract void onQueued();
+
+        /**
+         * Encerra a conexão. Pode ser chamado de qualquer thread.
+         */
+        abstract void disconnect();
+    }
+
+    /**
+     * Processa a mensagem de registro (primeira linha enviada pelo cliente).
+     *
+     * @param conn A conexão do cliente.
+     * @param regMsg A linha recebida.
+     * @throws Exception Se a chave pública for inválida ou ocorrer erro de I/O.
+     */
+    static void register(Connection conn, String regMsg) throws Exception {
+        long start = ChatMetrics.start();
+        if (regMsg != null && regMsg.startsWith("REGISTRO:")) {
+            // REGISTRO:usuario:chave[:BIN,SIG,EC,AES]
+            String[] parts = regMsg.split(":", 4);
+            conn.username = parts[1];
+            PublicKey pubKey = RSAUtils.stringToPublicKey(parts[2]);
+            List<String> caps = parts.length > 3 ? Arrays.asList(parts[3].split(",")) : List.of();
+            boolean binary = caps.contains("BIN");
+            conn.signatures = caps.contains("SIG");
+            conn.ecKeys = caps.contains(KeyDirectory.EC_CAPABILITY);
+            conn.sessionKeys = caps.contains(KeyDirectory.AES_CAPABILITY);
+
+            registryLock.lock();
             try {
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
-                // Registro do cliente
-                String regMsg = in.readLine();
-                if (regMsg != null && regMsg.startsWith("REGISTRO:")) {
-                    String[] parts = regMsg.split(":", 3);
-                    username = parts[1];
-                    PublicKey pubKey = RSAUtils.stringToPublicKey(parts[2]);
-
-                    synchronized (clients) {
-                        clients.put(username, socket);
-                        clientPublicKeys.put(username, pubKey);
+                conn.id = nextId++;
+                if (binary) {
+                    // BIN_OK ainda vai como texto; a partir daqui só frames
+                    conn.send(Connection.encode("BIN_OK:" + conn.id));
+                    conn.binary = true;
+                    for (Connection c : clients.values()) {
+                        conn.send(WireFrame.encode(WireFrame.USER, c.id, 0, c.username));
                     }
-                    broadcast(username + " entrou no chat.", true, null);
                 }
-
-                String msg;
-                while ((msg = in.readLine()) != null) {
-
-                    if (msg.equalsIgnoreCase("!list")) {
-                        sendUserList(out);
-
-                    } else if (msg.equalsIgnoreCase("!exit")) {
-                        break;
-                        
-                    } else if (msg.startsWith("REQKEY:")) {
-                        String target = msg.substring(7);
-                        PublicKey targetKey = clientPublicKeys.get(target);
-                        if (targetKey != null) {
-                            out.println("PUBKEYRESP:" + target + ":" + RSAUtils.keyToString(targetKey));
-                        } else {
-                            out.println("PUBKEYRESPERR:" + target);
-                        }
-
-                    } else if (msg.startsWith("ENCRYPTED:")) {
-                        String[] parts = msg.split(":", 3);
-                        String target = parts[1];
-                        String encryptedContent = parts[2];
-
-                        sendToUser(target, "ENCRYPTED:" + username + ":" + encryptedContent);
-
-                    } else if (msg.startsWith("@")) {
-                        String[] parts = msg.split(" ", 2);
-                        String target = parts[0].substring(1);
-                        String text = parts.length > 1 ? parts[1] : "";
-                        
-                        sendToUser(target, "[Privado] " + username + ": " + text);
-                        System.out.println("[Privado] " + username + " para " + target + ": " + text);
-                    } else {
-                        broadcast("[Todos] " + username + ": " + msg, false, username);
-                    }
+                Connection previous = clients.put(conn.username, conn);
+                if (previous != null) {
+                    clientsById.remove(previous.id);
+                    rooms.remove(previous);
                 }
+                clientsById.put(conn.id, conn);
+                clientPublicKeys.put(conn.username, pubKey);
+                if (conn.sessionKeys) sessionCapable.add(conn.username);
+                else sessionCapable.remove(conn.username);
+            } finally {
+                registryLock.unlock();
+            }
+            rooms.join(conn, RoomIndex.DEFAULT_ROOM);
+            forgetRemote(conn.username);
+            announceUser(conn, conn.username);
+            broadcast(conn.username + " entrou no chat.", true, null);
+            String published = KeyDirectory.published(parts[2], conn.sessionKeys);
+            if (transport != null) ChatServerDual.joined(transport, conn.username, published);
+            if (cluster != null) {
+                // O dono do usuário no cluster atualiza o diretório e faz o replay
+                cluster.join(conn.username, published);
+            } else if (offline != null) {
+                offline.replay(conn.username);
+            }
+            metrics.record(ChatMetrics.Type.REGISTRO, start);
+        }
+    }
 
-                socket.close();
-                synchronized (clients) {
-                    clients.remove(username);
-                    clientPublicKeys.remove(username);
-                }
-                broadcast(username + " saiu do chat.", true, null);
+    /**
+     * Processa um frame binário recebido, consultando a tabela de despacho.
+     * Opcodes desconhecidos são ignorados.
+     *
+     * @param conn A conexão que enviou o frame.
+     * @param frame O frame recebido.
+     * @return false se o cliente pediu para sair, true caso contrário.
+     * @throws Exception Se ocorrer um erro ao processar o frame.
+     */
+    static boolean handleFrame(Connection conn, WireFrame frame) throws Exception {
+        long start = ChatMetrics.start();
+        FrameHandler handler = FRAME_HANDLERS[frame.opcode & 0xFF];
+        boolean keep = handler == null || handler.handle(conn, frame);
+        metrics.record(ChatMetrics.ofOpcode(frame.opcode), start);
+        return keep;
+    }
+
+    /**
+     * Processa uma linha recebida de um cliente já registrado.
+     *
+     * @param conn A conexão que enviou a linha.
+     * @param msg A linha recebida.
+     * @return false se o cliente pediu para sair, true caso contrário.
+     * @throws IOException Se ocorrer um erro de I/O.
+     */
+    static boolean handleMessage(Connection conn, String msg) throws IOException {
+        long start = ChatMetrics.start();
+        ChatMetrics.Type type = null;
+
+        if (msg.equalsIgnoreCase("!list")) {
+            sendUserList(conn);
+
+        } else if (msg.equalsIgnoreCase("!stats")) {
+            if (ChatMetrics.adminAllowed(conn.address)) conn.send(metrics.getSnapshot());
+
+        } else if (msg.equalsIgnoreCase("!exit")) {
+            return false;
+
+        } else if (msg.startsWith("!join ")) {
+            joinRoom(conn, msg.substring(6).trim());
+
+        } else if (msg.equalsIgnoreCase("!leave")) {
+            joinRoom(conn, RoomIndex.DEFAULT_ROOM);
+
+        } else if (msg.equalsIgnoreCase("!rooms")) {
+            conn.send(rooms.listing());
+
+        } else if (msg.startsWith("REQKEY:")) {
+            type = ChatMetrics.Type.REQKEY;
+            String target = msg.substring(7);
+            if (cluster != null && connectionByName(target) == null) {
+                // Só o dono do usuário no cluster sabe a chave atual dele
+                cluster.requestKey(conn.username, target);
+            } else {
+                conn.send(keyResponse(conn, target, publishedKey(target)));
+            }
+
+        } else if (msg.startsWith("ENCRYPTED:")) {
+            type = ChatMetrics.Type.ENCRYPTED;
+            String[] parts = msg.split(":", 3);
+            String target = parts[1];
+            String encryptedContent = parts[2];
+
+            Connection targetConn = connectionByName(target);
+            if (targetConn != null) {
+                deliverSecure(conn, targetConn, encryptedContent, null);
+            } else {
+                routeOrStore(conn, target, secureFrame(encryptedContent));
+            }
+
+        } else if (msg.startsWith(GroupSeal.PREFIX)) {
+            type = ChatMetrics.Type.ENCRYPTED;
+            groupMessage(conn, msg);
+
+        } else if (msg.startsWith("@")) {
+            type = ChatMetrics.Type.PRIVADO;
+            String[] parts = msg.split(" ", 2);
+            String target = parts[0].substring(1);
+            String text = parts.length > 1 ? parts[1] : "";
+
+            Connection targetConn = connectionByName(target);
+            if (targetConn != null) {
+                privateMessage(conn, targetConn, text);
+            } else {
+                routeOrStore(conn, target, new WireFrame(WireFrame.PRIVATE, 0, 0, new byte[0], text.getBytes(StandardCharsets.UTF_8)));
+            }
+        } else {
+            type = ChatMetrics.Type.BROADCAST;
+            broadcastChat(conn, msg);
+        }
+        metrics.record(type, start);
+        return true;
+    }
+
+    private static int connectedUsers() {
+        return clients.size();
+    }
+
+    private static Connection connectionByName(String user) {
+        return clients.get(user);
+    }
+
+    private static Connection connectionById(int id) {
+        return clientsById.get(id);
+    }
+
+    /**
+     * Envia uma mensagem de chat para a sala do remetente, exceto ele. O texto é codificado
+     * uma vez em cada formato: linha para clientes antigos e, para os binários, frame
+     * BROADCAST na sala padrão ou a linha já formatada (frame TEXT) nas demais.
+     *
+     * @param from A conexão do remetente.
+     * @param text O texto da mensagem.
+     */
+    static void broadcastChat(Connection from, String text) {
+        String room = rooms.roomOf(from);
+        if (room == null) room = RoomIndex.DEFAULT_ROOM;
+        String line = RoomIndex.chatLine(room, from.username, text);
+        ByteBuffer binary = room.equals(RoomIndex.DEFAULT_ROOM)
+                ? WireFrame.encode(WireFrame.BROADCAST, from.id, 0, text)
+                : WireFrame.encode(WireFrame.TEXT, 0, 0, line);
+        fanOutRoom(room, Connection.encode(line), binary, from);
+        if (cluster != null) cluster.broadcast(room, from.username, text);
+        if (transport != null) ChatServerDual.broadcast(transport, room, from.username, text);
+        ChatLog.info("{}{}: {}", RoomIndex.prefix(room), from.username, ChatLog.body(text));
+    }
+
+    /**
+     * Troca a sala de um usuário e avisa os membros da sala que ele deixou e da nova.
+     *
+     * @param conn A conexão do usuário.
+     * @param room A sala de destino.
+     */
+    static void joinRoom(Connection conn, String room) {
+        if (!RoomIndex.isValidName(room)) {
+            conn.send("ERRO:Nome de sala invalido: " + room);
+            return;
+        }
+        String previous = rooms.join(conn, room);
+        if (room.equals(previous)) {
+            conn.send("Voce ja esta na sala " + room + ".");
+            return;
+        }
+        if (previous != null) roomNotice(previous, conn.username + " saiu da sala " + previous + ".", conn);
+        roomNotice(room, conn.username + " entrou na sala " + room + ".", conn);
+        conn.send("Voce entrou na sala " + room + ".");
+    }
+
+    /**
+     * Envia um aviso do servidor aos membros de uma sala.
+     */
+    private static void roomNotice(String room, String message, Connection exclude) {
+        if (cluster != null) cluster.broadcast(room, "", message);
+        if (transport != null) ChatServerDual.broadcast(transport, room, "", message);
+        fanOutRoom(room, Connection.encode(message), WireFrame.encode(WireFrame.TEXT, 0, 0, message), exclude);
+    }
 
+    /**
+     * Como {@link #fanOut}, mas só para os membros de uma sala.
+     */
+    private static void fanOutRoom(String room, ByteBuffer legacy, ByteBuffer binary, Connection exclude) {
+        for (Connection c : rooms.members(room)) {
+            if (c == exclude) continue;
+            c.send(c.binary ? binary : legacy);
+        }
+    }
+
+    /**
+     * Envia uma mensagem privada em texto simples.
+     *
+     * @param from A conexão do remetente.
+     * @param target A conexão do destinatário, ou null se ele não estiver conectado.
+     * @param text O texto da mensagem.
+     */
+    static void privateMessage(Connection from, Connection target, String text) {
+        if (target == null) return;
+        privateMessage(from.id, from.username, target, text);
+    }
+
+    private static void privateMessage(int fromId, String fromName, Connection target, String text) {
+        if (target.binary) {
+            target.send(WireFrame.encode(WireFrame.PRIVATE, fromId, target.id, text));
+        } else {
+            target.send("[Privado] " + fromName + ": " + text);
+        }
+        ChatLog.info("[Privado] {} para {}: {}", fromName, target.username, ChatLog.body(text));
+    }
+
+    /**
+     * Encaminha uma mensagem cifrada, convertendo entre os dois formatos quando
+     * remetente e destinatário usam protocolos diferentes. O servidor não lê o conteúdo.
+     *
+     * @param from A conexão do remetente.
+     * @param target A conexão do destinatário, ou null se ele não estiver conectado.
+     * @param legacyPayload O payload em texto (Base64 ou {@code AES:...}), se veio do protocolo antigo.
+     * @param frame O frame SECURE/SECURE_SESSION, se veio do protocolo binário.
+     */
+    static void deliverSecure(Connection from, Connection target, String legacyPayload, WireFrame frame) {
+        if (target == null) return;
+        deliverSecure(from.id, from.username, target, legacyPayload, frame);
+    }
+
+    private static void deliverSecure(int fromId, String fromName, Connection target, String legacyPayload, WireFrame frame) {
+        if (target.binary) {
+            if (frame == null) frame = secureFrame(legacyPayload);
+            target.send(WireFrame.encode(frame.opcode, fromId, target.id, frame.signature, frame.payload));
+        } else {
+            if (legacyPayload == null) {
+                legacyPayload = frame.opcode == WireFrame.SECURE_SESSION ? frame.text()
+                        : Base64.getEncoder().encodeToString(frame.payload)
+                        + (frame.signature.length > 0 && target.signatures
+                        ? ":" + Base64.getEncoder().encodeToString(frame.signature) : "");
+            } else if (!target.signatures && !SessionKeys.isSessionPayload(legacyPayload)) {
+                // Cliente antigo: espera só o cifrado em Base64 depois do remetente
+                int sig = legacyPayload.indexOf(':');
+                if (sig >= 0) legacyPayload = legacyPayload.substring(0, sig);
+            }
+            target.send("ENCRYPTED:" + fromName + ":" + legacyPayload);
+        }
+    }
+
+    /**
+     * Repassa uma mensagem segura de grupo ({@link GroupSeal}): o texto cifrado é o
+     * mesmo para todos, e cada destinatário recebe só a sua chave protegida. Quem não
+     * está neste servidor recebe a linha pronta (frame TEXT) pelo cluster, pelo
+     * {@link ChatServerDual} ou pelo armazenamento offline.
+     *
+     * @param from A conexão do remetente.
+     * @param msg A linha {@code GRUPO:...} recebida.
+     */
+    private static void groupMessage(Connection from, String msg) {
+        GroupSeal.Fanout fanout = GroupSeal.fanout(from.username, msg);
+        if (fanout == null) {
+            from.send("ERRO:Mensagem de grupo invalida");
+            return;
+        }
+        for (int i = 0; i < fanout.recipients.size(); i++) {
+            String to = fanout.recipients.get(i);
+            Connection target = connectionByName(to);
+            if (target != null) {
+                target.send(fanout.line(i));
+            } else {
+                routeOrStore(from, to, new WireFrame(WireFrame.TEXT, 0, 0, new byte[0],
+                        fanout.line(i).getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        ChatLog.info("[Grupo] {} para {}", from.username, fanout.recipients);
+    }
+
+    /**
+     * @param legacyPayload O payload de {@code ENCRYPTED:} ({@code cifrado[:assinatura]} em Base64, ou {@code AES:...}).
+     * @return O frame SECURE ou SECURE_SESSION equivalente.
+     */
+    private static WireFrame secureFrame(String legacyPayload) {
+        if (SessionKeys.isSessionPayload(legacyPayload)) {
+            return new WireFrame(WireFrame.SECURE_SESSION, 0, 0, new byte[0], legacyPayload.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = legacyPayload.split(":", 2);
+        byte[] signature = parts.length > 1 ? Base64.getDecoder().decode(parts[1]) : new byte[0];
+        return new WireFrame(WireFrame.SECURE, 0, 0, signature, Base64.getDecoder().decode(parts[0]));
+    }
+
+    /**
+     * Manda uma mensagem privada para um usuário que não está neste servidor: pelo cluster,
+     * se houver, ao servidor UDP do {@link ChatServerDual}, se ele estiver lá, ou para o
+     * armazenamento offline.
+     */
+    private static void routeOrStore(Connection from, String to, WireFrame frame) {
+        OfflineStore.Message message = new OfflineStore.Message(from.username, to, senderKey(from.username), frame);
+        if (cluster != null) {
+            if (!to.isEmpty()) cluster.route(message);
+        } else if (transport == null || !ChatServerDual.deliver(transport, message)) {
+            storeOffline(from, to, frame);
+        }
+    }
+
+    private static String senderKey(String user) {
+        PublicKey key = clientPublicKeys.get(user);
+        return key != null ? RSAUtils.keyToString(key) : null;
+    }
+
+    /**
+     * @param user O nome do usuário.
+     * @return A chave do usuário na forma anunciada ({@link KeyDirectory#published}), ou null.
+     */
+    private static String publishedKey(String user) {
+        String key = senderKey(user);
+        return key != null ? KeyDirectory.published(key, sessionCapable.contains(user)) : null;
+    }
+
+    /**
+     * Monta a resposta a um pedido de chave. Um cliente que não anunciou
+     * {@link KeyDirectory#EC_CAPABILITY} recebe PUBKEYRESPERR no lugar de uma chave
+     * EC25519: o cliente original pararia de receber mensagens ao tentar lê-la. O
+     * sufixo {@code :AES} só vai a quem anunciou {@link KeyDirectory#AES_CAPABILITY}.
+     *
+     * @param conn Quem pediu a chave.
+     * @param user O dono da chave.
+     * @param key A chave na forma anunciada, ou null se desconhecida.
+     * @return A linha PUBKEYRESP ou PUBKEYRESPERR.
+     */
+    static String keyResponse(Connection conn, String user, String key) {
+        String readable = key != null ? KeyDirectory.forReader(key, conn.ecKeys, conn.sessionKeys) : null;
+        return readable != null ? "PUBKEYRESP:" + user + ":" + readable : "PUBKEYRESPERR:" + user;
+    }
+
+    /**
+     * Guarda uma mensagem privada para um usuário offline e avisa o remetente.
+     */
+    private static void storeOffline(Connection from, String to, WireFrame frame) {
+        if (offline == null || to.isEmpty()) return;
+        offline.store(new OfflineStore.Message(from.username, to, senderKey(from.username), frame));
+        from.send(to + " esta offline; a mensagem sera entregue no proximo registro.");
+    }
+
+    /**
+     * Entrega uma mensagem do {@link OfflineStore}, se o destinatário estiver conectado.
+     * Um cliente binário só conhece os ids de quem está conectado a este servidor, então
+     * um remetente offline ou de outro nó ganha um id próprio, apresentado a esse destinatário.
+     */
+    private static boolean deliverStored(OfflineStore.Message message) {
+        Connection target = connectionByName(message.to);
+        if (target == null) return false;
+        WireFrame frame = message.frame;
+        if (!message.senderKey.isEmpty() && !clientPublicKeys.containsKey(message.from)
+                && KeyDirectory.readableBy(message.senderKey, target.ecKeys)) {
+            // Remetente offline: a chave dele só existe na mensagem guardada, e vai direto ao destinatário
+            target.send("PUBKEYRESP:" + message.from + ":" + message.senderKey);
+        }
+        if (frame.opcode == WireFrame.TEXT) {
+            // Linha pronta, como uma mensagem de grupo (GroupSeal)
+            target.send(frame.text());
+            return true;
+        }
+        Connection sender = connectionByName(message.from);
+        int fromId = sender != null ? sender.id : 0;
+        if (sender == null && target.binary) {
+            fromId = remoteIds.computeIfAbsent(message.from, name -> {
+                int id = allocateId();
+                remoteNames.put(id, name);
+                return id;
+            });
+            target.send(WireFrame.encode(WireFrame.USER, fromId, 0, message.from));
+        }
+        if (frame.opcode == WireFrame.PRIVATE) {
+            privateMessage(fromId, message.from, target, frame.text());
+        } else {
+            deliverSecure(fromId, message.from, target, null, frame);
+        }
+        return true;
+    }
+
+    /**
+     * Encaminha um frame PRIVATE/SECURE endereçado a um id de {@link #remoteIds}, isto é,
+     * a resposta de um cliente binário a um remetente que não está conectado aqui.
+     * Ids desconhecidos (já esquecidos) são descartados, como antes.
+     */
+    private static void replyToRemote(Connection conn, WireFrame f) {
+        String to = remoteNames.get(f.recipient);
+        if (to == null) return;
+        WireFrame frame = new WireFrame(f.opcode, 0, 0, f.signature, f.payload);
+        Connection target = connectionByName(to);
+        if (target == null) {
+            routeOrStore(conn, to, frame);
+        } else if (frame.opcode == WireFrame.PRIVATE) {
+            privateMessage(conn, target, frame.text());
+        } else {
+            deliverSecure(conn, target, null, frame);
+        }
+    }
+
+    /**
+     * Esquece o id remoto de um usuário que se registrou aqui ou saiu do outro transporte,
+     * avisando os clientes binários para que deixem de usá-lo (passam a endereçar pelo nome).
+     *
+     * @param user O usuário.
+     */
+    private static void forgetRemote(String user) {
+        Integer id = remoteIds.remove(user);
+        if (id == null) return;
+        remoteNames.remove(id);
+        fanOut(null, WireFrame.encode(WireFrame.USER, id, 0, ""), null);
+    }
+
+    private static int allocateId() {
+        registryLock.lock();
+        try {
+            return nextId++;
+        } finally {
+            registryLock.unlock();
+        }
+    }
+
+    /**
+     * Informa aos clientes binários o id de um usuário que entrou (ou saiu, se {@code name} for vazio).
+     *
+     * @param conn A conexão do usuário.
+     * @param name O nome do usuário, ou "" se ele saiu.
+     */
+    private static void announceUser(Connection conn, String name) {
+        fanOut(null, WireFrame.encode(WireFrame.USER, conn.id, 0, name), conn);
+    }
+
+    /**
+     * Entrega um frame já codificado a todos os clientes, exceto {@code exclude},
+     * escolhendo o formato de cada um.
+     *
+     * @param legacy A linha para clientes de texto (null para não enviar a eles).
+     * @param binary O frame para clientes binários (null para não enviar a eles).
+     * @param exclude Conexão que não recebe a mensagem (null para incluir todos).
+     */
+    private static void fanOut(ByteBuffer legacy, ByteBuffer binary, Connection exclude) {
+        for (Connection c : clients.values()) {
+            if (c == exclude) continue;
+            c.send(c.binary ? binary : legacy);
+        }
+    }
+
+    /**
+     * Remove o cliente do registro e avisa os demais usuários.
+     *
+     * @param conn A conexão que foi encerrada.
+     * @throws IOException Se ocorrer um erro de I/O ao notificar os demais.
+     */
+    static void unregister(Connection conn) throws IOException {
+        rooms.remove(conn);
+        registryLock.lock();
+        try {
+            if (conn.username == null || !clients.remove(conn.username, conn)) return;
+            clientsById.remove(conn.id);
+            // O registro só guarda quem está conectado; as mensagens guardadas levam a chave do remetente
+            clientPublicKeys.remove(conn.username);
+            sessionCapable.remove(conn.username);
+        } finally {
+            registryLock.unlock();
+        }
+        if (cluster != null) cluster.leave(conn.username);
+        if (transport != null) ChatServerDual.left(transport, conn.username);
+        announceUser(conn, "");
+        broadcast(conn.username + " saiu do chat.", true, null);
+    }
+
+    /**
+     * Envia uma mensagem de broadcast para todos os clientes conectados.
+     * A mensagem é codificada uma única vez e o mesmo frame é entregue a cada destinatário.
+     *
+     * @param message A mensagem a ser enviada.
+     * @param notifyAll Se true, notifica a todos; se false, exclui o remetente.
+     * @param excludeUser Nome do usuário a ser excluído do broadcast (nulo para incluir todos).
+     * @throws IOException Se ocorrer um erro de I/O ao enviar a mensagem.
+     */
+    static void broadcast(String message, boolean notifyAll, String excludeUser) throws IOException {
+        if (cluster != null) cluster.broadcast("", "", message);
+        if (transport != null) ChatServerDual.broadcast(transport, "", "", message);
+        broadcastLocal(message, notifyAll, excludeUser);
+        ChatLog.info(message);
+    }
+
+    /**
+     * Como {@link #broadcast}, mas só para os clientes deste servidor.
+     */
+    private static void broadcastLocal(String message, boolean notifyAll, String excludeUser) {
+        ByteBuffer frame = Connection.encode(message);
+        ByteBuffer binaryFrame = null;
+        for (Map.Entry<String, Connection> entry : clients.entrySet()) {
+            if (!notifyAll && entry.getKey().equals(excludeUser)) continue;
+            Connection c = entry.getValue();
+            if (c.binary && binaryFrame == null) binaryFrame = WireFrame.encode(WireFrame.TEXT, 0, 0, message);
+            c.send(c.binary ? binaryFrame : frame);
+        }
+    }
+
+    /**
+     * Envia a lista de usuários conectados para o cliente que a solicitou.
+     *
+     * @param conn A conexão do cliente solicitante.
+     * @throws IOException Se ocorrer um erro de I/O.
+     */
+    static void sendUserList(Connection conn) throws IOException {
+        StringBuilder sb = new StringBuilder("Usuarios conectados:\n");
+        for (String u : clients.keySet()) {
+            sb.append("- ").append(u).append("\n");
+        }
+        if (transport != null) {
+            for (String u : ChatServerDual.usersElsewhere(transport)) sb.append("- ").append(u).append(" (udp)\n");
+        }
+        conn.send(sb.toString());
+        // Os outros nós respondem direto ao cliente, cada um com os seus usuários
+        if (cluster != null) cluster.requestUsers(conn.username);
+    }
+
+    /**
+     * O que chega dos outros nós do cluster ou, no {@link ChatServerDual}, do servidor UDP.
+     */
+    private static final class LocalRouting implements ClusterLink.Handler, ChatTransport {
+        @Override
+        public boolean deliver(OfflineStore.Message message) {
+            return deliverStored(message);
+        }
+
+        @Override
+        public boolean storeOffline(OfflineStore.Message message) {
+            if (offline == null) return false;
+            offline.store(message);
+            return true;
+        }
+
+        @Override
+        public void registered(String user) {
+            forgetRemote(user);
+            if (offline != null) offline.replay(user);
+        }
+
+        @Override
+        public void text(String user, String line) {
+            Connection target = connectionByName(user);
+            if (target == null) return;
+            if (line.startsWith("PUBKEYRESP:")) {
+                // A chave vem do dono do usuário, que não sabe o que este cliente entende
+                String[] parts = line.split(":", 3);
+                line = keyResponse(target, parts[1], parts[2]);
+            }
+            target.send(line);
+        }
+
+        @Override
+        public void broadcast(String room, String from, String text) {
+            if (room.isEmpty()) {
+                broadcastLocal(text, true, null);
+            } else if (from.isEmpty()) {
+                fanOutRoom(room, Connection.encode(text), WireFrame.encode(WireFrame.TEXT, 0, 0, text), null);
+            } else {
+                // O remetente não tem id neste servidor: os clientes binários recebem a linha pronta
+                String line = RoomIndex.chatLine(room, from, text);
+                fanOutRoom(room, Connection.encode(line), WireFrame.encode(WireFrame.TEXT, 0, 0, line), null);
+            }
+        }
+
+        @Override
+        public void userJoined(String user, String key) {
+            try {
+                // A chave chega na forma anunciada, com o sufixo :AES se o dono aceita o modo de sessão
+                clientPublicKeys.put(user, RSAUtils.stringToPublicKey(KeyDirectory.keyOf(key)));
+                if (KeyDirectory.sessionCapable(key)) sessionCapable.add(user);
+                else sessionCapable.remove(user);
             } catch (Exception e) {
-                e.printStackTrace();
+                ChatLog.warn("Chave de {} invalida: {}", user, e);
+            }
+        }
+
+        @Override
+        public void userLeft(String user) {
+            forgetRemote(user);
+            if (!clients.containsKey(user)) {
+                clientPublicKeys.remove(user);
+                sessionCapable.remove(user);
             }
         }
 
+        @Override
+        public boolean connected(String user) {
+            return clients.containsKey(user);
+        }
+
+        @Override
+        public List<String> localUsers() {
+            return new ArrayList<>(clients.keySet());
+        }
+    }
+
+    /**
+     * Classe interna que lida com a comunicação individual de cada cliente em uma thread separada.
+     * Responsável por ler as mensagens e repassá-las ao roteamento do servidor.
+     * Uma segunda thread por cliente esvazia a fila de saída, de modo que só ela
+     * bloqueia quando a janela TCP do cliente está cheia. O escritor vive enquanto a
+     * conexão existir, parado em {@link OutboundQueue#take()} quando não há o que enviar:
+     * cada cliente ocupa duas threads de plataforma, mas nenhuma thread é criada por
+     * mensagem. No modo {@code virtual} as duas são threads virtuais.
+     */
+    static class ClientHandler extends Connection implements Runnable {
+        private Socket socket;
+
         /**
-         * Envia uma mensagem de broadcast para todos os clientes conectados.
+         * Construtor para o ClientHandler.
          *
-         * @param message A mensagem a ser enviada.
-         * @param notifyAll Se true, notifica a todos; se false, exclui o remetente.
-         * @param excludeUser Nome do usuário a ser excluído do broadcast (nulo para incluir todos).
-         * @throws IOException Se ocorrer um erro de I/O ao enviar a mensagem.
+         * @param socket O socket da conexão com o cliente.
          */
-        private void broadcast(String message, boolean notifyAll, String excludeUser) throws IOException {
-            synchronized (clients) {
-                for (Map.Entry<String, Socket> entry : clients.entrySet()) {
-                    if (!notifyAll && entry.getKey().equals(excludeUser)) continue;
-                    PrintWriter writer = new PrintWriter(entry.getValue().getOutputStream(), true);
-                    writer.println(message);
-                }
+        public ClientHandler(Socket socket) {
+            this.socket = socket;
+            this.address = socket.getInetAddress();
+        }
+
+        @Override
+        void onQueued() {
+            // O escritor já está aguardando em outbound.take().
+        }
+
+        @Override
+        void disconnect() {
+            outbound.close();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                ChatLog.error("Erro ao fechar a conexão de {}", username, e);
             }
-            System.out.println(message);
         }
 
         /**
-         * Envia uma mensagem para um usuário específico.
-         *
-         * @param user O nome de usuário do destinatário.
-         * @param message A mensagem a ser enviada.
-         * @throws IOException Se ocorrer um erro de I/O.
+         * Lógica principal da thread do cliente. Gerencia o registro, a troca de chaves,
+         * o processamento de mensagens e a desconexão.
          */
-        private void sendToUser(String user, String message) throws IOException {
-            synchronized (clients) {
-                Socket s = clients.get(user);
-                if (s != null) {
-                    PrintWriter writer = new PrintWriter(s.getOutputStream(), true);
-                    writer.println(message);
+        public void run() {
+            try {
+                InputStream raw = new BufferedInputStream(new FilterInputStream(socket.getInputStream()) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        if (n > 0) metrics.bytesIn(n);
+                        return n;
+                    }
+                });
+                handlerThreads.newThread(this::drainOutbound).start();
+
+                // Registro do cliente (lido sem antecipar bytes, pois podem vir frames depois)
+                register(this, WireFrame.readLine(raw));
+
+                if (binary) {
+                    DataInputStream in = new DataInputStream(raw);
+                    WireFrame frame;
+                    while ((frame = WireFrame.read(in)) != null) {
+                        if (!handleFrame(this, frame)) break;
+                    }
+                } else {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(raw));
+                    String msg;
+                    while ((msg = in.readLine()) != null) {
+                        if (!handleMessage(this, msg)) break;
+                    }
+                }
+
+            } catch (Exception e) {
+                if (!socket.isClosed()) ChatLog.error("Erro na conexão de {}", username, e);
+            } finally {
+                try {
+                    disconnect();
+                    unregister(this);
+                } catch (IOException e) {
+                    ChatLog.error("Erro ao desconectar {}", username, e);
                 }
             }
         }
 
         /**
-         * Envia a lista de usuários conectados para o cliente que a solicitou.
-         *
-         * @param out O fluxo de saída para o cliente solicitante.
+         * Laço do escritor: envia as mensagens da fila de saída até a conexão ser fechada.
          */
-        private void sendUserList(PrintWriter out) {
-            synchronized (clients) {
-                StringBuilder sb = new StringBuilder("Usuarios conectados:\n");
-                for (String u : clients.keySet()) {
-                    sb.append("- ").append(u).append("\n");
+        private void drainOutbound() {
+            try {
+                // Junta no buffer tudo o que já estiver na fila e faz um único write por lote
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), COALESCE_BYTES);
+                ByteBuffer frame;
+                while ((frame = outbound.take()) != null) {
+                    do {
+                        // Leitura absoluta: o frame pode estar sendo lido por outros escritores.
+                        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                        metrics.bytesOut(frame.remaining());
+                    } while ((frame = outbound.poll()) != null);
+                    out.flush();
                 }
-                out.println(sb.toString());
+            } catch (IOException e) {
+                disconnect();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,292 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Modo não bloqueante do servidor TCP. Em vez de uma thread por cliente,
+ * um pequeno conjunto fixo de event loops (cada um com seu próprio Selector)
+ * atende todas as conexões. As linhas são decodificadas de forma incremental
+ * e repassadas ao mesmo roteamento usado pelo {@link ChatServerTCP}, portanto
+ * o protocolo visto pelos clientes é idêntico. Depois do registro, clientes que
+ * negociaram o protocolo binário têm os bytes decodificados como {@link WireFrame}.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ChatServerTCPNio {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = Integer.getInteger("chat.tcp.maxLine", 1 << 20);
+    // Maior frame binário possível (cabeçalho + assinatura + payload)
+    private static final int MAX_FRAME_LENGTH = WireFrame.HEADER_BYTES + 0xFFFF + WireFrame.MAX_PAYLOAD;
+    // Máximo de frames por escrita com gathering (writev)
+    private static final int GATHER_FRAMES = 64;
+
+    /**
+     * Inicia os event loops e aceita conexões na thread atual,
+     * distribuindo-as entre os loops em round-robin.
+     *
+     * @param port A porta TCP a ser escutada.
+     * @param loopCount Quantidade de event loops.
+     * @throws IOException Se ocorrer um erro de I/O ao iniciar o servidor.
+     */
+    static void start(int port, int loopCount) throws IOException {
+        EventLoop[] loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread t = new Thread(loops[i], "chat-loop-" + i);
+            t.start();
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        ChatLog.info("Servidor TCP (NIO, {} event loops) escutando na porta {}", loops.length, port);
+
+        int next = 0;
+        while (true) {
+            SocketChannel channel = server.accept();
+            loops[next++ % loops.length].register(channel);
+        }
+    }
+
+    /**
+     * Thread com um Selector próprio que atende leitura e escrita
+     * de todas as conexões atribuídas a ela.
+     */
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Agenda uma tarefa para ser executada na thread deste loop.
+         *
+         * @param task A tarefa.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Transfere uma conexão recém-aceita para este loop.
+         *
+         * @param channel O canal aceito.
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    NioConnection conn = new NioConnection(channel, this);
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                } catch (IOException e) {
+                    ChatLog.error("Erro ao registrar conexão", e);
+                    try { channel.close(); } catch (IOException ignored) { }
+                }
+            });
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        if (!key.isValid()) continue;
+                        if (key.isReadable()) conn.onReadable();
+                        if (key.isValid() && key.isWritable()) conn.flush();
+                    }
+                } catch (Exception e) {
+                    ChatLog.error("Erro no event loop", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Estado de uma conexão não bloqueante: buffer de leitura, decodificador
+     * de linhas e fila de escrita.
+     */
+    static class NioConnection extends ChatServerTCP.Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private SelectionKey key;
+        // Lote em envio: visões próprias (duplicate, sem cópia dos bytes) dos frames compartilhados.
+        // Os frames de gathered[gatheredStart, gatheredEnd) ainda têm bytes a escrever.
+        private final ByteBuffer[] gathered = new ByteBuffer[GATHER_FRAMES];
+        private int gatheredStart;
+        private int gatheredEnd;
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private boolean registered;
+        private boolean closed;
+
+        NioConnection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.address = channel.socket().getInetAddress();
+        }
+
+        /**
+         * Agenda a escrita na thread do loop dono da conexão, se ainda não houver uma agendada.
+         */
+        @Override
+        void onQueued() {
+            if (flushScheduled.compareAndSet(false, true)) loop.execute(this::flush);
+        }
+
+        @Override
+        void disconnect() {
+            loop.execute(this::close);
+        }
+
+        /**
+         * Lê os bytes disponíveis e processa cada linha completa.
+         */
+        void onReadable() {
+            try {
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                ChatServerTCP.metrics.bytesIn(n);
+                readBuffer.flip();
+                if (binary) {
+                    onFrameBytes();
+                    return;
+                }
+                while (readBuffer.hasRemaining() && !closed) {
+                    byte b = readBuffer.get();
+                    if (b == '\n') {
+                        int len = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                        lineLength = 0;
+                        onLine(new String(line, 0, len, CHARSET));
+                        // O registro pode ter trocado o protocolo: o resto são frames
+                        if (binary) {
+                            onFrameBytes();
+                            return;
+                        }
+                    } else {
+                        appendToLine(b);
+                    }
+                }
+                readBuffer.clear();
+            } catch (Exception e) {
+                ChatLog.error("Erro na conexão de {}", username, e);
+                close();
+            }
+        }
+
+        /**
+         * Acumula os bytes lidos e processa cada frame binário completo.
+         * Reaproveita o buffer de linha como buffer de montagem dos frames.
+         */
+        private void onFrameBytes() throws Exception {
+            int n = readBuffer.remaining();
+            if (lineLength + n > line.length) {
+                if (lineLength + n > MAX_FRAME_LENGTH) throw new IOException("Frame excede " + MAX_FRAME_LENGTH + " bytes");
+                line = Arrays.copyOf(line, Math.min(Math.max(line.length * 2, lineLength + n), MAX_FRAME_LENGTH));
+            }
+            readBuffer.get(line, lineLength, n);
+            readBuffer.clear();
+            lineLength += n;
+
+            int offset = 0;
+            WireFrame frame;
+            while (!closed && (frame = WireFrame.parse(line, offset, lineLength - offset)) != null) {
+                offset += frame.size();
+                if (!ChatServerTCP.handleFrame(this, frame)) close();
+            }
+            System.arraycopy(line, offset, line, 0, lineLength - offset);
+            lineLength -= offset;
+        }
+
+        private void appendToLine(byte b) throws IOException {
+            if (lineLength == line.length) {
+                if (line.length >= MAX_LINE_LENGTH) throw new IOException("Linha excede " + MAX_LINE_LENGTH + " bytes");
+                line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+            }
+            line[lineLength++] = b;
+        }
+
+        private void onLine(String msg) throws Exception {
+            if (!registered) {
+                registered = true;
+                ChatServerTCP.register(this, msg);
+                return;
+            }
+            if (!ChatServerTCP.handleMessage(this, msg)) close();
+        }
+
+        /**
+         * Escreve o máximo possível da fila de saída. Tudo o que foi enfileirado
+         * desde a última escrita sai em lotes, com uma única escrita com gathering
+         * (writev) por lote. Se o socket não aceitar tudo, passa a aguardar
+         * OP_WRITE em vez de bloquear o loop.
+         */
+        void flush() {
+            if (closed) return;
+            try {
+                while (true) {
+                    if (gatheredStart == gatheredEnd) {
+                        gatheredStart = gatheredEnd = 0;
+                        int bytes = 0;
+                        ByteBuffer frame;
+                        while (gatheredEnd < GATHER_FRAMES && bytes < COALESCE_BYTES && (frame = outbound.poll()) != null) {
+                            gathered[gatheredEnd++] = frame.duplicate();
+                            bytes += frame.remaining();
+                        }
+                        if (gatheredEnd == 0) break;
+                    }
+                    ChatServerTCP.metrics.bytesOut(channel.write(gathered, gatheredStart, gatheredEnd - gatheredStart));
+                    while (gatheredStart < gatheredEnd && !gathered[gatheredStart].hasRemaining()) {
+                        gathered[gatheredStart++] = null;
+                    }
+                    if (gatheredStart < gatheredEnd) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                flushScheduled.set(false);
+                // Uma mensagem pode ter chegado entre o último poll e o set(false).
+                if (!outbound.isEmpty()) onQueued();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Fecha o canal e remove o usuário do registro. Deve ser chamado na thread do loop.
+         */
+        void close() {
+            if (closed) return;
+            closed = true;
+            outbound.close();
+            try {
+                if (key != null) key.cancel();
+                channel.close();
+                ChatServerTCP.unregister(this);
+            } catch (IOException e) {
+                ChatLog.error("Erro ao fechar a conexão de {}", username, e);
+            }
+        }
+    }
+}
@@ -1,133 +1,839 @@
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Servidor de chat UDP que gerencia a comunicação baseada em pacotes.
  * Armazena endereços e chaves públicas de clientes para roteamento
  * de mensagens e lida com mensagens de texto e criptografadas.
+ * Clientes que anunciam {@code BIN} no registro trocam mensagens de chat
+ * como {@link WireFrame}; os avisos do servidor continuam em texto, e o
+ * servidor converte entre os dois formatos quando necessário.
+ *
+ * <p>Sessões ociosas expiram: todo datagrama de um cliente registrado atualiza o
+ * seu "visto por último", e uma {@link TimingWheel} confere as sessões quando o
+ * prazo vence, sem varrer o mapa de clientes. Clientes que anunciam {@code HB} no
+ * registro mandam {@code PING:} periodicamente e expiram após
+ * {@code -Dchat.udp.idleTimeoutMs} (padrão 45000) sem tráfego; os demais, após
+ * {@code -Dchat.udp.legacyIdleTimeoutMs} (padrão 30 minutos). A expiração tem o
+ * mesmo efeito de um {@code SAIR:}, inclusive o aviso "saiu do chat". Um PING de um
+ * endereço desconhecido recebe {@code EXPIRADO:}, para que o cliente se registre de novo.
+ *
+ * <p>As mensagens de chat vão só para a sala do remetente ({@link RoomIndex}):
+ * {@code ENTRAR_SALA:sala}, {@code SAIR_SALA:} e {@code LISTAR_SALAS:} valem para o
+ * usuário registrado no endereço de origem.
+ *
+ * <p>Mensagens {@code PRIVADO} (inclusive as seguras) para usuários offline ficam no
+ * {@link OfflineStore} e são entregues quando o destinatário se registra de novo; a
+ * chave de quem saiu continua no diretório, para que os outros possam cifrar para ele.
+ *
+ * <p>No {@link ChatServerDual}, os usuários do servidor TCP do mesmo processo entram no
+ * diretório de chaves e ganham ids binários como os daqui, e as mensagens para eles
+ * seguem pelo {@link ChatTransport} do TCP.
+ *
+ * <p>{@code GRUPO:...} ({@link GroupSeal}) é uma mensagem segura de grupo do usuário da
+ * sessão: cada destinatário recebe o mesmo texto cifrado e só a sua chave protegida.
  *
  * @author [Seu Nome]
  * @version 1.0
  */
 public class ChatServerUDP {
     private static final int PORT = 50001;
-    private static final int BUFFER_SIZE = 8192;
+    static final int BUFFER_SIZE = 8192;
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("chat.udp.idleTimeoutMs", 45_000);
+    private static final long LEGACY_IDLE_TIMEOUT_MS = Long.getLong("chat.udp.legacyIdleTimeoutMs", 30 * 60_000);
+    private static final long WHEEL_TICK_MS = Long.getLong("chat.udp.wheelTickMs", 1000);
 
     // username -> endereço
     private static Map<String, InetSocketAddress> clients = new ConcurrentHashMap<>();
-    // username -> chave pública
-    private static Map<String, PublicKey> clientPublicKeys = new ConcurrentHashMap<>();
+    // username -> chave pública (versionado, com as chaves já codificadas)
+    private static KeyDirectory clientPublicKeys = new KeyDirectory();
+    // usuários que sincronizam o diretório de chaves de forma incremental
+    private static Set<String> syncClients = ConcurrentHashMap.newKeySet();
+    // usuários que usam o protocolo binário
+    private static Set<String> binaryClients = ConcurrentHashMap.newKeySet();
+    // usuários cujo cliente sabe ler chaves EC25519 (ver KeyDirectory.EC_CAPABILITY)
+    private static Set<String> ecClients = ConcurrentHashMap.newKeySet();
+    // usuários cujo cliente abre mensagens do modo de sessão (ver KeyDirectory.AES_CAPABILITY)
+    private static Set<String> aesClients = ConcurrentHashMap.newKeySet();
+    // ids atribuídos no registro (usados nos frames binários)
+    private static Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static Map<Integer, String> names = new ConcurrentHashMap<>();
+    private static AtomicInteger nextId = new AtomicInteger(1);
+    // entrega confiável para os clientes que a usam (ver ReliableUdp)
+    private static ReliableUdp reliable = new ReliableUdp();
+    // fragmentação de mensagens grandes, só para os clientes que a anunciaram (ver UdpFragmenter)
+    private static UdpFragmenter fragments = new UdpFragmenter();
+    private static Set<SocketAddress> fragmentPeers = ConcurrentHashMap.newKeySet();
+    // Sala de cada usuário e membros de cada sala
+    private static final RoomIndex<String> rooms = new RoomIndex<>();
+    // endereço -> sessão, para atualizar o "visto por último" a cada datagrama
+    private static Map<SocketAddress, Session> sessions = new ConcurrentHashMap<>();
+    // Prazos de expiração das sessões (tick de WHEEL_TICK_MS, uma volta cobre o prazo padrão)
+    private static final TimingWheel<Session> expiry = new TimingWheel<>(WHEEL_TICK_MS,
+            (int) (IDLE_TIMEOUT_MS / Math.max(1, WHEEL_TICK_MS)) + 1, now());
+    // Mensagens para usuários offline (null se desligado)
+    private static OfflineStore offline;
+    // Este servidor no ChatServerDual (null se ele roda sozinho)
+    private static ChatTransport transport;
+    // Socket das respostas e dos envios pedidos pelo outro transporte
+    private static volatile DatagramSocket replySocket;
+    // Buffer direto por thread para os envios em lote (ver sendBatch)
+    private static final ThreadLocal<ByteBuffer> batchBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(64 * 1024));
+    static final ChatMetrics metrics = new ChatMetrics("udp", () -> clients.size(),
+            "fila (datagramas nos workers + sem confirmacao)",
+            () -> ChatServerUDPMulti.queuedPackets() + reliable.unacknowledged())
+            .counter("datagramas descartados (fila do worker cheia)", () -> ChatServerUDPMulti.droppedPackets.get())
+            .counter("remontagens expiradas (fragmento faltando)", UdpFragmenter.totalExpired::get)
+            .counter("remontagens removidas (limite de memoria)", UdpFragmenter.totalEvicted::get)
+            .counter("fragmentos rejeitados (cabecalho invalido)", UdpFragmenter.totalRejected::get);
+
+    /**
+     * A sessão de um cliente registrado: quem é, de onde fala e quando foi visto por último.
+     */
+    private static class Session {
+        final String username;
+        final InetSocketAddress address;
+        final long timeoutMs;
+        volatile long lastSeen;
+        // Prazo na roda de expiração, reagendado no lugar a cada conferência
+        volatile TimingWheel.Entry<Session> timer;
+
+        Session(String username, InetSocketAddress address, long timeoutMs) {
+            this.username = username;
+            this.address = address;
+            this.timeoutMs = timeoutMs;
+            this.lastSeen = now();
+        }
+    }
+
+    /**
+     * Trata um frame do protocolo binário.
+     */
+    interface FrameHandler {
+        /**
+         * @param socket O DatagramSocket do servidor.
+         * @param from O nome do remetente (já validado pelo endereço de origem).
+         * @param frame O frame recebido.
+         * @throws Exception Se ocorrer um erro ao processar o frame.
+         */
+        void handle(DatagramSocket socket, String from, WireFrame frame) throws Exception;
+    }
+
+    // Tabela de despacho do protocolo binário, indexada pelo opcode
+    private static final FrameHandler[] FRAME_HANDLERS = new FrameHandler[256];
+    static {
+        FRAME_HANDLERS[WireFrame.BROADCAST] = (socket, from, f) -> broadcastChat(socket, from, f.text());
+        FRAME_HANDLERS[WireFrame.PRIVATE] = (socket, from, f) -> privateMessage(socket, from, names.get(f.recipient), f.text());
+        FRAME_HANDLERS[WireFrame.SECURE] = (socket, from, f) -> deliverSecure(socket, from, names.get(f.recipient), null, f);
+        FRAME_HANDLERS[WireFrame.SECURE_SESSION] = FRAME_HANDLERS[WireFrame.SECURE];
+    }
 
     /**
      * Ponto de entrada principal do servidor UDP. Inicia o DatagramSocket
      * e entra em um loop infinito para receber e processar pacotes.
      *
-     * @param args Argumentos da linha de comando (não utilizados).
+     * @param args Argumentos da linha de comando: modo de execução opcional
+     *             ("single" ou "multi [receptores] [workers]").
      * @throws Exception Se ocorrer um erro durante a inicialização.
      */
     public static void main(String[] args) throws Exception {
-        DatagramSocket socket = new DatagramSocket(PORT);
-        System.out.println("Servidor UDP pronto na porta " + PORT);
+        metrics.registerMBean();
+        listen(args);
+    }
+
+    /**
+     * Liga este servidor ao {@link ChatServerDual}, antes de {@link #listen}.
+     *
+     * @param store O armazenamento offline compartilhado pelos dois transportes (null se desligado).
+     * @return Este servidor, como transporte.
+     */
+    static ChatTransport bridge(OfflineStore store) {
+        offline = store;
+        transport = new Bridge();
+        return transport;
+    }
+
+    /**
+     * Recebe datagramas no modo escolhido (ver {@link #main}). No modo {@code single}
+     * não retorna; no {@code multi}, retorna depois de iniciar as threads.
+     *
+     * @param args "single" ou "multi [receptores] [workers]".
+     * @throws Exception Se ocorrer um erro durante a inicialização.
+     */
+    static void listen(String[] args) throws Exception {
+        // Modo: "single" (padrão, uma thread) ou "multi [receptores] [workers]"
+        String mode = args.length > 0 ? args[0] : "single";
+        if (mode.equalsIgnoreCase("multi")) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            int receivers = args.length > 1 ? Integer.parseInt(args[1]) : cores;
+            int workers = args.length > 2 ? Integer.parseInt(args[2]) : cores;
+            ChatServerUDPMulti.start(PORT, receivers, workers);
+            return;
+        }
+
+        // Aberto como canal para que os broadcasts possam enviar direto de um buffer nativo
+        DatagramSocket socket = DatagramChannel.open().bind(new InetSocketAddress(PORT)).socket();
+        ChatLog.info("Servidor UDP pronto na porta {}", PORT);
+        startServices(socket);
 
         byte[] buffer = new byte[BUFFER_SIZE];
 
         while (true) {
             DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
             socket.receive(packet);
+            handlePacket(socket, packet, ChatMetrics.start());
+        }
+    }
 
-            String msg = new String(packet.getData(), 0, packet.getLength());
-            InetAddress addr = packet.getAddress();
-            int port = packet.getPort();
+    /**
+     * Processa um datagrama recebido: registra, roteia ou responde.
+     * Pode ser chamado por várias threads ao mesmo tempo (ver {@link ChatServerUDPMulti}),
+     * desde que os datagramas de um mesmo remetente sejam processados em ordem.
+     *
+     * @param socket O socket usado para as respostas.
+     * @param packet O datagrama recebido.
+     * @param receivedAt Quando o datagrama foi recebido ({@link ChatMetrics#start()}).
+     * @throws Exception Se ocorrer um erro ao processar o datagrama.
+     */
+    static void handlePacket(DatagramSocket socket, DatagramPacket packet, long receivedAt) throws Exception {
+        metrics.bytesIn(packet.getLength());
+        // Qualquer datagrama (inclusive ACKs e fragmentos) mostra que o cliente está vivo
+        Session session = sessions.get(packet.getSocketAddress());
+        if (session != null) session.lastSeen = now();
+        // ACKs e duplicatas da camada confiável param aqui
+        packet = reliable.unwrap(socket, packet);
+        if (packet == null) return;
+        // Fragmentos ficam guardados até a mensagem estar completa
+        packet = fragments.reassemble(packet);
+        if (packet == null) return;
 
-            if (msg.startsWith("REGISTRO:")) {
-                String[] parts = msg.split(":", 3);
-                String username = parts[1];
-                PublicKey pk = RSAUtils.stringToPublicKey(parts[2]);
+        if (WireFrame.isFrame(packet.getData(), packet.getLength())) {
+            handleFrame(socket, packet, receivedAt);
+            return;
+        }
 
-                clients.put(username, new InetSocketAddress(addr, port));
-                clientPublicKeys.put(username, pk);
+        String msg = new String(packet.getData(), 0, packet.getLength());
+        InetAddress addr = packet.getAddress();
+        int port = packet.getPort();
 
-                // Envia todas as chaves já registradas para o novo usuário
-                StringBuilder sb = new StringBuilder("LISTA_KEYS:\n");
-                for (Map.Entry<String, PublicKey> entry : clientPublicKeys.entrySet()) {
-                    sb.append(entry.getKey()).append(":")
-                    .append(RSAUtils.keyToString(entry.getValue())).append("\n");
+        if (msg.startsWith("REGISTRO:")) {
+            // REGISTRO:usuario:chave[:SYNC=versao,BIN,FRAG,HB,EC,AES]
+            String[] parts = msg.split(":", 4);
+            String username = parts[1];
+            PublicKey pk = RSAUtils.stringToPublicKey(parts[2]);
+            long since = -1;
+            boolean binary = false;
+            boolean fragment = false;
+            boolean heartbeat = false;
+            boolean ec = false;
+            boolean aes = false;
+            if (parts.length > 3) {
+                for (String cap : parts[3].trim().split(",")) {
+                    if (cap.startsWith("SYNC=")) since = syncVersion(cap.substring(5));
+                    else if (cap.equals("BIN")) binary = true;
+                    else if (cap.equals("FRAG")) fragment = true;
+                    else if (cap.equals("HB")) heartbeat = true;
+                    else if (cap.equals(KeyDirectory.EC_CAPABILITY)) ec = true;
+                    else if (cap.equals(KeyDirectory.AES_CAPABILITY)) aes = true;
                 }
-                send(socket, sb.toString(), addr, port);
+            }
 
-                // Notifica todos os outros sobre a chave do novo usuário
-                String newKeyMsg = "NEWKEY:" + username + ":" + RSAUtils.keyToString(pk);
-                broadcast(socket, newKeyMsg, username);
+            InetSocketAddress clientAddr = new InetSocketAddress(addr, port);
+            if (fragment) fragmentPeers.add(clientAddr);
+            else fragmentPeers.remove(clientAddr);
+            InetSocketAddress previous = clients.put(username, clientAddr);
+            if (previous != null && !previous.equals(clientAddr)) cancelExpiry(sessions.remove(previous));
+            Session newSession = new Session(username, clientAddr, heartbeat ? IDLE_TIMEOUT_MS : LEGACY_IDLE_TIMEOUT_MS);
+            newSession.timer = expiry.schedule(newSession, newSession.lastSeen + newSession.timeoutMs);
+            cancelExpiry(sessions.put(clientAddr, newSession));
+            long version = clientPublicKeys.put(username, pk, aes);
+            if (ec) ecClients.add(username);
+            else ecClients.remove(username);
+            if (aes) aesClients.add(username);
+            else aesClients.remove(username);
+            // Um novo registro do mesmo usuário (por exemplo, após expirar) mantém a sala
+            if (rooms.roomOf(username) == null) rooms.join(username, RoomIndex.DEFAULT_ROOM);
+            int id = ids.computeIfAbsent(username, u -> nextId.getAndIncrement());
+            names.put(id, username);
 
-                broadcast(socket, username + " entrou no chat.", null);
-                continue;
+            if (binary) {
+                binaryClients.add(username);
+                send(socket, "BIN_OK:" + id, addr, port);
+                for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+                    sendFrame(socket, WireFrame.encode(WireFrame.USER, entry.getValue(), 0, entry.getKey()), clients.get(username));
+                }
+            } else {
+                binaryClients.remove(username);
             }
+            announceUser(socket, username, username);
 
+            if (since >= 0) {
+                // Envia só o que mudou desde a versão que o cliente conhece
+                syncClients.add(username);
+                for (String page : clientPublicKeys.delta(since, BUFFER_SIZE, ec, aes)) send(socket, page, addr, port);
+            } else {
+                syncClients.remove(username);
+                send(socket, clientPublicKeys.legacyList(ec, aes), addr, port);
+            }
+
+            // Notifica todos os outros sobre a chave do novo usuário
+            announceKeyChange(socket, username, version);
 
-            if (msg.startsWith("SAIR:")) {
-                String username = msg.substring(5).trim();
-                clients.remove(username);
-                clientPublicKeys.remove(username);
+            broadcast(socket, username + " entrou no chat.", null);
+            ChatLog.info("{} entrou no chat.", username);
+            if (transport != null) ChatServerDual.joined(transport, username, clientPublicKeys.publishedKey(username));
+            if (offline != null) offline.replay(username);
+            metrics.record(ChatMetrics.Type.REGISTRO, receivedAt);
+            return;
+        }
 
-                broadcast(socket, username + " saiu do chat.", null);
-                continue;
+        if (msg.startsWith("SYNC_KEYS:")) {
+            long since = syncVersion(msg.substring(10));
+            boolean ec = session != null && ecClients.contains(session.username);
+            boolean aes = session != null && aesClients.contains(session.username);
+            for (String page : clientPublicKeys.delta(since, BUFFER_SIZE, ec, aes)) send(socket, page, addr, port);
+            return;
+        }
+
+        if (msg.startsWith("PING:")) {
+            // O "visto por último" já foi atualizado; só responde a quem o servidor não conhece mais
+            if (session == null) send(socket, "EXPIRADO:", addr, port);
+            return;
+        }
+
+        if (msg.startsWith("ENTRAR_SALA:") || msg.startsWith("SAIR_SALA:")) {
+            if (session == null) return;
+            String room = msg.startsWith("SAIR_SALA:") ? RoomIndex.DEFAULT_ROOM : msg.substring(12).trim();
+            joinRoom(socket, session.username, room, addr, port);
+            return;
+        }
+
+        if (msg.startsWith("LISTAR_SALAS:")) {
+            send(socket, rooms.listing(), addr, port);
+            return;
+        }
+
+        if (msg.startsWith("SAIR:")) {
+            String username = msg.substring(5).trim();
+            // Um SAIR de quem já expirou (ou nunca entrou) não gera outro aviso
+            if (!clients.containsKey(username)) return;
+            announceUser(socket, username, "");
+            leave(socket, username, clients.remove(username));
+            ChatLog.info("{} saiu do chat.", username);
+            return;
+        }
+
+        if (msg.startsWith("STATS:")) {
+            if (ChatMetrics.adminAllowed(addr)) send(socket, metrics.getSnapshot(), addr, port);
+            return;
+        }
+
+        if (msg.startsWith("LISTAR_USUARIOS:")) {
+            StringBuilder sb = new StringBuilder("Usuarios registrados:\n");
+            for (String u : clients.keySet()) sb.append("- ").append(u).append("\n");
+            if (transport != null) {
+                for (String u : ChatServerDual.usersElsewhere(transport)) sb.append("- ").append(u).append(" (tcp)\n");
             }
+            send(socket, sb.toString(), addr, port);
+            return;
+        }
 
-            if (msg.startsWith("LISTAR_USUARIOS:")) {
-                StringBuilder sb = new StringBuilder("Usuarios registrados:\n");
-                for (String u : clients.keySet()) sb.append("- ").append(u).append("\n");
-                send(socket, sb.toString(), addr, port);
-                continue;
+        if (msg.startsWith("REQKEY:")) {
+            String target = msg.substring(7).trim();
+            String targetKey = clientPublicKeys.publishedKey(target);
+            boolean ec = session != null && ecClients.contains(session.username);
+            boolean aes = session != null && aesClients.contains(session.username);
+            if (targetKey != null && KeyDirectory.readableBy(targetKey, ec)) {
+                send(socket, "PUBKEYRESP:" + target + ":" + KeyDirectory.forReader(targetKey, ec, aes), addr, port);
+            } else if (targetKey != null) {
+                send(socket, "ERRO:" + target + " usa uma chave EC25519, que este cliente nao suporta", addr, port);
+            } else {
+                send(socket, "ERRO:Nao foi possivel obter a chave de " + target, addr, port);
             }
+            metrics.record(ChatMetrics.Type.REQKEY, receivedAt);
+            return;
+        }
 
-            if (msg.startsWith("REQKEY:")) {
-                String target = msg.substring(7).trim();
-                PublicKey targetKey = clientPublicKeys.get(target);
-                if (targetKey != null) {
-                    send(socket, "PUBKEYRESP:" + target + ":" + RSAUtils.keyToString(targetKey), addr, port);
-                } else {
-                    send(socket, "ERRO:Nao foi possivel obter a chave de " + target, addr, port);
+        if (msg.startsWith("BROADCAST:")) {
+            String[] parts = msg.split(":", 3);
+            broadcastChat(socket, parts[1], parts[2]);
+            metrics.record(ChatMetrics.Type.BROADCAST, receivedAt);
+            return;
+        }
+
+        if (msg.startsWith(GroupSeal.PREFIX)) {
+            if (session == null) return;
+            groupMessage(socket, session.username, msg, addr, port);
+            metrics.record(ChatMetrics.Type.ENCRYPTED, receivedAt);
+            return;
+        }
+
+        if (msg.startsWith("PRIVADO:")) {
+            String[] parts = msg.split(":", 6);
+            String from = parts[1];
+            String to = parts[2];
+            boolean secure = parts[3].equalsIgnoreCase("SECURE");
+
+            if (secure) {
+                deliverSecure(socket, from, to, msg, null);
+            } else {
+                privateMessage(socket, from, to, parts[3]);
+            }
+            metrics.record(secure ? ChatMetrics.Type.ENCRYPTED : ChatMetrics.Type.PRIVADO, receivedAt);
+        }
+    }
+
+    /**
+     * Remove um usuário (já retirado de {@code clients}) e avisa os demais.
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param username O usuário que saiu.
+     * @param clientAddr O endereço que ele usava, ou null se não estava registrado.
+     * @throws Exception Se ocorrer um erro de I/O.
+     */
+    private static void leave(DatagramSocket socket, String username, InetSocketAddress clientAddr) throws Exception {
+        if (clientAddr != null) {
+            fragmentPeers.remove(clientAddr);
+            cancelExpiry(sessions.remove(clientAddr));
+        }
+        rooms.remove(username);
+        syncClients.remove(username);
+        binaryClients.remove(username);
+        ecClients.remove(username);
+        aesClients.remove(username);
+        Integer id = ids.remove(username);
+        if (id != null) names.remove(id);
+        long version = clientPublicKeys.remove(username);
+        if (version >= 0) announceKeyChange(socket, username, version);
+        if (transport != null) ChatServerDual.left(transport, username);
+
+        broadcast(socket, username + " saiu do chat.", null);
+    }
+
+    /**
+     * Inicia o que roda ao lado da recepção: a expiração das sessões e o armazenamento
+     * de mensagens offline ({@link OfflineStore}), que no {@link ChatServerDual} já vem aberto.
+     *
+     * @param socket O socket usado para avisar as saídas e entregar as mensagens guardadas.
+     */
+    static void startServices(DatagramSocket socket) {
+        replySocket = socket;
+        startExpiry(socket);
+        if (transport == null) offline = OfflineStore.open("udp", message -> deliverStored(socket, message));
+    }
+
+    /**
+     * Inicia a thread que avança a roda de expiração a cada tick.
+     *
+     * @param socket O socket usado para avisar a saída dos usuários expirados.
+     */
+    private static void startExpiry(DatagramSocket socket) {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(expiry.tickMs());
+                    expiry.advance(now(), session -> expire(socket, session));
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    ChatLog.error("Erro ao expirar sessoes", e);
                 }
-                continue;
             }
+        }, "chat-udp-expiry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Confere uma sessão cujo prazo venceu: se houve tráfego nesse meio tempo, ela é
+     * reagendada a partir do último datagrama; senão, o usuário sai do chat.
+     */
+    private static void expire(DatagramSocket socket, Session session) {
+        // Sessão já encerrada (SAIR ou novo registro de outro endereço)
+        if (sessions.get(session.address) != session) return;
+        long deadline = session.lastSeen + session.timeoutMs;
+        if (deadline > now()) {
+            expiry.reschedule(session.timer, deadline);
+            return;
+        }
+        if (!sessions.remove(session.address, session)) return;
+        try {
+            if (!clients.remove(session.username, session.address)) return;
+            announceUser(socket, session.username, "");
+            leave(socket, session.username, session.address);
+            ChatLog.info("{} saiu do chat (sem resposta ha {} ms).", session.username, now() - session.lastSeen);
+        } catch (Exception e) {
+            ChatLog.error("Erro ao expirar a sessao de {}", session.username, e);
+        }
+    }
+
+    /**
+     * Tira da roda de expiração uma sessão encerrada (SAIR ou novo registro).
+     *
+     * @param session A sessão encerrada, ou null.
+     */
+    private static void cancelExpiry(Session session) {
+        if (session != null && session.timer != null) expiry.cancel(session.timer);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Processa um datagrama binário. O id de remetente do frame só é aceito se
+     * corresponder ao endereço de onde o datagrama veio.
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param packet O datagrama recebido.
+     * @param receivedAt Quando o datagrama foi recebido.
+     * @throws Exception Se ocorrer um erro ao processar o frame.
+     */
+    private static void handleFrame(DatagramSocket socket, DatagramPacket packet, long receivedAt) throws Exception {
+        WireFrame frame = WireFrame.parse(packet.getData(), 0, packet.getLength());
+        if (frame == null) return;
+        String from = names.get(frame.sender);
+        if (from == null || !packet.getSocketAddress().equals(clients.get(from))) return;
+
+        FrameHandler handler = FRAME_HANDLERS[frame.opcode & 0xFF];
+        if (handler != null) handler.handle(socket, from, frame);
+        metrics.record(ChatMetrics.ofOpcode(frame.opcode), receivedAt);
+    }
+
+    /**
+     * Envia uma mensagem de chat para a sala do remetente, exceto ele, codificando-a
+     * uma vez em cada formato. Fora da sala padrão, os clientes binários recebem a
+     * linha de texto, como os avisos do servidor.
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param from O nome do remetente.
+     * @param text O texto da mensagem.
+     * @throws Exception Se ocorrer um erro de I/O.
+     */
+    private static void broadcastChat(DatagramSocket socket, String from, String text) throws Exception {
+        String room = rooms.roomOf(from);
+        if (room == null) room = RoomIndex.DEFAULT_ROOM;
+        fanOutChat(socket, room, from, text);
+        if (transport != null) ChatServerDual.broadcast(transport, room, from, text);
+        ChatLog.info("{}{}: {}", RoomIndex.prefix(room), from, ChatLog.body(text));
+    }
+
+    /**
+     * Entrega uma mensagem de chat aos membros de uma sala, exceto o remetente.
+     */
+    private static void fanOutChat(DatagramSocket socket, String room, String from, String text) throws Exception {
+        boolean framed = room.equals(RoomIndex.DEFAULT_ROOM) && !binaryClients.isEmpty();
+        byte[] legacy = RoomIndex.chatLine(room, from, text).getBytes();
+
+        Set<String> members = rooms.members(room);
+        List<InetSocketAddress> legacyDests = new ArrayList<>(members.size());
+        List<InetSocketAddress> binaryDests = new ArrayList<>();
+        for (String user : members) {
+            if (user.equals(from)) continue;
+            InetSocketAddress dest = clients.get(user);
+            if (dest == null) continue;
+            (framed && binaryClients.contains(user) ? binaryDests : legacyDests).add(dest);
+        }
+        sendBatch(socket, legacy, legacy.length, legacyDests);
+        if (!binaryDests.isEmpty()) {
+            Integer id = ids.get(from);
+            ByteBuffer binary = WireFrame.encode(WireFrame.BROADCAST, id != null ? id : 0, 0, text);
+            sendBatch(socket, binary.array(), binary.limit(), binaryDests);
+        }
+    }
+
+    /**
+     * Troca a sala de um usuário e avisa os membros da sala que ele deixou e da nova.
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param username O usuário.
+     * @param room A sala de destino.
+     * @param addr O endereço do usuário, para a resposta.
+     * @param port A porta do usuário.
+     * @throws Exception Se ocorrer um erro de I/O.
+     */
+    private static void joinRoom(DatagramSocket socket, String username, String room, InetAddress addr, int port) throws Exception {
+        if (!RoomIndex.isValidName(room)) {
+            send(socket, "ERRO:Nome de sala invalido: " + room, addr, port);
+            return;
+        }
+        String previous = rooms.join(username, room);
+        if (room.equals(previous)) {
+            send(socket, "Voce ja esta na sala " + room + ".", addr, port);
+            return;
+        }
+        if (previous != null) roomNotice(socket, previous, username + " saiu da sala " + previous + ".", username);
+        roomNotice(socket, room, username + " entrou na sala " + room + ".", username);
+        send(socket, "Voce entrou na sala " + room + ".", addr, port);
+    }
+
+    /**
+     * Envia um aviso do servidor (texto) aos membros de uma sala, exceto {@code exclude}.
+     */
+    private static void roomNotice(DatagramSocket socket, String room, String message, String exclude) throws Exception {
+        if (transport != null) ChatServerDual.broadcast(transport, room, "", message);
+        roomNoticeLocal(socket, room, message, exclude);
+    }
+
+    private static void roomNoticeLocal(DatagramSocket socket, String room, String message, String exclude) throws Exception {
+        byte[] data = message.getBytes();
+        List<InetSocketAddress> dests = new ArrayList<>();
+        for (String user : rooms.members(room)) {
+            InetSocketAddress dest = user.equals(exclude) ? null : clients.get(user);
+            if (dest != null) dests.add(dest);
+        }
+        sendBatch(socket, data, data.length, dests);
+    }
+
+    /**
+     * Envia uma mensagem privada em texto simples no formato do destinatário.
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param from O nome do remetente.
+     * @param to O nome do destinatário.
+     * @param text O texto da mensagem.
+     * @throws Exception Se ocorrer um erro de I/O.
+     */
+    private static void privateMessage(DatagramSocket socket, String from, String to, String text) throws Exception {
+        InetSocketAddress destAddr = to != null ? clients.get(to) : null;
+        if (destAddr == null) {
+            routeOrStore(socket, from, to, new WireFrame(WireFrame.PRIVATE, 0, 0, new byte[0], text.getBytes(StandardCharsets.UTF_8)));
+            return;
+        }
+        privateMessage(socket, from, ids.getOrDefault(from, 0), to, destAddr, text);
+    }
+
+    private static void privateMessage(DatagramSocket socket, String from, int fromId, String to,
+                                       InetSocketAddress destAddr, String text) throws Exception {
+        if (binaryClients.contains(to)) {
+            sendFrame(socket, WireFrame.encode(WireFrame.PRIVATE, fromId, ids.get(to), text), destAddr);
+        } else {
+            send(socket, "[Privado] " + from + ": " + text, destAddr.getAddress(), destAddr.getPort());
+        }
+        ChatLog.info("[Privado] {} para {}: {}", from, to, ChatLog.body(text));
+    }
+
+    /**
+     * Encaminha uma mensagem cifrada, convertendo entre o formato de texto
+     * ({@code PRIVADO:de:para:SECURE:assinatura:cifrado} ou {@code ...:SECURE:AES:...})
+     * e os frames SECURE/SECURE_SESSION. O servidor não lê o conteúdo.
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param from O nome do remetente.
+     * @param to O nome do destinatário.
+     * @param legacyMsg A mensagem de texto completa, se veio do protocolo antigo.
+     * @param frame O frame recebido, se veio do protocolo binário.
+     * @throws Exception Se ocorrer um erro de I/O.
+     */
+    private static void deliverSecure(DatagramSocket socket, String from, String to, String legacyMsg, WireFrame frame) throws Exception {
+        InetSocketAddress destAddr = to != null ? clients.get(to) : null;
+        if (destAddr == null) {
+            routeOrStore(socket, from, to, frame != null ? frame : secureFrame(legacyMsg));
+            return;
+        }
+        deliverSecure(socket, from, ids.getOrDefault(from, 0), to, destAddr, legacyMsg, frame);
+    }
+
+    private static void deliverSecure(DatagramSocket socket, String from, int fromId, String to,
+                                      InetSocketAddress destAddr, String legacyMsg, WireFrame frame) throws Exception {
+        if (binaryClients.contains(to)) {
+            if (frame == null) frame = secureFrame(legacyMsg);
+            sendFrame(socket, WireFrame.encode(frame.opcode, fromId, ids.get(to), frame.signature, frame.payload), destAddr);
+        } else {
+            if (legacyMsg == null) {
+                String secure = frame.opcode == WireFrame.SECURE_SESSION ? frame.text()
+                        : Base64.getEncoder().encodeToString(frame.signature) + ":" + Base64.getEncoder().encodeToString(frame.payload);
+                legacyMsg = "PRIVADO:" + from + ":" + to + ":SECURE:" + secure;
+            }
+            send(socket, legacyMsg, destAddr.getAddress(), destAddr.getPort());
+        }
+    }
 
-            if (msg.startsWith("BROADCAST:")) {
-                String[] parts = msg.split(":", 3);
-                String from = parts[1];
-                String text = "[Todos] " + from + ": " + parts[2];
-                broadcast(socket, text, from);
-                continue;
+    /**
+     * Repassa uma mensagem segura de grupo ({@link GroupSeal}): o texto cifrado é o
+     * mesmo para todos, e cada destinatário recebe só a sua chave protegida. Quem não
+     * está registrado aqui recebe a linha pronta (frame TEXT) por {@link #routeOrStore}.
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param from O remetente, identificado pela sessão.
+     * @param msg A linha {@code GRUPO:...} recebida.
+     * @param addr O endereço do remetente.
+     * @param port A porta do remetente.
+     * @throws Exception Se ocorrer um erro de I/O.
+     */
+    private static void groupMessage(DatagramSocket socket, String from, String msg, InetAddress addr, int port) throws Exception {
+        GroupSeal.Fanout fanout = GroupSeal.fanout(from, msg);
+        if (fanout == null) {
+            send(socket, "ERRO:Mensagem de grupo invalida", addr, port);
+            return;
+        }
+        for (int i = 0; i < fanout.recipients.size(); i++) {
+            String to = fanout.recipients.get(i);
+            InetSocketAddress destAddr = clients.get(to);
+            if (destAddr != null) {
+                send(socket, fanout.line(i), destAddr.getAddress(), destAddr.getPort());
+            } else {
+                routeOrStore(socket, from, to, new WireFrame(WireFrame.TEXT, 0, 0, new byte[0],
+                        fanout.line(i).getBytes(StandardCharsets.UTF_8)));
             }
+        }
+        ChatLog.info("[Grupo] {} para {}", from, fanout.recipients);
+    }
+
+    /**
+     * Lê a versão do diretório de chaves informada por um cliente.
+     *
+     * @param text A versão em texto, de {@code SYNC=} ou {@code SYNC_KEYS:}.
+     * @return A versão, ou 0 (sincronização completa) se o texto não for um número válido.
+     */
+    private static long syncVersion(String text) {
+        try {
+            return Math.max(0, Long.parseLong(text.trim()));
+        } catch (NumberFormatException e) {
+            ChatLog.warn("Versao de chaves invalida: {}", text);
+            return 0;
+        }
+    }
 
-            if (msg.startsWith("PRIVADO:")) {
-                String[] parts = msg.split(":", 6);
-                String from = parts[1];
-                String to = parts[2];
-                boolean secure = parts[3].equalsIgnoreCase("SECURE");
+    /**
+     * @param legacyMsg {@code PRIVADO:de:para:SECURE:assinatura:cifrado} ou {@code ...:SECURE:AES:...}.
+     * @return O frame SECURE ou SECURE_SESSION equivalente.
+     */
+    private static WireFrame secureFrame(String legacyMsg) {
+        String[] parts = legacyMsg.split(":", 6);
+        return parts[4].equals("AES")
+                ? new WireFrame(WireFrame.SECURE_SESSION, 0, 0, new byte[0], (parts[4] + ":" + parts[5]).getBytes(StandardCharsets.UTF_8))
+                : new WireFrame(WireFrame.SECURE, 0, 0, Base64.getDecoder().decode(parts[4]), Base64.getDecoder().decode(parts[5]));
+    }
 
-                InetSocketAddress destAddr = clients.get(to);
-                if (destAddr == null) {
-                    System.out.println("Usuario " + to + " nao encontrado.");
-                    continue;
-                }
+    /**
+     * Manda uma mensagem privada para um usuário que não está registrado aqui: ao servidor
+     * TCP do {@link ChatServerDual}, se ele estiver lá, ou para o armazenamento offline,
+     * avisando o remetente. Sem armazenamento (ou sem nome de destino, como num frame
+     * com id desconhecido), a mensagem é descartada.
+     */
+    private static void routeOrStore(DatagramSocket socket, String from, String to, WireFrame frame) throws Exception {
+        if (to == null || to.isEmpty()) {
+            ChatLog.warn("Usuario {} nao encontrado.", to);
+            return;
+        }
+        OfflineStore.Message message = new OfflineStore.Message(from, to, clientPublicKeys.encoded(from), frame);
+        if (transport != null && ChatServerDual.deliver(transport, message)) return;
+        if (offline == null) {
+            ChatLog.warn("Usuario {} nao encontrado.", to);
+            return;
+        }
+        offline.store(message);
+        InetSocketAddress fromAddr = clients.get(from);
+        if (fromAddr != null) {
+            send(socket, to + " esta offline; a mensagem sera entregue no proximo registro.", fromAddr.getAddress(), fromAddr.getPort());
+        }
+    }
 
-                if (secure) {
-                    send(socket, msg, destAddr.getAddress(), destAddr.getPort());
-                    // System.out.println("[Privado-SECURE] " + from + " para " + to);
-                } else {
-                    String text = parts[3];
-                    send(socket, "[Privado] " + from + ": " + text,
-                         destAddr.getAddress(), destAddr.getPort());
-                    System.out.println("[Privado] " + from + " para " + to + ": " + text);
-                }
+    /**
+     * Entrega uma mensagem do {@link OfflineStore}, se o destinatário estiver registrado.
+     * Para um cliente binário, um remetente offline ganha um id novo, apresentado só a esse destinatário.
+     */
+    private static boolean deliverStored(DatagramSocket socket, OfflineStore.Message message) throws Exception {
+        InetSocketAddress destAddr = clients.get(message.to);
+        if (destAddr == null) return false;
+        WireFrame frame = message.frame;
+        if (!message.senderKey.isEmpty() && clientPublicKeys.encoded(message.from) == null
+                && KeyDirectory.readableBy(message.senderKey, ecClients.contains(message.to))) {
+            // Remetente offline: a chave dele só existe na mensagem guardada
+            send(socket, "NEWKEY:" + message.from + ":" + message.senderKey, destAddr.getAddress(), destAddr.getPort());
+        }
+        if (frame.opcode == WireFrame.TEXT) {
+            // Linha pronta, como uma mensagem de grupo (GroupSeal)
+            send(socket, frame.text(), destAddr.getAddress(), destAddr.getPort());
+            return true;
+        }
+        Integer fromId = ids.get(message.from);
+        if (fromId == null) {
+            // Remetente offline ou do outro transporte: o id fica registrado para que a resposta
+            // (um frame endereçado a ele) seja roteada pelo nome; é o mesmo id que ele recebe ao se registrar
+            fromId = ids.computeIfAbsent(message.from, u -> nextId.getAndIncrement());
+            names.put(fromId, message.from);
+            if (binaryClients.contains(message.to)) {
+                sendFrame(socket, WireFrame.encode(WireFrame.USER, fromId, 0, message.from), destAddr);
+            }
+        }
+        if (frame.opcode == WireFrame.PRIVATE) {
+            privateMessage(socket, message.from, fromId, message.to, destAddr, frame.text());
+        } else {
+            deliverSecure(socket, message.from, fromId, message.to, destAddr, null, frame);
+        }
+        return true;
+    }
+
+    /**
+     * Informa aos clientes binários o id de um usuário que entrou (ou saiu, se {@code name} for vazio).
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param username O usuário.
+     * @param name O nome a anunciar, ou "" se ele saiu.
+     * @throws Exception Se ocorrer um erro de I/O.
+     */
+    private static void announceUser(DatagramSocket socket, String username, String name) throws Exception {
+        Integer id = ids.get(username);
+        if (id == null || binaryClients.isEmpty()) return;
+        ByteBuffer frame = WireFrame.encode(WireFrame.USER, id, 0, name);
+        for (String user : binaryClients) {
+            if (!user.equals(username)) sendFrame(socket, frame, clients.get(user));
+        }
+    }
+
+    private static void sendFrame(DatagramSocket socket, ByteBuffer frame, InetSocketAddress dest) throws Exception {
+        if (dest == null) return;
+        transmit(socket, new DatagramPacket(frame.array(), frame.limit(), dest));
+    }
+
+    /**
+     * Anuncia uma alteração do diretório de chaves aos outros usuários: clientes
+     * sincronizados recebem a página incremental; os demais, NEWKEY se o usuário entrou
+     * (a saída não tem mensagem no formato antigo). Uma chave EC25519 não é anunciada a
+     * quem não anunciou {@link KeyDirectory#EC_CAPABILITY}, e o sufixo {@code :AES} só vai
+     * a quem anunciou {@link KeyDirectory#AES_CAPABILITY}.
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param username O usuário que entrou ou saiu.
+     * @param version A versão do diretório após a alteração.
+     * @throws Exception Se ocorrer um erro de I/O.
+     */
+    private static void announceKeyChange(DatagramSocket socket, String username, long version) throws Exception {
+        String key = clientPublicKeys.publishedKey(username);
+        // Uma mensagem por combinação de capacidades (EC, AES), montada na primeira vez que é usada
+        String[] pages = new String[4];
+        String[] legacy = new String[4];
+        for (Map.Entry<String, InetSocketAddress> entry : clients.entrySet()) {
+            if (entry.getKey().equals(username)) continue;
+            boolean ec = ecClients.contains(entry.getKey());
+            boolean aes = aesClients.contains(entry.getKey());
+            int caps = (ec ? 2 : 0) | (aes ? 1 : 0);
+            String msg;
+            if (syncClients.contains(entry.getKey())) {
+                if (pages[caps] == null) pages[caps] = clientPublicKeys.change(username, version, ec, aes);
+                msg = pages[caps];
+            } else {
+                String readable = key != null ? KeyDirectory.forReader(key, ec, aes) : null;
+                if (readable != null && legacy[caps] == null) legacy[caps] = "NEWKEY:" + username + ":" + readable;
+                msg = readable != null ? legacy[caps] : null;
             }
+            if (msg != null) send(socket, msg, entry.getValue().getAddress(), entry.getValue().getPort());
         }
     }
 
     /**
      * Envia uma mensagem de broadcast para todos os clientes registrados.
+     * A mensagem é codificada uma única vez e enviada em lote por {@link #sendBatch}.
+     * O registro no log fica a cargo de quem chama.
      *
      * @param socket O DatagramSocket do servidor.
      * @param msg A mensagem a ser enviada.
@@ -135,11 +841,20 @@ public class ChatServerUDP {
      * @throws Exception Se ocorrer um erro de I/O.
      */
     private static void broadcast(DatagramSocket socket, String msg, String from) throws Exception {
-        for (Map.Entry<String, InetSocketAddress> entry : clients.entrySet()) {
-            if (from != null && entry.getKey().equals(from)) continue;
-            send(socket, msg, entry.getValue().getAddress(), entry.getValue().getPort());
+        if (transport != null) ChatServerDual.broadcast(transport, "", "", msg);
+        broadcastLocal(socket, msg, from);
+    }
+
+    private static void broadcastLocal(DatagramSocket socket, String msg, String from) throws Exception {
+        byte[] data = msg.getBytes();
+        InetSocketAddress fromAddr = from != null ? clients.get(from) : null;
+
+        // values() não cria um Map.Entry por elemento, ao contrário de entrySet()
+        List<InetSocketAddress> dests = new ArrayList<>(clients.size());
+        for (InetSocketAddress dest : clients.values()) {
+            if (dest != fromAddr) dests.add(dest);
         }
-        System.out.println(msg);
+        sendBatch(socket, data, data.length, dests);
     }
 
     /**
@@ -154,6 +869,156 @@ public class ChatServerUDP {
     private static void send(DatagramSocket socket, String msg, InetAddress addr, int port) throws Exception {
         byte[] data = msg.getBytes();
         DatagramPacket packet = new DatagramPacket(data, data.length, addr, port);
-        socket.send(packet);
+        transmit(socket, packet);
+    }
+
+    /**
+     * Envia a mesma mensagem a vários destinatários. Os bytes são copiados uma única
+     * vez para um buffer direto e enviados dele a cada destinatário pelo canal do
+     * socket; um {@code DatagramSocket.send} copiaria o array para memória nativa a
+     * cada envio. Destinatários da camada confiável, ou que precisam receber a
+     * mensagem fragmentada, seguem por {@link #transmit}.
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param data Os bytes da mensagem.
+     * @param length O tamanho da mensagem.
+     * @param dests Os destinatários.
+     * @throws Exception Se ocorrer um erro de I/O.
+     */
+    private static void sendBatch(DatagramSocket socket, byte[] data, int length, List<InetSocketAddress> dests) throws Exception {
+        if (dests.isEmpty()) return;
+        DatagramChannel channel = socket.getChannel();
+        ByteBuffer buffer = null;
+        if (channel != null && length <= batchBuffer.get().capacity()) {
+            buffer = batchBuffer.get();
+            buffer.clear();
+            buffer.put(data, 0, length).flip();
+        }
+        DatagramPacket packet = null;
+        for (InetSocketAddress dest : dests) {
+            boolean direct = buffer != null && !reliable.isReliablePeer(dest)
+                    && !(UdpFragmenter.needsSplit(length) && fragmentPeers.contains(dest));
+            if (direct) {
+                metrics.bytesOut(channel.send(buffer, dest));
+                buffer.rewind();
+            } else {
+                if (packet == null) packet = new DatagramPacket(data, length);
+                packet.setSocketAddress(dest);
+                transmit(socket, packet, dest);
+            }
+        }
+    }
+
+    /**
+     * Envia uma mensagem, dividindo-a em fragmentos se ela for grande e o destinatário
+     * souber remontá-la. Clientes sem fragmentação recebem a mensagem inteira, como antes.
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param packet O datagrama, já com o endereço de destino.
+     * @throws Exception Se ocorrer um erro de I/O.
+     */
+    private static void transmit(DatagramSocket socket, DatagramPacket packet) throws Exception {
+        transmit(socket, packet, packet.getSocketAddress());
+    }
+
+    /**
+     * Como {@link #transmit(DatagramSocket, DatagramPacket)}, com o destino já conhecido
+     * ({@code DatagramPacket.getSocketAddress()} cria um endereço novo a cada chamada).
+     */
+    private static void transmit(DatagramSocket socket, DatagramPacket packet, SocketAddress dest) throws Exception {
+        if (UdpFragmenter.needsSplit(packet.getLength()) && fragmentPeers.contains(dest)) {
+            for (byte[] fragment : fragments.split(packet.getData(), packet.getOffset(), packet.getLength())) {
+                sendDatagram(socket, new DatagramPacket(fragment, fragment.length, dest), dest);
+            }
+        } else {
+            sendDatagram(socket, packet, dest);
+        }
+    }
+
+    /**
+     * Envia um datagrama pela camada confiável, se o destinatário a usa, ou diretamente.
+     *
+     * @param socket O DatagramSocket do servidor.
+     * @param packet O datagrama, já com o endereço de destino.
+     * @param dest O endereço de destino.
+     * @throws Exception Se ocorrer um erro de I/O.
+     */
+    private static void sendDatagram(DatagramSocket socket, DatagramPacket packet, SocketAddress dest) throws Exception {
+        if (reliable.isReliablePeer(dest)) {
+            reliable.send(socket, packet.getData(), packet.getOffset(), packet.getLength(), dest);
+        } else {
+            socket.send(packet);
+        }
+        metrics.bytesOut(packet.getLength());
+    }
+
+    /**
+     * O que o servidor TCP pede a este servidor no {@link ChatServerDual}. Os usuários
+     * de lá entram no diretório de chaves e ganham um id binário, como os daqui, mas
+     * sem endereço: as mensagens para eles voltam pelo outro transporte.
+     */
+    private static final class Bridge implements ChatTransport {
+        @Override
+        public boolean deliver(OfflineStore.Message message) {
+            try {
+                return deliverStored(replySocket, message);
+            } catch (Exception e) {
+                ChatLog.error("Erro ao entregar mensagem para {}", message.to, e);
+                return false;
+            }
+        }
+
+        @Override
+        public void broadcast(String room, String from, String text) {
+            try {
+                if (room.isEmpty()) {
+                    broadcastLocal(replySocket, text, null);
+                } else if (from.isEmpty()) {
+                    roomNoticeLocal(replySocket, room, text, null);
+                } else {
+                    fanOutChat(replySocket, room, from, text);
+                }
+            } catch (Exception e) {
+                ChatLog.error("Erro no broadcast vindo do TCP", e);
+            }
+        }
+
+        @Override
+        public void userJoined(String user, String key) {
+            try {
+                // A chave chega na forma anunciada, com o sufixo :AES se o dono aceita o modo de sessão
+                long version = clientPublicKeys.put(user, RSAUtils.stringToPublicKey(KeyDirectory.keyOf(key)),
+                        KeyDirectory.sessionCapable(key));
+                names.put(ids.computeIfAbsent(user, u -> nextId.getAndIncrement()), user);
+                announceUser(replySocket, user, user);
+                announceKeyChange(replySocket, user, version);
+            } catch (Exception e) {
+                ChatLog.error("Erro ao anunciar {}", user, e);
+            }
+        }
+
+        @Override
+        public void userLeft(String user) {
+            if (clients.containsKey(user)) return;
+            try {
+                announceUser(replySocket, user, "");
+                Integer id = ids.remove(user);
+                if (id != null) names.remove(id);
+                long version = clientPublicKeys.remove(user);
+                if (version >= 0) announceKeyChange(replySocket, user, version);
+            } catch (Exception e) {
+                ChatLog.error("Erro ao anunciar a saida de {}", user, e);
+            }
+        }
+
+        @Override
+        public boolean connected(String user) {
+            return clients.containsKey(user);
+        }
+
+        @Override
+        public List<String> localUsers() {
+            return new ArrayList<>(clients.keySet());
+        }
     }
-}
\ No newline at end of file
+}
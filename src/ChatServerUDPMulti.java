@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Modo multithread do servidor UDP. Várias threads recebem datagramas e
+ * um conjunto de workers faz o roteamento e os envios, usando o mesmo
+ * tratamento do {@link ChatServerUDP}.
+ *
+ * <p>Quando o sistema suporta {@code SO_REUSEPORT}, cada receptor tem o seu próprio
+ * socket na mesma porta e o kernel distribui os datagramas entre eles; caso
+ * contrário, há um único socket e um único receptor, já que várias threads em
+ * {@code receive()} no mesmo socket só disputariam o mesmo lock.
+ *
+ * <p>Cada remetente (endereço e porta de origem) é sempre atendido pelo mesmo
+ * worker, que processa seus datagramas um de cada vez, então a ordem dos pacotes
+ * de um mesmo remetente é preservada. Um REGISTRO lento (decodificação da chave)
+ * só atrasa os remetentes do mesmo worker.
+ *
+ * <p>A fila de cada worker é limitada por {@code chat.udp.workerQueue}; quando
+ * ela enche, o datagrama é descartado, como faria o buffer do kernel. Os descartes
+ * aparecem nas métricas do servidor UDP ({@code STATS:} e JMX).
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ChatServerUDPMulti {
+    private static final int WORKER_QUEUE = Integer.getInteger("chat.udp.workerQueue", 65536);
+
+    // Datagramas descartados porque a fila do worker estava cheia
+    static final AtomicLong droppedPackets = new AtomicLong();
+    // Workers em execução (vazio no modo de uma thread)
+    private static volatile ThreadPoolExecutor[] activeWorkers = new ThreadPoolExecutor[0];
+
+    /**
+     * Abre os sockets, inicia os workers e os receptores. Retorna logo após iniciar as threads.
+     *
+     * @param port A porta UDP a ser escutada.
+     * @param receiverCount Quantidade de threads receptoras.
+     * @param workerCount Quantidade de workers.
+     * @throws IOException Se ocorrer um erro ao abrir os sockets.
+     */
+    static void start(int port, int receiverCount, int workerCount) throws IOException {
+        receiverCount = Math.max(1, receiverCount);
+        ThreadPoolExecutor[] workers = new ThreadPoolExecutor[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            String name = "chat-udp-worker-" + i;
+            workers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(WORKER_QUEUE),
+                    r -> new Thread(r, name),
+                    (r, executor) -> droppedPackets.incrementAndGet());
+        }
+        activeWorkers = workers;
+
+        DatagramSocket[] sockets = openSockets(port, receiverCount);
+        if (sockets.length < receiverCount) {
+            ChatLog.warn("SO_REUSEPORT indisponivel: usando um unico receptor em vez de {}", receiverCount);
+            receiverCount = sockets.length;
+        }
+        for (int i = 0; i < receiverCount; i++) {
+            DatagramSocket socket = sockets[i];
+            new Thread(() -> receive(socket, workers), "chat-udp-recv-" + i).start();
+        }
+        ChatServerUDP.startServices(sockets[0]);
+        ChatLog.info("Servidor UDP pronto na porta {} ({} receptores, {} sockets, {} workers)",
+                port, receiverCount, sockets.length, workers.length);
+    }
+
+    /**
+     * @return Quantos datagramas aguardam nas filas dos workers.
+     */
+    static long queuedPackets() {
+        long queued = 0;
+        for (ThreadPoolExecutor worker : activeWorkers) queued += worker.getQueue().size();
+        return queued;
+    }
+
+    /**
+     * Abre um socket por receptor com SO_REUSEPORT, ou um único socket se a opção não for suportada.
+     */
+    private static DatagramSocket[] openSockets(int port, int count) throws IOException {
+        DatagramChannel first = DatagramChannel.open();
+        if (count == 1 || !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            first.bind(new InetSocketAddress(port));
+            return new DatagramSocket[] { first.socket() };
+        }
+
+        DatagramSocket[] sockets = new DatagramSocket[count];
+        for (int i = 0; i < count; i++) {
+            DatagramChannel channel = i == 0 ? first : DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channel.bind(new InetSocketAddress(port));
+            sockets[i] = channel.socket();
+        }
+        return sockets;
+    }
+
+    /**
+     * Laço de uma thread receptora: copia cada datagrama e o entrega ao worker do remetente.
+     */
+    private static void receive(DatagramSocket socket, ExecutorService[] workers) {
+        byte[] buffer = new byte[ChatServerUDP.BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+
+                // O buffer é reaproveitado pelo receptor, então o worker recebe uma cópia
+                long receivedAt = ChatMetrics.start();
+                byte[] data = Arrays.copyOf(buffer, packet.getLength());
+                SocketAddress source = packet.getSocketAddress();
+                DatagramPacket copy = new DatagramPacket(data, data.length, source);
+
+                int worker = Math.floorMod(source.hashCode(), workers.length);
+                workers[worker].execute(() -> {
+                    try {
+                        ChatServerUDP.handlePacket(socket, copy, receivedAt);
+                    } catch (Exception e) {
+                        ChatLog.error("Erro ao processar datagrama de {}", copy.getSocketAddress(), e);
+                    }
+                });
+            } catch (IOException e) {
+                ChatLog.error("Erro ao receber datagrama", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.List;
+
+/**
+ * Um dos transportes (TCP ou UDP) hospedados pelo {@link ChatServerDual}: o que o
+ * outro transporte pode pedir a ele. Cada transporte entrega no formato dos seus
+ * próprios clientes (linhas, datagramas ou {@link WireFrame}), então as mensagens
+ * passam de um para o outro no formato neutro de {@link OfflineStore.Message}.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+interface ChatTransport {
+    /**
+     * @param message Uma mensagem privada (ou um aviso, com opcode TEXT) para um usuário deste transporte.
+     * @return false se o usuário não está conectado a este transporte.
+     */
+    boolean deliver(OfflineStore.Message message);
+
+    /**
+     * Entrega aos clientes deste transporte uma mensagem de sala ou um aviso vindo do outro.
+     *
+     * @param room A sala, ou "" para um aviso a todos.
+     * @param from O remetente, ou "" para um aviso do servidor.
+     * @param text O texto.
+     */
+    void broadcast(String room, String from, String text);
+
+    /**
+     * Um usuário se registrou no outro transporte: a chave dele passa a valer aqui também.
+     *
+     * @param user O usuário.
+     * @param key A chave pública, no formato de {@link RSAUtils#keyToString}.
+     */
+    void userJoined(String user, String key);
+
+    /**
+     * Um usuário do outro transporte saiu.
+     */
+    void userLeft(String user);
+
+    /**
+     * @param user O usuário.
+     * @return Se o usuário está conectado a este transporte.
+     */
+    boolean connected(String user);
+
+    /**
+     * @return Os usuários conectados a este transporte.
+     */
+    List<String> localUsers();
+}
@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.Set;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keystore local dos clientes: guarda o par de chaves de cada usuário, para que a
+ * identidade seja carregada do disco em vez de gerada a cada início (gerar um par
+ * RSA-2048 leva de centenas de milissegundos a alguns segundos).
+ *
+ * <p>Cada usuário tem um arquivo {@code <usuario>.<conjunto>.key} no diretório
+ * {@code -Dchat.keystore} (padrão: {@code ~/.chat}; {@code none} desliga o keystore
+ * e gera uma chave nova a cada início). O conjunto vem de {@code -Dchat.suite}
+ * (ver {@link RSAUtils.Suite}); sem ele, vale a identidade já salva do usuário,
+ * de qualquer conjunto, e uma identidade nova é RSA. O arquivo é criado só com
+ * permissão do dono e escrito por troca atômica, então um cliente interrompido
+ * não deixa um arquivo pela metade.
+ *
+ * <p>Com {@code -Dchat.keystore.password} ou a variável de ambiente
+ * {@code CHAT_KEYSTORE_PASSWORD}, a chave privada é gravada cifrada com AES-GCM,
+ * com a chave derivada da senha por PBKDF2-HMAC-SHA256.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ClientKeyStore {
+    private static final int PBKDF2_ITERATIONS = 210_000;
+    private static final int SALT_BYTES = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Carrega o par de chaves salvo para o usuário ou, se não houver, gera um novo e o salva.
+     * Um arquivo ilegível (corrompido ou com senha errada) é um erro: a identidade não é
+     * trocada silenciosamente.
+     *
+     * @param username O nome do usuário.
+     * @return O par de chaves do usuário.
+     * @throws Exception Se o arquivo não puder ser lido ou a chave não puder ser gerada.
+     */
+    public static KeyPair loadOrCreate(String username) throws Exception {
+        RSAUtils.Suite suite = RSAUtils.Suite.configured();
+        String dir = System.getProperty("chat.keystore", Paths.get(System.getProperty("user.home"), ".chat").toString());
+        if (dir.equalsIgnoreCase("none")) return RSAUtils.generateKeyPair(suite);
+
+        String password = password();
+        if (System.getProperty("chat.suite") == null) {
+            // Sem conjunto escolhido, reaproveita a identidade que já existir, de qualquer conjunto
+            for (RSAUtils.Suite saved : RSAUtils.Suite.values()) {
+                Path file = fileOf(dir, username, saved);
+                if (Files.exists(file)) return load(file, password);
+            }
+        }
+        Path file = fileOf(dir, username, suite);
+        if (Files.exists(file)) return load(file, password);
+
+        KeyPair keyPair = RSAUtils.generateKeyPair(suite);
+        try {
+            save(file, suite, keyPair, password);
+        } catch (IOException e) {
+            // Sem onde gravar, o cliente segue com a chave gerada, como antes do keystore
+            System.err.println("[AVISO] Nao foi possivel salvar a chave em " + file + ": " + e.getMessage());
+        }
+        return keyPair;
+    }
+
+    private static Path fileOf(String dir, String username, RSAUtils.Suite suite) {
+        return Paths.get(dir, sanitize(username) + "." + suite.name().toLowerCase() + ".key");
+    }
+
+    private static KeyPair load(Path file, String password) throws Exception {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        String privateText = props.getProperty("private");
+        if (privateText.startsWith("pbkdf2$")) {
+            if (password == null) throw new IOException("Chave em " + file + " protegida por senha (use -Dchat.keystore.password)");
+            privateText = unprotect(privateText, password);
+        }
+        PublicKey publicKey = RSAUtils.stringToPublicKey(props.getProperty("public"));
+        PrivateKey privateKey = RSAUtils.stringToPrivateKey(privateText);
+        return new KeyPair(publicKey, privateKey);
+    }
+
+    private static void save(Path file, RSAUtils.Suite suite, KeyPair keyPair, String password) throws Exception {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        String privateText = RSAUtils.privateKeyToString(keyPair.getPrivate());
+
+        Properties props = new Properties();
+        props.setProperty("suite", suite.name());
+        props.setProperty("public", RSAUtils.keyToString(keyPair.getPublic()));
+        props.setProperty("private", password != null ? protect(privateText, password) : privateText);
+
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            ownerOnly(tmp);
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                props.store(out, "Identidade do chat - nao compartilhe este arquivo");
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void ownerOnly(Path path) throws IOException {
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("posix")) return;
+        Set<PosixFilePermission> perms = PosixFilePermissions.fromString("rw-------");
+        Files.setPosixFilePermissions(path, perms);
+    }
+
+    /**
+     * @return {@code pbkdf2$<iteracoes>$<sal>$<IV || cifrado || tag>}, em Base64.
+     */
+    private static String protect(String text, String password) throws Exception {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        byte[] data = RSAUtils.encryptAES(text, derive(password, salt, PBKDF2_ITERATIONS), salt);
+        Base64.Encoder b64 = Base64.getEncoder();
+        return "pbkdf2$" + PBKDF2_ITERATIONS + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(data);
+    }
+
+    private static String unprotect(String stored, String password) throws Exception {
+        String[] parts = stored.split("\\$");
+        byte[] salt = Base64.getDecoder().decode(parts[2]);
+        SecretKey key = derive(password, salt, Integer.parseInt(parts[1]));
+        try {
+            return RSAUtils.decryptAES(Base64.getDecoder().decode(parts[3]), key, salt);
+        } catch (javax.crypto.AEADBadTagException e) {
+            throw new IOException("Senha do keystore incorreta");
+        }
+    }
+
+    private static SecretKey derive(String password, byte[] salt, int iterations) throws Exception {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
+        try {
+            byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String password() {
+        String password = System.getProperty("chat.keystore.password");
+        return password != null ? password : System.getenv("CHAT_KEYSTORE_PASSWORD");
+    }
+
+    /**
+     * O nome do usuário vira nome de arquivo; tudo o que não for letra, dígito, '-' ou '_' vira '_'.
+     */
+    private static String sanitize(String username) {
+        String name = username.trim().replaceAll("[^A-Za-z0-9_-]", "_");
+        return name.isEmpty() ? "_" : name;
+    }
+}
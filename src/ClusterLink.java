@@ -0,0 +1,489 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Ligação entre os nós de um cluster de servidores TCP. Cada nó atende os seus
+ * próprios clientes; o diretório de usuários é particionado: o nó "dono" de um
+ * usuário ({@code hash(nome) % nós}) guarda em qual nó ele está conectado e a sua
+ * chave pública, inclusive depois que ele sai.
+ *
+ * <ul>
+ *   <li>Uma mensagem privada para um usuário de outro nó vai para o dono dele, que
+ *       a repassa ao nó onde ele está (no máximo dois saltos) ou, se ele estiver
+ *       offline, a guarda no seu {@link OfflineStore}. O replay acontece no dono,
+ *       quando o usuário se registra em qualquer nó.</li>
+ *   <li>REQKEY de um usuário remoto é respondido pelo dono dele.</li>
+ *   <li>Mensagens de sala e avisos vão uma única vez para cada outro nó, que faz o
+ *       fan-out para os seus clientes.</li>
+ * </ul>
+ *
+ * <p>Configuração: {@code -Dchat.cluster.nodes=host:porta,host:porta,...} (a mesma
+ * lista, na mesma ordem, em todos os nós) e {@code -Dchat.cluster.node=i}, o índice
+ * deste nó na lista. Cada nó escuta na sua porta da lista e abre uma conexão para
+ * cada um dos outros, usada só para envio. Os frames são {@code tamanho || tipo ||
+ * campos}. As mensagens para um nó ficam numa fila limitada
+ * ({@code -Dchat.cluster.queue}, padrão 100000) enquanto a conexão não está pronta,
+ * e a conexão é refeita quando cai.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ClusterLink {
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.cluster.queue", 100_000);
+    private static final long RECONNECT_MS = 500;
+    // Quantas vezes uma mensagem pode ser devolvida ao dono antes de ser descartada
+    private static final int MAX_HOPS = 3;
+
+    private static final byte HELLO = 1;
+    private static final byte DIR_PUT = 2;
+    private static final byte DIR_REMOVE = 3;
+    private static final byte ROUTE = 4;
+    private static final byte DELIVER = 5;
+    private static final byte BROADCAST = 6;
+    private static final byte TEXT = 7;
+    private static final byte KEY_REQUEST = 8;
+    private static final byte LIST_REQUEST = 9;
+
+    /**
+     * O que o servidor faz com o que chega dos outros nós.
+     */
+    interface Handler {
+        /**
+         * @param message Uma mensagem privada (ou um aviso, com opcode TEXT) para um usuário.
+         * @return false se o usuário não está conectado a este nó.
+         */
+        boolean deliver(OfflineStore.Message message);
+
+        /**
+         * Guarda uma mensagem para um usuário que não está conectado a nenhum nó.
+         *
+         * @return false se o armazenamento offline está desligado.
+         */
+        boolean storeOffline(OfflineStore.Message message);
+
+        /**
+         * Chamado no dono de um usuário quando ele se registra em algum nó.
+         */
+        void registered(String user);
+
+        /**
+         * Envia uma linha do servidor a um usuário deste nó (ignorada se ele não está aqui).
+         */
+        void text(String user, String line);
+
+        /**
+         * Entrega a este nó uma mensagem de sala ou um aviso vindo de outro nó.
+         *
+         * @param room A sala, ou "" para um aviso a todos.
+         * @param from O remetente, ou "" para um aviso do servidor.
+         * @param text O texto.
+         */
+        void broadcast(String room, String from, String text);
+
+        /**
+         * @return Os usuários conectados a este nó.
+         */
+        List<String> localUsers();
+    }
+
+    /**
+     * Onde um usuário está (-1 se offline) e a sua chave na forma anunciada
+     * ({@link KeyDirectory#published}), no diretório do dono.
+     */
+    private static final class Entry {
+        final int node;
+        final String key;
+
+        Entry(int node, String key) {
+            this.node = node;
+            this.key = key;
+        }
+    }
+
+    private final int self;
+    private final InetSocketAddress[] nodes;
+    private final Handler handler;
+    private final Peer[] peers;
+    // Parte do diretório de que este nó é dono
+    private final Map<String, Entry> directory = new ConcurrentHashMap<>();
+
+    /**
+     * @return O cluster configurado por {@code chat.cluster.nodes} e {@code chat.cluster.node}, ou null sem cluster.
+     */
+    static ClusterLink configured(Handler handler) {
+        String list = System.getProperty("chat.cluster.nodes");
+        if (list == null || list.trim().isEmpty()) return null;
+        String[] parts = list.split(",");
+        InetSocketAddress[] nodes = new InetSocketAddress[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String[] hostPort = parts[i].trim().split(":");
+            nodes[i] = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+        }
+        int self = Integer.getInteger("chat.cluster.node", 0);
+        if (self < 0 || self >= nodes.length) throw new IllegalArgumentException("chat.cluster.node fora da lista: " + self);
+        return new ClusterLink(self, nodes, handler);
+    }
+
+    private ClusterLink(int self, InetSocketAddress[] nodes, Handler handler) {
+        this.self = self;
+        this.nodes = nodes;
+        this.handler = handler;
+        this.peers = new Peer[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            if (i != self) peers[i] = new Peer(i);
+        }
+    }
+
+    /**
+     * @return O índice deste nó.
+     */
+    int self() {
+        return self;
+    }
+
+    /**
+     * Abre a porta do cluster e as conexões com os outros nós.
+     *
+     * @throws IOException Se a porta deste nó não puder ser aberta.
+     */
+    void start() throws IOException {
+        ServerSocket server = new ServerSocket(nodes[self].getPort());
+        Thread acceptor = new Thread(() -> accept(server), "chat-cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers) {
+            if (peer == null) continue;
+            Thread writer = new Thread(peer::writeLoop, "chat-cluster-" + peer.node);
+            writer.setDaemon(true);
+            writer.start();
+        }
+        ChatLog.info("No {} do cluster ({} nos), porta interna {}", self, nodes.length, nodes[self].getPort());
+    }
+
+    private int owner(String user) {
+        return Math.floorMod(user.hashCode(), nodes.length);
+    }
+
+    /**
+     * Avisa o dono de um usuário que ele se registrou neste nó.
+     */
+    void join(String user, String key) {
+        send(owner(user), frame(DIR_PUT, out -> {
+            out.writeUTF(user);
+            out.writeInt(self);
+            out.writeUTF(key);
+        }));
+    }
+
+    /**
+     * Avisa o dono de um usuário que ele saiu deste nó.
+     */
+    void leave(String user) {
+        send(owner(user), frame(DIR_REMOVE, out -> {
+            out.writeUTF(user);
+            out.writeInt(self);
+        }));
+    }
+
+    /**
+     * Encaminha ao dono do destinatário uma mensagem privada para um usuário que não está neste nó.
+     */
+    void route(OfflineStore.Message message) {
+        send(owner(message.to), route(ROUTE, MAX_HOPS, message));
+    }
+
+    /**
+     * Entrega uma mensagem a um usuário conectado a outro nó, se este nó é o dono dele
+     * e sabe onde ele está (usado no replay do armazenamento offline).
+     *
+     * @return false se o usuário não está conectado a outro nó.
+     */
+    boolean deliverRemote(OfflineStore.Message message) {
+        Entry entry = directory.get(message.to);
+        if (entry == null || entry.node < 0 || entry.node == self) return false;
+        send(entry.node, route(DELIVER, MAX_HOPS, message));
+        return true;
+    }
+
+    /**
+     * Repassa uma mensagem de sala (ou um aviso) uma vez para cada outro nó.
+     *
+     * @param room A sala, ou "" para um aviso a todos.
+     * @param from O remetente, ou "" para um aviso do servidor.
+     */
+    void broadcast(String room, String from, String text) {
+        byte[] frame = frame(BROADCAST, out -> {
+            out.writeUTF(room);
+            out.writeUTF(from);
+            writeBytes(out, text.getBytes(StandardCharsets.UTF_8));
+        });
+        for (Peer peer : peers) {
+            if (peer != null) peer.enqueue(frame);
+        }
+    }
+
+    /**
+     * Pede ao dono de {@code target} a chave dele; a resposta chega ao solicitante como PUBKEYRESP.
+     */
+    void requestKey(String requester, String target) {
+        send(owner(target), frame(KEY_REQUEST, out -> {
+            out.writeInt(self);
+            out.writeUTF(requester);
+            out.writeUTF(target);
+        }));
+    }
+
+    /**
+     * Pede aos outros nós a lista dos seus usuários; cada um responde direto ao solicitante.
+     */
+    void requestUsers(String requester) {
+        byte[] frame = frame(LIST_REQUEST, out -> {
+            out.writeInt(self);
+            out.writeUTF(requester);
+        });
+        for (Peer peer : peers) {
+            if (peer != null) peer.enqueue(frame);
+        }
+    }
+
+    private void text(int node, String user, String line) {
+        send(node, frame(TEXT, out -> {
+            out.writeUTF(user);
+            writeBytes(out, line.getBytes(StandardCharsets.UTF_8));
+        }));
+    }
+
+    private byte[] route(byte type, int hops, OfflineStore.Message message) {
+        return frame(type, out -> {
+            out.writeInt(hops);
+            out.writeInt(self);
+            out.writeUTF(message.from);
+            out.writeUTF(message.to);
+            out.writeUTF(message.senderKey);
+            out.writeByte(message.frame.opcode);
+            writeBytes(out, message.frame.signature);
+            writeBytes(out, message.frame.payload);
+        });
+    }
+
+    /**
+     * Envia um frame a um nó; para o próprio nó, trata o frame na hora.
+     */
+    private void send(int node, byte[] frame) {
+        if (node == self) {
+            try {
+                handle(new DataInputStream(new ByteArrayInputStream(frame)));
+            } catch (IOException e) {
+                ChatLog.error("Frame interno invalido", e);
+            }
+        } else {
+            peers[node].enqueue(frame);
+        }
+    }
+
+    /**
+     * Trata um frame vindo de outro nó (ou deste, ver {@link #send}).
+     */
+    private void handle(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case DIR_PUT: {
+                String user = in.readUTF();
+                int node = in.readInt();
+                directory.put(user, new Entry(node, in.readUTF()));
+                handler.registered(user);
+                break;
+            }
+            case DIR_REMOVE: {
+                String user = in.readUTF();
+                int node = in.readInt();
+                // Só vale se o usuário ainda estiver naquele nó (ele pode já ter entrado em outro)
+                directory.computeIfPresent(user, (u, entry) -> entry.node == node ? new Entry(-1, entry.key) : entry);
+                break;
+            }
+            case ROUTE:
+            case DELIVER: {
+                int hops = in.readInt();
+                int origin = in.readInt();
+                OfflineStore.Message message = new OfflineStore.Message(in.readUTF(), in.readUTF(), in.readUTF(),
+                        new WireFrame(in.readByte(), 0, 0, readBytes(in), readBytes(in)));
+                if (type == ROUTE) {
+                    routeAtOwner(hops, origin, message);
+                } else if (!handler.deliver(message) && hops > 0) {
+                    // O usuário saiu deste nó enquanto a mensagem vinha: o dono decide de novo
+                    send(owner(message.to), route(ROUTE, hops - 1, message));
+                }
+                break;
+            }
+            case BROADCAST: {
+                String room = in.readUTF();
+                String from = in.readUTF();
+                handler.broadcast(room, from, new String(readBytes(in), StandardCharsets.UTF_8));
+                break;
+            }
+            case TEXT: {
+                String user = in.readUTF();
+                handler.text(user, new String(readBytes(in), StandardCharsets.UTF_8));
+                break;
+            }
+            case KEY_REQUEST: {
+                int origin = in.readInt();
+                String requester = in.readUTF();
+                String target = in.readUTF();
+                Entry entry = directory.get(target);
+                text(origin, requester, entry != null ? "PUBKEYRESP:" + target + ":" + entry.key : "PUBKEYRESPERR:" + target);
+                break;
+            }
+            case LIST_REQUEST: {
+                int origin = in.readInt();
+                String requester = in.readUTF();
+                StringBuilder sb = new StringBuilder("Usuarios conectados ao no ").append(self).append(":\n");
+                for (String u : handler.localUsers()) sb.append("- ").append(u).append("\n");
+                text(origin, requester, sb.toString());
+                break;
+            }
+            default:
+                ChatLog.warn("Frame de cluster desconhecido: {}", type);
+        }
+    }
+
+    /**
+     * No dono do destinatário: repassa a mensagem ao nó onde ele está ou a guarda para quando voltar.
+     */
+    private void routeAtOwner(int hops, int origin, OfflineStore.Message message) {
+        Entry entry = directory.get(message.to);
+        if (entry != null && entry.node >= 0) {
+            if (entry.node == self) {
+                if (handler.deliver(message)) return;
+            } else if (hops > 0) {
+                send(entry.node, route(DELIVER, hops - 1, message));
+                return;
+            }
+        }
+        if (handler.storeOffline(message)) {
+            text(origin, message.from, message.to + " esta offline; a mensagem sera entregue no proximo registro.");
+        }
+    }
+
+    private void accept(ServerSocket server) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                Thread reader = new Thread(() -> readLoop(socket), "chat-cluster-in");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                ChatLog.error("Erro ao aceitar conexao do cluster", e);
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        int node = -1;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            byte[] frame = new byte[in.readInt()];
+            in.readFully(frame);
+            DataInputStream hello = new DataInputStream(new ByteArrayInputStream(frame));
+            if (hello.readByte() != HELLO) throw new IOException("conexao sem HELLO");
+            node = hello.readInt();
+            ChatLog.info("No {} conectado", node);
+            while (true) {
+                frame = new byte[in.readInt()];
+                in.readFully(frame);
+                handle(new DataInputStream(new ByteArrayInputStream(frame)));
+            }
+        } catch (EOFException e) {
+            ChatLog.warn("No {} desconectado", node);
+        } catch (IOException e) {
+            ChatLog.warn("Conexao com o no {} encerrada: {}", node, e.getMessage());
+        }
+    }
+
+    /**
+     * A conexão de saída para outro nó e a sua fila.
+     */
+    private final class Peer {
+        final int node;
+        final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+
+        Peer(int node) {
+            this.node = node;
+        }
+
+        void enqueue(byte[] frame) {
+            if (!queue.offer(frame)) ChatLog.warn("Fila para o no {} cheia; frame descartado", node);
+        }
+
+        void writeLoop() {
+            byte[] hello = frame(HELLO, out -> out.writeInt(self));
+            byte[] pending = null;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(nodes[node]);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                    write(out, hello);
+                    out.flush();
+                    ChatLog.info("Conectado ao no {} em {}", node, nodes[node]);
+                    while (true) {
+                        // Um frame que falhou é reenviado na próxima conexão
+                        if (pending == null) pending = queue.take();
+                        write(out, pending);
+                        pending = null;
+                        if (queue.isEmpty()) out.flush();
+                    }
+                } catch (IOException e) {
+                    try {
+                        Thread.sleep(RECONNECT_MS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void write(DataOutputStream out, byte[] frame) throws IOException {
+            out.writeInt(frame.length);
+            out.write(frame);
+        }
+    }
+
+    /**
+     * Escreve os campos de um frame.
+     */
+    private interface FrameWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] frame(byte type, FrameWriter fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            fields.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+}
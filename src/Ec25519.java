@@ -0,0 +1,284 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Conjunto de curvas elípticas da identidade dos usuários: X25519 para acordo de
+ * chaves e Ed25519 para assinaturas. Uma identidade tem os dois pares, vistos pelo
+ * resto do código como uma única {@link PublicKey}/{@link PrivateKey}, então
+ * registro, diretório de chaves e REQKEY não mudam.
+ *
+ * <p>A cifragem para um destinatário é um ECIES: um par X25519 efêmero, o segredo
+ * do acordo com a chave X25519 do destinatário passa por HKDF-SHA256 e vira uma
+ * chave AES-256-GCM. O resultado é tamanho da chave efêmera || chave efêmera || IV || texto cifrado || tag,
+ * sem limite de tamanho. Gerar uma identidade, assinar e verificar custam uma
+ * fração do RSA-2048.
+ *
+ * <p>Os métodos são usados por {@link RSAUtils}, que escolhe o conjunto pelo tipo
+ * da chave; o resto do código não chama esta classe diretamente.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class Ec25519 {
+    /** Prefixo do texto das chaves deste conjunto (o Base64 das chaves RSA nunca tem ponto). */
+    static final String PREFIX = "EC25519.";
+    static final String ALGORITHM = "EC25519";
+
+    private static final byte[] INFO = "chat-ec25519-ecies".getBytes(StandardCharsets.UTF_8);
+    private static final int GCM_IV_BYTES = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<KeyAgreement> AGREEMENT = engine(() -> KeyAgreement.getInstance("X25519"));
+    private static final ThreadLocal<Signature> SIGNATURE = engine(() -> Signature.getInstance("Ed25519"));
+    private static final ThreadLocal<KeyFactory> ED_FACTORY = engine(() -> KeyFactory.getInstance("Ed25519"));
+    private static final ThreadLocal<KeyFactory> X_FACTORY = engine(() -> KeyFactory.getInstance("X25519"));
+    private static final ThreadLocal<KeyPairGenerator> X_GENERATOR = engine(() -> KeyPairGenerator.getInstance("X25519"));
+    private static final ThreadLocal<Cipher> AES_CIPHER = engine(() -> Cipher.getInstance("AES/GCM/NoPadding"));
+    private static final ThreadLocal<Mac> HMAC = engine(() -> Mac.getInstance("HmacSHA256"));
+
+    /**
+     * Cria uma instância de um motor criptográfico, como em {@link RSAUtils}.
+     */
+    private interface EngineFactory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    private static <T> ThreadLocal<T> engine(EngineFactory<T> factory) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return factory.create();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Chave pública de uma identidade: Ed25519 para verificar e X25519 para cifrar.
+     */
+    static final class Public implements PublicKey {
+        private static final long serialVersionUID = 1L;
+        final PublicKey signing;
+        final PublicKey agreement;
+
+        Public(PublicKey signing, PublicKey agreement) {
+            this.signing = signing;
+            this.agreement = agreement;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return ALGORITHM;
+        }
+
+        @Override
+        public String getFormat() {
+            return ALGORITHM;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return concat(signing.getEncoded(), agreement.getEncoded());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Public && Arrays.equals(getEncoded(), ((Public) o).getEncoded());
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(getEncoded());
+        }
+    }
+
+    /**
+     * Chave privada de uma identidade: Ed25519 para assinar e X25519 para decifrar.
+     */
+    static final class Private implements PrivateKey {
+        private static final long serialVersionUID = 1L;
+        final PrivateKey signing;
+        final PrivateKey agreement;
+
+        Private(PrivateKey signing, PrivateKey agreement) {
+            this.signing = signing;
+            this.agreement = agreement;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return ALGORITHM;
+        }
+
+        @Override
+        public String getFormat() {
+            return ALGORITHM;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return concat(signing.getEncoded(), agreement.getEncoded());
+        }
+    }
+
+    /**
+     * Gera uma nova identidade (um par Ed25519 e um par X25519).
+     *
+     * @return O par de chaves da identidade.
+     * @throws NoSuchAlgorithmException Se os algoritmos não estiverem disponíveis.
+     */
+    static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
+        KeyPair ed = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+        KeyPair x = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        return new KeyPair(new Public(ed.getPublic(), x.getPublic()), new Private(ed.getPrivate(), x.getPrivate()));
+    }
+
+    /**
+     * @return {@code EC25519.<Ed25519 em Base64>.<X25519 em Base64>} (codificações X.509).
+     */
+    static String keyToString(Public key) {
+        return PREFIX + Base64.getEncoder().encodeToString(key.signing.getEncoded()) + "."
+                + Base64.getEncoder().encodeToString(key.agreement.getEncoded());
+    }
+
+    static Public stringToPublicKey(String keyStr) throws GeneralSecurityException {
+        String[] parts = split(keyStr);
+        return new Public(ED_FACTORY.get().generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(parts[0]))),
+                X_FACTORY.get().generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(parts[1]))));
+    }
+
+    /**
+     * @return {@code EC25519.<Ed25519 em Base64>.<X25519 em Base64>} (codificações PKCS#8).
+     */
+    static String privateKeyToString(Private key) {
+        return PREFIX + Base64.getEncoder().encodeToString(key.signing.getEncoded()) + "."
+                + Base64.getEncoder().encodeToString(key.agreement.getEncoded());
+    }
+
+    static Private stringToPrivateKey(String keyStr) throws GeneralSecurityException {
+        String[] parts = split(keyStr);
+        return new Private(ED_FACTORY.get().generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(parts[0]))),
+                X_FACTORY.get().generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(parts[1]))));
+    }
+
+    private static String[] split(String keyStr) throws InvalidKeyException {
+        String[] parts = keyStr.substring(PREFIX.length()).split("\\.");
+        if (parts.length != 2) throw new InvalidKeyException("Chave EC25519 malformada");
+        return parts;
+    }
+
+    /**
+     * Cifra dados para um destinatário (ECIES com X25519, HKDF-SHA256 e AES-256-GCM).
+     *
+     * @param plain Os dados em claro.
+     * @param recipient A chave pública do destinatário.
+     * @return Tamanho da chave efêmera (1 byte) || chave pública efêmera (X.509) || IV || texto cifrado || tag.
+     * @throws GeneralSecurityException Se ocorrer um erro de criptografia.
+     */
+    static byte[] encrypt(byte[] plain, Public recipient) throws GeneralSecurityException {
+        KeyPair ephemeral = X_GENERATOR.get().generateKeyPair();
+        byte[] ephemeralKey = ephemeral.getPublic().getEncoded();
+        SecretKeySpec key = deriveKey(ephemeral.getPrivate(), recipient.agreement, ephemeralKey);
+
+        byte[] iv = new byte[GCM_IV_BYTES];
+        RANDOM.nextBytes(iv);
+        Cipher cipher = AES_CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+        cipher.updateAAD(ephemeralKey);
+
+        ByteBuffer out = ByteBuffer.allocate(1 + ephemeralKey.length + GCM_IV_BYTES + cipher.getOutputSize(plain.length));
+        out.put((byte) ephemeralKey.length).put(ephemeralKey).put(iv);
+        cipher.doFinal(ByteBuffer.wrap(plain), out);
+        return out.array();
+    }
+
+    /**
+     * Decifra e autentica dados produzidos por {@link #encrypt}.
+     *
+     * @param data Os dados cifrados.
+     * @param recipient A chave privada do destinatário.
+     * @return Os dados em claro.
+     * @throws GeneralSecurityException Se a autenticação falhar ou os dados estiverem malformados.
+     */
+    static byte[] decrypt(byte[] data, Private recipient) throws GeneralSecurityException {
+        int keyLength = data.length > 0 ? data[0] & 0xFF : 0;
+        if (data.length < 1 + keyLength + GCM_IV_BYTES) throw new AEADBadTagException("Mensagem EC25519 truncada");
+        byte[] ephemeralKey = Arrays.copyOfRange(data, 1, 1 + keyLength);
+        PublicKey ephemeral = X_FACTORY.get().generatePublic(new X509EncodedKeySpec(ephemeralKey));
+        SecretKeySpec key = deriveKey(recipient.agreement, ephemeral, ephemeralKey);
+
+        Cipher cipher = AES_CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, data, 1 + keyLength, GCM_IV_BYTES));
+        cipher.updateAAD(ephemeralKey);
+        int offset = 1 + keyLength + GCM_IV_BYTES;
+        return cipher.doFinal(data, offset, data.length - offset);
+    }
+
+    /**
+     * @param data Os dados a assinar.
+     * @param key A chave privada do remetente.
+     * @return A assinatura Ed25519 (64 bytes).
+     * @throws GeneralSecurityException Se ocorrer um erro de criptografia.
+     */
+    static byte[] sign(byte[] data, Private key) throws GeneralSecurityException {
+        Signature signature = SIGNATURE.get();
+        signature.initSign(key.signing);
+        signature.update(data);
+        return signature.sign();
+    }
+
+    /**
+     * @param data Os dados assinados.
+     * @param sig A assinatura.
+     * @param key A chave pública do remetente.
+     * @return true se a assinatura for válida (assinaturas malformadas são inválidas).
+     * @throws GeneralSecurityException Se ocorrer um erro de criptografia.
+     */
+    static boolean verify(byte[] data, byte[] sig, Public key) throws GeneralSecurityException {
+        Signature signature = SIGNATURE.get();
+        signature.initVerify(key.signing);
+        signature.update(data);
+        try {
+            return signature.verify(sig);
+        } catch (SignatureException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Acordo X25519 seguido de HKDF-SHA256 (RFC 5869), com a chave efêmera como sal.
+     */
+    private static SecretKeySpec deriveKey(PrivateKey mine, PublicKey theirs, byte[] ephemeralKey)
+            throws GeneralSecurityException {
+        KeyAgreement agreement = AGREEMENT.get();
+        agreement.init(mine);
+        agreement.doPhase(theirs, true);
+        byte[] shared = agreement.generateSecret();
+
+        Mac hmac = HMAC.get();
+        hmac.init(new SecretKeySpec(ephemeralKey, "HmacSHA256"));
+        byte[] prk = hmac.doFinal(shared);
+        hmac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        hmac.update(INFO);
+        hmac.update((byte) 1);
+        return new SecretKeySpec(hmac.doFinal(), "AES");
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+}
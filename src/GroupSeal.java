@@ -0,0 +1,151 @@
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+import javax.crypto.SecretKey;
+
+/**
+ * Mensagens seguras de grupo cifradas uma única vez: o texto é cifrado com AES-GCM
+ * por uma chave de conteúdo aleatória, e só essa chave é protegida para cada
+ * destinatário ({@link RSAUtils#wrapKey}). Há uma única assinatura, sobre o
+ * remetente, o grupo, o texto cifrado e um compromisso com a chave de conteúdo
+ * (SHA-256 da chave), de modo que o custo de enviar para N pessoas é uma cifragem
+ * AES, uma assinatura e N cifragens de 32 bytes, em vez de N cifragens e N assinaturas
+ * da mensagem inteira.
+ *
+ * <p>Formato enviado ao servidor (TCP e UDP):
+ * {@code GRUPO:<d1,d2,...>:<compromisso>:<assinatura>:<cifrado>:<k1,k2,...>}, com as
+ * chaves protegidas na ordem dos destinatários. O servidor não decifra nada: repassa
+ * a cada destinatário a parte comum e só a chave dele,
+ * {@code GRUPO:<remetente>:<d1,d2,...>:<compromisso>:<assinatura>:<cifrado>:<k_i>}.
+ * Campos binários em Base64; nomes não podem conter {@code :} nem {@code ,}.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class GroupSeal {
+    static final String PREFIX = "GRUPO:";
+
+    /**
+     * Uma mensagem de grupo já validada pelo servidor, pronta para ser repassada.
+     */
+    static final class Fanout {
+        final List<String> recipients;
+        private final String shared;
+        private final String[] wrapped;
+
+        private Fanout(List<String> recipients, String shared, String[] wrapped) {
+            this.recipients = recipients;
+            this.shared = shared;
+            this.wrapped = wrapped;
+        }
+
+        /**
+         * @param i A posição do destinatário em {@link #recipients}.
+         * @return A linha a entregar a esse destinatário.
+         */
+        String line(int i) {
+            return shared + wrapped[i];
+        }
+    }
+
+    /**
+     * Cifra uma mensagem para um grupo.
+     *
+     * @param from O nome do remetente.
+     * @param recipients Os destinatários, sem repetições.
+     * @param keys As chaves públicas dos destinatários, na mesma ordem.
+     * @param message A mensagem em texto simples (qualquer tamanho).
+     * @param privateKey A chave privada do remetente, usada na assinatura.
+     * @return A linha {@code GRUPO:...} a enviar ao servidor.
+     * @throws Exception Se ocorrer um erro de criptografia.
+     */
+    public static String seal(String from, List<String> recipients, List<PublicKey> keys,
+                              String message, PrivateKey privateKey) throws Exception {
+        String group = String.join(",", recipients);
+        SecretKey contentKey = RSAUtils.generateSessionKey();
+        String commitment = commitment(contentKey);
+        String encrypted = Base64.getEncoder().encodeToString(RSAUtils.encryptAES(message, contentKey, aad(from, group)));
+        String signature = Base64.getEncoder().encodeToString(
+                RSAUtils.sign(signed(from, group, commitment, encrypted), privateKey));
+
+        StringBuilder sb = new StringBuilder(PREFIX).append(group).append(':').append(commitment)
+                .append(':').append(signature).append(':').append(encrypted).append(':');
+        for (int i = 0; i < keys.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(Base64.getEncoder().encodeToString(RSAUtils.wrapKey(contentKey, keys.get(i))));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Separa uma mensagem de grupo recebida de um cliente. Só a estrutura é conferida;
+     * a assinatura fica a cargo de cada destinatário.
+     *
+     * @param from O remetente (conhecido pelo servidor, não pela linha).
+     * @param line A linha {@code GRUPO:...} enviada pelo cliente.
+     * @return A mensagem pronta para o repasse, ou null se a linha for inválida.
+     */
+    static Fanout fanout(String from, String line) {
+        String[] parts = line.substring(PREFIX.length()).split(":", 5);
+        if (parts.length < 5 || parts[0].isEmpty()) return null;
+        List<String> recipients = Arrays.asList(parts[0].split(","));
+        String[] wrapped = parts[4].split(",");
+        if (wrapped.length != recipients.size() || new HashSet<>(recipients).size() != recipients.size()) return null;
+        String shared = PREFIX + from + ":" + parts[0] + ":" + parts[1] + ":" + parts[2] + ":" + parts[3] + ":";
+        return new Fanout(recipients, shared, wrapped);
+    }
+
+    /**
+     * @param line Uma linha {@code GRUPO:<remetente>:...} entregue pelo servidor.
+     * @return O remetente.
+     */
+    static String senderOf(String line) {
+        return line.substring(PREFIX.length(), line.indexOf(':', PREFIX.length()));
+    }
+
+    /**
+     * Verifica e decifra uma mensagem de grupo entregue pelo servidor.
+     *
+     * @param me O nome do usuário local.
+     * @param privateKey A chave privada do usuário local.
+     * @param senderKey A chave pública do remetente.
+     * @param line A linha {@code GRUPO:<remetente>:...} recebida.
+     * @return A linha a exibir, {@code [Grupo d1,d2] remetente: texto}.
+     * @throws SignatureException Se a assinatura ou o compromisso da chave não conferirem,
+     *                            ou se o usuário local não estiver no grupo.
+     * @throws Exception Se ocorrer outro erro de criptografia.
+     */
+    public static String open(String me, PrivateKey privateKey, PublicKey senderKey, String line) throws Exception {
+        String[] parts = line.substring(PREFIX.length()).split(":", 6);
+        String from = parts[0];
+        String group = parts[1];
+        if (!Arrays.asList(group.split(",")).contains(me)) {
+            throw new SignatureException("Mensagem de grupo de " + from + " nao inclui " + me);
+        }
+        if (!RSAUtils.verify(signed(from, group, parts[2], parts[4]), Base64.getDecoder().decode(parts[3]), senderKey)) {
+            throw new SignatureException("Assinatura invalida da mensagem de grupo de " + from);
+        }
+        SecretKey contentKey = RSAUtils.unwrapKey(Base64.getDecoder().decode(parts[5]), privateKey);
+        // A chave protegida não é assinada (para a assinatura ser uma só); o compromisso garante que é a do remetente
+        if (!MessageDigest.isEqual(commitment(contentKey).getBytes(StandardCharsets.US_ASCII),
+                parts[2].getBytes(StandardCharsets.US_ASCII))) {
+            throw new SignatureException("Chave de conteudo nao confere na mensagem de grupo de " + from);
+        }
+        String text = RSAUtils.decryptAES(Base64.getDecoder().decode(parts[4]), contentKey, aad(from, group));
+        return "[Grupo " + group + "] " + from + ": " + text;
+    }
+
+    private static String commitment(SecretKey key) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update("chat-grupo:".getBytes(StandardCharsets.US_ASCII));
+        return Base64.getEncoder().encodeToString(digest.digest(key.getEncoded()));
+    }
+
+    private static String signed(String from, String group, String commitment, String encrypted) {
+        return from + ">" + group + ":" + commitment + ":" + encrypted;
+    }
+
+    private static byte[] aad(String from, String group) {
+        return (from + ">" + group).getBytes(StandardCharsets.UTF_8);
+    }
+}
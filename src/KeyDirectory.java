@@ -0,0 +1,277 @@
+import java.security.PublicKey;
+import java.util.*;
+
+/**
+ * Diretório versionado das chaves públicas dos usuários registrados.
+ *
+ * <p>Cada chave é codificada em Base64 uma única vez, no registro, e cada alteração
+ * (entrada ou saída de usuário) incrementa a versão do diretório e fica guardada em
+ * um histórico limitado. Um cliente que informa a última versão que conhece recebe
+ * apenas as diferenças desde então, divididas em páginas que cabem em um datagrama.
+ * Se a versão informada for mais antiga que o histórico guardado, o cliente recebe
+ * o diretório completo.
+ *
+ * <p>Formato de cada página: uma linha de cabeçalho
+ * {@code KEYS:<versão inicial>:<versão final>:<página>:<total de páginas>}
+ * seguida de linhas {@code +usuario:chave} (entrada ou troca de chave) e
+ * {@code -usuario} (saída). Versão inicial 0 indica o diretório completo.
+ *
+ * <p>Chaves EC25519 só são repassadas a clientes que anunciaram {@link #EC_CAPABILITY}
+ * no REGISTRO: os clientes originais não sabem ler o prefixo {@code EC25519.} (o UDP
+ * abandona o resto da lista, e o TCP para de receber mensagens). Para esses clientes,
+ * um usuário com chave EC25519 aparece como ausente.
+ *
+ * <p>O diretório guarda a forma anunciada de cada chave ({@link #published}): a chave
+ * seguida de {@code :AES} quando o dono anunciou {@link #AES_CAPABILITY} e aceita o
+ * modo de sessão de {@link SessionKeys}. Só quem também anunciou {@code AES} recebe o
+ * sufixo; para os demais, a chave vai como sempre foi.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class KeyDirectory {
+    static final String HEADER = "KEYS:";
+    // Capacidade anunciada no REGISTRO pelos clientes que sabem ler chaves EC25519
+    static final String EC_CAPABILITY = "EC";
+    // Capacidade anunciada no REGISTRO pelos clientes que abrem mensagens do modo de sessão
+    static final String AES_CAPABILITY = "AES";
+    private static final String AES_SUFFIX = ":" + AES_CAPABILITY;
+    private static final int MAX_CHANGES = Integer.getInteger("chat.keys.history", 4096);
+
+    /**
+     * Uma alteração do diretório. {@code encoded} (na forma anunciada) é null quando o usuário saiu.
+     */
+    private static class Change {
+        final long version;
+        final String user;
+        final String encoded;
+
+        Change(long version, String user, String encoded) {
+            this.version = version;
+            this.user = user;
+            this.encoded = encoded;
+        }
+    }
+
+    private final Map<String, PublicKey> keys = new HashMap<>();
+    private final Map<String, String> encodedKeys = new HashMap<>();
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    // Começa no relógio para que versões de uma execução anterior do servidor
+    // sejam sempre mais antigas que o histórico desta execução.
+    private long version = System.currentTimeMillis();
+    private long oldestVersion = version;
+
+    /**
+     * Registra (ou substitui) a chave de um usuário.
+     *
+     * @param user O nome do usuário.
+     * @param key A chave pública.
+     * @param aes Se o dono anunciou {@link #AES_CAPABILITY}.
+     * @return A nova versão do diretório.
+     */
+    synchronized long put(String user, PublicKey key, boolean aes) {
+        String encoded = published(RSAUtils.keyToString(key), aes);
+        keys.put(user, key);
+        encodedKeys.put(user, encoded);
+        return record(user, encoded);
+    }
+
+    /**
+     * Remove a chave de um usuário.
+     *
+     * @param user O nome do usuário.
+     * @return A nova versão do diretório, ou -1 se o usuário não existia.
+     */
+    synchronized long remove(String user) {
+        if (keys.remove(user) == null) return -1;
+        encodedKeys.remove(user);
+        return record(user, null);
+    }
+
+    private long record(String user, String encoded) {
+        changes.addLast(new Change(++version, user, encoded));
+        if (changes.size() > MAX_CHANGES) {
+            oldestVersion = changes.removeFirst().version;
+        }
+        return version;
+    }
+
+    /**
+     * @param user O nome do usuário.
+     * @return A chave pública do usuário, ou null.
+     */
+    synchronized PublicKey get(String user) {
+        return keys.get(user);
+    }
+
+    /**
+     * @param user O nome do usuário.
+     * @return A chave do usuário já codificada em Base64, ou null.
+     */
+    synchronized String encoded(String user) {
+        String encoded = encodedKeys.get(user);
+        return encoded != null ? keyOf(encoded) : null;
+    }
+
+    /**
+     * @param user O nome do usuário.
+     * @return A chave do usuário na forma anunciada ({@link #published}), ou null.
+     */
+    synchronized String publishedKey(String user) {
+        return encodedKeys.get(user);
+    }
+
+    /**
+     * @return A versão atual do diretório.
+     */
+    synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Indica se uma chave pode ser repassada a um cliente.
+     *
+     * @param encoded A chave, no formato de {@link RSAUtils#keyToString}.
+     * @param ec Se o cliente anunciou {@link #EC_CAPABILITY}.
+     * @return false para uma chave EC25519 a caminho de um cliente que não a entende.
+     */
+    static boolean readableBy(String encoded, boolean ec) {
+        return ec || !encoded.startsWith(Ec25519.PREFIX);
+    }
+
+    /**
+     * Forma anunciada de uma chave, usada no diretório e entre servidores (a ponte do
+     * {@link ChatServerDual} e o {@link ClusterLink}).
+     *
+     * @param encoded A chave, no formato de {@link RSAUtils#keyToString}.
+     * @param aes Se o dono anunciou {@link #AES_CAPABILITY}.
+     * @return A chave, seguida de {@code :AES} se for o caso.
+     */
+    static String published(String encoded, boolean aes) {
+        return aes ? encoded + AES_SUFFIX : encoded;
+    }
+
+    /**
+     * @param published Uma chave na forma anunciada.
+     * @return A chave sem o sufixo de capacidade.
+     */
+    static String keyOf(String published) {
+        return sessionCapable(published) ? published.substring(0, published.length() - AES_SUFFIX.length()) : published;
+    }
+
+    /**
+     * @param published Uma chave na forma anunciada.
+     * @return Se o dono da chave aceita mensagens do modo de sessão.
+     */
+    static boolean sessionCapable(String published) {
+        return published.endsWith(AES_SUFFIX);
+    }
+
+    /**
+     * Forma de uma chave para um cliente.
+     *
+     * @param published A chave na forma anunciada.
+     * @param ec Se o cliente anunciou {@link #EC_CAPABILITY}.
+     * @param aes Se o cliente anunciou {@link #AES_CAPABILITY}.
+     * @return null se o cliente não sabe ler a chave; sem o sufixo {@code :AES} se ele não o entende.
+     */
+    static String forReader(String published, boolean ec, boolean aes) {
+        if (!readableBy(published, ec)) return null;
+        return aes ? published : keyOf(published);
+    }
+
+    /**
+     * Monta a resposta no formato antigo ({@code LISTA_KEYS}) para clientes que não
+     * sabem sincronizar, reaproveitando as chaves já codificadas.
+     *
+     * @param ec Se o cliente anunciou {@link #EC_CAPABILITY}.
+     * @param aes Se o cliente anunciou {@link #AES_CAPABILITY}.
+     * @return A lista completa das chaves que o cliente sabe ler.
+     */
+    synchronized String legacyList(boolean ec, boolean aes) {
+        StringBuilder sb = new StringBuilder("LISTA_KEYS:\n");
+        for (Map.Entry<String, String> entry : encodedKeys.entrySet()) {
+            String key = forReader(entry.getValue(), ec, aes);
+            if (key != null) sb.append(entry.getKey()).append(":").append(key).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Linha de página para o estado atual de um usuário, como o cliente deve vê-lo.
+     */
+    private static String line(String user, String encoded, boolean ec, boolean aes) {
+        String key = encoded != null ? forReader(encoded, ec, aes) : null;
+        return key != null ? "+" + user + ":" + key : "-" + user;
+    }
+
+    /**
+     * Calcula as alterações desde a versão informada e as divide em páginas.
+     *
+     * @param since A última versão conhecida pelo cliente (0 se nenhuma).
+     * @param maxPageBytes O tamanho máximo de cada página.
+     * @param ec Se o cliente anunciou {@link #EC_CAPABILITY}.
+     * @param aes Se o cliente anunciou {@link #AES_CAPABILITY}.
+     * @return As páginas a enviar, nunca vazio (sem alterações gera uma página só com o cabeçalho).
+     */
+    synchronized List<String> delta(long since, int maxPageBytes, boolean ec, boolean aes) {
+        List<String> lines = new ArrayList<>();
+        long from;
+
+        if (since >= oldestVersion && since <= version) {
+            from = since;
+            // Só a última alteração de cada usuário importa
+            Map<String, String> latest = new LinkedHashMap<>();
+            for (Iterator<Change> it = changes.descendingIterator(); it.hasNext(); ) {
+                Change c = it.next();
+                if (c.version <= since) break;
+                latest.putIfAbsent(c.user, c.encoded);
+            }
+            for (Map.Entry<String, String> entry : latest.entrySet()) {
+                lines.add(line(entry.getKey(), entry.getValue(), ec, aes));
+            }
+        } else {
+            from = 0;
+            for (Map.Entry<String, String> entry : encodedKeys.entrySet()) {
+                String key = forReader(entry.getValue(), ec, aes);
+                if (key != null) lines.add("+" + entry.getKey() + ":" + key);
+            }
+        }
+
+        return paginate(from, version, lines, maxPageBytes);
+    }
+
+    /**
+     * Monta a página única anunciada a clientes sincronizados quando um usuário entra ou sai.
+     *
+     * @param user O usuário alterado.
+     * @param newVersion A versão resultante da alteração.
+     * @param ec Se o cliente anunciou {@link #EC_CAPABILITY}.
+     * @param aes Se o cliente anunciou {@link #AES_CAPABILITY}.
+     * @return A página com a alteração.
+     */
+    synchronized String change(String user, long newVersion, boolean ec, boolean aes) {
+        return HEADER + (newVersion - 1) + ":" + newVersion + ":0:1\n" + line(user, encodedKeys.get(user), ec, aes) + "\n";
+    }
+
+    private static List<String> paginate(long from, long to, List<String> lines, int maxPageBytes) {
+        // Reserva espaço para o cabeçalho, que só é conhecido no final
+        int budget = maxPageBytes - 64;
+        List<StringBuilder> bodies = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        bodies.add(current);
+        for (String line : lines) {
+            if (current.length() > 0 && current.length() + line.length() + 1 > budget) {
+                current = new StringBuilder();
+                bodies.add(current);
+            }
+            current.append(line).append("\n");
+        }
+
+        List<String> pages = new ArrayList<>(bodies.size());
+        for (int i = 0; i < bodies.size(); i++) {
+            pages.add(HEADER + from + ":" + to + ":" + i + ":" + bodies.size() + "\n" + bodies.get(i));
+        }
+        return pages;
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latências no estilo HDR. Os valores (em nanossegundos) caem em
+ * faixas log-lineares: cada potência de 2 é dividida em 64 sub-faixas iguais,
+ * então o erro relativo de um percentil fica abaixo de 1/64 (cerca de 1,6%),
+ * de 1 ns até cerca de 18 minutos, com um array fixo de contadores.
+ *
+ * <p>{@link #record} não aloca nem usa locks: são só incrementos atômicos, então
+ * pode ser chamado de qualquer thread no caminho das mensagens. As leituras
+ * (percentis, contagem) não são um instantâneo atômico, o que basta para métricas.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int LENGTH = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LENGTH);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Registra um valor.
+     *
+     * @param nanos A latência em nanossegundos (valores negativos contam como 0).
+     */
+    void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // outra thread registrou um máximo ao mesmo tempo; tenta de novo
+        }
+    }
+
+    /**
+     * @return Quantos valores foram registrados.
+     */
+    long count() {
+        return total.get();
+    }
+
+    /**
+     * @return O maior valor registrado, em nanossegundos.
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * @return A média dos valores, em nanossegundos.
+     */
+    double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Valor abaixo do qual está a porcentagem pedida dos registros.
+     *
+     * @param percentile O percentil, de 0 a 100.
+     * @return O limite superior da faixa do percentil, em nanossegundos (0 se vazio).
+     */
+    long percentile(double percentile) {
+        long n = total.get();
+        if (n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(lowestValue(i + 1) - 1, max.get());
+        }
+        return max.get();
+    }
+
+    private static int index(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1));
+        int sub = (int) (value >>> shift);
+        return shift == 0 ? sub : shift * HALF + sub;
+    }
+
+    private static long lowestValue(int index) {
+        if (index < 2 * HALF) return index;
+        int shift = index / HALF - 1;
+        return (long) (index - shift * HALF) << shift;
+    }
+}
@@ -0,0 +1,435 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Armazenamento das mensagens privadas enviadas a usuários offline, entregues
+ * quando o destinatário se registra de novo. As mensagens seguras são guardadas
+ * como chegaram (o servidor continua sem ler o conteúdo).
+ *
+ * <p>O log é só de acréscimo e dividido em segmentos de tamanho fixo
+ * ({@code -Dchat.offline.segmentBytes}, padrão 4 MB), mapeados em memória
+ * ({@link MappedByteBuffer}). Cada registro tem um byte de estado; entregar uma
+ * mensagem só troca esse byte. Um índice em memória guarda, por destinatário, a
+ * posição das mensagens pendentes em ordem de chegada, então o replay percorre
+ * só as mensagens do usuário, em uma única passada. Na abertura, o índice é
+ * reconstruído lendo os segmentos existentes.
+ *
+ * <p>Todo o trabalho de disco roda em uma única thread ({@code chat-offline}): o
+ * roteamento apenas enfileira a operação, então guardar uma mensagem não atrasa as
+ * entregas ao vivo, e o estado da classe não precisa de locks. A thread força os
+ * segmentos alterados para o disco sempre que a fila esvazia. A cada
+ * {@code -Dchat.offline.compactMs} (padrão 60 s), ela descarta as mensagens mais
+ * antigas que {@code -Dchat.offline.retentionHours} (padrão 168), apaga os
+ * segmentos sem mensagens pendentes e reescreve no segmento ativo as pendentes de
+ * segmentos com menos de um quarto do espaço em uso.
+ *
+ * <p>Os arquivos ficam em {@code -Dchat.offline.dir}/servidor (padrão
+ * {@code offline}; {@code none} desliga o armazenamento).
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class OfflineStore {
+    private static final int SEGMENT_BYTES = Integer.getInteger("chat.offline.segmentBytes", 4 << 20);
+    private static final long RETENTION_MS = TimeUnit.HOURS.toMillis(Long.getLong("chat.offline.retentionHours", 168));
+    private static final long COMPACT_MS = Long.getLong("chat.offline.compactMs", 60_000);
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.offline.queue", 65536);
+    private static final String SUFFIX = ".seg";
+
+    private static final byte PENDING = 0;
+    private static final byte DELIVERED = 1;
+    // tamanho (int), estado (byte), instante (long), opcode (byte); seguem remetente,
+    // destinatário, chave do remetente e assinatura (cada um com 2 bytes de tamanho) e o payload
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 1;
+
+    /**
+     * Entrega uma mensagem ao destinatário, se ele estiver conectado.
+     */
+    interface Delivery {
+        /**
+         * @param message A mensagem (um aviso do servidor se o opcode for {@link WireFrame#TEXT}).
+         * @return false se o destinatário não está conectado.
+         * @throws Exception Se ocorrer um erro ao enviar.
+         */
+        boolean deliver(Message message) throws Exception;
+    }
+
+    /**
+     * Uma mensagem guardada: remetente, destinatário, instante e o frame com o conteúdo.
+     * A chave pública do remetente vai junto: depois de um reinício do servidor, ela
+     * pode ser a única cópia que permite ao destinatário verificar ou abrir a mensagem.
+     */
+    static final class Message {
+        final String from;
+        final String to;
+        // chave do remetente no formato de RSAUtils.keyToString ("" se desconhecida)
+        final String senderKey;
+        final long time;
+        // PRIVATE, SECURE ou SECURE_SESSION; os ids do frame não são usados
+        final WireFrame frame;
+
+        Message(String from, String to, String senderKey, WireFrame frame) {
+            this(from, to, senderKey, System.currentTimeMillis(), frame);
+        }
+
+        private Message(String from, String to, String senderKey, long time, WireFrame frame) {
+            this.from = from;
+            this.to = to;
+            this.senderKey = senderKey != null ? senderKey : "";
+            this.time = time;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Um arquivo do log, mapeado em memória.
+     */
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final MappedByteBuffer buffer;
+        // posição do próximo registro
+        int end;
+        // mensagens pendentes e os bytes que elas ocupam
+        int live;
+        long liveBytes;
+
+        Segment(int id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Posição de uma mensagem pendente; muda quando a compactação a copia para outro segmento.
+     */
+    private static final class Pointer {
+        Segment segment;
+        int offset;
+        final int length;
+        final long time;
+
+        Pointer(Segment segment, int offset, int length, long time) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Uma operação executada pela thread do armazenamento.
+     */
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    private final Path dir;
+    private final Delivery delivery;
+    private final BlockingQueue<Op> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    // Estado abaixo: só a thread do armazenamento o acessa (depois do construtor)
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<String, ArrayDeque<Pointer>> index = new HashMap<>();
+    private final Set<Segment> dirty = new HashSet<>();
+    private Segment active;
+
+    /**
+     * Abre o armazenamento de um servidor, se ele não estiver desligado.
+     *
+     * @param server O nome do servidor ("tcp" ou "udp"), usado como subdiretório.
+     * @param delivery Entrega as mensagens aos destinatários conectados.
+     * @return O armazenamento, ou null se desligado ou se o diretório não puder ser aberto.
+     */
+    static OfflineStore open(String server, Delivery delivery) {
+        String dir = System.getProperty("chat.offline.dir", "offline");
+        if (dir.equalsIgnoreCase("none")) return null;
+        try {
+            return new OfflineStore(Paths.get(dir, server), delivery);
+        } catch (IOException e) {
+            ChatLog.error("Armazenamento offline desativado: nao foi possivel abrir {}", dir, e);
+            return null;
+        }
+    }
+
+    private OfflineStore(Path dir, Delivery delivery) throws IOException {
+        this.dir = dir;
+        this.delivery = delivery;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+                segments.put(id, map(id, file, Files.size(file)));
+            }
+        }
+        int pending = 0;
+        for (Segment segment : segments.values()) pending += load(segment);
+        // Mensagens copiadas pela compactação ficam fora de ordem no log; o replay segue a ordem de chegada
+        for (ArrayDeque<Pointer> pointers : index.values()) {
+            List<Pointer> sorted = new ArrayList<>(pointers);
+            sorted.sort(Comparator.comparingLong(p -> p.time));
+            pointers.clear();
+            pointers.addAll(sorted);
+        }
+        active = create(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        ChatLog.info("Armazenamento offline em {}: {} mensagem(ns) pendente(s) para {} usuario(s)",
+                dir, pending, index.size());
+
+        Thread writer = new Thread(this::writeLoop, "chat-offline");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Guarda uma mensagem para um destinatário offline. Se ele tiver se conectado
+     * nesse meio tempo (e não houver mensagens mais antigas para ele), a mensagem é
+     * entregue em vez de guardada. Nunca bloqueia; com a fila cheia, a mensagem é descartada.
+     *
+     * @param message A mensagem.
+     */
+    void store(Message message) {
+        if (!queue.offer(() -> append(message))) {
+            ChatLog.warn("Fila do armazenamento offline cheia; mensagem para {} descartada", message.to);
+        }
+    }
+
+    /**
+     * Entrega, em ordem de chegada, as mensagens guardadas para um usuário que acabou de se registrar.
+     *
+     * @param user O usuário.
+     */
+    void replay(String user) {
+        if (!queue.offer(() -> deliverPending(user))) {
+            ChatLog.warn("Fila do armazenamento offline cheia; replay de {} adiado", user);
+        }
+    }
+
+    private void writeLoop() {
+        long nextCompaction = System.currentTimeMillis();
+        while (true) {
+            try {
+                long wait = nextCompaction - System.currentTimeMillis();
+                Op op = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (op != null) op.run();
+                if (queue.isEmpty()) flush();
+                if (System.currentTimeMillis() >= nextCompaction) {
+                    compact();
+                    nextCompaction = System.currentTimeMillis() + COMPACT_MS;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                ChatLog.error("Erro no armazenamento offline", e);
+            }
+        }
+    }
+
+    private void append(Message message) throws Exception {
+        if (!index.containsKey(message.to) && delivery.deliver(message)) return;
+        byte[] from = message.from.getBytes(StandardCharsets.UTF_8);
+        byte[] to = message.to.getBytes(StandardCharsets.UTF_8);
+        byte[] key = message.senderKey.getBytes(StandardCharsets.UTF_8);
+        WireFrame frame = message.frame;
+        int length = HEADER_BYTES + 2 + from.length + 2 + to.length + 2 + key.length
+                + 2 + frame.signature.length + frame.payload.length;
+        if (length > SEGMENT_BYTES) {
+            ChatLog.warn("Mensagem offline para {} maior que um segmento ({} bytes); descartada", message.to, length);
+            return;
+        }
+        Segment segment = reserve(length);
+        int offset = segment.end;
+        ByteBuffer out = segment.buffer.duplicate();
+        out.position(offset + 4);
+        out.put(PENDING).putLong(message.time).put(frame.opcode);
+        out.putShort((short) from.length).put(from);
+        out.putShort((short) to.length).put(to);
+        out.putShort((short) key.length).put(key);
+        out.putShort((short) frame.signature.length).put(frame.signature);
+        out.put(frame.payload);
+        // O tamanho é escrito por último: um registro interrompido no meio parece o fim do log
+        segment.buffer.putInt(offset, length);
+        committed(segment, length);
+        index.computeIfAbsent(message.to, u -> new ArrayDeque<>()).add(new Pointer(segment, offset, length, message.time));
+    }
+
+    private void deliverPending(String user) throws Exception {
+        ArrayDeque<Pointer> pending = index.get(user);
+        if (pending == null) return;
+        int count = pending.size();
+        String notice = "Voce tem " + count + " mensagem(ns) recebida(s) enquanto estava offline.";
+        if (!delivery.deliver(new Message("", user, "", new WireFrame(WireFrame.TEXT, 0, 0, new byte[0],
+                notice.getBytes(StandardCharsets.UTF_8))))) return;
+
+        long cutoff = System.currentTimeMillis() - RETENTION_MS;
+        Pointer pointer;
+        while ((pointer = pending.peek()) != null) {
+            // O usuário pode ter saído de novo no meio do replay; o resto fica para a próxima vez
+            if (pointer.time >= cutoff && !delivery.deliver(read(pointer))) return;
+            pending.poll();
+            markDelivered(pointer);
+        }
+        index.remove(user);
+        ChatLog.info("{} mensagem(ns) offline entregue(s) a {}", count, user);
+    }
+
+    /**
+     * Aplica a retenção, apaga os segmentos sem pendências e copia as pendentes dos
+     * segmentos quase vazios para o segmento ativo.
+     */
+    private void compact() throws IOException {
+        long cutoff = System.currentTimeMillis() - RETENTION_MS;
+        int expired = 0;
+        for (Iterator<ArrayDeque<Pointer>> it = index.values().iterator(); it.hasNext(); ) {
+            ArrayDeque<Pointer> pending = it.next();
+            while (!pending.isEmpty() && pending.peek().time < cutoff) {
+                markDelivered(pending.poll());
+                expired++;
+            }
+            if (pending.isEmpty()) it.remove();
+        }
+        if (expired > 0) ChatLog.info("{} mensagem(ns) offline descartada(s) pela retencao", expired);
+
+        Set<Segment> sparse = new HashSet<>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.live > 0 && segment.liveBytes < segment.buffer.capacity() / 4) sparse.add(segment);
+        }
+        if (!sparse.isEmpty()) {
+            List<Pointer> moved = new ArrayList<>();
+            List<Pointer> copies = new ArrayList<>();
+            for (ArrayDeque<Pointer> pending : index.values()) {
+                for (Pointer pointer : pending) {
+                    if (!sparse.contains(pointer.segment)) continue;
+                    moved.add(new Pointer(pointer.segment, pointer.offset, pointer.length, pointer.time));
+                    copy(pointer);
+                    copies.add(pointer);
+                }
+            }
+            // As cópias vão para o disco antes de os originais serem marcados
+            flush();
+            for (Pointer original : moved) markDelivered(original);
+            ChatLog.debug("Compactacao offline: {} mensagem(ns) copiada(s) de {} segmento(s)", copies.size(), sparse.size());
+        }
+
+        for (Iterator<Segment> it = segments.values().iterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+            if (segment == active || segment.live > 0) continue;
+            it.remove();
+            dirty.remove(segment);
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    /**
+     * Copia um registro pendente para o segmento ativo e aponta o ponteiro para a cópia.
+     */
+    private void copy(Pointer pointer) throws IOException {
+        Segment target = reserve(pointer.length);
+        ByteBuffer in = pointer.segment.buffer.duplicate();
+        in.limit(pointer.offset + pointer.length).position(pointer.offset + 4);
+        ByteBuffer out = target.buffer.duplicate();
+        out.position(target.end + 4);
+        out.put(in);
+        target.buffer.putInt(target.end, pointer.length);
+        pointer.segment = target;
+        pointer.offset = target.end;
+        committed(target, pointer.length);
+    }
+
+    /**
+     * @return O segmento ativo, trocado por um novo se o registro não couber nele.
+     */
+    private Segment reserve(int length) throws IOException {
+        if (active.end + length > active.buffer.capacity()) {
+            dirty.add(active);
+            active = create(active.id + 1);
+        }
+        return active;
+    }
+
+    private void committed(Segment segment, int length) {
+        segment.end += length;
+        segment.live++;
+        segment.liveBytes += length;
+        dirty.add(segment);
+    }
+
+    private void markDelivered(Pointer pointer) {
+        Segment segment = pointer.segment;
+        segment.buffer.put(pointer.offset + 4, DELIVERED);
+        segment.live--;
+        segment.liveBytes -= pointer.length;
+        dirty.add(segment);
+    }
+
+    private void flush() {
+        for (Segment segment : dirty) segment.buffer.force();
+        dirty.clear();
+    }
+
+    private Message read(Pointer pointer) {
+        ByteBuffer in = pointer.segment.buffer.duplicate();
+        in.limit(pointer.offset + pointer.length).position(pointer.offset + 5);
+        long time = in.getLong();
+        byte opcode = in.get();
+        String from = readString(in);
+        String to = readString(in);
+        String senderKey = readString(in);
+        byte[] signature = new byte[in.getShort() & 0xFFFF];
+        in.get(signature);
+        byte[] payload = new byte[in.remaining()];
+        in.get(payload);
+        return new Message(from, to, senderKey, time, new WireFrame(opcode, 0, 0, signature, payload));
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lê os registros de um segmento existente, indexando os pendentes.
+     *
+     * @return Quantas mensagens pendentes o segmento tem.
+     */
+    private int load(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length < HEADER_BYTES || offset + length > buffer.capacity()) break;
+            if (buffer.get(offset + 4) == PENDING) {
+                Pointer pointer = new Pointer(segment, offset, length, buffer.getLong(offset + 5));
+                index.computeIfAbsent(read(pointer).to, u -> new ArrayDeque<>()).add(pointer);
+                segment.live++;
+                segment.liveBytes += length;
+            }
+            offset += length;
+        }
+        segment.end = offset;
+        return segment.live;
+    }
+
+    private Segment create(int id) throws IOException {
+        Segment segment = map(id, dir.resolve(String.format("%08d%s", id, SUFFIX)), SEGMENT_BYTES);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static Segment map(int id, Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // O mapeamento continua válido depois que o canal é fechado
+            return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fila de saída limitada de uma conexão. Quem roteia mensagens apenas enfileira
+ * (sem nunca tocar no socket), e um escritor dedicado à conexão esvazia a fila.
+ * Assim um cliente lento enche apenas a própria fila, sem atrasar os demais.
+ * Quando a fila passa do limite (high-water mark), a {@link Policy} configurada decide o que fazer.
+ *
+ * <p>Configuração por propriedades de sistema:
+ * {@code chat.slowConsumer} (DROP_OLDEST, DROP_NEW ou DISCONNECT) e
+ * {@code chat.queueBytes} (limite em bytes por conexão).
+ *
+ * <p>O estado é protegido por um {@link ReentrantLock}, e não por {@code synchronized}:
+ * um escritor que espera em {@code wait()} dentro de um monitor prende a thread
+ * portadora quando roda numa thread virtual, enquanto a espera em uma
+ * {@link Condition} a libera (ver o modo {@code virtual} de {@link ChatServerTCP}).
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class OutboundQueue {
+
+    /**
+     * Política aplicada quando um consumidor lento excede o limite da fila.
+     */
+    enum Policy {
+        /** Descarta as mensagens mais antigas até a nova caber. */
+        DROP_OLDEST,
+        /** Descarta a mensagem nova. */
+        DROP_NEW,
+        /** Desconecta o cliente. */
+        DISCONNECT
+    }
+
+    static final Policy POLICY = Policy.valueOf(System.getProperty("chat.slowConsumer", "DISCONNECT").toUpperCase());
+    static final long HIGH_WATER_BYTES = Long.getLong("chat.queueBytes", 1 << 20);
+
+    // Contadores globais (todas as conexões)
+    static final AtomicLong totalQueuedBytes = new AtomicLong();
+    static final AtomicLong totalDropped = new AtomicLong();
+    static final AtomicLong totalDisconnects = new AtomicLong();
+
+    private final ArrayDeque<ByteBuffer> items = new ArrayDeque<>();
+    private final Policy policy;
+    private final long highWaterBytes;
+    private long queuedBytes;
+    private boolean closed;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * Cria uma fila com a política e o limite globais.
+     */
+    OutboundQueue() {
+        this(POLICY, HIGH_WATER_BYTES);
+    }
+
+    /**
+     * Cria uma fila com política e limite próprios.
+     *
+     * @param policy A política para consumidores lentos.
+     * @param highWaterBytes O limite de bytes enfileirados.
+     */
+    OutboundQueue(Policy policy, long highWaterBytes) {
+        this.policy = policy;
+        this.highWaterBytes = highWaterBytes;
+    }
+
+    /**
+     * Enfileira uma mensagem sem bloquear.
+     *
+     * @param msg A mensagem já codificada.
+     * @return false se a política manda desconectar o cliente, true caso contrário
+     *         (inclusive quando alguma mensagem foi descartada ou a fila já foi fechada).
+     */
+    boolean offer(ByteBuffer msg) {
+        lock.lock();
+        try {
+            return offerLocked(msg);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean offerLocked(ByteBuffer msg) {
+        if (closed) return true;
+        int size = msg.remaining();
+
+        if (queuedBytes + size > highWaterBytes) {
+            switch (policy) {
+                case DISCONNECT:
+                    // Fecha a fila aqui para que só o primeiro excesso peça a desconexão.
+                    close();
+                    totalDisconnects.incrementAndGet();
+                    return false;
+                case DROP_NEW:
+                    totalDropped.incrementAndGet();
+                    return true;
+                case DROP_OLDEST:
+                    while (!items.isEmpty() && queuedBytes + size > highWaterBytes) {
+                        ByteBuffer old = items.poll();
+                        queuedBytes -= old.remaining();
+                        totalQueuedBytes.addAndGet(-old.remaining());
+                        totalDropped.incrementAndGet();
+                    }
+                    break;
+            }
+        }
+
+        items.add(msg);
+        queuedBytes += size;
+        totalQueuedBytes.addAndGet(size);
+        notEmpty.signal();
+        return true;
+    }
+
+    /**
+     * Remove a próxima mensagem sem bloquear.
+     *
+     * @return A mensagem, ou null se a fila estiver vazia.
+     */
+    ByteBuffer poll() {
+        lock.lock();
+        try {
+            ByteBuffer msg = items.poll();
+            if (msg != null) {
+                queuedBytes -= msg.remaining();
+                totalQueuedBytes.addAndGet(-msg.remaining());
+            }
+            return msg;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a próxima mensagem, aguardando se a fila estiver vazia.
+     *
+     * @return A mensagem, ou null se a fila foi fechada.
+     * @throws InterruptedException Se a thread for interrompida.
+     */
+    ByteBuffer take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (items.isEmpty() && !closed) notEmpty.await();
+            return poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a próxima mensagem, aguardando no máximo {@code timeout} se a fila estiver vazia.
+     *
+     * @param timeout O tempo máximo de espera.
+     * @param unit A unidade de {@code timeout}.
+     * @return A mensagem, ou null se o tempo acabou ou a fila foi fechada.
+     * @throws InterruptedException Se a thread for interrompida.
+     */
+    ByteBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (items.isEmpty() && !closed && nanos > 0) nanos = notEmpty.awaitNanos(nanos);
+            return poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Indica se não há mensagens pendentes.
+     *
+     * @return true se a fila estiver vazia.
+     */
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return items.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Descarta as mensagens pendentes e acorda o escritor para que ele termine.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            totalQueuedBytes.addAndGet(-queuedBytes);
+            queuedBytes = 0;
+            items.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
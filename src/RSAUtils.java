@@ -1,17 +1,98 @@
 import java.security.*;
 import java.security.spec.*;
 import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 
 /**
  * Classe utilitária para operações de criptografia e gerenciamento de chaves RSA.
  * Fornece métodos estáticos para geração de chaves, criptografia,
  * descriptografia, assinatura e verificação.
+ * Também oferece as primitivas do modo de sessão híbrido: o RSA só protege
+ * uma chave AES por par de usuários, e as mensagens são cifradas com AES-GCM.
+ *
+ * <p>As instâncias de Cipher, Signature e KeyFactory são criadas uma vez por thread
+ * e reaproveitadas, evitando a busca de provider em cada chamada. Como cada thread
+ * tem as suas, os métodos continuam seguros para uso concorrente.
+ *
+ * <p>Há dois conjuntos de chaves de identidade ({@link Suite}): RSA-2048 e EC25519
+ * (X25519 + Ed25519, em {@link Ec25519}). Cada método escolhe o algoritmo pelo tipo
+ * da chave recebida, então a negociação é implícita: a cifragem segue a chave
+ * publicada pelo destinatário e a assinatura segue a do remetente. Clientes RSA e
+ * EC25519 conversam entre si. Clientes que anunciam {@code EC} no registro recebem
+ * as duas formas de chave; os demais só recebem chaves RSA, que são as que sabem ler.
  *
  * @author [Seu Nome]
  * @version 1.0
  */
 public class RSAUtils {
+    private static final String WRAP_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final int GCM_IV_BYTES = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> RSA_CIPHER = engine(() -> Cipher.getInstance("RSA/ECB/PKCS1Padding"));
+    private static final ThreadLocal<Cipher> WRAP_CIPHER = engine(() -> Cipher.getInstance(WRAP_TRANSFORMATION));
+    private static final ThreadLocal<Cipher> AES_CIPHER = engine(() -> Cipher.getInstance("AES/GCM/NoPadding"));
+    private static final ThreadLocal<Signature> SIGNATURE = engine(() -> Signature.getInstance("SHA256withRSA"));
+    private static final ThreadLocal<KeyFactory> KEY_FACTORY = engine(() -> KeyFactory.getInstance("RSA"));
+
+    /**
+     * Cria uma instância de um motor criptográfico (Cipher, Signature, KeyFactory...).
+     */
+    private interface EngineFactory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    private static <T> ThreadLocal<T> engine(EngineFactory<T> factory) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return factory.create();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Conjunto de chaves de identidade.
+     */
+    public enum Suite {
+        RSA,
+        EC25519;
+
+        /**
+         * @return O conjunto escolhido com {@code -Dchat.suite=rsa|ec25519} (padrão: RSA).
+         */
+        public static Suite configured() {
+            return valueOf(System.getProperty("chat.suite", "rsa").toUpperCase());
+        }
+    }
+
+    /**
+     * @param key Uma chave pública ou privada de identidade.
+     * @return O conjunto a que a chave pertence.
+     */
+    public static Suite suiteOf(Key key) {
+        return key instanceof Ec25519.Public || key instanceof Ec25519.Private ? Suite.EC25519 : Suite.RSA;
+    }
+
+    /**
+     * Gera um novo par de chaves de identidade do conjunto indicado.
+     *
+     * @param suite O conjunto de chaves.
+     * @return O par de chaves.
+     * @throws NoSuchAlgorithmException Se o algoritmo não estiver disponível.
+     */
+    public static KeyPair generateKeyPair(Suite suite) throws NoSuchAlgorithmException {
+        return suite == Suite.EC25519 ? Ec25519.generateKeyPair() : generateKeyPair();
+    }
 
     /**
      * Gera um novo par de chaves RSA.
@@ -32,6 +113,7 @@ public class RSAUtils {
      * @return A chave em formato de String.
      */
     public static String keyToString(PublicKey key) {
+        if (key instanceof Ec25519.Public) return Ec25519.keyToString((Ec25519.Public) key);
         return Base64.getEncoder().encodeToString(key.getEncoded());
     }
 
@@ -43,10 +125,33 @@ public class RSAUtils {
      * @throws Exception Se ocorrer um erro durante a conversão.
      */
     public static PublicKey stringToPublicKey(String keyStr) throws Exception {
+        if (keyStr.startsWith(Ec25519.PREFIX)) return Ec25519.stringToPublicKey(keyStr);
         byte[] bytes = Base64.getDecoder().decode(keyStr);
         X509EncodedKeySpec spec = new X509EncodedKeySpec(bytes);
-        KeyFactory kf = KeyFactory.getInstance("RSA");
-        return kf.generatePublic(spec);
+        return KEY_FACTORY.get().generatePublic(spec);
+    }
+
+    /**
+     * Converte uma chave privada para String, para guardá-la no keystore local.
+     *
+     * @param key A chave privada.
+     * @return A chave em formato de String (PKCS#8 em Base64 no caso do RSA).
+     */
+    public static String privateKeyToString(PrivateKey key) {
+        if (key instanceof Ec25519.Private) return Ec25519.privateKeyToString((Ec25519.Private) key);
+        return Base64.getEncoder().encodeToString(key.getEncoded());
+    }
+
+    /**
+     * Converte uma String produzida por {@link #privateKeyToString} de volta para PrivateKey.
+     *
+     * @param keyStr A String da chave.
+     * @return O objeto PrivateKey.
+     * @throws Exception Se ocorrer um erro durante a conversão.
+     */
+    public static PrivateKey stringToPrivateKey(String keyStr) throws Exception {
+        if (keyStr.startsWith(Ec25519.PREFIX)) return Ec25519.stringToPrivateKey(keyStr);
+        return KEY_FACTORY.get().generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(keyStr)));
     }
 
     /**
@@ -58,7 +163,8 @@ public class RSAUtils {
      * @throws Exception Se ocorrer um erro durante a criptografia.
      */
     public static byte[] encrypt(String message, PublicKey key) throws Exception {
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        if (key instanceof Ec25519.Public) return Ec25519.encrypt(message.getBytes("UTF-8"), (Ec25519.Public) key);
+        Cipher cipher = RSA_CIPHER.get();
         cipher.init(Cipher.ENCRYPT_MODE, key);
         return cipher.doFinal(message.getBytes("UTF-8"));
     }
@@ -72,7 +178,8 @@ public class RSAUtils {
      * @throws Exception Se ocorrer um erro durante a descriptografia.
      */
     public static String decrypt(byte[] encrypted, PrivateKey key) throws Exception {
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        if (key instanceof Ec25519.Private) return new String(Ec25519.decrypt(encrypted, (Ec25519.Private) key), "UTF-8");
+        Cipher cipher = RSA_CIPHER.get();
         cipher.init(Cipher.DECRYPT_MODE, key);
         byte[] decrypted = cipher.doFinal(encrypted);
         return new String(decrypted, "UTF-8");
@@ -87,7 +194,8 @@ public class RSAUtils {
      * @throws Exception Se ocorrer um erro durante a assinatura.
      */
     public static byte[] sign(String message, PrivateKey key) throws Exception {
-        Signature signature = Signature.getInstance("SHA256withRSA");
+        if (key instanceof Ec25519.Private) return Ec25519.sign(message.getBytes("UTF-8"), (Ec25519.Private) key);
+        Signature signature = SIGNATURE.get();
         signature.initSign(key);
         signature.update(message.getBytes("UTF-8"));
         return signature.sign();
@@ -103,9 +211,170 @@ public class RSAUtils {
      * @throws Exception Se ocorrer um erro durante a verificação.
      */
     public static boolean verify(String message, byte[] sig, PublicKey key) throws Exception {
-        Signature signature = Signature.getInstance("SHA256withRSA");
+        if (key instanceof Ec25519.Public) return Ec25519.verify(message.getBytes("UTF-8"), sig, (Ec25519.Public) key);
+        Signature signature = SIGNATURE.get();
         signature.initVerify(key);
         signature.update(message.getBytes("UTF-8"));
         return signature.verify(sig);
     }
+
+    /**
+     * Criptografa várias mensagens com a mesma chave pública, inicializando o Cipher uma única vez.
+     *
+     * @param messages As mensagens em texto simples.
+     * @param key A chave pública do destinatário.
+     * @return As mensagens criptografadas, na mesma ordem.
+     * @throws Exception Se ocorrer um erro durante a criptografia.
+     */
+    public static List<byte[]> encryptAll(List<String> messages, PublicKey key) throws Exception {
+        if (key instanceof Ec25519.Public) {
+            List<byte[]> result = new ArrayList<>(messages.size());
+            for (String message : messages) result.add(encrypt(message, key));
+            return result;
+        }
+        Cipher cipher = RSA_CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        List<byte[]> result = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            result.add(cipher.doFinal(message.getBytes("UTF-8")));
+        }
+        return result;
+    }
+
+    /**
+     * Assina várias mensagens com a mesma chave privada, inicializando o Signature uma única vez.
+     *
+     * @param messages As mensagens a serem assinadas.
+     * @param key A chave privada do remetente.
+     * @return As assinaturas, na mesma ordem.
+     * @throws Exception Se ocorrer um erro durante a assinatura.
+     */
+    public static List<byte[]> signAll(List<String> messages, PrivateKey key) throws Exception {
+        if (key instanceof Ec25519.Private) {
+            List<byte[]> result = new ArrayList<>(messages.size());
+            for (String message : messages) result.add(sign(message, key));
+            return result;
+        }
+        Signature signature = SIGNATURE.get();
+        signature.initSign(key);
+        List<byte[]> result = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            signature.update(message.getBytes("UTF-8"));
+            result.add(signature.sign());
+        }
+        return result;
+    }
+
+    /**
+     * Verifica várias assinaturas de um mesmo remetente, inicializando o Signature uma única vez.
+     *
+     * @param messages As mensagens originais.
+     * @param sigs As assinaturas, na mesma ordem das mensagens.
+     * @param key A chave pública do remetente.
+     * @return Para cada mensagem, true se a assinatura for válida.
+     * @throws Exception Se ocorrer um erro durante a verificação.
+     */
+    public static boolean[] verifyAll(List<String> messages, List<byte[]> sigs, PublicKey key) throws Exception {
+        if (key instanceof Ec25519.Public) {
+            boolean[] result = new boolean[messages.size()];
+            for (int i = 0; i < result.length; i++) result[i] = verify(messages.get(i), sigs.get(i), key);
+            return result;
+        }
+        Signature signature = SIGNATURE.get();
+        signature.initVerify(key);
+        boolean[] result = new boolean[messages.size()];
+        for (int i = 0; i < result.length; i++) {
+            signature.update(messages.get(i).getBytes("UTF-8"));
+            try {
+                result[i] = signature.verify(sigs.get(i));
+            } catch (SignatureException e) {
+                // Assinatura malformada: reinicia o objeto para a próxima verificação.
+                result[i] = false;
+                signature.initVerify(key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gera uma nova chave de sessão AES de 256 bits.
+     *
+     * @return A chave de sessão.
+     * @throws NoSuchAlgorithmException Se o algoritmo AES não estiver disponível.
+     */
+    public static SecretKey generateSessionKey() throws NoSuchAlgorithmException {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        return keyGen.generateKey();
+    }
+
+    /**
+     * Protege uma chave de sessão com a chave pública do destinatário (RSA-OAEP,
+     * ou ECIES para chaves EC25519).
+     *
+     * @param sessionKey A chave de sessão.
+     * @param key A chave pública do destinatário.
+     * @return A chave de sessão cifrada.
+     * @throws Exception Se ocorrer um erro durante a cifragem.
+     */
+    public static byte[] wrapKey(SecretKey sessionKey, PublicKey key) throws Exception {
+        if (key instanceof Ec25519.Public) return Ec25519.encrypt(sessionKey.getEncoded(), (Ec25519.Public) key);
+        Cipher cipher = WRAP_CIPHER.get();
+        cipher.init(Cipher.WRAP_MODE, key);
+        return cipher.wrap(sessionKey);
+    }
+
+    /**
+     * Recupera uma chave de sessão protegida com {@link #wrapKey}.
+     *
+     * @param wrapped A chave de sessão cifrada.
+     * @param key A chave privada do destinatário.
+     * @return A chave de sessão.
+     * @throws Exception Se ocorrer um erro durante a decifragem.
+     */
+    public static SecretKey unwrapKey(byte[] wrapped, PrivateKey key) throws Exception {
+        if (key instanceof Ec25519.Private) return new SecretKeySpec(Ec25519.decrypt(wrapped, (Ec25519.Private) key), "AES");
+        Cipher cipher = WRAP_CIPHER.get();
+        cipher.init(Cipher.UNWRAP_MODE, key);
+        return (SecretKey) cipher.unwrap(wrapped, "AES", Cipher.SECRET_KEY);
+    }
+
+    /**
+     * Criptografa uma mensagem com AES-GCM. O resultado contém o IV aleatório
+     * seguido do texto cifrado e da tag de autenticação, sem limite de tamanho.
+     *
+     * @param message A mensagem em texto simples.
+     * @param key A chave de sessão.
+     * @param aad Dados autenticados mas não cifrados (por exemplo, remetente e destinatário).
+     * @return IV || texto cifrado || tag.
+     * @throws Exception Se ocorrer um erro durante a criptografia.
+     */
+    public static byte[] encryptAES(String message, SecretKey key, byte[] aad) throws Exception {
+        byte[] iv = new byte[GCM_IV_BYTES];
+        RANDOM.nextBytes(iv);
+        Cipher cipher = AES_CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+        cipher.updateAAD(aad);
+        byte[] plain = message.getBytes("UTF-8");
+        byte[] out = Arrays.copyOf(iv, GCM_IV_BYTES + cipher.getOutputSize(plain.length));
+        cipher.doFinal(plain, 0, plain.length, out, GCM_IV_BYTES);
+        return out;
+    }
+
+    /**
+     * Descriptografa e autentica uma mensagem produzida por {@link #encryptAES}.
+     *
+     * @param data IV || texto cifrado || tag.
+     * @param key A chave de sessão.
+     * @param aad Os mesmos dados autenticados usados na criptografia.
+     * @return A mensagem em texto simples.
+     * @throws Exception Se a autenticação falhar ou ocorrer outro erro.
+     */
+    public static String decryptAES(byte[] data, SecretKey key, byte[] aad) throws Exception {
+        Cipher cipher = AES_CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, data, 0, GCM_IV_BYTES));
+        cipher.updateAAD(aad);
+        byte[] plain = cipher.doFinal(data, GCM_IV_BYTES, data.length - GCM_IV_BYTES);
+        return new String(plain, "UTF-8");
+    }
 }
\ No newline at end of file
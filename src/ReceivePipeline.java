@@ -0,0 +1,201 @@
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Pipeline de recebimento dos clientes: decifra e verifica as mensagens seguras
+ * num conjunto de threads, sem tirar da ordem as mensagens de cada remetente.
+ *
+ * <p>Cada mensagem recebida ocupa uma vaga na fila do seu remetente. As seguras
+ * são processadas em paralelo (inclusive várias do mesmo remetente); as de texto
+ * simples não passam pela criptografia e já entram prontas. Uma vaga só é exibida
+ * quando todas as anteriores do mesmo remetente já foram, então a ordem de exibição
+ * por remetente é a ordem de chegada. Se o remetente não tem nada pendente, o texto
+ * simples é exibido na hora, pela própria thread de recebimento.
+ *
+ * <p>Uma mensagem que depende de algo ainda não disponível (como a chave pública do
+ * remetente) reserva a vaga na chegada e só vai para as threads quando o futuro
+ * informado completa; nenhuma thread fica parada esperando. A fila de um remetente é
+ * descartada assim que esvazia, então só existem filas de quem tem algo pendente.
+ *
+ * <p>{@code -Dchat.client.cryptoThreads} define o número de threads (padrão: número de
+ * núcleos) e {@code -Dchat.client.maxPending} limita as mensagens seguras em processamento;
+ * acima do limite a thread de recebimento espera, o que segura a leitura do socket.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ReceivePipeline {
+    private static final int THREADS = Integer.getInteger("chat.client.cryptoThreads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int MAX_PENDING = Integer.getInteger("chat.client.maxPending", 4096);
+
+    /**
+     * Uma mensagem na fila de um remetente: o texto a exibir, quando estiver pronto.
+     */
+    private static class Slot {
+        String line;
+        boolean done;
+    }
+
+    /**
+     * As vagas de um remetente. Depois de {@code removed}, a fila já saiu da tabela e
+     * não recebe mais vagas.
+     */
+    private static class SenderQueue extends ArrayDeque<Slot> {
+        private static final long serialVersionUID = 1L;
+        boolean removed;
+    }
+
+    private final Consumer<String> sink;
+    private final ExecutorService workers;
+    private final Semaphore pending = new Semaphore(MAX_PENDING);
+    // Filas por remetente com algo pendente; cada fila é o seu próprio lock. Só a
+    // thread de recebimento cria filas, e só quem esvazia uma fila a remove.
+    private final Map<String, SenderQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * @param sink Quem exibe as linhas prontas (normalmente {@code System.out::println}).
+     */
+    ReceivePipeline(Consumer<String> sink) {
+        this.sink = sink;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, THREADS), r -> {
+            Thread t = new Thread(r, "chat-crypto");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Exibe uma mensagem de texto simples, depois das mensagens pendentes do mesmo remetente.
+     *
+     * @param sender O remetente, ou null se a linha não tem remetente (é exibida na hora).
+     * @param line A linha a exibir.
+     */
+    void plain(String sender, String line) {
+        if (sender == null) {
+            sink.accept(line);
+            return;
+        }
+        SenderQueue queue = queues.get(sender);
+        if (queue != null) {
+            synchronized (queue) {
+                if (!queue.removed && !queue.isEmpty()) {
+                    Slot slot = new Slot();
+                    slot.line = line;
+                    slot.done = true;
+                    queue.addLast(slot);
+                    return;
+                }
+            }
+        }
+        sink.accept(line);
+    }
+
+    /**
+     * Agenda uma mensagem segura. A tarefa decifra (e verifica) a mensagem e devolve
+     * a linha a exibir; se lançar uma exceção, é exibida uma linha de erro no lugar.
+     *
+     * @param sender O remetente.
+     * @param task A tarefa de decifração.
+     * @throws InterruptedException Se a thread for interrompida esperando uma vaga.
+     */
+    void secure(String sender, Callable<String> task) throws InterruptedException {
+        secure(sender, null, task);
+    }
+
+    /**
+     * Agenda uma mensagem segura que só pode ser processada quando {@code ready} completar
+     * (por exemplo, quando a chave do remetente chegar). A vaga é reservada agora, então
+     * a ordem do remetente é mantida; até lá, nenhuma thread fica bloqueada. Se
+     * {@code ready} falhar (inclusive por tempo limite), é exibida uma linha de erro no lugar.
+     *
+     * @param sender O remetente.
+     * @param ready O que a tarefa espera, ou null se ela pode rodar já.
+     * @param task A tarefa de decifração.
+     * @throws InterruptedException Se a thread for interrompida esperando uma vaga.
+     */
+    void secure(String sender, CompletableFuture<?> ready, Callable<String> task) throws InterruptedException {
+        pending.acquire();
+        Slot slot = new Slot();
+        SenderQueue queue = reserve(sender, slot);
+        if (ready == null) {
+            workers.execute(() -> finish(sender, queue, slot, task));
+            return;
+        }
+        ready.whenComplete((value, error) -> workers.execute(() -> {
+            if (error == null) {
+                finish(sender, queue, slot, task);
+            } else {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                String reason = cause instanceof TimeoutException ? "tempo esgotado" : cause.getMessage();
+                finish(sender, queue, slot, () -> "[ERRO] Mensagem de " + sender + " descartada (" + reason + ").");
+            }
+        }));
+    }
+
+    private void finish(String sender, SenderQueue queue, Slot slot, Callable<String> task) {
+        String line;
+        try {
+            line = task.call();
+        } catch (Exception e) {
+            line = "[ERRO] Falha ao decifrar mensagem de " + sender + ": " + e.getMessage();
+        }
+        synchronized (queue) {
+            slot.line = line;
+            slot.done = true;
+            // Exibe tudo o que ficou pronto no início da fila, na ordem de chegada
+            Slot head;
+            while ((head = queue.peekFirst()) != null && head.done) {
+                queue.pollFirst();
+                if (head.line != null) sink.accept(head.line);
+            }
+            if (queue.isEmpty()) {
+                queue.removed = true;
+                queues.remove(sender, queue);
+            }
+        }
+        pending.release();
+    }
+
+    /**
+     * Põe uma vaga no fim da fila do remetente, criando a fila se preciso. Uma fila
+     * que acabou de esvaziar (e sair da tabela) é trocada por uma nova.
+     */
+    private SenderQueue reserve(String sender, Slot slot) {
+        while (true) {
+            SenderQueue queue = queues.computeIfAbsent(sender, s -> new SenderQueue());
+            synchronized (queue) {
+                if (!queue.removed) {
+                    queue.addLast(slot);
+                    return queue;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Quantos remetentes têm mensagens pendentes.
+     */
+    int pendingSenders() {
+        return queues.size();
+    }
+
+    /**
+     * Extrai o remetente de uma linha de chat ({@code [Todos] usuario: texto},
+     * {@code [#sala] usuario: texto} ou {@code [Privado] usuario: texto}).
+     *
+     * @param line A linha recebida.
+     * @return O remetente, ou null se a linha não for uma mensagem de chat.
+     */
+    static String senderOf(String line) {
+        int start;
+        if (line.startsWith("[Todos] ")) start = 8;
+        else if (line.startsWith("[Privado] ")) start = 10;
+        else if (line.startsWith("[#") && line.indexOf("] ") > 2) start = line.indexOf("] ") + 2;
+        else return null;
+        int end = line.indexOf(": ", start);
+        return end > start ? line.substring(start, end) : null;
+    }
+}
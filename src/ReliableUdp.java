@@ -0,0 +1,443 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Camada opcional de entrega confiável sobre UDP.
+ *
+ * <p>Cada datagrama de dados recebe um número de sequência por destinatário e
+ * fica guardado até ser confirmado. O receptor responde a cada datagrama com um
+ * ACK seletivo: o próximo número esperado (tudo antes dele já chegou) e um mapa
+ * de bits dos 64 números seguintes já recebidos, para que só o que realmente se
+ * perdeu seja retransmitido. O remetente só envia números até {@code WINDOW} à frente
+ * do menor ainda não confirmado (os demais esperam em uma fila) e retransmite
+ * quando o timeout expira, ou antes, quando três datagramas posteriores já foram
+ * confirmados. O timeout é calculado a partir do RTT medido (RFC 6298, sem amostras
+ * de datagramas retransmitidos) e dobra a cada nova tentativa. Após
+ * {@code chat.udp.reliable.maxRetries} tentativas o datagrama é abandonado.
+ *
+ * <p>Datagramas duplicados são descartados na recepção. Os datagramas são entregues
+ * assim que chegam, mesmo fora de ordem, para não perder a vantagem de latência
+ * do UDP: nenhuma mensagem espera por outra que se perdeu.
+ *
+ * <p>Formatos (big-endian):
+ * <pre>
+ * DADOS: u8 0xC8, u8 1, u32 época, u32 sequência, u32 base, payload
+ * ACK:   u8 0xC8, u8 2, u32 época, u32 próximo esperado, u64 mapa de bits
+ * </pre>
+ * A base é o menor número ainda não confirmado nem abandonado pelo remetente: o
+ * receptor nunca mais vai recebê-lo abaixo dela, então pode avançar a janela.
+ * A época é sorteada quando o remetente cria o estado do destinatário; se ela muda
+ * (por exemplo, o outro lado reiniciou), o receptor recomeça a contagem.
+ *
+ * <p>Datagramas sem o byte mágico passam direto, então clientes com e sem a camada
+ * convivem no mesmo servidor: ele só usa a camada com quem a usou primeiro.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ReliableUdp {
+    static final byte MAGIC = (byte) 0xC8;
+    private static final byte DATA = 1;
+    private static final byte ACK = 2;
+    private static final int DATA_HEADER = 14;
+    private static final int BASE_OFFSET = 10;
+    private static final int ACK_BYTES = 18;
+
+    static final int WINDOW = 64;
+    private static final int MAX_PENDING = Integer.getInteger("chat.udp.reliable.pending", 4096);
+    private static final long INITIAL_RTO_MS = Long.getLong("chat.udp.reliable.initialRtoMs", 200);
+    private static final long MIN_RTO_MS = Long.getLong("chat.udp.reliable.minRtoMs", 30);
+    private static final long MAX_RTO_MS = 5000;
+    private static final int MAX_RETRIES = Integer.getInteger("chat.udp.reliable.maxRetries", 10);
+    private static final long TICK_MS = 5;
+    // O estado de recepção vive mais que o de envio, para que o receptor nunca
+    // esqueça uma época que o remetente ainda usa.
+    private static final long SEND_IDLE_MS = 60_000;
+    private static final long RECEIVE_IDLE_MS = 120_000;
+
+    // Contadores globais
+    static final AtomicLong totalRetransmits = new AtomicLong();
+    static final AtomicLong totalDuplicates = new AtomicLong();
+    static final AtomicLong totalExpired = new AtomicLong();
+    static final AtomicLong totalOverflow = new AtomicLong();
+
+    private final Map<SocketAddress, Peer> peers = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+
+    /**
+     * Datagrama enviado e ainda não confirmado.
+     */
+    private static class Outstanding {
+        final int seq;
+        final byte[] datagram;
+        final DatagramSocket socket;
+        long sentAt;
+        long deadline;
+        int retries;
+        // já foi retransmitido por ACK seletivo (só uma vez; depois, só por timeout)
+        boolean fastRetransmitted;
+
+        Outstanding(int seq, byte[] datagram, DatagramSocket socket) {
+            this.seq = seq;
+            this.datagram = datagram;
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * Estado de envio e de recepção para um endereço remoto.
+     */
+    private class Peer {
+        final SocketAddress address;
+        // true depois que tick() descartou o estado; quem ainda o tinha pega um novo
+        boolean removed;
+
+        // Envio
+        int sendEpoch = random.nextInt();
+        int nextSeq;
+        final ArrayDeque<Outstanding> inFlight = new ArrayDeque<>();
+        final ArrayDeque<Outstanding> pending = new ArrayDeque<>();
+        long srtt = -1;
+        long rttvar;
+        long rto = INITIAL_RTO_MS;
+        long lastSend;
+
+        // Recepção
+        boolean receiving;
+        int receiveEpoch;
+        int expected;
+        long received;
+        long lastReceive;
+
+        Peer(SocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * Cria a camada e inicia a thread de retransmissão.
+     */
+    ReliableUdp() {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-udp-rtx");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Envia um datagrama com entrega confiável. Se a janela do destinatário
+     * estiver cheia, o datagrama espera na fila (limitada) sem bloquear.
+     *
+     * @param socket O socket usado para enviar (e retransmitir).
+     * @param data Os bytes da mensagem.
+     * @param offset Onde a mensagem começa.
+     * @param length O tamanho da mensagem.
+     * @param address O destinatário.
+     * @throws IOException Se ocorrer um erro de I/O.
+     */
+    void send(DatagramSocket socket, byte[] data, int offset, int length, SocketAddress address) throws IOException {
+        while (true) {
+            Peer peer = peers.computeIfAbsent(address, Peer::new);
+            synchronized (peer) {
+                if (peer.removed) continue;
+                boolean window = peer.pending.isEmpty() && peer.nextSeq - base(peer) < WINDOW;
+                if (!window && peer.pending.size() >= MAX_PENDING) {
+                    totalOverflow.incrementAndGet();
+                    return;
+                }
+                byte[] datagram = ByteBuffer.allocate(DATA_HEADER + length)
+                        .put(MAGIC).put(DATA).putInt(peer.sendEpoch).putInt(peer.nextSeq).putInt(0)
+                        .put(data, offset, length).array();
+                Outstanding out = new Outstanding(peer.nextSeq++, datagram, socket);
+                if (window) {
+                    peer.inFlight.add(out);
+                    transmit(peer, out, System.currentTimeMillis());
+                } else {
+                    peer.pending.add(out);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Trata um datagrama recebido. ACKs são consumidos; dados são confirmados e,
+     * se não forem duplicados, devolvidos sem o cabeçalho desta camada.
+     *
+     * @param socket O socket por onde o datagrama chegou (usado para o ACK).
+     * @param packet O datagrama recebido.
+     * @return O próprio datagrama, se não usa esta camada; uma cópia só com a
+     *         mensagem, se for um dado novo; ou null, se não há nada a entregar.
+     * @throws IOException Se ocorrer um erro ao enviar o ACK.
+     */
+    DatagramPacket unwrap(DatagramSocket socket, DatagramPacket packet) throws IOException {
+        byte[] buf = packet.getData();
+        int off = packet.getOffset();
+        int len = packet.getLength();
+        if (len < DATA_HEADER || buf[off] != MAGIC) return packet;
+
+        ByteBuffer in = ByteBuffer.wrap(buf, off, len);
+        in.get();
+        byte type = in.get();
+        int epoch = in.getInt();
+        SocketAddress address = packet.getSocketAddress();
+
+        if (type == ACK && len >= ACK_BYTES) {
+            Peer peer = peers.get(address);
+            if (peer != null) onAck(peer, epoch, in.getInt(), in.getLong());
+            return null;
+        }
+        if (type != DATA) return null;
+
+        int seq = in.getInt();
+        int base = in.getInt();
+        boolean fresh;
+        byte[] ack;
+        while (true) {
+            Peer peer = peers.computeIfAbsent(address, Peer::new);
+            synchronized (peer) {
+                if (peer.removed) continue;
+                if (!peer.receiving || peer.receiveEpoch != epoch) {
+                    peer.receiving = true;
+                    peer.receiveEpoch = epoch;
+                    peer.expected = 0;
+                    peer.received = 0;
+                }
+                peer.lastReceive = System.currentTimeMillis();
+                skipTo(peer, base);
+                fresh = accept(peer, seq);
+                ack = ByteBuffer.allocate(ACK_BYTES).put(MAGIC).put(ACK)
+                        .putInt(epoch).putInt(peer.expected).putLong(peer.received).array();
+                break;
+            }
+        }
+        socket.send(new DatagramPacket(ack, ack.length, address));
+
+        if (!fresh) {
+            totalDuplicates.incrementAndGet();
+            return null;
+        }
+        byte[] payload = Arrays.copyOfRange(buf, off + DATA_HEADER, off + len);
+        return new DatagramPacket(payload, payload.length, address);
+    }
+
+    /**
+     * Registra um número de sequência recebido.
+     *
+     * @return true se ele ainda não tinha chegado.
+     */
+    private static boolean accept(Peer peer, int seq) {
+        int distance = seq - peer.expected;
+        if (distance < 0) return false;
+        if (distance == 0) {
+            // Avança sobre tudo o que já tinha chegado fora de ordem
+            while (advance(peer)) { }
+            return true;
+        }
+        if (distance > 64) return false; // fora da janela: o remetente vai retransmitir
+        long bit = 1L << (distance - 1);
+        if ((peer.received & bit) != 0) return false;
+        peer.received |= bit;
+        return true;
+    }
+
+    /**
+     * Avança o próximo número esperado em uma posição.
+     *
+     * @return true se o novo número esperado já tinha chegado.
+     */
+    private static boolean advance(Peer peer) {
+        boolean next = (peer.received & 1) != 0;
+        peer.received >>>= 1;
+        peer.expected++;
+        return next;
+    }
+
+    /**
+     * Esquece os números abaixo da base informada pelo remetente (confirmados ou abandonados).
+     */
+    private static void skipTo(Peer peer, int base) {
+        boolean arrived = false;
+        while (base - peer.expected > 0) arrived = advance(peer);
+        if (arrived) while (advance(peer)) { }
+    }
+
+    private void onAck(Peer peer, int epoch, int expected, long received) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Outstanding> fast = null;
+        synchronized (peer) {
+            if (epoch != peer.sendEpoch) return;
+            // Maior número confirmado por este ACK
+            int highest = received == 0 ? expected - 1 : expected + 64 - Long.numberOfLeadingZeros(received);
+            for (Iterator<Outstanding> it = peer.inFlight.iterator(); it.hasNext(); ) {
+                Outstanding out = it.next();
+                int distance = out.seq - expected;
+                boolean acked = distance < 0 || (distance > 0 && distance <= 64 && (received & (1L << (distance - 1))) != 0);
+                if (!acked) {
+                    // Três posteriores já chegaram: provavelmente perdido, não espera o timeout
+                    if (highest - out.seq >= 3 && !out.fastRetransmitted) fast = addTo(fast, out);
+                    continue;
+                }
+                it.remove();
+                // Karn: só datagramas nunca retransmitidos dão uma amostra de RTT confiável
+                if (out.retries == 0) sampleRtt(peer, now - out.sentAt);
+            }
+            if (fast != null) {
+                for (Outstanding out : fast) {
+                    out.retries++;
+                    totalRetransmits.incrementAndGet();
+                    transmit(peer, out, now);
+                    out.fastRetransmitted = true;
+                }
+            }
+            fillWindow(peer, now);
+        }
+    }
+
+    private static List<Outstanding> addTo(List<Outstanding> list, Outstanding out) {
+        if (list == null) list = new ArrayList<>();
+        list.add(out);
+        return list;
+    }
+
+    private static void sampleRtt(Peer peer, long rtt) {
+        if (peer.srtt < 0) {
+            peer.srtt = rtt;
+            peer.rttvar = rtt / 2;
+        } else {
+            peer.rttvar = (3 * peer.rttvar + Math.abs(peer.srtt - rtt)) / 4;
+            peer.srtt = (7 * peer.srtt + rtt) / 8;
+        }
+        peer.rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, peer.srtt + Math.max(TICK_MS, 4 * peer.rttvar)));
+    }
+
+    /**
+     * Move datagramas da fila de espera para a janela, enquanto houver espaço.
+     * A janela limita a distância até a base, e não só a quantidade em trânsito,
+     * porque o receptor só guarda os {@code WINDOW} números seguintes ao esperado.
+     */
+    private static void fillWindow(Peer peer, long now) throws IOException {
+        while (!peer.pending.isEmpty() && peer.pending.peekFirst().seq - base(peer) < WINDOW) {
+            Outstanding out = peer.pending.poll();
+            peer.inFlight.add(out);
+            transmit(peer, out, now);
+        }
+    }
+
+    /**
+     * Envia (ou reenvia) um datagrama que já está na janela.
+     */
+    private static void transmit(Peer peer, Outstanding out, long now) throws IOException {
+        out.sentAt = now;
+        out.deadline = now + Math.min(MAX_RTO_MS, peer.rto << Math.min(out.retries, 6));
+        peer.lastSend = now;
+        ByteBuffer.wrap(out.datagram).putInt(BASE_OFFSET, base(peer));
+        out.socket.send(new DatagramPacket(out.datagram, out.datagram.length, peer.address));
+    }
+
+    /**
+     * @return O menor número de sequência ainda não confirmado nem abandonado.
+     */
+    private static int base(Peer peer) {
+        if (!peer.inFlight.isEmpty()) {
+            int base = peer.inFlight.peekFirst().seq;
+            for (Outstanding out : peer.inFlight) {
+                if (out.seq - base < 0) base = out.seq;
+            }
+            return base;
+        }
+        return peer.pending.isEmpty() ? peer.nextSeq : peer.pending.peekFirst().seq;
+    }
+
+    /**
+     * Retransmite os datagramas cujo timeout expirou e descarta estados ociosos.
+     */
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Peer> peerIt = peers.values().iterator(); peerIt.hasNext(); ) {
+            Peer peer = peerIt.next();
+            try {
+                synchronized (peer) {
+                    List<Outstanding> expired = null;
+                    for (Iterator<Outstanding> it = peer.inFlight.iterator(); it.hasNext(); ) {
+                        Outstanding out = it.next();
+                        if (out.deadline > now) continue;
+                        if (out.retries++ >= MAX_RETRIES) {
+                            it.remove();
+                            totalExpired.incrementAndGet();
+                            continue;
+                        }
+                        if (expired == null) expired = new ArrayList<>();
+                        expired.add(out);
+                    }
+                    if (expired != null) {
+                        for (Outstanding out : expired) {
+                            totalRetransmits.incrementAndGet();
+                            transmit(peer, out, now);
+                        }
+                    }
+                    fillWindow(peer, now);
+
+                    boolean sendIdle = peer.inFlight.isEmpty() && peer.pending.isEmpty() && now - peer.lastSend > SEND_IDLE_MS;
+                    boolean receiveIdle = !peer.receiving || now - peer.lastReceive > RECEIVE_IDLE_MS;
+                    if (sendIdle && receiveIdle) {
+                        peer.removed = true;
+                        peerIt.remove();
+                    }
+                }
+            } catch (IOException e) {
+                ChatLog.error("Erro ao retransmitir para {}", peer.address, e);
+            }
+        }
+    }
+
+    /**
+     * Indica se um endereço já enviou dados por esta camada (e, portanto, também a entende).
+     *
+     * @param address O endereço remoto.
+     * @return true se as mensagens para ele devem usar {@link #send}.
+     */
+    boolean isReliablePeer(SocketAddress address) {
+        Peer peer = peers.get(address);
+        return peer != null && peer.receiving;
+    }
+
+    /**
+     * @param address O endereço remoto.
+     * @return O RTT suavizado medido para o endereço, em milissegundos, ou -1 se ainda não houver amostra.
+     */
+    long srtt(SocketAddress address) {
+        Peer peer = peers.get(address);
+        if (peer == null) return -1;
+        synchronized (peer) {
+            return peer.srtt;
+        }
+    }
+
+    /**
+     * @param address O endereço remoto.
+     * @return Quantos datagramas para o endereço ainda aguardam confirmação ou espaço na janela.
+     */
+    int unacknowledged(SocketAddress address) {
+        Peer peer = peers.get(address);
+        if (peer == null) return 0;
+        synchronized (peer) {
+            return peer.inFlight.size() + peer.pending.size();
+        }
+    }
+
+    /**
+     * @return Quantos datagramas, somando todos os destinos, aguardam confirmação ou espaço na janela.
+     */
+    int unacknowledged() {
+        int total = 0;
+        for (SocketAddress address : peers.keySet()) total += unacknowledged(address);
+        return total;
+    }
+}
@@ -0,0 +1,153 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Teste em loopback da camada {@link ReliableUdp}. Dois extremos trocam mensagens
+ * através de um relay UDP que descarta, atrasa (reordenando) e duplica datagramas
+ * nos dois sentidos, inclusive os ACKs. Ao final, confere se cada mensagem foi
+ * entregue exatamente uma vez e mostra a vazão, as retransmissões e o RTT medido.
+ *
+ * <p>Uso: {@code java ReliableUdpHarness [mensagens] [perda] [reordenação] [duplicação] [atrasoMaxMs]}
+ * (por exemplo, {@code java ReliableUdpHarness 20000 0.1 0.2 0.05 20}).
+ * Termina com código 1 se alguma mensagem faltar ou se repetir.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class ReliableUdpHarness {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        double loss = args.length > 1 ? Double.parseDouble(args[1]) : 0.1;
+        double reorder = args.length > 2 ? Double.parseDouble(args[2]) : 0.2;
+        double duplicate = args.length > 3 ? Double.parseDouble(args[3]) : 0.05;
+        int maxDelayMs = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+        DatagramSocket sender = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        // O remetente fala com relayA; o receptor só vê relayB
+        DatagramSocket relayA = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        DatagramSocket relayB = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+
+        ScheduledExecutorService delays = Executors.newSingleThreadScheduledExecutor();
+        Random random = new Random(42);
+        startRelay(relayA, relayB, receiver.getLocalSocketAddress(), random, loss, reorder, duplicate, maxDelayMs, delays);
+        startRelay(relayB, relayA, sender.getLocalSocketAddress(), random, loss, reorder, duplicate, maxDelayMs, delays);
+
+        ReliableUdp senderLayer = new ReliableUdp();
+        ReliableUdp receiverLayer = new ReliableUdp();
+
+        int[] counts = new int[messages];
+        AtomicLong delivered = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+
+        // O remetente também precisa ler o socket para receber os ACKs
+        Thread ackReader = new Thread(() -> pump(sender, senderLayer, null));
+        ackReader.setDaemon(true);
+        ackReader.start();
+        Thread reader = new Thread(() -> pump(receiver, receiverLayer, packet -> {
+            int id = Integer.parseInt(new String(packet.getData(), packet.getOffset(), packet.getLength()).substring(4));
+            synchronized (counts) {
+                counts[id]++;
+            }
+            if (delivered.incrementAndGet() == messages) done.countDown();
+        }));
+        reader.setDaemon(true);
+        reader.start();
+
+        SocketAddress target = relayA.getLocalSocketAddress();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            byte[] data = ("msg:" + i).getBytes();
+            senderLayer.send(sender, data, 0, data.length, target);
+            // Sem controle de fluxo na aplicação: só evita estourar a fila de espera
+            while (senderLayer.unacknowledged(target) > 2048) Thread.sleep(1);
+        }
+        boolean complete = done.await(60, TimeUnit.SECONDS);
+        long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+        int missing = 0, repeated = 0;
+        synchronized (counts) {
+            for (int c : counts) {
+                if (c == 0) missing++;
+                if (c > 1) repeated++;
+            }
+        }
+        System.out.printf("mensagens=%d perda=%.2f reordenacao=%.2f duplicacao=%.2f atrasoMax=%dms%n",
+                messages, loss, reorder, duplicate, maxDelayMs);
+        System.out.printf("entregues=%d faltando=%d repetidas=%d em %d ms (%d msg/s)%n",
+                delivered.get(), missing, repeated, elapsedMs, delivered.get() * 1000 / elapsedMs);
+        System.out.printf("retransmissoes=%d duplicatas descartadas=%d expiradas=%d srtt=%dms%n",
+                ReliableUdp.totalRetransmits.get(), ReliableUdp.totalDuplicates.get(),
+                ReliableUdp.totalExpired.get(), senderLayer.srtt(target));
+        System.exit(complete && missing == 0 && repeated == 0 ? 0 : 1);
+    }
+
+    /**
+     * Lê datagramas de um socket, passando-os pela camada confiável.
+     */
+    private static void pump(DatagramSocket socket, ReliableUdp layer, Consumer<DatagramPacket> sink) {
+        byte[] buffer = new byte[2048];
+        while (true) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                DatagramPacket message = layer.unwrap(socket, packet);
+                if (message != null && sink != null) sink.accept(message);
+            } catch (Exception e) {
+                ChatLog.error("Erro ao receber datagrama", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Encaminha o que chega em {@code in} para {@code dest}, saindo por {@code out},
+     * com perda, atraso aleatório (que reordena) e duplicação.
+     */
+    private static void startRelay(DatagramSocket in, DatagramSocket out, SocketAddress dest, Random random,
+                                   double loss, double reorder, double duplicate, int maxDelayMs,
+                                   ScheduledExecutorService delays) {
+        Thread t = new Thread(() -> {
+            byte[] buffer = new byte[2048];
+            while (true) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    in.receive(packet);
+                    byte[] data = Arrays.copyOf(buffer, packet.getLength());
+                    double p;
+                    int copies;
+                    long delay;
+                    synchronized (random) {
+                        p = random.nextDouble();
+                        copies = random.nextDouble() < duplicate ? 2 : 1;
+                        delay = random.nextDouble() < reorder ? 1 + random.nextInt(Math.max(1, maxDelayMs)) : 0;
+                    }
+                    if (p < loss) continue;
+                    for (int i = 0; i < copies; i++) {
+                        DatagramPacket forward = new DatagramPacket(data, data.length, dest);
+                        if (delay == 0) {
+                            out.send(forward);
+                        } else {
+                            delays.schedule(() -> {
+                                try {
+                                    out.send(forward);
+                                } catch (Exception e) {
+                                    ChatLog.error("Erro ao reenviar datagrama atrasado", e);
+                                }
+                            }, delay, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                } catch (Exception e) {
+                    ChatLog.error("Erro no repasse de datagramas", e);
+                    return;
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+}
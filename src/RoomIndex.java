@@ -0,0 +1,128 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Índice de salas dos servidores: sala -> membros e membro -> sala, mantidos
+ * incrementalmente a cada entrada e saída. Cada usuário está em uma sala por vez;
+ * quem nunca escolheu uma fica em {@link #DEFAULT_ROOM}, então clientes que não
+ * conhecem salas continuam recebendo as mensagens de todos eles, como antes.
+ *
+ * <p>Não há lock global: a troca de membros de uma sala roda dentro do
+ * {@code compute} do ConcurrentHashMap, que só bloqueia a entrada daquela sala,
+ * e salas vazias são removidas no mesmo passo. Os conjuntos de membros podem ser
+ * percorridos durante as alterações (iteração fracamente consistente), então o
+ * envio de uma mensagem custa o tamanho da sala, não o do servidor.
+ *
+ * @param <M> O tipo do membro (a conexão no TCP, o nome do usuário no UDP).
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class RoomIndex<M> {
+    /** Sala de quem ainda não entrou em nenhuma. */
+    static final String DEFAULT_ROOM = "geral";
+    private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+    private final Map<String, Set<M>> rooms = new ConcurrentHashMap<>();
+    private final Map<M, String> roomOf = new ConcurrentHashMap<>();
+
+    /**
+     * @param room O nome proposto.
+     * @return true se o nome só tem letras, dígitos, '-' e '_' (até 32 caracteres).
+     */
+    static boolean isValidName(String room) {
+        return room != null && ROOM_NAME.matcher(room).matches();
+    }
+
+    /**
+     * Coloca o membro em uma sala, tirando-o da anterior.
+     *
+     * @param member O membro.
+     * @param room A sala de destino.
+     * @return A sala anterior, ou null se ele não estava em nenhuma.
+     */
+    String join(M member, String room) {
+        String previous = roomOf.put(member, room);
+        if (room.equals(previous)) return previous;
+        rooms.compute(room, (name, members) -> {
+            if (members == null) members = ConcurrentHashMap.newKeySet();
+            members.add(member);
+            return members;
+        });
+        if (previous != null) removeFrom(previous, member);
+        return previous;
+    }
+
+    /**
+     * Retira o membro do índice (quando ele sai do chat).
+     *
+     * @param member O membro.
+     * @return A sala em que ele estava, ou null.
+     */
+    String remove(M member) {
+        String previous = roomOf.remove(member);
+        if (previous != null) removeFrom(previous, member);
+        return previous;
+    }
+
+    private void removeFrom(String room, M member) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(member);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * @param member O membro.
+     * @return A sala atual do membro, ou null se ele não está no índice.
+     */
+    String roomOf(M member) {
+        return roomOf.get(member);
+    }
+
+    /**
+     * @param room A sala.
+     * @return Os membros atuais da sala (visão viva, sem cópia); vazio se ela não existe.
+     */
+    Set<M> members(String room) {
+        Set<M> members = rooms.get(room);
+        return members != null ? members : Collections.emptySet();
+    }
+
+    /**
+     * @return As salas existentes e quantos membros cada uma tem, em ordem alfabética.
+     */
+    Map<String, Integer> sizes() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        for (Map.Entry<String, Set<M>> entry : rooms.entrySet()) sizes.put(entry.getKey(), entry.getValue().size());
+        return sizes;
+    }
+
+    /**
+     * @return O prefixo das mensagens de chat da sala: {@code [Todos] } na sala padrão, {@code [#sala] } nas demais.
+     */
+    static String prefix(String room) {
+        return room == null || room.equals(DEFAULT_ROOM) ? "[Todos] " : "[#" + room + "] ";
+    }
+
+    /**
+     * @return A linha exibida para uma mensagem de chat da sala.
+     */
+    static String chatLine(String room, String from, String text) {
+        return prefix(room) + from + ": " + text;
+    }
+
+    /**
+     * @return A resposta de {@code !rooms}: uma linha por sala, com o número de membros.
+     */
+    String listing() {
+        StringBuilder sb = new StringBuilder("Salas:\n");
+        for (Map.Entry<String, Integer> entry : sizes().entrySet()) {
+            sb.append("- ").append(entry.getKey()).append(" (").append(entry.getValue()).append(")\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,157 @@
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+import javax.crypto.SecretKey;
+
+/**
+ * Gerencia as chaves de sessão do modo de criptografia híbrido (RSA + AES-GCM) de um cliente.
+ *
+ * <p>Para cada destinatário é mantida uma chave AES corrente. O RSA é usado apenas
+ * quando a chave é criada: ela é cifrada com a chave pública do destinatário e o
+ * cabeçalho (id da chave + chave cifrada) é assinado pelo remetente. As mensagens
+ * seguintes custam apenas uma operação AES-GCM. O cabeçalho acompanha todas as
+ * mensagens, para que a perda de um pacote UDP não impeça a leitura das próximas,
+ * mas o destinatário só executa RSA na primeira vez que vê cada id de chave.
+ *
+ * <p>Formato do payload: {@code AES:<id>:<chave cifrada>:<assinatura>:<texto cifrado>},
+ * todos os campos em Base64.
+ *
+ * <p>As chaves são trocadas após {@code chat.session.maxMessages} mensagens
+ * ou {@code chat.session.maxAgeMs} milissegundos.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class SessionKeys {
+    static final String PREFIX = "AES:";
+    private static final int MAX_MESSAGES = Integer.getInteger("chat.session.maxMessages", 1000);
+    private static final long MAX_AGE_MS = Long.getLong("chat.session.maxAgeMs", 10 * 60 * 1000L);
+    private static final int MAX_INCOMING = 1024;
+
+    private final String username;
+    private final PrivateKey privateKey;
+    private final SecureRandom random = new SecureRandom();
+
+    // destinatário -> sessão de envio corrente
+    private final Map<String, Outgoing> outgoing = new HashMap<>();
+    // "remetente:id" -> chave de sessão recebida (LRU limitado)
+    private final Map<String, SecretKey> incoming = new LinkedHashMap<String, SecretKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+            return size() > MAX_INCOMING;
+        }
+    };
+
+    /**
+     * Sessão de envio para um destinatário.
+     */
+    private static class Outgoing {
+        PublicKey peerKey;
+        SecretKey key;
+        String header;
+        int messages;
+        long createdAt;
+    }
+
+    /**
+     * Cria o gerenciador de sessões de um usuário.
+     *
+     * @param username O nome do usuário local.
+     * @param privateKey A chave privada RSA do usuário local.
+     */
+    public SessionKeys(String username, PrivateKey privateKey) {
+        this.username = username;
+        this.privateKey = privateKey;
+    }
+
+    /**
+     * Indica se um payload recebido usa o modo de sessão.
+     *
+     * @param payload O payload recebido.
+     * @return true se for um payload AES-GCM.
+     */
+    public static boolean isSessionPayload(String payload) {
+        return payload.startsWith(PREFIX);
+    }
+
+    /**
+     * Cifra uma mensagem para um destinatário, criando ou trocando a chave de sessão se necessário.
+     *
+     * @param to O nome do destinatário.
+     * @param peerKey A chave pública RSA do destinatário.
+     * @param message A mensagem em texto simples (qualquer tamanho).
+     * @return O payload no formato {@code AES:...}.
+     * @throws Exception Se ocorrer um erro de criptografia.
+     */
+    public synchronized String seal(String to, PublicKey peerKey, String message) throws Exception {
+        Outgoing s = outgoing.get(to);
+        long now = System.currentTimeMillis();
+        if (s == null || !s.peerKey.equals(peerKey) || s.messages >= MAX_MESSAGES || now - s.createdAt >= MAX_AGE_MS) {
+            s = newSession(peerKey, now);
+            outgoing.put(to, s);
+        }
+        s.messages++;
+
+        byte[] encrypted = RSAUtils.encryptAES(message, s.key, aad(username, to));
+        return s.header + ":" + Base64.getEncoder().encodeToString(encrypted);
+    }
+
+    private Outgoing newSession(PublicKey peerKey, long now) throws Exception {
+        byte[] id = new byte[8];
+        random.nextBytes(id);
+
+        Outgoing s = new Outgoing();
+        s.peerKey = peerKey;
+        s.key = RSAUtils.generateSessionKey();
+        s.createdAt = now;
+
+        String keyId = Base64.getEncoder().encodeToString(id);
+        String wrapped = Base64.getEncoder().encodeToString(RSAUtils.wrapKey(s.key, peerKey));
+        byte[] signature = RSAUtils.sign(keyId + ":" + wrapped, privateKey);
+        s.header = PREFIX + keyId + ":" + wrapped + ":" + Base64.getEncoder().encodeToString(signature);
+        return s;
+    }
+
+    /**
+     * Decifra um payload {@code AES:...} recebido.
+     *
+     * @param from O nome do remetente (informado pelo servidor).
+     * @param senderKey A chave pública do remetente, usada para verificar a assinatura
+     *                  da chave de sessão. É obrigatória: quem ainda não tem a chave deve
+     *                  pedi-la e esperar, não abrir a mensagem sem verificação.
+     * @param payload O payload recebido.
+     * @return A mensagem em texto simples.
+     * @throws GeneralSecurityException Se a chave do remetente for desconhecida (null) ou se
+     *                                  a assinatura ou a autenticação da mensagem falhar.
+     * @throws Exception Se ocorrer outro erro de criptografia.
+     */
+    public String open(String from, PublicKey senderKey, String payload) throws Exception {
+        String[] parts = payload.substring(PREFIX.length()).split(":", 4);
+        String keyId = parts[0];
+        String cacheKey = from + ":" + keyId;
+
+        SecretKey key;
+        synchronized (incoming) {
+            key = incoming.get(cacheKey);
+        }
+        if (key == null) {
+            if (senderKey == null) {
+                throw new SignatureException("Chave publica de " + from + " desconhecida; chave de sessao nao verificada");
+            }
+            byte[] signature = Base64.getDecoder().decode(parts[2]);
+            if (!RSAUtils.verify(keyId + ":" + parts[1], signature, senderKey)) {
+                throw new SignatureException("Assinatura invalida da chave de sessao de " + from);
+            }
+            key = RSAUtils.unwrapKey(Base64.getDecoder().decode(parts[1]), privateKey);
+            synchronized (incoming) {
+                incoming.put(cacheKey, key);
+            }
+        }
+
+        return RSAUtils.decryptAES(Base64.getDecoder().decode(parts[3]), key, aad(from, username));
+    }
+
+    private static byte[] aad(String from, String to) {
+        return (from + "->" + to).getBytes(StandardCharsets.UTF_8);
+    }
+}
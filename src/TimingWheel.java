@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Roda de tempo com hash (hashed timing wheel) para prazos aproximados, como a
+ * expiração de sessões ociosas. O tempo é dividido em ticks de {@code tickMs};
+ * cada item fica no balde {@code tick % baldes} do tick em que vence, numa lista
+ * duplamente encadeada cujo nó é o próprio {@link Entry} devolvido ao agendar. Assim
+ * agendar, cancelar e reagendar custam O(1), e cada avanço de tick visita só o seu
+ * balde. Itens que vencem mais de uma volta à frente guardam quantas voltas ainda
+ * faltam e só descontam uma a cada passagem pelo balde, sem mudar de lugar.
+ *
+ * <p>Os prazos têm a precisão de um tick. Os métodos são sincronizados: agendar a
+ * partir de várias threads é seguro, e os itens vencidos são entregues fora do lock,
+ * então quem os recebe pode reagendá-los.
+ *
+ * @param <T> O tipo dos itens agendados.
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class TimingWheel<T> {
+
+    /**
+     * Um item agendado: nó da lista do seu balde. Serve de alça para
+     * {@link #reschedule} e {@link #cancel}.
+     */
+    static final class Entry<T> {
+        final T item;
+        // Voltas completas que ainda faltam quando o balde for visitado
+        private long rounds;
+        private Entry<T> prev;
+        private Entry<T> next;
+
+        private Entry(T item) {
+            this.item = item;
+        }
+
+        /**
+         * @return Se o item ainda está agendado.
+         */
+        boolean scheduled() {
+            return prev != null;
+        }
+    }
+
+    private final long tickMs;
+    // Sentinela de cada balde (lista circular; vazia quando aponta para si mesma)
+    private final List<Entry<T>> buckets;
+    private final int mask;
+    // Último tick já processado
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMs A duração de um tick, em milissegundos.
+     * @param bucketCount Quantidade de baldes (arredondada para uma potência de 2);
+     *                    o ideal é cobrir o prazo típico em uma volta.
+     * @param nowMs O instante atual, no mesmo relógio usado em {@link #advance}.
+     */
+    TimingWheel(long tickMs, int bucketCount, long nowMs) {
+        int count = Integer.highestOneBit(Math.max(1, bucketCount - 1)) << 1;
+        this.tickMs = Math.max(1, tickMs);
+        this.buckets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Entry<T> head = new Entry<>(null);
+            head.prev = head;
+            head.next = head;
+            buckets.add(head);
+        }
+        this.mask = count - 1;
+        this.currentTick = nowMs / this.tickMs;
+    }
+
+    /**
+     * Agenda um item para vencer em {@code deadlineMs} (no máximo um tick depois).
+     * Prazos já passados vencem no próximo tick.
+     *
+     * @param item O item.
+     * @param deadlineMs O instante de vencimento.
+     * @return A alça do agendamento.
+     */
+    synchronized Entry<T> schedule(T item, long deadlineMs) {
+        Entry<T> entry = new Entry<>(item);
+        link(entry, deadlineMs);
+        return entry;
+    }
+
+    /**
+     * Move um item para um novo prazo, esteja ele ainda agendado ou já vencido.
+     *
+     * @param entry A alça devolvida por {@link #schedule}.
+     * @param deadlineMs O novo instante de vencimento.
+     */
+    synchronized void reschedule(Entry<T> entry, long deadlineMs) {
+        unlink(entry);
+        link(entry, deadlineMs);
+    }
+
+    /**
+     * Tira um item da roda antes de vencer.
+     *
+     * @param entry A alça devolvida por {@link #schedule}.
+     * @return true se o item ainda estava agendado.
+     */
+    synchronized boolean cancel(Entry<T> entry) {
+        return unlink(entry);
+    }
+
+    /**
+     * Processa os ticks até {@code nowMs} e entrega os itens vencidos, na ordem dos
+     * ticks (depois de uma pausa de mais de uma volta, na ordem dos baldes).
+     *
+     * @param nowMs O instante atual.
+     * @param expired Recebe cada item vencido (chamado sem o lock da roda).
+     */
+    void advance(long nowMs, Consumer<T> expired) {
+        List<T> due = new ArrayList<>();
+        synchronized (this) {
+            long target = nowMs / tickMs;
+            long count = buckets.size();
+            // Cada balde é visitado uma vez; numa pausa longa ele conta por todas as voltas perdidas
+            for (long tick = currentTick + 1; tick <= target && tick <= currentTick + count; tick++) {
+                long visits = (target - tick) / count + 1;
+                Entry<T> head = buckets.get((int) (tick & mask));
+                for (Entry<T> entry = head.next; entry != head; ) {
+                    Entry<T> next = entry.next;
+                    if (entry.rounds < visits) {
+                        unlink(entry);
+                        due.add(entry.item);
+                    } else {
+                        entry.rounds -= visits;
+                    }
+                    entry = next;
+                }
+            }
+            currentTick = Math.max(currentTick, target);
+        }
+        for (T item : due) expired.accept(item);
+    }
+
+    /**
+     * @return Quantos itens estão agendados.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return A duração de um tick, em milissegundos.
+     */
+    long tickMs() {
+        return tickMs;
+    }
+
+    private void link(Entry<T> entry, long deadlineMs) {
+        long tick = Math.max((deadlineMs + tickMs - 1) / tickMs, currentTick + 1);
+        entry.rounds = (tick - currentTick - 1) / buckets.size();
+        Entry<T> head = buckets.get((int) (tick & mask));
+        entry.prev = head.prev;
+        entry.next = head;
+        head.prev.next = entry;
+        head.prev = entry;
+        size++;
+    }
+
+    private boolean unlink(Entry<T> entry) {
+        if (entry.prev == null) return false;
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        size--;
+        return true;
+    }
+}
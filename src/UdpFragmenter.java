@@ -0,0 +1,177 @@
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fragmentação e remontagem de mensagens UDP maiores que um datagrama seguro.
+ *
+ * <p>Mensagens de até {@code chat.udp.fragmentBytes} bytes (padrão 1200, abaixo do
+ * MTU mínimo do IPv6) são enviadas como estão. As maiores são divididas em fragmentos
+ * desse tamanho, cada um com o cabeçalho:
+ * <pre>
+ * u8 0xC9, u32 id da mensagem, u16 índice, u16 total de fragmentos
+ * </pre>
+ * Assim nenhum datagrama depende da fragmentação IP (em que a perda de um pedaço
+ * perde o datagrama inteiro) e o buffer de recepção não precisa crescer com as mensagens.
+ *
+ * <p>O receptor junta os fragmentos por remetente e id. A memória é limitada: mensagens
+ * incompletas são descartadas após {@code chat.udp.reassemblyTimeoutMs}, e se o total
+ * pendente passar de {@code chat.udp.reassemblyBytes} as mais antigas são descartadas.
+ * Mensagens acima de {@code chat.udp.maxMessage} bytes são recusadas.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class UdpFragmenter {
+    static final byte MAGIC = (byte) 0xC9;
+    static final int HEADER_BYTES = 9;
+    static final int FRAGMENT_BYTES = Integer.getInteger("chat.udp.fragmentBytes", 1200);
+    static final int MAX_MESSAGE = Integer.getInteger("chat.udp.maxMessage", 1 << 20);
+    private static final int MAX_FRAGMENTS = MAX_MESSAGE / FRAGMENT_BYTES + 1;
+    private static final long TIMEOUT_MS = Long.getLong("chat.udp.reassemblyTimeoutMs", 5000);
+    private static final long MAX_PENDING_BYTES = Long.getLong("chat.udp.reassemblyBytes", 16 << 20);
+
+    // Contadores globais, exibidos nas métricas do servidor UDP
+    static final AtomicLong totalExpired = new AtomicLong();
+    static final AtomicLong totalEvicted = new AtomicLong();
+    static final AtomicLong totalRejected = new AtomicLong();
+
+    private final AtomicInteger nextId = new AtomicInteger();
+    // Em ordem de chegada, para descartar primeiro as mais antigas
+    private final LinkedHashMap<String, Partial> partials = new LinkedHashMap<>();
+    private long pendingBytes;
+
+    /**
+     * Mensagem sendo remontada.
+     */
+    private static class Partial {
+        final byte[][] parts;
+        final long createdAt;
+        int received;
+        int bytes;
+
+        Partial(int count, long createdAt) {
+            this.parts = new byte[count][];
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * Indica se uma mensagem precisa ser fragmentada.
+     *
+     * @param length O tamanho da mensagem.
+     * @return true se ela não cabe em um único fragmento.
+     */
+    static boolean needsSplit(int length) {
+        return length > FRAGMENT_BYTES;
+    }
+
+    /**
+     * Divide uma mensagem em fragmentos com cabeçalho.
+     *
+     * @param data Os bytes da mensagem.
+     * @param offset Onde a mensagem começa.
+     * @param length O tamanho da mensagem.
+     * @return Os fragmentos, prontos para enviar.
+     * @throws IllegalArgumentException Se a mensagem passar de {@code chat.udp.maxMessage} bytes.
+     */
+    List<byte[]> split(byte[] data, int offset, int length) {
+        if (length > MAX_MESSAGE) throw new IllegalArgumentException("Mensagem excede " + MAX_MESSAGE + " bytes");
+        int count = (length + FRAGMENT_BYTES - 1) / FRAGMENT_BYTES;
+        int id = nextId.incrementAndGet();
+        List<byte[]> fragments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int start = i * FRAGMENT_BYTES;
+            int size = Math.min(FRAGMENT_BYTES, length - start);
+            fragments.add(ByteBuffer.allocate(HEADER_BYTES + size)
+                    .put(MAGIC).putInt(id).putShort((short) i).putShort((short) count)
+                    .put(data, offset + start, size).array());
+        }
+        return fragments;
+    }
+
+    /**
+     * Trata um datagrama recebido.
+     *
+     * @param packet O datagrama recebido.
+     * @return O próprio datagrama, se não for um fragmento; a mensagem completa,
+     *         se este era o último fragmento que faltava; ou null, caso contrário.
+     */
+    synchronized DatagramPacket reassemble(DatagramPacket packet) {
+        byte[] buf = packet.getData();
+        int off = packet.getOffset();
+        int len = packet.getLength();
+        if (len < HEADER_BYTES || buf[off] != MAGIC) return packet;
+
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        ByteBuffer in = ByteBuffer.wrap(buf, off, len);
+        in.get();
+        int id = in.getInt();
+        int index = in.getShort() & 0xFFFF;
+        int count = in.getShort() & 0xFFFF;
+        if (count == 0 || count > MAX_FRAGMENTS || index >= count) {
+            totalRejected.incrementAndGet();
+            return null;
+        }
+
+        String key = packet.getSocketAddress() + "#" + id;
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            partial = new Partial(count, now);
+            partials.put(key, partial);
+        } else if (partial.parts.length != count) {
+            totalRejected.incrementAndGet();
+            return null;
+        }
+        if (partial.parts[index] != null) return null; // fragmento duplicado
+
+        int size = len - HEADER_BYTES;
+        if (partial.bytes + size > MAX_MESSAGE) {
+            discard(key, partial);
+            totalRejected.incrementAndGet();
+            return null;
+        }
+        partial.parts[index] = Arrays.copyOfRange(buf, off + HEADER_BYTES, off + len);
+        partial.received++;
+        partial.bytes += size;
+        pendingBytes += size;
+
+        if (partial.received < count) {
+            // Limite de memória: descarta as mensagens incompletas mais antigas
+            while (pendingBytes > MAX_PENDING_BYTES) {
+                Map.Entry<String, Partial> oldest = partials.entrySet().iterator().next();
+                discard(oldest.getKey(), oldest.getValue());
+                totalEvicted.incrementAndGet();
+            }
+            return null;
+        }
+
+        discard(key, partial);
+        byte[] message = new byte[partial.bytes];
+        int pos = 0;
+        for (byte[] part : partial.parts) {
+            System.arraycopy(part, 0, message, pos, part.length);
+            pos += part.length;
+        }
+        return new DatagramPacket(message, message.length, packet.getSocketAddress());
+    }
+
+    private void expire(long now) {
+        for (Iterator<Partial> it = partials.values().iterator(); it.hasNext(); ) {
+            Partial partial = it.next();
+            if (now - partial.createdAt < TIMEOUT_MS) break;
+            it.remove();
+            pendingBytes -= partial.bytes;
+            totalExpired.incrementAndGet();
+        }
+    }
+
+    private void discard(String key, Partial partial) {
+        partials.remove(key);
+        pendingBytes -= partial.bytes;
+    }
+}
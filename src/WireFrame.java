@@ -0,0 +1,191 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocolo binário opcional, negociado no REGISTRO ({@code BIN}).
+ * Cada mensagem é um frame tipado com cabeçalho fixo de 16 bytes:
+ *
+ * <pre>
+ * u8  magic (0xC7)
+ * u8  opcode
+ * u32 id do remetente
+ * u32 id do destinatário (0 = todos / servidor)
+ * u16 tamanho da assinatura
+ * u32 tamanho do payload
+ * assinatura (bytes crus)
+ * payload (bytes crus)
+ * </pre>
+ *
+ * Textos são UTF-8; texto cifrado e assinatura viajam sem Base64.
+ * Os ids são atribuídos pelo servidor no registro.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+public class WireFrame {
+    static final byte MAGIC = (byte) 0xC7;
+    static final int HEADER_BYTES = 16;
+    static final int MAX_PAYLOAD = Integer.getInteger("chat.frame.maxPayload", 1 << 20);
+
+    /** Linha de texto do protocolo antigo (comandos e avisos do servidor). */
+    static final byte TEXT = 1;
+    /** Mensagem para todos. */
+    static final byte BROADCAST = 2;
+    /** Mensagem privada em texto simples. */
+    static final byte PRIVATE = 3;
+    /** Mensagem privada cifrada com RSA: assinatura (opcional) e texto cifrado crus. */
+    static final byte SECURE = 4;
+    /** Mensagem privada no modo de sessão (payload {@code AES:...} de {@link SessionKeys}). */
+    static final byte SECURE_SESSION = 5;
+    /** Associa um id a um nome de usuário; payload vazio indica que o usuário saiu. */
+    static final byte USER = 6;
+
+    final byte opcode;
+    final int sender;
+    final int recipient;
+    final byte[] signature;
+    final byte[] payload;
+
+    WireFrame(byte opcode, int sender, int recipient, byte[] signature, byte[] payload) {
+        this.opcode = opcode;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.signature = signature;
+        this.payload = payload;
+    }
+
+    /**
+     * @return O payload interpretado como texto UTF-8.
+     */
+    String text() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Codifica um frame.
+     *
+     * @param opcode O tipo do frame.
+     * @param sender O id do remetente.
+     * @param recipient O id do destinatário.
+     * @param signature A assinatura (pode ser vazia).
+     * @param payload O payload.
+     * @return O frame pronto para envio (posição 0, nunca modificado depois).
+     */
+    static ByteBuffer encode(byte opcode, int sender, int recipient, byte[] signature, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + signature.length + payload.length);
+        buf.put(MAGIC).put(opcode).putInt(sender).putInt(recipient)
+           .putShort((short) signature.length).putInt(payload.length)
+           .put(signature).put(payload).flip();
+        return buf;
+    }
+
+    /**
+     * Codifica um frame cujo payload é texto.
+     *
+     * @param opcode O tipo do frame.
+     * @param sender O id do remetente.
+     * @param recipient O id do destinatário.
+     * @param text O texto.
+     * @return O frame codificado.
+     */
+    static ByteBuffer encode(byte opcode, int sender, int recipient, String text) {
+        return encode(opcode, sender, recipient, new byte[0], text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodifica um frame completo de um array (por exemplo, um datagrama).
+     *
+     * @param data Os bytes recebidos.
+     * @param offset Onde o frame começa.
+     * @param length Quantos bytes estão disponíveis.
+     * @return O frame, ou null se os bytes ainda não contêm um frame completo.
+     * @throws IOException Se o cabeçalho for inválido.
+     */
+    static WireFrame parse(byte[] data, int offset, int length) throws IOException {
+        if (length < HEADER_BYTES) return null;
+        ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+        if (buf.get() != MAGIC) throw new IOException("Frame binario invalido");
+        byte opcode = buf.get();
+        int sender = buf.getInt();
+        int recipient = buf.getInt();
+        int sigLen = buf.getShort() & 0xFFFF;
+        int payloadLen = buf.getInt();
+        if (payloadLen < 0 || payloadLen > MAX_PAYLOAD) throw new IOException("Payload excede " + MAX_PAYLOAD + " bytes");
+        if (length < HEADER_BYTES + sigLen + payloadLen) return null;
+
+        byte[] signature = new byte[sigLen];
+        byte[] payload = new byte[payloadLen];
+        buf.get(signature).get(payload);
+        return new WireFrame(opcode, sender, recipient, signature, payload);
+    }
+
+    /**
+     * Tamanho total (cabeçalho incluído) de um frame já decodificado.
+     *
+     * @return O número de bytes que o frame ocupa.
+     */
+    int size() {
+        return HEADER_BYTES + signature.length + payload.length;
+    }
+
+    /**
+     * Indica se um datagrama recebido é um frame binário (e não texto).
+     *
+     * @param data Os bytes recebidos.
+     * @param length Quantos bytes são válidos.
+     * @return true se começar com o byte mágico.
+     */
+    static boolean isFrame(byte[] data, int length) {
+        return length >= HEADER_BYTES && data[0] == MAGIC;
+    }
+
+    /**
+     * Lê um frame de um fluxo, bloqueando até que ele esteja completo.
+     *
+     * @param in O fluxo de entrada.
+     * @return O frame, ou null no fim do fluxo.
+     * @throws IOException Se ocorrer um erro de I/O ou o frame for inválido.
+     */
+    static WireFrame read(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) return null;
+        if ((byte) first != MAGIC) throw new IOException("Frame binario invalido");
+        byte opcode = in.readByte();
+        int sender = in.readInt();
+        int recipient = in.readInt();
+        int sigLen = in.readUnsignedShort();
+        int payloadLen = in.readInt();
+        if (payloadLen < 0 || payloadLen > MAX_PAYLOAD) throw new IOException("Payload excede " + MAX_PAYLOAD + " bytes");
+
+        byte[] signature = new byte[sigLen];
+        byte[] payload = new byte[payloadLen];
+        in.readFully(signature);
+        in.readFully(payload);
+        return new WireFrame(opcode, sender, recipient, signature, payload);
+    }
+
+    /**
+     * Lê uma linha de texto diretamente do fluxo, sem ler nenhum byte além do '\n'.
+     * Usado antes da troca para o protocolo binário, quando um BufferedReader
+     * consumiria bytes dos frames seguintes.
+     *
+     * @param in O fluxo de entrada.
+     * @return A linha (sem '\r' e '\n'), ou null no fim do fluxo.
+     * @throws IOException Se ocorrer um erro de I/O.
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) return null;
+                break;
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int len = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, len);
+    }
+}
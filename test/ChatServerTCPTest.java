@@ -0,0 +1,207 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Roteamento do servidor TCP sem sockets: as conexões são filas em memória. Cobre a
+ * resposta de um cliente binário a um remetente offline, pelo id que o servidor
+ * apresentou junto com a mensagem guardada, o formato de {@code ENCRYPTED:} para
+ * clientes com e sem {@code SIG}, a recusa de chaves EC25519 a clientes sem {@code EC}
+ * o sufixo {@code :AES} das chaves, só para quem anunciou {@code AES}, e a chave de um
+ * remetente que saiu, que só volta na entrega das mensagens guardadas.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+class ChatServerTCPTest {
+    @TempDir
+    static Path dir;
+
+    /**
+     * Conexão sem socket: o teste lê direto da fila de saída.
+     */
+    private static final class FakeConnection extends ChatServerTCP.Connection {
+        @Override
+        void onQueued() {
+        }
+
+        @Override
+        void disconnect() {
+        }
+
+        /** Lê o próximo frame binário da fila. */
+        WireFrame frame() throws Exception {
+            ByteBuffer buf = poll();
+            byte[] bytes = new byte[buf.remaining()];
+            buf.duplicate().get(bytes);
+            return WireFrame.parse(bytes, 0, bytes.length);
+        }
+
+        /** Lê a próxima linha de texto da fila. */
+        String line() throws Exception {
+            ByteBuffer buf = poll();
+            byte[] bytes = new byte[buf.remaining()];
+            buf.duplicate().get(bytes);
+            return new String(bytes, CHARSET).trim();
+        }
+
+        /** Descarta linhas até a primeira que satisfaz {@code match}. */
+        String lineMatching(Predicate<String> match) throws Exception {
+            String line;
+            while (!match.test(line = line())) { }
+            return line;
+        }
+
+        /** Descarta frames até o primeiro que satisfaz {@code match}. */
+        WireFrame frameMatching(Predicate<WireFrame> match) throws Exception {
+            WireFrame frame;
+            while (!match.test(frame = frame())) { }
+            return frame;
+        }
+
+        private ByteBuffer poll() throws InterruptedException {
+            ByteBuffer buf = outbound.poll(5, TimeUnit.SECONDS);
+            assertNotNull(buf, "nada foi enviado a " + username);
+            return buf;
+        }
+    }
+
+    @BeforeAll
+    static void servidor() {
+        System.setProperty("chat.offline.dir", dir.toString());
+        // Como no ChatServerDual: o armazenamento entrega pelo próprio servidor
+        ChatTransport transport = ChatServerTCP.bridge(null);
+        ChatServerTCP.bridge(OfflineStore.open("tcp", transport::deliver));
+    }
+
+    private static String key() throws Exception {
+        return RSAUtils.keyToString(RSAUtils.generateKeyPair(RSAUtils.Suite.EC25519).getPublic());
+    }
+
+    private static FakeConnection register(String name, String key, String caps) throws Exception {
+        FakeConnection conn = new FakeConnection();
+        ChatServerTCP.register(conn, "REGISTRO:" + name + ":" + key + caps);
+        return conn;
+    }
+
+    @Test
+    void respostaBinariaAoRemetenteOfflineEGuardada() throws Exception {
+        String aliceKey = key();
+        FakeConnection alice = register("alice", aliceKey, ":SIG");
+        FakeConnection bob = register("bob", key(), ":BIN,SIG");
+        ChatServerTCP.unregister(bob);
+
+        ChatServerTCP.handleMessage(alice, "@bob oi offline");
+        alice.lineMatching(l -> l.startsWith("bob esta offline"));
+        ChatServerTCP.unregister(alice);
+
+        // bob volta: recebe o id apresentado para alice e a mensagem guardada
+        bob = register("bob", key(), ":BIN,SIG");
+        assertTrue(bob.line().startsWith("BIN_OK:"));
+        WireFrame user = bob.frameMatching(f -> f.opcode == WireFrame.USER && f.text().equals("alice"));
+        WireFrame stored = bob.frameMatching(f -> f.opcode == WireFrame.PRIVATE);
+        assertEquals(user.sender, stored.sender);
+        assertEquals("oi offline", stored.text());
+
+        // A resposta a esse id não se perde: vai para o armazenamento de alice
+        ChatServerTCP.handleFrame(bob, new WireFrame(WireFrame.PRIVATE, bob.id, user.sender, new byte[0],
+                "resposta".getBytes(StandardCharsets.UTF_8)));
+        WireFrame notice = bob.frameMatching(f -> f.opcode == WireFrame.TEXT);
+        assertTrue(notice.text().startsWith("alice esta offline"));
+
+        // alice volta: o id remoto é esquecido (bob é avisado) e a resposta é entregue
+        alice = register("alice", aliceKey, ":SIG");
+        assertEquals("[Privado] bob: resposta", alice.lineMatching(l -> l.startsWith("[Privado]")));
+        WireFrame forgotten = bob.frameMatching(f -> f.opcode == WireFrame.USER && f.sender == user.sender);
+        assertEquals(0, forgotten.payload.length);
+
+        ChatServerTCP.unregister(alice);
+        ChatServerTCP.unregister(bob);
+    }
+
+    @Test
+    void clienteSemSigRecebeSoOCifrado() throws Exception {
+        FakeConnection old = register("antigo", key(), "");
+        FakeConnection sig = register("novo", key(), ":SIG");
+        FakeConnection sender = register("remetente", key(), ":SIG");
+
+        ChatServerTCP.handleMessage(sender, "ENCRYPTED:antigo:Y2lmcmFkbw==:YXNzaW5hdHVyYQ==");
+        ChatServerTCP.handleMessage(sender, "ENCRYPTED:novo:Y2lmcmFkbw==:YXNzaW5hdHVyYQ==");
+        assertEquals("ENCRYPTED:remetente:Y2lmcmFkbw==", old.lineMatching(l -> l.startsWith("ENCRYPTED:")));
+        assertEquals("ENCRYPTED:remetente:Y2lmcmFkbw==:YXNzaW5hdHVyYQ==", sig.lineMatching(l -> l.startsWith("ENCRYPTED:")));
+
+        ChatServerTCP.unregister(old);
+        ChatServerTCP.unregister(sig);
+        ChatServerTCP.unregister(sender);
+    }
+
+    @Test
+    void chaveEcSoParaQuemAnunciaEc() throws Exception {
+        FakeConnection ec = register("curva", key(), ":SIG,EC");
+        FakeConnection old = register("legado", RSAUtils.keyToString(RSAUtils.generateKeyPair().getPublic()), "");
+        FakeConnection modern = register("moderno", key(), ":SIG,EC");
+
+        // O cliente original não sabe ler a chave: recebe "não encontrada" em vez dela
+        ChatServerTCP.handleMessage(old, "REQKEY:curva");
+        assertEquals("PUBKEYRESPERR:curva", old.lineMatching(l -> l.startsWith("PUBKEYRESP")));
+        ChatServerTCP.handleMessage(modern, "REQKEY:curva");
+        assertTrue(modern.lineMatching(l -> l.startsWith("PUBKEYRESP")).startsWith("PUBKEYRESP:curva:" + Ec25519.PREFIX));
+        // Chaves RSA continuam indo para todos
+        ChatServerTCP.handleMessage(modern, "REQKEY:legado");
+        assertTrue(modern.lineMatching(l -> l.startsWith("PUBKEYRESP")).startsWith("PUBKEYRESP:legado:"));
+
+        ChatServerTCP.unregister(ec);
+        ChatServerTCP.unregister(old);
+        ChatServerTCP.unregister(modern);
+    }
+
+    @Test
+    void sufixoAesSoParaQuemAnunciaAes() throws Exception {
+        String sessionKey = key();
+        FakeConnection session = register("sessao", sessionKey, ":SIG,EC,AES");
+        FakeConnection plain = register("sem-aes", key(), ":SIG,EC");
+
+        // Quem anunciou AES fica sabendo que o outro também anunciou
+        ChatServerTCP.handleMessage(session, "REQKEY:sem-aes");
+        assertFalse(session.lineMatching(l -> l.startsWith("PUBKEYRESP")).endsWith(":AES"));
+        FakeConnection other = register("outra-sessao", key(), ":SIG,EC,AES");
+        ChatServerTCP.handleMessage(other, "REQKEY:sessao");
+        assertEquals("PUBKEYRESP:sessao:" + sessionKey + ":AES", other.lineMatching(l -> l.startsWith("PUBKEYRESP")));
+        // Quem não anunciou recebe a chave como sempre
+        ChatServerTCP.handleMessage(plain, "REQKEY:sessao");
+        assertEquals("PUBKEYRESP:sessao:" + sessionKey, plain.lineMatching(l -> l.startsWith("PUBKEYRESP")));
+
+        ChatServerTCP.unregister(session);
+        ChatServerTCP.unregister(plain);
+        ChatServerTCP.unregister(other);
+    }
+
+    @Test
+    void chaveDeQuemSaiuSoVemComAMensagemGuardada() throws Exception {
+        String anaKey = key();
+        FakeConnection ana = register("ana", anaKey, ":SIG,EC");
+        FakeConnection eva = register("eva", key(), ":SIG,EC");
+        ChatServerTCP.handleMessage(ana, "@bia guardada");
+        ana.lineMatching(l -> l.startsWith("bia esta offline"));
+        ChatServerTCP.unregister(ana);
+
+        // A chave sai do registro junto com a ana
+        ChatServerTCP.handleMessage(eva, "REQKEY:ana");
+        assertEquals("PUBKEYRESPERR:ana", eva.lineMatching(l -> l.startsWith("PUBKEYRESP")));
+
+        // bia recebe a chave guardada antes da mensagem
+        FakeConnection bia = register("bia", key(), ":SIG,EC");
+        assertEquals("PUBKEYRESP:ana:" + anaKey, bia.lineMatching(l -> l.startsWith("PUBKEYRESP")));
+        assertEquals("[Privado] ana: guardada", bia.lineMatching(l -> l.startsWith("[Privado]")));
+
+        ChatServerTCP.unregister(eva);
+        ChatServerTCP.unregister(bia);
+    }
+}
@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.List;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Mensagens de grupo: ida e volta pelo repasse do servidor, e as adulterações que o
+ * destinatário precisa recusar (texto cifrado, chave de conteúdo trocada, grupo errado).
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+class GroupSealTest {
+    private static KeyPair ana;
+    private static KeyPair bob;
+    private static KeyPair eva;
+    private static final List<String> GROUP = List.of("bob", "eva");
+
+    @BeforeAll
+    static void chaves() throws Exception {
+        ana = RSAUtils.generateKeyPair();
+        bob = RSAUtils.generateKeyPair();
+        // Suítes misturadas, como no chat
+        eva = RSAUtils.generateKeyPair(RSAUtils.Suite.EC25519);
+    }
+
+    private static List<PublicKey> keys() {
+        return List.of(bob.getPublic(), eva.getPublic());
+    }
+
+    private static GroupSeal.Fanout sealed(String text) throws Exception {
+        String line = GroupSeal.seal("ana", GROUP, keys(), text, ana.getPrivate());
+        // O servidor conhece o remetente pela conexão; a linha do cliente não o traz
+        return GroupSeal.fanout("ana", line);
+    }
+
+    @Test
+    void cadaDestinatarioAbreASuaLinha() throws Exception {
+        String text = "segredo do grupo ".repeat(100);
+        GroupSeal.Fanout fanout = sealed(text);
+        assertEquals(GROUP, fanout.recipients);
+
+        String toBob = fanout.line(0);
+        String toEva = fanout.line(1);
+        assertEquals("ana", GroupSeal.senderOf(toBob));
+        assertEquals("[Grupo bob,eva] ana: " + text, GroupSeal.open("bob", bob.getPrivate(), ana.getPublic(), toBob));
+        assertEquals("[Grupo bob,eva] ana: " + text, GroupSeal.open("eva", eva.getPrivate(), ana.getPublic(), toEva));
+    }
+
+    @Test
+    void recusaCifradoAdulterado() throws Exception {
+        String line = sealed("oi").line(0);
+        String[] parts = line.split(":", 7);
+        char[] cipher = parts[5].toCharArray();
+        cipher[0] = cipher[0] == 'A' ? 'B' : 'A';
+        parts[5] = new String(cipher);
+        String tampered = String.join(":", parts);
+        assertThrows(SignatureException.class, () -> GroupSeal.open("bob", bob.getPrivate(), ana.getPublic(), tampered));
+    }
+
+    @Test
+    void recusaChaveDeConteudoDeOutraMensagem() throws Exception {
+        // A chave protegida não é assinada: trocá-la por outra válida para o bob só é
+        // detectado pelo compromisso
+        String line = sealed("original").line(0);
+        String other = sealed("outra").line(0);
+        String swapped = line.substring(0, line.lastIndexOf(':') + 1) + other.substring(other.lastIndexOf(':') + 1);
+        SignatureException e = assertThrows(SignatureException.class,
+                () -> GroupSeal.open("bob", bob.getPrivate(), ana.getPublic(), swapped));
+        assertTrue(e.getMessage().contains("Chave de conteudo"));
+    }
+
+    @Test
+    void recusaAssinaturaDeOutroRemetente() throws Exception {
+        String line = sealed("oi").line(0);
+        assertThrows(SignatureException.class, () -> GroupSeal.open("bob", bob.getPrivate(), bob.getPublic(), line));
+    }
+
+    @Test
+    void recusaQuemNaoEstaNoGrupo() throws Exception {
+        String line = sealed("oi").line(0);
+        assertThrows(SignatureException.class, () -> GroupSeal.open("zeca", bob.getPrivate(), ana.getPublic(), line));
+    }
+
+    @Test
+    void fanoutRecusaLinhasMalFormadas() {
+        assertNull(GroupSeal.fanout("ana", "GRUPO:bob,eva:c:s:x:k1"));
+        assertNull(GroupSeal.fanout("ana", "GRUPO:bob,bob:c:s:x:k1,k2"));
+        assertNull(GroupSeal.fanout("ana", "GRUPO::c:s:x:k1"));
+        assertNull(GroupSeal.fanout("ana", "GRUPO:bob:c:s"));
+    }
+}
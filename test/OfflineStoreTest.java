@@ -0,0 +1,148 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Armazenamento offline: guarda, replay em ordem de chegada, reabertura do log e
+ * replay interrompido quando o destinatário sai de novo.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+class OfflineStoreTest {
+    @TempDir
+    Path dir;
+
+    // Quem está "conectado" e o que foi entregue a eles
+    private final Set<String> online = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<OfflineStore.Message> delivered = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void diretorio() {
+        System.setProperty("chat.offline.dir", dir.toString());
+    }
+
+    private OfflineStore open() {
+        OfflineStore store = OfflineStore.open("teste", message -> {
+            if (!online.contains(message.to)) return false;
+            delivered.add(message);
+            return true;
+        });
+        assertNotNull(store);
+        return store;
+    }
+
+    private static OfflineStore.Message privada(String from, String to, String text) {
+        return new OfflineStore.Message(from, to, "chave-" + from,
+                new WireFrame(WireFrame.PRIVATE, 0, 0, new byte[0], text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private OfflineStore.Message next() throws InterruptedException {
+        OfflineStore.Message message = delivered.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message, "nada foi entregue");
+        return message;
+    }
+
+    /** Espera a thread do armazenamento processar tudo o que veio antes. */
+    private void sync(OfflineStore store) throws InterruptedException {
+        online.add("sync");
+        store.store(privada("sync", "sync", "sync"));
+        assertEquals("sync", next().to);
+        online.remove("sync");
+    }
+
+    @Test
+    void replayEntregaEmOrdemComAvisoAntes() throws Exception {
+        OfflineStore store = open();
+        store.store(privada("ana", "bob", "um"));
+        store.store(new OfflineStore.Message("ana", "bob", "chave-ana",
+                new WireFrame(WireFrame.SECURE, 0, 0, new byte[] { 9, 8 }, new byte[] { 1, 2, 3 })));
+        store.store(privada("eva", "bob", "tres"));
+        sync(store);
+        assertTrue(delivered.isEmpty());
+
+        online.add("bob");
+        store.replay("bob");
+        OfflineStore.Message notice = next();
+        assertEquals(WireFrame.TEXT, notice.frame.opcode);
+        assertTrue(notice.frame.text().contains("3 mensagem(ns)"));
+
+        OfflineStore.Message first = next();
+        assertEquals("ana", first.from);
+        assertEquals("chave-ana", first.senderKey);
+        assertEquals("um", first.frame.text());
+        OfflineStore.Message second = next();
+        assertEquals(WireFrame.SECURE, second.frame.opcode);
+        assertArrayEquals(new byte[] { 9, 8 }, second.frame.signature);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, second.frame.payload);
+        assertEquals("tres", next().frame.text());
+
+        // Já entregues: um novo replay não repete nada
+        store.replay("bob");
+        sync(store);
+        assertTrue(delivered.isEmpty());
+    }
+
+    @Test
+    void destinatarioConectadoRecebeNaHora() throws Exception {
+        OfflineStore store = open();
+        online.add("bob");
+        store.store(privada("ana", "bob", "ao vivo"));
+        assertEquals("ao vivo", next().frame.text());
+    }
+
+    @Test
+    void pendentesSobrevivemAReabertura() throws Exception {
+        OfflineStore store = open();
+        store.store(privada("ana", "bob", "antes do reinicio"));
+        sync(store);
+
+        // Outra instância lê os mesmos segmentos, como um servidor reiniciado
+        OfflineStore reopened = open();
+        online.add("bob");
+        reopened.replay("bob");
+        assertEquals(WireFrame.TEXT, next().frame.opcode);
+        OfflineStore.Message message = next();
+        assertEquals("ana", message.from);
+        assertEquals("antes do reinicio", message.frame.text());
+    }
+
+    @Test
+    void replayInterrompidoGuardaORestante() throws Exception {
+        OfflineStore store = OfflineStore.open("teste", new OfflineStore.Delivery() {
+            int toBob;
+
+            @Override
+            public boolean deliver(OfflineStore.Message message) {
+                // bob aceita o aviso e a primeira mensagem, e então "sai"
+                if (!online.contains(message.to) || (message.to.equals("bob") && toBob++ >= 2)) return false;
+                delivered.add(message);
+                return true;
+            }
+        });
+        store.store(privada("ana", "bob", "primeira"));
+        store.store(privada("ana", "bob", "segunda"));
+        sync(store);
+        online.add("bob");
+        store.replay("bob");
+        assertEquals(WireFrame.TEXT, next().frame.opcode);
+        assertEquals("primeira", next().frame.text());
+        sync(store);
+        assertTrue(delivered.isEmpty());
+
+        // Na próxima vez (aqui, depois de reabrir o log), só a que faltou
+        OfflineStore reopened = open();
+        reopened.replay("bob");
+        assertTrue(next().frame.text().contains("1 mensagem(ns)"));
+        assertEquals("segunda", next().frame.text());
+    }
+}
@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Fila de saída no limite (high-water mark): o que cada política faz com a mensagem
+ * que não cabe, e os contadores globais que as métricas exibem.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+class OutboundQueueTest {
+    // Cabem duas mensagens de 4 bytes, mas não três
+    private static final long LIMIT = 10;
+
+    private static ByteBuffer msg(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(ByteBuffer buf) {
+        assertNotNull(buf, "a fila estava vazia");
+        return StandardCharsets.UTF_8.decode(buf.duplicate()).toString();
+    }
+
+    @Test
+    void dropOldestDescartaAsMaisAntigas() {
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DROP_OLDEST, LIMIT);
+        long dropped = OutboundQueue.totalDropped.get();
+        assertTrue(queue.offer(msg("um..")));
+        assertTrue(queue.offer(msg("dois")));
+        assertTrue(queue.offer(msg("tres")));
+
+        assertEquals(dropped + 1, OutboundQueue.totalDropped.get());
+        assertEquals("dois", text(queue.poll()));
+        assertEquals("tres", text(queue.poll()));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void dropNewDescartaANova() {
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DROP_NEW, LIMIT);
+        long dropped = OutboundQueue.totalDropped.get();
+        assertTrue(queue.offer(msg("um..")));
+        assertTrue(queue.offer(msg("dois")));
+        assertTrue(queue.offer(msg("tres")));
+
+        assertEquals(dropped + 1, OutboundQueue.totalDropped.get());
+        assertEquals("um..", text(queue.poll()));
+        assertEquals("dois", text(queue.poll()));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void disconnectPedeADesconexaoUmaVez() throws Exception {
+        long queued = OutboundQueue.totalQueuedBytes.get();
+        long disconnects = OutboundQueue.totalDisconnects.get();
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DISCONNECT, LIMIT);
+        assertTrue(queue.offer(msg("um..")));
+        assertTrue(queue.offer(msg("dois")));
+        assertEquals(queued + 8, OutboundQueue.totalQueuedBytes.get());
+
+        assertFalse(queue.offer(msg("tres")));
+        assertEquals(disconnects + 1, OutboundQueue.totalDisconnects.get());
+        // A fila fechada descarta o que tinha, e o escritor parado em take() termina
+        assertEquals(queued, OutboundQueue.totalQueuedBytes.get());
+        assertNull(queue.take());
+        // Só o primeiro excesso pede a desconexão
+        assertTrue(queue.offer(msg("quatro")));
+        assertEquals(disconnects + 1, OutboundQueue.totalDisconnects.get());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void abaixoDoLimiteNadaEDescartado() {
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DROP_NEW, LIMIT);
+        long dropped = OutboundQueue.totalDropped.get();
+        assertTrue(queue.offer(msg("cinco")));
+        assertTrue(queue.offer(msg("seis!")));
+        assertEquals(dropped, OutboundQueue.totalDropped.get());
+        assertEquals("cinco", text(queue.poll()));
+    }
+}
@@ -0,0 +1,94 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Pipeline de recebimento: ordem por remetente, mensagens que esperam por uma chave
+ * sem prender threads e descarte das filas vazias.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+class ReceivePipelineTest {
+    private final BlockingQueue<String> shown = new LinkedBlockingQueue<>();
+    private final ReceivePipeline pipeline = new ReceivePipeline(shown::add);
+
+    private String next() throws InterruptedException {
+        String line = shown.poll(5, TimeUnit.SECONDS);
+        assertNotNull(line, "nada foi exibido");
+        return line;
+    }
+
+    @Test
+    void mantemAOrdemDoRemetente() throws Exception {
+        CountDownLatch slow = new CountDownLatch(1);
+        pipeline.secure("ana", () -> {
+            slow.await();
+            return "ana 1";
+        });
+        pipeline.secure("ana", () -> "ana 2");
+        pipeline.plain("ana", "ana 3");
+        // Outro remetente não espera pela ana
+        pipeline.plain("bob", "bob 1");
+        assertEquals("bob 1", next());
+
+        slow.countDown();
+        assertEquals(List.of("ana 1", "ana 2", "ana 3"), List.of(next(), next(), next()));
+    }
+
+    @Test
+    void esperaAChaveSemOcuparThreads() throws Exception {
+        // Mais mensagens esperando do que threads: se cada uma prendesse uma thread,
+        // a do outro remetente nunca rodaria
+        CompletableFuture<String> key = new CompletableFuture<>();
+        int waiting = Runtime.getRuntime().availableProcessors() + 2;
+        for (int i = 0; i < waiting; i++) {
+            int n = i;
+            pipeline.secure("ana", key, () -> "ana " + n + " com " + key.join());
+        }
+        pipeline.secure("bob", () -> "bob");
+        assertEquals("bob", next());
+        assertTrue(shown.isEmpty());
+
+        key.complete("chave");
+        for (int i = 0; i < waiting; i++) assertEquals("ana " + i + " com chave", next());
+    }
+
+    @Test
+    void chaveQueFalhaViraErro() throws Exception {
+        CompletableFuture<String> key = new CompletableFuture<>();
+        pipeline.secure("ana", key, () -> "nunca");
+        pipeline.plain("ana", "depois");
+        key.completeExceptionally(new IOException("usuario ana nao encontrado"));
+        assertTrue(next().startsWith("[ERRO] Mensagem de ana descartada"));
+        assertEquals("depois", next());
+    }
+
+    @Test
+    void filasVaziasSaoDescartadas() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            String sender = "u" + i;
+            pipeline.secure(sender, () -> sender);
+        }
+        for (int i = 0; i < 50; i++) next();
+        // A última vaga sai da fila antes de a fila sair da tabela; espera um pouco
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.pendingSenders() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(0, pipeline.pendingSenders());
+    }
+
+    @Test
+    void senderOfReconheceAsLinhasDeChat() {
+        assertEquals("ana", ReceivePipeline.senderOf("[Todos] ana: oi"));
+        assertEquals("ana", ReceivePipeline.senderOf("[Privado] ana: oi"));
+        assertEquals("ana", ReceivePipeline.senderOf("[#sala] ana: oi"));
+        assertNull(ReceivePipeline.senderOf("ana entrou no chat."));
+    }
+}
@@ -0,0 +1,118 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Entrega confiável entre dois sockets locais: ACK seletivo, retransmissão rápida,
+ * retransmissão por timeout e descarte de duplicados.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+class ReliableUdpTest {
+    private DatagramSocket senderSocket;
+    private DatagramSocket receiverSocket;
+    private ReliableUdp sender;
+    private ReliableUdp receiver;
+
+    @BeforeEach
+    void abre() throws Exception {
+        senderSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        receiverSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        senderSocket.setSoTimeout(2000);
+        receiverSocket.setSoTimeout(2000);
+        sender = new ReliableUdp();
+        receiver = new ReliableUdp();
+    }
+
+    @AfterEach
+    void fecha() {
+        senderSocket.close();
+        receiverSocket.close();
+    }
+
+    private void send(String text) throws Exception {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        sender.send(senderSocket, data, 0, data.length, receiverSocket.getLocalSocketAddress());
+    }
+
+    private static DatagramPacket receive(DatagramSocket socket) throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        socket.receive(packet);
+        return packet;
+    }
+
+    private static String text(DatagramPacket packet) {
+        return new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
+    }
+
+    /** Processa os ACKs que chegaram ao remetente. */
+    private void drainAcks(int count) throws Exception {
+        for (int i = 0; i < count; i++) assertNull(sender.unwrap(senderSocket, receive(senderSocket)));
+    }
+
+    @Test
+    void entregaEConfirma() throws Exception {
+        send("oi");
+        DatagramPacket delivered = receiver.unwrap(receiverSocket, receive(receiverSocket));
+        assertEquals("oi", text(delivered));
+        assertTrue(receiver.isReliablePeer(senderSocket.getLocalSocketAddress()));
+
+        drainAcks(1);
+        assertEquals(0, sender.unacknowledged(receiverSocket.getLocalSocketAddress()));
+        assertTrue(sender.srtt(receiverSocket.getLocalSocketAddress()) >= 0);
+    }
+
+    @Test
+    void ackSeletivoRetransmiteSoOPerdido() throws Exception {
+        for (int i = 0; i < 5; i++) send("m" + i);
+        List<DatagramPacket> wire = new ArrayList<>();
+        for (int i = 0; i < 5; i++) wire.add(receive(receiverSocket));
+
+        // m1 se perde; os outros são entregues fora de ordem, sem esperar por ele
+        List<String> delivered = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            if (i != 1) delivered.add(text(receiver.unwrap(receiverSocket, wire.get(i))));
+        }
+        assertEquals(List.of("m0", "m2", "m3", "m4"), delivered);
+
+        // Com três posteriores confirmados, m1 é retransmitido antes do timeout
+        drainAcks(4);
+        DatagramPacket again = receive(receiverSocket);
+        assertEquals("m1", text(receiver.unwrap(receiverSocket, again)));
+        drainAcks(1);
+        assertEquals(0, sender.unacknowledged(receiverSocket.getLocalSocketAddress()));
+
+        // Uma cópia atrasada não é entregue de novo
+        long duplicates = ReliableUdp.totalDuplicates.get();
+        assertNull(receiver.unwrap(receiverSocket, wire.get(3)));
+        assertEquals(duplicates + 1, ReliableUdp.totalDuplicates.get());
+    }
+
+    @Test
+    void retransmitePorTimeout() throws Exception {
+        send("perdido");
+        DatagramPacket lost = receive(receiverSocket);
+        assertEquals(1, sender.unacknowledged(receiverSocket.getLocalSocketAddress()));
+
+        // Sem ACK, a thread de retransmissão reenvia depois do RTO inicial
+        DatagramPacket retransmitted = receive(receiverSocket);
+        assertEquals(text(lost), text(retransmitted));
+        assertEquals("perdido", text(receiver.unwrap(receiverSocket, retransmitted)));
+        drainAcks(1);
+        assertEquals(0, sender.unacknowledged(receiverSocket.getLocalSocketAddress()));
+    }
+
+    @Test
+    void datagramaSemACamadaPassaDireto() throws Exception {
+        byte[] plain = "LISTAR_USUARIOS:".getBytes(StandardCharsets.UTF_8);
+        DatagramPacket packet = new DatagramPacket(plain, plain.length, senderSocket.getLocalSocketAddress());
+        assertSame(packet, receiver.unwrap(receiverSocket, packet));
+    }
+}
@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Roda de tempo: vencimento no tick certo, prazos de várias voltas, cancelamento,
+ * reagendamento e pausas mais longas que uma volta.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+class TimingWheelTest {
+    // 4 baldes de 10 ms: uma volta cobre 40 ms
+    private final TimingWheel<String> wheel = new TimingWheel<>(10, 4, 0);
+    private final List<String> expired = new ArrayList<>();
+
+    private List<String> advance(long nowMs) {
+        expired.clear();
+        wheel.advance(nowMs, expired::add);
+        return expired;
+    }
+
+    @Test
+    void venceNoTickDoPrazo() {
+        wheel.schedule("a", 25);
+        assertEquals(List.of(), advance(20));
+        assertEquals(List.of("a"), advance(30));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void prazoDeVariasVoltasEsperaAsVoltas() {
+        wheel.schedule("longe", 130);
+        wheel.schedule("perto", 10);
+        // O mesmo balde é visitado nos ticks 1, 5, 9 e 13; só no último o prazo venceu
+        for (long now = 10; now < 130; now += 10) {
+            List<String> due = advance(now);
+            if (now == 10) assertEquals(List.of("perto"), due);
+            else assertEquals(List.of(), due, "em " + now);
+        }
+        assertEquals(List.of("longe"), advance(130));
+    }
+
+    @Test
+    void cancelarTiraDaRoda() {
+        TimingWheel.Entry<String> entry = wheel.schedule("a", 20);
+        wheel.schedule("b", 20);
+        assertTrue(wheel.cancel(entry));
+        assertFalse(wheel.cancel(entry));
+        assertFalse(entry.scheduled());
+        assertEquals(List.of("b"), advance(20));
+    }
+
+    @Test
+    void reagendarMoveOPrazo() {
+        TimingWheel.Entry<String> entry = wheel.schedule("a", 20);
+        wheel.reschedule(entry, 90);
+        assertEquals(List.of(), advance(80));
+        assertEquals(List.of("a"), advance(90));
+
+        // Um item já vencido pode voltar à roda pela mesma alça
+        wheel.reschedule(entry, 100);
+        assertTrue(entry.scheduled());
+        assertEquals(List.of("a"), advance(100));
+    }
+
+    @Test
+    void pausaLongaEntregaSoOQueVenceu() {
+        wheel.schedule("a", 50);
+        wheel.schedule("b", 200);
+        wheel.schedule("c", 400);
+        // Várias voltas de uma vez
+        assertEquals(List.of("a", "b"), advance(250));
+        assertEquals(1, wheel.size());
+        assertEquals(List.of(), advance(390));
+        assertEquals(List.of("c"), advance(400));
+    }
+
+    @Test
+    void prazoPassadoVenceNoProximoTick() {
+        advance(100);
+        wheel.schedule("atrasado", 30);
+        assertEquals(List.of("atrasado"), advance(110));
+    }
+}
@@ -0,0 +1,116 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Divisão e remontagem de mensagens UDP grandes, em qualquer ordem de chegada.
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+class UdpFragmenterTest {
+    private static final InetSocketAddress ANA = new InetSocketAddress("127.0.0.1", 40001);
+    private static final InetSocketAddress BIA = new InetSocketAddress("127.0.0.1", 40002);
+
+    private static byte[] message(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static DatagramPacket packet(byte[] fragment, InetSocketAddress from) {
+        return new DatagramPacket(fragment, fragment.length, from);
+    }
+
+    private static byte[] payload(DatagramPacket packet) {
+        byte[] out = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), packet.getOffset(), out, 0, out.length);
+        return out;
+    }
+
+    @Test
+    void mensagemPequenaNaoEDividida() {
+        assertFalse(UdpFragmenter.needsSplit(UdpFragmenter.FRAGMENT_BYTES));
+        assertTrue(UdpFragmenter.needsSplit(UdpFragmenter.FRAGMENT_BYTES + 1));
+
+        byte[] plain = "oi".getBytes();
+        DatagramPacket packet = packet(plain, ANA);
+        assertSame(packet, new UdpFragmenter().reassemble(packet));
+    }
+
+    @Test
+    void remontaForaDeOrdem() {
+        byte[] data = message(5 * UdpFragmenter.FRAGMENT_BYTES + 17);
+        List<byte[]> fragments = new UdpFragmenter().split(data, 0, data.length);
+        assertEquals(6, fragments.size());
+        for (byte[] fragment : fragments) {
+            assertTrue(fragment.length <= UdpFragmenter.HEADER_BYTES + UdpFragmenter.FRAGMENT_BYTES);
+        }
+
+        Collections.shuffle(fragments, new Random(1));
+        UdpFragmenter receiver = new UdpFragmenter();
+        DatagramPacket whole = null;
+        for (int i = 0; i < fragments.size(); i++) {
+            whole = receiver.reassemble(packet(fragments.get(i), ANA));
+            if (i < fragments.size() - 1) assertNull(whole);
+        }
+        assertArrayEquals(data, payload(whole));
+        assertEquals(ANA, whole.getSocketAddress());
+    }
+
+    @Test
+    void fragmentoDuplicadoNaoCorrompe() {
+        byte[] data = message(3 * UdpFragmenter.FRAGMENT_BYTES);
+        List<byte[]> fragments = new UdpFragmenter().split(data, 0, data.length);
+        UdpFragmenter receiver = new UdpFragmenter();
+        assertNull(receiver.reassemble(packet(fragments.get(0), ANA)));
+        assertNull(receiver.reassemble(packet(fragments.get(0), ANA)));
+        assertNull(receiver.reassemble(packet(fragments.get(1), ANA)));
+        assertArrayEquals(data, payload(receiver.reassemble(packet(fragments.get(2), ANA))));
+    }
+
+    @Test
+    void remetentesDiferentesNaoSeMisturam() {
+        // Os dois remetentes usam o mesmo id de mensagem (cada um tem o seu contador)
+        byte[] a = message(2 * UdpFragmenter.FRAGMENT_BYTES + 1);
+        byte[] b = message(2 * UdpFragmenter.FRAGMENT_BYTES + 2);
+        List<byte[]> fromAna = new UdpFragmenter().split(a, 0, a.length);
+        List<byte[]> fromBia = new UdpFragmenter().split(b, 0, b.length);
+
+        UdpFragmenter receiver = new UdpFragmenter();
+        List<DatagramPacket> done = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            DatagramPacket p = receiver.reassemble(packet(fromAna.get(i), ANA));
+            if (p != null) done.add(p);
+            p = receiver.reassemble(packet(fromBia.get(i), BIA));
+            if (p != null) done.add(p);
+        }
+        assertEquals(2, done.size());
+        assertArrayEquals(a, payload(done.get(0)));
+        assertArrayEquals(b, payload(done.get(1)));
+    }
+
+    @Test
+    void rejeitaCabecalhoInvalido() {
+        byte[] data = message(2 * UdpFragmenter.FRAGMENT_BYTES);
+        byte[] fragment = new UdpFragmenter().split(data, 0, data.length).get(0);
+        // índice 9 de 2 fragmentos
+        fragment[5] = 0;
+        fragment[6] = 9;
+        long rejected = UdpFragmenter.totalRejected.get();
+        assertNull(new UdpFragmenter().reassemble(packet(fragment, ANA)));
+        assertEquals(rejected + 1, UdpFragmenter.totalRejected.get());
+    }
+
+    @Test
+    void recusaMensagemAcimaDoLimite() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new UdpFragmenter().split(new byte[0], 0, UdpFragmenter.MAX_MESSAGE + 1));
+    }
+}
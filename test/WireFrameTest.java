@@ -0,0 +1,91 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Ida e volta dos frames do protocolo binário, pelos dois caminhos de leitura
+ * (datagrama inteiro e fluxo TCP).
+ *
+ * @author [Seu Nome]
+ * @version 1.0
+ */
+class WireFrameTest {
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] out = new byte[buf.remaining()];
+        buf.duplicate().get(out);
+        return out;
+    }
+
+    @Test
+    void parseDevolveOsCamposCodificados() throws IOException {
+        byte[] signature = { 1, 2, 3 };
+        byte[] payload = { (byte) 0xFF, 0, 42 };
+        byte[] data = bytes(WireFrame.encode(WireFrame.SECURE, 7, 9, signature, payload));
+
+        WireFrame frame = WireFrame.parse(data, 0, data.length);
+        assertEquals(WireFrame.SECURE, frame.opcode);
+        assertEquals(7, frame.sender);
+        assertEquals(9, frame.recipient);
+        assertArrayEquals(signature, frame.signature);
+        assertArrayEquals(payload, frame.payload);
+        assertEquals(data.length, frame.size());
+    }
+
+    @Test
+    void textoEmUtf8() throws IOException {
+        byte[] data = bytes(WireFrame.encode(WireFrame.PRIVATE, 1, 2, "olá, ção"));
+        WireFrame frame = WireFrame.parse(data, 0, data.length);
+        assertEquals("olá, ção", frame.text());
+        assertEquals(0, frame.signature.length);
+    }
+
+    @Test
+    void readLeFramesSeguidosDoFluxo() throws IOException {
+        byte[] a = bytes(WireFrame.encode(WireFrame.BROADCAST, 3, 0, "primeiro"));
+        byte[] b = bytes(WireFrame.encode(WireFrame.USER, 4, 0, ""));
+        byte[] stream = new byte[a.length + b.length];
+        System.arraycopy(a, 0, stream, 0, a.length);
+        System.arraycopy(b, 0, stream, a.length, b.length);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream));
+        assertEquals("primeiro", WireFrame.read(in).text());
+        WireFrame user = WireFrame.read(in);
+        assertEquals(WireFrame.USER, user.opcode);
+        assertEquals(0, user.payload.length);
+        assertNull(WireFrame.read(in));
+    }
+
+    @Test
+    void frameIncompletoDevolveNull() throws IOException {
+        byte[] data = bytes(WireFrame.encode(WireFrame.TEXT, 0, 0, "incompleto"));
+        assertNull(WireFrame.parse(data, 0, WireFrame.HEADER_BYTES - 1));
+        assertNull(WireFrame.parse(data, 0, data.length - 1));
+    }
+
+    @Test
+    void rejeitaMagicInvalido() {
+        byte[] data = bytes(WireFrame.encode(WireFrame.TEXT, 0, 0, "x"));
+        data[0] = 0;
+        assertFalse(WireFrame.isFrame(data, data.length));
+        assertThrows(IOException.class, () -> WireFrame.parse(data, 0, data.length));
+    }
+
+    @Test
+    void readLineNaoConsomeOFrameSeguinte() throws IOException {
+        byte[] line = "BIN_OK:5\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] frame = bytes(WireFrame.encode(WireFrame.TEXT, 0, 0, "depois"));
+        byte[] stream = new byte[line.length + frame.length];
+        System.arraycopy(line, 0, stream, 0, line.length);
+        System.arraycopy(frame, 0, stream, line.length, frame.length);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream));
+        assertEquals("BIN_OK:5", WireFrame.readLine(in));
+        assertEquals("depois", WireFrame.read(in).text());
+    }
+}